@@ -0,0 +1,141 @@
+package bacci.giovanni.o2tab.align;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the sequence comparison routines. Each invocation compares a
+ * query with a fixed set of targets: half of them are mutated copies of the
+ * query (about 2% of differences) and half are unrelated sequences, which is
+ * the typical mix met when checking the candidates of a k-mer index.
+ * <p>
+ * Run with <code>mvn -Pjmh test-compile exec:exec</code>.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlignmentBenchmark {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	private static final int TARGETS = 32;
+
+	@Param({ "64", "250", "450" })
+	public int length;
+
+	private byte[] query;
+
+	private byte[][] targets;
+
+	private MyersEditDistance myers;
+
+	private GlobalAligner aligner;
+
+	private GlobalAligner earlyAligner;
+
+	private BatchAligner batch;
+
+	private BatchAligner earlyBatch;
+
+	private int[] ids;
+
+	private double[] out;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(1);
+		query = random(r, length);
+		targets = new byte[TARGETS][];
+		for (int i = 0; i < TARGETS; i++)
+			targets[i] = (i % 2 == 0) ? mutate(r, query, length / 50)
+					: random(r, length);
+		myers = new MyersEditDistance();
+		aligner = new GlobalAligner();
+		earlyAligner = new GlobalAligner().earlyExit(true);
+		batch = new BatchAligner();
+		earlyBatch = new BatchAligner().earlyExit(true);
+		ids = new int[TARGETS];
+		for (int i = 0; i < TARGETS; i++)
+			ids[i] = i;
+		out = new double[TARGETS];
+	}
+
+	@Benchmark
+	public int editDistance() {
+		int sum = 0;
+		for (byte[] t : targets)
+			sum += myers.distance(query, t);
+		return sum;
+	}
+
+	@Benchmark
+	public int editDistanceBounded() {
+		int max = length * 3 / 100;
+		int sum = 0;
+		for (byte[] t : targets)
+			sum += myers.distance(query, t, max);
+		return sum;
+	}
+
+	@Benchmark
+	public double bandedIdentity() {
+		double sum = 0;
+		for (byte[] t : targets)
+			sum += aligner.identity(query, t, 0.97);
+		return sum;
+	}
+
+	@Benchmark
+	public double bandedIdentityEarlyExit() {
+		double sum = 0;
+		for (byte[] t : targets)
+			sum += earlyAligner.identity(query, t, 0.97);
+		return sum;
+	}
+
+	@Benchmark
+	public double[] batchIdentity() {
+		batch.identities(query, targets, ids, TARGETS, 0.97, out);
+		return out;
+	}
+
+	@Benchmark
+	public double[] batchIdentityEarlyExit() {
+		earlyBatch.identities(query, targets, ids, TARGETS, 0.97, out);
+		return out;
+	}
+
+	private static byte[] random(Random r, int len) {
+		byte[] s = new byte[len];
+		for (int i = 0; i < len; i++)
+			s[i] = BASES[r.nextInt(4)];
+		return s;
+	}
+
+	private static byte[] mutate(Random r, byte[] s, int mismatches) {
+		byte[] m = s.clone();
+		for (int i = 0; i < mismatches; i++)
+			m[r.nextInt(m.length)] = BASES[r.nextInt(4)];
+		return m;
+	}
+
+}
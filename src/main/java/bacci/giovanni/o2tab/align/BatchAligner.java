@@ -0,0 +1,295 @@
+package bacci.giovanni.o2tab.align;
+
+/**
+ * Computes the identities of one query against many targets, aligning
+ * {@link #LANES} targets at a time. The targets of a batch are laid out in
+ * struct-of-arrays form (base <i>j</i> of every target is stored
+ * contiguously) and their dynamic programming rows are advanced together, so
+ * the innermost loop runs over the targets with no dependency between
+ * iterations and it is a candidate for auto-vectorisation by the JIT.
+ * <p>
+ * Each target is aligned in its own band with the same costs, tie breaking
+ * and early exit rule of {@link GlobalAligner}, so the identities are the
+ * same that {@link GlobalAligner#identity(byte[], byte[], double)} would
+ * return with the same early exit setting. A target whose alignment exits
+ * early gets the identity of the best alignment reached so far, below the
+ * threshold as in {@link GlobalAligner} (or 0 when none reached the end of
+ * a sequence), so only the accept or reject decision at the threshold is the
+ * same as without early exit.
+ * <p>
+ * The buffers are kept between calls. Instances are not thread safe.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class BatchAligner {
+
+	/**
+	 * Number of targets aligned together
+	 */
+	public final static int LANES = 8;
+
+	/**
+	 * Bits of a cell holding the number of columns
+	 */
+	private final static int SHIFT = 16;
+
+	/**
+	 * Unit cost in a cell
+	 */
+	private final static int ONE = 1 << SHIFT;
+
+	/**
+	 * Value of the cells outside the band
+	 */
+	private final static int INF = 1 << 30;
+
+	/**
+	 * Maximum sum of the lengths of the aligned sequences, longer pairs are
+	 * handed to a {@link GlobalAligner}
+	 */
+	private final static int MAX_LENGTH = (INF >> SHIFT) - 1;
+
+	/**
+	 * Transposed target bases
+	 */
+	private byte[] bases = new byte[0];
+
+	/**
+	 * Previous row, each cell holds <i>cost</i> &middot; 2<sup>16</sup> -
+	 * <i>columns</i> so that the lower cost wins and ties go to the longer
+	 * alignment, as in {@link GlobalAligner}
+	 */
+	private int[] prev = new int[0];
+
+	/**
+	 * Current row
+	 */
+	private int[] cur = new int[0];
+
+	/**
+	 * Target lengths
+	 */
+	private final int[] lengths = new int[LANES];
+
+	/**
+	 * Band of each target
+	 */
+	private final int[] bands = new int[LANES];
+
+	/**
+	 * Maximum cell value of each target for the early exit
+	 */
+	private final int[] limits = new int[LANES];
+
+	/**
+	 * Best cell of each target
+	 */
+	private final int[] best = new int[LANES];
+
+	private final int[] rowLo = new int[LANES];
+
+	private final int[] rowHi = new int[LANES];
+
+	private final int[] rowMin = new int[LANES];
+
+	/**
+	 * Targets whose alignment has ended
+	 */
+	private final boolean[] done = new boolean[LANES];
+
+	/**
+	 * Aligner for the pairs too long for the packed cells
+	 */
+	private final GlobalAligner fallback = new GlobalAligner();
+
+	/**
+	 * Stop when the threshold can no longer be reached
+	 */
+	private boolean earlyExit = false;
+
+	/**
+	 * Build method
+	 *
+	 * @param earlyExit
+	 *            <code>true</code> for stopping the alignment of a target as
+	 *            soon as the identity threshold can no longer be reached
+	 * @return this aligner
+	 */
+	public BatchAligner earlyExit(boolean earlyExit) {
+		this.earlyExit = earlyExit;
+		this.fallback.earlyExit(earlyExit);
+		return this;
+	}
+
+	/**
+	 * Computes the identities of a query with a set of targets
+	 *
+	 * @param query
+	 *            the query
+	 * @param seqs
+	 *            the sequences the targets are taken from
+	 * @param targets
+	 *            the indices of the targets in <code>seqs</code>
+	 * @param count
+	 *            the number of targets
+	 * @param minIdentity
+	 *            the identity threshold used for sizing the bands
+	 * @param out
+	 *            array receiving the identity of each target
+	 */
+	public void identities(byte[] query, byte[][] seqs, int[] targets,
+			int count, double minIdentity, double[] out) {
+		for (int from = 0; from < count; from += LANES) {
+			int lanes = Math.min(LANES, count - from);
+			for (int k = 0; k < lanes; k++)
+				lengths[k] = seqs[targets[from + k]].length;
+			this.align(query, seqs, targets, from, lanes, minIdentity, out);
+		}
+	}
+
+	/**
+	 * Aligns a batch of targets
+	 */
+	private void align(byte[] a, byte[][] seqs, int[] targets, int from,
+			int lanes, double minIdentity, double[] out) {
+		final int L = LANES;
+		int n = a.length;
+		int maxM = 0;
+		int active = 0;
+		for (int k = 0; k < L; k++) {
+			int m = (k < lanes) ? lengths[k] : 0;
+			lengths[k] = m;
+			best[k] = INF;
+			done[k] = (n == 0 || m == 0 || n + m > MAX_LENGTH);
+			if (done[k]) {
+				bands[k] = -1;
+				limits[k] = INF;
+				continue;
+			}
+			bands[k] = Math.abs(n - m)
+					+ GlobalAligner.maxDiffs(n, m, minIdentity);
+			limits[k] = (earlyExit) ? Math.min(MAX_LENGTH,
+					GlobalAligner.maxCost(n, m, minIdentity)) << SHIFT : INF;
+			maxM = Math.max(maxM, m);
+			active++;
+		}
+		this.ensure(maxM);
+
+		// Unused positions hold a byte that never matches a base
+		for (int k = 0; k < L; k++) {
+			byte[] t = (k < lanes) ? seqs[targets[from + k]] : null;
+			for (int j = 0; j < maxM; j++)
+				bases[j * L + k] = (t != null && j < t.length) ? t[j] : 0;
+		}
+		for (int j = 0; j <= maxM + 1; j++)
+			for (int k = 0; k < L; k++)
+				prev[j * L + k] = (j <= bands[k]) ? 0 : INF;
+
+		for (int i = 1; i <= n && active > 0; i++) {
+			// Band of each target on this row, empty for the ended ones
+			int lo = maxM + 1;
+			int hi = 0;
+			for (int k = 0; k < L; k++) {
+				rowLo[k] = i - bands[k];
+				rowHi[k] = (done[k]) ? -1 : Math.min(lengths[k], i
+						+ bands[k]);
+				if (!done[k]) {
+					lo = Math.min(lo, Math.max(1, rowLo[k]));
+					hi = Math.max(hi, rowHi[k]);
+				}
+			}
+			int base = (lo - 1) * L;
+			for (int k = 0; k < L; k++) {
+				// Leading gaps on the second sequence are free
+				int c = (lo == 1 && rowLo[k] <= 1 && !done[k]) ? 0 : INF;
+				cur[base + k] = c;
+				rowMin[k] = c;
+			}
+			byte ai = a[i - 1];
+			for (int j = lo; j <= hi; j++) {
+				int cj = j * L;
+				int pj = cj - L;
+				for (int k = 0; k < L; k++) {
+					int diag = prev[pj + k] - 1
+							+ ((ai == bases[pj + k]) ? 0 : ONE);
+					int up = prev[cj + k] + ONE - 1;
+					int left = cur[pj + k] + ONE - 1;
+					int key = Math.min(diag, Math.min(up, left));
+					key = (j >= rowLo[k] && j <= rowHi[k]) ? key : INF;
+					cur[cj + k] = key;
+					rowMin[k] = Math.min(rowMin[k], key);
+				}
+			}
+			for (int k = 0; k < L; k++)
+				cur[(hi + 1) * L + k] = INF;
+
+			for (int k = 0; k < L; k++) {
+				if (done[k])
+					continue;
+				int m = lengths[k];
+				// Trailing gaps on the second sequence are free
+				if (rowHi[k] == m)
+					best[k] = Math.min(best[k], cur[m * L + k]);
+				// Costs never decrease along a path
+				if (rowMin[k] > limits[k]) {
+					done[k] = true;
+					active--;
+				}
+			}
+
+			int[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+
+		for (int k = 0; k < lanes; k++) {
+			int n0 = lengths[k];
+			if (n + n0 > MAX_LENGTH) {
+				out[from + k] = fallback.identity(a, seqs[targets[from + k]],
+						minIdentity);
+				continue;
+			}
+			if (!done[k]) {
+				// Trailing gaps on the first sequence are free
+				int last = Math.min(n0, n + bands[k]);
+				for (int j = Math.max(1, n - bands[k]); j <= last; j++)
+					best[k] = Math.min(best[k], prev[j * L + k]);
+			}
+			out[from + k] = identity(best[k]);
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the packed cost and number of columns of an alignment
+	 * @return the identity of the alignment
+	 */
+	private static double identity(int key) {
+		if (key >= INF)
+			return 0;
+		int cost = (key + ONE - 1) >> SHIFT;
+		int cols = (cost << SHIFT) - key;
+		if (cols == 0)
+			return 0;
+		return (double) (cols - cost) / cols;
+	}
+
+	/**
+	 * Grows the buffers
+	 *
+	 * @param maxM
+	 *            the length of the longest target
+	 */
+	private void ensure(int maxM) {
+		int size = (maxM + 2) * LANES;
+		if (prev.length >= size)
+			return;
+		size = Math.max(size, prev.length * 2);
+		bases = new byte[size];
+		prev = new int[size];
+		cur = new int[size];
+	}
+
+}
@@ -0,0 +1,372 @@
+package bacci.giovanni.o2tab.align;
+
+import java.util.Arrays;
+
+/**
+ * Banded global aligner with unit costs. The identity of an alignment is the
+ * number of identical columns divided by the number of columns, terminal gaps
+ * excluded, which is the default definition used by usearch. Terminal gaps
+ * have no cost and are not counted as columns.
+ * <p>
+ * When early exit is enabled the alignment stops as soon as every cell of a
+ * row costs more than any alignment reaching the identity threshold can
+ * cost. In that case the identity returned is below the threshold but it is
+ * not necessarily the best one.
+ * <p>
+ * The aligner keeps its dynamic programming rows between calls so it does not
+ * allocate memory once it has grown to the length of the longest sequence.
+ * Instances are not thread safe: each thread must use its own aligner.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class GlobalAligner {
+
+	/**
+	 * Cost of cells outside the band
+	 */
+	private final static int INF = Integer.MAX_VALUE / 2;
+
+	private final static byte DIAG = 0;
+
+	private final static byte UP = 1;
+
+	private final static byte LEFT = 2;
+
+	/**
+	 * Costs of the previous row
+	 */
+	private int[] prevCost = new int[0];
+
+	/**
+	 * Columns of the previous row
+	 */
+	private int[] prevCols = new int[0];
+
+	/**
+	 * Costs of the current row
+	 */
+	private int[] curCost = new int[0];
+
+	/**
+	 * Columns of the current row
+	 */
+	private int[] curCols = new int[0];
+
+	/**
+	 * Moves of the banded cells, used by
+	 * {@link #cigar(byte[], byte[], double)}
+	 */
+	private byte[] moves = new byte[0];
+
+	/**
+	 * Stop when the threshold can no longer be reached
+	 */
+	private boolean earlyExit = false;
+
+	/**
+	 * Build method
+	 *
+	 * @param earlyExit
+	 *            <code>true</code> for stopping as soon as the identity
+	 *            threshold can no longer be reached
+	 * @return this aligner
+	 */
+	public GlobalAligner earlyExit(boolean earlyExit) {
+		this.earlyExit = earlyExit;
+		return this;
+	}
+
+	/**
+	 * Computes the identity of two sequences. The band is wide enough to
+	 * contain every alignment reaching the given identity.
+	 *
+	 * @param a
+	 *            the first sequence
+	 * @param b
+	 *            the second sequence
+	 * @param minIdentity
+	 *            the identity threshold used for sizing the band
+	 * @return the identity of the best alignment found in the band
+	 */
+	public double identity(byte[] a, byte[] b, double minIdentity) {
+		int n = a.length;
+		int m = b.length;
+		if (n == 0 || m == 0)
+			return 0;
+		int band = Math.abs(n - m) + maxDiffs(n, m, minIdentity);
+		this.ensure(m + 1);
+
+		for (int j = 0; j <= m; j++) {
+			prevCost[j] = (j <= band) ? 0 : INF;
+			prevCols[j] = 0;
+		}
+
+		int bestCost = INF;
+		int bestCols = 0;
+		int limit = (earlyExit) ? maxCost(n, m, minIdentity) : INF;
+
+		for (int i = 1; i <= n; i++) {
+			int lo = Math.max(1, i - band);
+			int hi = Math.min(m, i + band);
+			curCost[lo - 1] = (lo == 1) ? 0 : INF;
+			curCols[lo - 1] = 0;
+			byte ai = a[i - 1];
+			int rowMin = curCost[lo - 1];
+			for (int j = lo; j <= hi; j++) {
+				int cost = prevCost[j - 1] + ((ai == b[j - 1]) ? 0 : 1);
+				int cols = prevCols[j - 1] + 1;
+				int up = prevCost[j] + 1;
+				if (up < cost || (up == cost && prevCols[j] + 1 > cols)) {
+					cost = up;
+					cols = prevCols[j] + 1;
+				}
+				int left = curCost[j - 1] + 1;
+				if (left < cost || (left == cost && curCols[j - 1] + 1 > cols)) {
+					cost = left;
+					cols = curCols[j - 1] + 1;
+				}
+				curCost[j] = cost;
+				curCols[j] = cols;
+				rowMin = Math.min(rowMin, cost);
+			}
+			if (hi < m) {
+				curCost[hi + 1] = INF;
+				curCols[hi + 1] = 0;
+			}
+			// Trailing gaps on the second sequence are free
+			if (hi == m && better(curCost[m], curCols[m], bestCost, bestCols)) {
+				bestCost = curCost[m];
+				bestCols = curCols[m];
+			}
+			int[] t = prevCost;
+			prevCost = curCost;
+			curCost = t;
+			t = prevCols;
+			prevCols = curCols;
+			curCols = t;
+			// Costs never decrease along a path
+			if (rowMin > limit)
+				return (bestCols == 0) ? 0 : (double) (bestCols - bestCost)
+						/ bestCols;
+		}
+
+		// Trailing gaps on the first sequence are free
+		int last = Math.min(m, n + band);
+		for (int j = Math.max(1, n - band); j <= last; j++) {
+			if (better(prevCost[j], prevCols[j], bestCost, bestCols)) {
+				bestCost = prevCost[j];
+				bestCols = prevCols[j];
+			}
+		}
+
+		if (bestCols == 0)
+			return 0;
+		return (double) (bestCols - bestCost) / bestCols;
+	}
+
+	/**
+	 * Aligns two sequences as {@link #identity(byte[], byte[], double)} and
+	 * returns the alignment as a compressed CIGAR string, in the form used by
+	 * the <code>.uc</code> files: <code>M</code> for aligned columns,
+	 * <code>I</code> for bases of the first sequence against a gap and
+	 * <code>D</code> for bases of the second sequence against a gap, terminal
+	 * gaps included. Counts equal to one are omitted and the alignment of two
+	 * identical sequences is <code>=</code>.
+	 *
+	 * @param a
+	 *            the first sequence
+	 * @param b
+	 *            the second sequence
+	 * @param minIdentity
+	 *            the identity threshold used for sizing the band
+	 * @return the CIGAR string of the best alignment found in the band
+	 */
+	public String cigar(byte[] a, byte[] b, double minIdentity) {
+		int n = a.length;
+		int m = b.length;
+		if (Arrays.equals(a, b))
+			return "=";
+		if (n == 0 || m == 0)
+			return run(n, 'I') + run(m, 'D');
+		int band = Math.abs(n - m) + maxDiffs(n, m, minIdentity);
+		int width = 2 * band + 1;
+		this.ensure(m + 1);
+		if (moves.length < (n + 1) * width)
+			moves = new byte[(n + 1) * width];
+
+		for (int j = 0; j <= m; j++) {
+			prevCost[j] = (j <= band) ? 0 : INF;
+			prevCols[j] = 0;
+		}
+
+		int bestCost = INF;
+		int bestCols = 0;
+		int endI = 0;
+		int endJ = 0;
+
+		for (int i = 1; i <= n; i++) {
+			int lo = Math.max(1, i - band);
+			int hi = Math.min(m, i + band);
+			curCost[lo - 1] = (lo == 1) ? 0 : INF;
+			curCols[lo - 1] = 0;
+			byte ai = a[i - 1];
+			int row = i * width - i + band;
+			for (int j = lo; j <= hi; j++) {
+				int cost = prevCost[j - 1] + ((ai == b[j - 1]) ? 0 : 1);
+				int cols = prevCols[j - 1] + 1;
+				byte move = DIAG;
+				int up = prevCost[j] + 1;
+				if (up < cost || (up == cost && prevCols[j] + 1 > cols)) {
+					cost = up;
+					cols = prevCols[j] + 1;
+					move = UP;
+				}
+				int left = curCost[j - 1] + 1;
+				if (left < cost || (left == cost && curCols[j - 1] + 1 > cols)) {
+					cost = left;
+					cols = curCols[j - 1] + 1;
+					move = LEFT;
+				}
+				curCost[j] = cost;
+				curCols[j] = cols;
+				moves[row + j] = move;
+			}
+			if (hi < m) {
+				curCost[hi + 1] = INF;
+				curCols[hi + 1] = 0;
+			}
+			if (hi == m && better(curCost[m], curCols[m], bestCost, bestCols)) {
+				bestCost = curCost[m];
+				bestCols = curCols[m];
+				endI = i;
+				endJ = m;
+			}
+			int[] t = prevCost;
+			prevCost = curCost;
+			curCost = t;
+			t = prevCols;
+			prevCols = curCols;
+			curCols = t;
+		}
+		int last = Math.min(m, n + band);
+		for (int j = Math.max(1, n - band); j <= last; j++) {
+			if (better(prevCost[j], prevCols[j], bestCost, bestCols)) {
+				bestCost = prevCost[j];
+				bestCols = prevCols[j];
+				endI = n;
+				endJ = j;
+			}
+		}
+
+		// Operations are collected backwards
+		StringBuilder ops = new StringBuilder(n + m);
+		ops.append(run(n - endI, 'I')).append(run(m - endJ, 'D'));
+		int i = endI;
+		int j = endJ;
+		while (i > 0 && j > 0) {
+			byte move = moves[i * width - i + band + j];
+			if (move == DIAG) {
+				ops.append('M');
+				i--;
+				j--;
+			} else if (move == UP) {
+				ops.append('I');
+				i--;
+			} else {
+				ops.append('D');
+				j--;
+			}
+		}
+		ops.append(run(i, 'I')).append(run(j, 'D'));
+		return compress(ops.reverse());
+	}
+
+	/**
+	 * @return a run of operations
+	 */
+	private static String run(int length, char op) {
+		char[] c = new char[length];
+		Arrays.fill(c, op);
+		return new String(c);
+	}
+
+	/**
+	 * Replaces each run of operations with its length (omitted when one)
+	 * followed by the operation
+	 */
+	private static String compress(CharSequence ops) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ops.length();) {
+			int j = i;
+			while (j < ops.length() && ops.charAt(j) == ops.charAt(i))
+				j++;
+			if (j - i > 1)
+				sb.append(j - i);
+			sb.append(ops.charAt(i));
+			i = j;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param n
+	 *            length of the first sequence
+	 * @param m
+	 *            length of the second sequence
+	 * @param minIdentity
+	 *            the identity threshold
+	 * @return the maximum number of differences allowed in an alignment
+	 *         reaching the identity threshold
+	 */
+	public static int maxDiffs(int n, int m, double minIdentity) {
+		return (int) Math.floor((1 - minIdentity) * Math.max(n, m)) + 1;
+	}
+
+	/**
+	 * @param n
+	 *            length of the first sequence
+	 * @param m
+	 *            length of the second sequence
+	 * @param minIdentity
+	 *            the identity threshold
+	 * @return the maximum cost of an alignment reaching the identity
+	 *         threshold. Since an alignment has at most as many columns as the
+	 *         shorter sequence plus its cost, the cost <i>c</i> must satisfy
+	 *         <i>t&middot;c</i> &le; <i>(1 - t)&middot;min(n, m)</i>
+	 */
+	static int maxCost(int n, int m, double minIdentity) {
+		if (minIdentity <= 0)
+			return INF;
+		double c = (1 - minIdentity) / minIdentity * Math.min(n, m);
+		return (int) Math.min(INF, Math.floor(c));
+	}
+
+	/**
+	 * Lower cost wins, then more columns
+	 */
+	private static boolean better(int cost, int cols, int bestCost,
+			int bestCols) {
+		if (cost >= INF)
+			return false;
+		return cost < bestCost || (cost == bestCost && cols > bestCols);
+	}
+
+	/**
+	 * Grows the rows
+	 *
+	 * @param size
+	 *            the minimum size
+	 */
+	private void ensure(int size) {
+		if (prevCost.length >= size + 1)
+			return;
+		int s = Math.max(size + 1, prevCost.length * 2);
+		prevCost = new int[s];
+		prevCols = new int[s];
+		curCost = new int[s];
+		curCols = new int[s];
+	}
+
+}
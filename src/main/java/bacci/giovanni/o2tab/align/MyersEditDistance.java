@@ -0,0 +1,210 @@
+package bacci.giovanni.o2tab.align;
+
+import java.util.Arrays;
+
+/**
+ * Bit-parallel global edit distance (Myers 1999, in the block based
+ * formulation of Hyyr&ouml;). The first sequence is encoded in blocks of 64
+ * bits and the second one is scanned one base at a time, so the distance is
+ * computed in <i>O(n&middot;m/64)</i> word operations. Sequences up to 64
+ * bases are handled by a single-word loop without block bookkeeping.
+ * <p>
+ * A maximum distance can be given so that the computation stops as soon as
+ * the distance is bound to exceed it.
+ * <p>
+ * Bases other than A, C, G and T never match. The calculator keeps its
+ * bit-vectors between calls so it does not allocate memory once it has grown
+ * to the longest sequence. Instances are not thread safe.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class MyersEditDistance {
+
+	/**
+	 * Match masks of the first sequence, four per block (A, C, G, T)
+	 */
+	private long[] peq = new long[0];
+
+	/**
+	 * Positive vertical deltas
+	 */
+	private long[] pv = new long[0];
+
+	/**
+	 * Negative vertical deltas
+	 */
+	private long[] mv = new long[0];
+
+	/**
+	 * Computes the edit distance between two sequences
+	 *
+	 * @param a
+	 *            the first sequence
+	 * @param b
+	 *            the second sequence
+	 * @return the edit distance
+	 */
+	public int distance(byte[] a, byte[] b) {
+		return this.distance(a, b, Integer.MAX_VALUE - 1);
+	}
+
+	/**
+	 * Computes the edit distance between two sequences, stopping as soon as
+	 * it is greater than the given maximum
+	 *
+	 * @param a
+	 *            the first sequence
+	 * @param b
+	 *            the second sequence
+	 * @param max
+	 *            the maximum distance of interest
+	 * @return the edit distance, or <code>max + 1</code> if the distance is
+	 *         greater than <code>max</code>
+	 */
+	public int distance(byte[] a, byte[] b, int max) {
+		int m = a.length;
+		int n = b.length;
+		max = Math.min(max, Integer.MAX_VALUE - 1);
+		if (Math.abs(m - n) > max)
+			return max + 1;
+		if (m == 0 || n == 0)
+			return Math.max(m, n);
+		if (m <= 64)
+			return this.singleWord(a, b, max);
+		return this.multiWord(a, b, max);
+	}
+
+	/**
+	 * Edit distance for a first sequence of at most 64 bases
+	 */
+	private int singleWord(byte[] a, byte[] b, int max) {
+		int m = a.length;
+		int n = b.length;
+		this.encode(a);
+		long high = 1L << (m - 1);
+		long p = -1L;
+		long q = 0L;
+		int score = m;
+		for (int j = 0; j < n; j++) {
+			int c = code(b[j]);
+			long eq = (c < 0) ? 0 : peq[c];
+			long xv = eq | q;
+			long xh = (((eq & p) + p) ^ p) | eq;
+			long ph = q | ~(xh | p);
+			long mh = p & xh;
+			if ((ph & high) != 0)
+				score++;
+			else if ((mh & high) != 0)
+				score--;
+			// Top boundary of a global alignment grows by one at each column
+			ph = (ph << 1) | 1L;
+			mh <<= 1;
+			p = mh | ~(xv | ph);
+			q = ph & xv;
+			// The last row can decrease by at most one per remaining column
+			if (score - (n - j - 1) > max)
+				return max + 1;
+		}
+		return score;
+	}
+
+	/**
+	 * Edit distance for a first sequence of any length
+	 */
+	private int multiWord(byte[] a, byte[] b, int max) {
+		int m = a.length;
+		int n = b.length;
+		int blocks = this.encode(a);
+		long last = 1L << ((m - 1) & 63);
+		int score = m;
+
+		for (int j = 0; j < n; j++) {
+			int c = code(b[j]);
+			// Top boundary of a global alignment grows by one at each column
+			int hin = 1;
+			for (int k = 0; k < blocks; k++) {
+				long eq = (c < 0) ? 0 : peq[k * 4 + c];
+				long p = pv[k];
+				long q = mv[k];
+				long xv = eq | q;
+				if (hin < 0)
+					eq |= 1L;
+				long xh = (((eq & p) + p) ^ p) | eq;
+				long ph = q | ~(xh | p);
+				long mh = p & xh;
+				long high = (k == blocks - 1) ? last : 0x8000000000000000L;
+				int hout = 0;
+				if ((ph & high) != 0)
+					hout = 1;
+				else if ((mh & high) != 0)
+					hout = -1;
+				ph <<= 1;
+				mh <<= 1;
+				if (hin < 0)
+					mh |= 1L;
+				else if (hin > 0)
+					ph |= 1L;
+				pv[k] = mh | ~(xv | ph);
+				mv[k] = ph & xv;
+				hin = hout;
+			}
+			score += hin;
+			// The last row can decrease by at most one per remaining column
+			if (score - (n - j - 1) > max)
+				return max + 1;
+		}
+		return score;
+	}
+
+	/**
+	 * Encodes the first sequence and resets the vertical deltas
+	 *
+	 * @param a
+	 *            the sequence
+	 * @return the number of blocks
+	 */
+	private int encode(byte[] a) {
+		int blocks = (a.length + 63) >>> 6;
+		if (pv.length < blocks) {
+			pv = new long[blocks];
+			mv = new long[blocks];
+			peq = new long[blocks * 4];
+		}
+		Arrays.fill(peq, 0, blocks * 4, 0L);
+		Arrays.fill(pv, 0, blocks, -1L);
+		Arrays.fill(mv, 0, blocks, 0L);
+		for (int i = 0; i < a.length; i++) {
+			int c = code(a[i]);
+			if (c >= 0)
+				peq[(i >>> 6) * 4 + c] |= 1L << (i & 63);
+		}
+		return blocks;
+	}
+
+	/**
+	 * @param base
+	 *            a base
+	 * @return the code of the base or -1
+	 */
+	private static int code(byte base) {
+		switch (base) {
+		case 'A':
+		case 'a':
+			return 0;
+		case 'C':
+		case 'c':
+			return 1;
+		case 'G':
+		case 'g':
+			return 2;
+		case 'T':
+		case 't':
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package bacci.giovanni.o2tab.align;
+
+/**
+ * Global aligner with free terminal gaps and traceback, scoring +1 for
+ * matches, -1 for mismatches and -2 for gaps. The alignment is returned
+ * projected on the query: for each query position the aligned target base, or
+ * a gap symbol if the query base is aligned with a gap. Target bases aligned
+ * with gaps are dropped.
+ * <p>
+ * The score rows and the traceback matrix are kept between calls and grown
+ * only when needed, so that aligning does not allocate memory. Instances are
+ * not thread safe.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class ProjectionAligner {
+
+	/**
+	 * Symbol used for query bases aligned with a gap
+	 */
+	public final static byte GAP = '-';
+
+	private final static int MATCH = 1;
+
+	private final static int MISMATCH = -1;
+
+	private final static int GAP_SCORE = -2;
+
+	private final static byte DIAG = 0;
+
+	private final static byte UP = 1;
+
+	private final static byte LEFT = 2;
+
+	/**
+	 * Previous score row
+	 */
+	private int[] prev = new int[0];
+
+	/**
+	 * Current score row
+	 */
+	private int[] cur = new int[0];
+
+	/**
+	 * Score of the last column for each row
+	 */
+	private int[] lastCol = new int[0];
+
+	/**
+	 * Traceback matrix, row major
+	 */
+	private byte[] trace = new byte[0];
+
+	/**
+	 * Aligns a query with a target
+	 *
+	 * @param query
+	 *            the query
+	 * @param target
+	 *            the target
+	 * @param out
+	 *            array of at least the query length receiving the target
+	 *            base aligned with each query position, or {@link #GAP}
+	 * @return the number of query positions matching the target
+	 */
+	public int project(byte[] query, byte[] target, byte[] out) {
+		int n = query.length;
+		int m = target.length;
+		int w = m + 1;
+		this.ensure(n, m);
+
+		for (int j = 0; j <= m; j++)
+			prev[j] = 0;
+		lastCol[0] = 0;
+		for (int i = 1; i <= n; i++) {
+			byte q = query[i - 1];
+			int row = i * w;
+			cur[0] = 0;
+			trace[row] = UP;
+			for (int j = 1; j <= m; j++) {
+				int best = prev[j - 1]
+						+ ((q == target[j - 1]) ? MATCH : MISMATCH);
+				byte move = DIAG;
+				int up = prev[j] + GAP_SCORE;
+				if (up > best) {
+					best = up;
+					move = UP;
+				}
+				int left = cur[j - 1] + GAP_SCORE;
+				if (left > best) {
+					best = left;
+					move = LEFT;
+				}
+				cur[j] = best;
+				trace[row + j] = move;
+			}
+			lastCol[i] = cur[m];
+			int[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+
+		// Trailing gaps are free: the alignment can end on the last row or on
+		// the last column
+		int bi = n;
+		int bj = m;
+		int best = prev[m];
+		for (int j = 0; j < m; j++) {
+			if (prev[j] > best) {
+				best = prev[j];
+				bj = j;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (lastCol[i] > best) {
+				best = lastCol[i];
+				bi = i;
+				bj = m;
+			}
+		}
+
+		for (int i = bi; i < n; i++)
+			out[i] = GAP;
+		int matches = 0;
+		int i = bi;
+		int j = bj;
+		while (i > 0 && j > 0) {
+			byte move = trace[i * w + j];
+			if (move == DIAG) {
+				out[--i] = target[--j];
+				if (out[i] == query[i])
+					matches++;
+			} else if (move == UP) {
+				out[--i] = GAP;
+			} else {
+				j--;
+			}
+		}
+		while (i > 0)
+			out[--i] = GAP;
+		return matches;
+	}
+
+	/**
+	 * Grows the scratch space
+	 *
+	 * @param n
+	 *            the query length
+	 * @param m
+	 *            the target length
+	 */
+	private void ensure(int n, int m) {
+		if (prev.length < m + 1) {
+			prev = new int[m + 1];
+			cur = new int[m + 1];
+		}
+		if (lastCol.length < n + 1)
+			lastCol = new int[n + 1];
+		int cells = (n + 1) * (m + 1);
+		if (trace.length < cells)
+			trace = new byte[cells];
+	}
+
+}
@@ -0,0 +1,225 @@
+package bacci.giovanni.o2tab.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.index.KmerIndex;
+
+/**
+ * Greedy abundance ordered clustering. Sequences are visited in the given
+ * order (decreasing abundance): a sequence joins the first centroid accepted
+ * by the {@link Matcher}, otherwise it becomes a new centroid. Centroids are
+ * shortlisted with a {@link KmerIndex} and tried by decreasing number of
+ * shared k-mers.
+ * <p>
+ * Sequences are processed in batches of fixed size. The sequences of a batch
+ * are first compared in parallel with the centroids found in the previous
+ * batches, then the ones left unassigned are compared, in order, with the
+ * centroids created in the current batch. Since the batch size does not
+ * depend on the number of threads, the result is the same regardless of the
+ * number of threads used.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public abstract class CentroidClusterer {
+
+	/**
+	 * Number of sequences per batch
+	 */
+	private final static int BATCH = 1024;
+
+	/**
+	 * The sequences in processing order
+	 */
+	protected final byte[][] seqs;
+
+	/**
+	 * The abundance of each sequence
+	 */
+	protected final long[] sizes;
+
+	/**
+	 * Number of threads
+	 */
+	private final int threads;
+
+	/**
+	 * Maximum number of centroids tried for each sequence
+	 */
+	private int maxCandidates = 32;
+
+	/**
+	 * Index of the centroids
+	 */
+	private KmerIndex index;
+
+	/**
+	 * Constructor
+	 *
+	 * @param seqs
+	 *            the sequences ordered by decreasing abundance
+	 * @param sizes
+	 *            the abundance of each sequence
+	 * @param threads
+	 *            the number of threads
+	 */
+	protected CentroidClusterer(byte[][] seqs, long[] sizes, int threads) {
+		this.seqs = seqs;
+		this.sizes = sizes;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param maxCandidates
+	 *            the maximum number of centroids tried for each sequence
+	 * @return this clusterer
+	 */
+	public CentroidClusterer maxCandidates(int maxCandidates) {
+		this.maxCandidates = Math.max(1, maxCandidates);
+		return this;
+	}
+
+	/**
+	 * Clusters the sequences
+	 *
+	 * @return for each sequence the index of its centroid. Centroids are
+	 *         assigned to themselves
+	 * @throws InterruptedException
+	 *             if the clustering is interrupted
+	 * @throws ExecutionException
+	 *             if a worker thread throws an exception
+	 */
+	public int[] cluster() throws InterruptedException, ExecutionException {
+		final int n = seqs.length;
+		final int[] assign = new int[n];
+		Arrays.fill(assign, -1);
+		this.index = new KmerIndex();
+
+		final Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++)
+			workers[i] = new Worker();
+
+		ExecutorService ex = Executors.newFixedThreadPool(threads);
+		try {
+			for (int start = 0; start < n; start += BATCH) {
+				final int end = Math.min(n, start + BATCH);
+				final int old = start;
+				if (start > 0) {
+					List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+					int chunk = (end - start + threads - 1) / threads;
+					for (int t = 0; t < threads; t++) {
+						final int from = start + t * chunk;
+						final int to = Math.min(end, from + chunk);
+						final Worker w = workers[t];
+						if (from >= to)
+							break;
+						tasks.add(new Callable<Void>() {
+							@Override
+							public Void call() {
+								for (int q = from; q < to; q++)
+									assign[q] = search(q, 0, old, w);
+								return null;
+							}
+						});
+					}
+					for (Future<Void> f : ex.invokeAll(tasks))
+						f.get();
+				}
+				Worker w = workers[0];
+				for (int q = start; q < end; q++) {
+					if (assign[q] >= 0)
+						continue;
+					int c = search(q, start, q, w);
+					if (c < 0) {
+						assign[q] = q;
+						index.add(q, seqs[q], w.counter);
+					} else {
+						assign[q] = c;
+					}
+				}
+			}
+		} finally {
+			ex.shutdownNow();
+		}
+		return assign;
+	}
+
+	/**
+	 * Searches a centroid for a sequence
+	 *
+	 * @param q
+	 *            the sequence
+	 * @param minTarget
+	 *            lowest centroid allowed
+	 * @param maxTarget
+	 *            centroids must be lower than this
+	 * @param w
+	 *            the worker of the calling thread
+	 * @return the centroid or -1 if no centroid accepts the sequence
+	 */
+	private int search(int q, int minTarget, int maxTarget, Worker w) {
+		if (minTarget >= maxTarget)
+			return -1;
+		int found = index.candidates(seqs[q], minTarget, maxTarget,
+				w.counter, w.candidates);
+		for (int i = 0; i < found; i++) {
+			if (w.matcher.accepts(q, w.candidates[i]))
+				return w.candidates[i];
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a new matcher. Each thread uses its own matcher
+	 */
+	protected abstract Matcher createMatcher();
+
+	/**
+	 * Decides if a sequence belongs to a centroid
+	 *
+	 * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+	 *         Bacci</a>
+	 *
+	 */
+	protected interface Matcher {
+
+		/**
+		 * @param query
+		 *            the index of the sequence
+		 * @param centroid
+		 *            the index of the centroid
+		 * @return <code>true</code> if the sequence belongs to the centroid
+		 */
+		boolean accepts(int query, int centroid);
+
+	}
+
+	/**
+	 * Per thread scratch space
+	 *
+	 * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+	 *         Bacci</a>
+	 *
+	 */
+	private class Worker {
+
+		private final KmerIndex.Counter counter = new KmerIndex.Counter(
+				KmerIndex.DEFAULT_K);
+
+		private final int[] candidates = new int[maxCandidates];
+
+		private final Matcher matcher = createMatcher();
+
+	}
+
+}
@@ -0,0 +1,415 @@
+package bacci.giovanni.o2tab.cluster;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bacci.giovanni.o2tab.align.ProjectionAligner;
+import bacci.giovanni.o2tab.index.KmerIndex;
+
+/**
+ * De novo chimera detection in the style of UCHIME. Each sequence is compared
+ * with the more abundant sequences shortlisted by a {@link KmerIndex} on the
+ * whole query and on its two halves. The query is aligned with every
+ * candidate parent and the pair of parents and the breakpoint that best
+ * explain the query are searched. Columns where the parents differ are then
+ * counted as votes for (the query agrees with the parent of its segment) or
+ * against (the query agrees with the other parent) the chimeric model, and
+ * the query is flagged when the UCHIME score
+ * <p>
+ * <i>h</i> = <i>Y<sub>L</sub>Y<sub>R</sub></i> / ((&beta;(<i>N<sub>L</sub></i>
+ * + <i>n</i>) + <i>A<sub>L</sub></i>)(&beta;(<i>N<sub>R</sub></i> + <i>n</i>)
+ * + <i>A<sub>R</sub></i>))
+ * <p>
+ * reaches the minimum score, both segments have enough votes for and the
+ * chimeric model is more similar to the query than the best single parent.
+ * <p>
+ * Given the abundances of the sequences, as UCHIME does only the sequences at
+ * least {@link #abskew(double)} times as abundant as the query are candidate
+ * parents. Without abundances every sequence preceding the query is a
+ * candidate, so a sequence slightly less abundant than its neighbours may be
+ * taken as one of their parents.
+ * <p>
+ * Queries are split across a fork/join pool. Each thread keeps its own
+ * alignment buffers so the scoring does not allocate memory.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class ChimeraDetector {
+
+	/**
+	 * Weight of the votes against the chimeric model
+	 */
+	private final static double BETA = 8.0;
+
+	/**
+	 * Pseudo count added to the votes against the chimeric model
+	 */
+	private final static double PSEUDO = 1.4;
+
+	/**
+	 * Number of queries below which a task is not split
+	 */
+	private final static int GRAIN = 32;
+
+	/**
+	 * The sequences ordered by decreasing abundance
+	 */
+	private final byte[][] seqs;
+
+	/**
+	 * Number of threads
+	 */
+	private final int threads;
+
+	/**
+	 * Minimum score
+	 */
+	private double minH = 0.28;
+
+	/**
+	 * Minimum identity gain of the chimeric model over the best parent
+	 */
+	private double minDiv = 0.008;
+
+	/**
+	 * Minimum number of votes for the model in each segment
+	 */
+	private int minDiffs = 3;
+
+	/**
+	 * Minimum abundance of a parent relative to the query
+	 */
+	private double abskew = 2.0;
+
+	/**
+	 * Abundance of each sequence, <code>null</code> if unknown
+	 */
+	private long[] sizes = null;
+
+	/**
+	 * Maximum number of candidate parents aligned with each query
+	 */
+	private int maxParents = 8;
+
+	/**
+	 * Index of all the sequences
+	 */
+	private KmerIndex index;
+
+	/**
+	 * Per thread scratch space
+	 */
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Constructor
+	 *
+	 * @param seqs
+	 *            the sequences ordered by decreasing abundance
+	 * @param threads
+	 *            the number of threads
+	 */
+	public ChimeraDetector(byte[][] seqs, int threads) {
+		this.seqs = seqs;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param minH
+	 *            the minimum score of a chimera
+	 * @return this detector
+	 */
+	public ChimeraDetector minH(double minH) {
+		this.minH = minH;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param minDiv
+	 *            the minimum identity gain of the chimeric model over the
+	 *            best parent (e.g. 0.008 for 0.8%)
+	 * @return this detector
+	 */
+	public ChimeraDetector minDiv(double minDiv) {
+		this.minDiv = minDiv;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param minDiffs
+	 *            the minimum number of votes for the chimeric model in each
+	 *            segment
+	 * @return this detector
+	 */
+	public ChimeraDetector minDiffs(int minDiffs) {
+		this.minDiffs = minDiffs;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param sizes
+	 *            the abundance of each sequence, in the same decreasing order
+	 * @return this detector
+	 */
+	public ChimeraDetector sizes(long[] sizes) {
+		this.sizes = sizes;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param abskew
+	 *            the minimum abundance of a parent relative to the query,
+	 *            used only when the abundances are given
+	 * @return this detector
+	 */
+	public ChimeraDetector abskew(double abskew) {
+		this.abskew = abskew;
+		return this;
+	}
+
+	/**
+	 * Searches the chimeras
+	 *
+	 * @return <code>true</code> for each sequence flagged as chimera
+	 */
+	public boolean[] detect() {
+		int n = seqs.length;
+		index = new KmerIndex();
+		KmerIndex.Counter c = new KmerIndex.Counter(index.getK());
+		for (int i = 0; i < n; i++)
+			index.add(i, seqs[i], c);
+
+		boolean[] chimeras = new boolean[n];
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// The most abundant sequence has no parents
+			pool.invoke(new Task(chimeras, 1, n));
+		} finally {
+			pool.shutdown();
+		}
+		return chimeras;
+	}
+
+	/**
+	 * Scores a query
+	 *
+	 * @param q
+	 *            the query index
+	 * @param s
+	 *            the scratch space of the calling thread
+	 * @return <code>true</code> if the query is a chimera
+	 */
+	private boolean isChimera(int q, Scratch s) {
+		byte[] query = seqs[q];
+		int len = query.length;
+		if (len == 0)
+			return false;
+		int found = this.parents(q, s);
+		if (found < 2)
+			return false;
+		s.ensure(len);
+
+		// Projected alignments and prefix match counts
+		int bestSingle = 0;
+		for (int p = 0; p < found; p++) {
+			byte[] proj = s.proj[p];
+			int m = s.aligner.project(query, seqs[s.parents[p]], proj);
+			bestSingle = Math.max(bestSingle, m);
+			int[] pre = s.prefix[p];
+			pre[0] = 0;
+			for (int i = 0; i < len; i++)
+				pre[i + 1] = pre[i] + ((proj[i] == query[i]) ? 1 : 0);
+		}
+
+		// Best two-parent model: left segment from a, right segment from b
+		int best = -1;
+		int ba = -1;
+		int bb = -1;
+		int bx = -1;
+		for (int a = 0; a < found; a++) {
+			int[] pa = s.prefix[a];
+			for (int b = 0; b < found; b++) {
+				if (a == b)
+					continue;
+				int[] pb = s.prefix[b];
+				for (int x = 1; x < len; x++) {
+					int m = pa[x] + pb[len] - pb[x];
+					if (m > best) {
+						best = m;
+						ba = a;
+						bb = b;
+						bx = x;
+					}
+				}
+			}
+		}
+		if (best < 0 || (double) (best - bestSingle) / len < minDiv)
+			return false;
+
+		// Votes on the columns where the parents differ. Query bases not
+		// covered by either parent count as abstentions
+		byte[] left = s.proj[ba];
+		byte[] right = s.proj[bb];
+		int yl = 0, nl = 0, al = 0, yr = 0, nr = 0, ar = 0;
+		for (int i = 0; i < len; i++) {
+			if (left[i] == right[i] && left[i] != ProjectionAligner.GAP)
+				continue;
+			byte b = query[i];
+			if (i < bx) {
+				if (b == left[i])
+					yl++;
+				else if (b == right[i])
+					nl++;
+				else
+					al++;
+			} else {
+				if (b == right[i])
+					yr++;
+				else if (b == left[i])
+					nr++;
+				else
+					ar++;
+			}
+		}
+		if (yl < minDiffs || yr < minDiffs)
+			return false;
+		double h = yl / (BETA * (nl + PSEUDO) + al) * yr
+				/ (BETA * (nr + PSEUDO) + ar);
+		return h >= minH;
+	}
+
+	/**
+	 * Shortlists the candidate parents of a query, taking the best
+	 * candidates of each half first and then the ones of the whole query
+	 *
+	 * @param q
+	 *            the query index
+	 * @param s
+	 *            the scratch space of the calling thread
+	 * @return the number of parents stored in the scratch space
+	 */
+	private int parents(int q, Scratch s) {
+		byte[] query = seqs[q];
+		int half = query.length / 2;
+		int found = 0;
+		// Sequences are sorted by decreasing abundance, so the parents are
+		// the ones before the last sequence abundant enough
+		int end = q;
+		if (sizes != null)
+			while (end > 0 && sizes[end - 1] < abskew * sizes[q])
+				end--;
+		if (end < 2)
+			return 0;
+		int n = index.candidates(query, 0, half, 0, end, s.counter,
+				s.halfCandidates);
+		found = merge(s, found, s.halfCandidates, n);
+		n = index.candidates(query, half, query.length, 0, end, s.counter,
+				s.halfCandidates);
+		found = merge(s, found, s.halfCandidates, n);
+		n = index.candidates(query, 0, end, s.counter, s.candidates);
+		return merge(s, found, s.candidates, n);
+	}
+
+	/**
+	 * Adds candidates to the parents, skipping duplicates
+	 *
+	 * @return the number of parents
+	 */
+	private int merge(Scratch s, int found, int[] cand, int n) {
+		for (int i = 0; i < n && found < maxParents; i++) {
+			boolean dup = false;
+			for (int j = 0; j < found && !dup; j++)
+				dup = s.parents[j] == cand[i];
+			if (!dup)
+				s.parents[found++] = cand[i];
+		}
+		return found;
+	}
+
+	/**
+	 * Scores a range of queries, splitting it in halves until it is small
+	 * enough
+	 */
+	private class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final boolean[] chimeras;
+
+		private final int from;
+
+		private final int to;
+
+		Task(boolean[] chimeras, int from, int to) {
+			this.chimeras = chimeras;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= GRAIN) {
+				Scratch s = scratch.get();
+				for (int q = from; q < to; q++)
+					chimeras[q] = isChimera(q, s);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Task(chimeras, from, mid), new Task(chimeras, mid,
+					to));
+		}
+
+	}
+
+	/**
+	 * Per thread scratch space
+	 */
+	private class Scratch {
+
+		private final KmerIndex.Counter counter = new KmerIndex.Counter(
+				KmerIndex.DEFAULT_K);
+
+		private final ProjectionAligner aligner = new ProjectionAligner();
+
+		private final int[] candidates = new int[maxParents];
+
+		private final int[] halfCandidates = new int[maxParents / 2];
+
+		private final int[] parents = new int[maxParents];
+
+		private final byte[][] proj = new byte[maxParents][0];
+
+		private final int[][] prefix = new int[maxParents][0];
+
+		/**
+		 * Grows the buffers for a query of the given length
+		 */
+		void ensure(int len) {
+			if (proj[0].length < len) {
+				for (int p = 0; p < maxParents; p++) {
+					proj[p] = new byte[len];
+					prefix[p] = new int[len + 1];
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,56 @@
+package bacci.giovanni.o2tab.cluster;
+
+import bacci.giovanni.o2tab.align.GlobalAligner;
+
+/**
+ * Greedy abundance ordered clustering with a fixed identity radius, similar to
+ * the usearch <code>-cluster_otus</code> command (without chimera
+ * filtering).
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class GreedyClusterer extends CentroidClusterer {
+
+	/**
+	 * The identity threshold
+	 */
+	private final double identity;
+
+	/**
+	 * Constructor
+	 *
+	 * @param seqs
+	 *            the sequences ordered by decreasing abundance
+	 * @param sizes
+	 *            the abundance of each sequence
+	 * @param identity
+	 *            the minimum identity between a sequence and its centroid
+	 * @param threads
+	 *            the number of threads
+	 */
+	public GreedyClusterer(byte[][] seqs, long[] sizes, double identity,
+			int threads) {
+		super(seqs, sizes, threads);
+		this.identity = identity;
+	}
+
+	@Override
+	protected Matcher createMatcher() {
+		return new Matcher() {
+
+			private final GlobalAligner aligner = new GlobalAligner()
+					.earlyExit(true);
+
+			@Override
+			public boolean accepts(int query, int centroid) {
+				double id = aligner.identity(seqs[query], seqs[centroid],
+						identity);
+				return id >= identity;
+			}
+
+		};
+	}
+
+}
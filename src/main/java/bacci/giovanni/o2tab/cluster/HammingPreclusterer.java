@@ -0,0 +1,310 @@
+package bacci.giovanni.o2tab.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.index.Kmers;
+
+/**
+ * Error tolerant pre-clustering of unique sequences. A sequence is folded
+ * into a much more abundant sequence of the same length differing from it
+ * by a few mismatches, so that the main clustering has fewer sequences to
+ * compare.
+ * <p>
+ * Sequences are packed in 2 bits per base and compared by counting the
+ * differing bases of the XOR of their words. Candidates are found with the
+ * pigeonhole principle: two sequences with at most <i>d</i> mismatches share
+ * at least one of <i>d</i> + 1 segments, so each sequence is bucketed on the
+ * hash of each segment. Buckets are sorted arrays holding the hash in the
+ * upper half of a long and the sequence index in the lower half, so the
+ * sequences of a bucket are contiguous and in decreasing abundance order.
+ * <p>
+ * The best parent of each sequence (fewest mismatches, then highest
+ * abundance) is searched in parallel; the parents are then resolved to their
+ * roots sequentially. Sequences with bases other than A, C, G and T are never
+ * folded.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class HammingPreclusterer {
+
+	/**
+	 * The sequences ordered by decreasing abundance
+	 */
+	private final byte[][] seqs;
+
+	/**
+	 * The abundance of each sequence
+	 */
+	private final long[] sizes;
+
+	/**
+	 * Number of threads
+	 */
+	private final int threads;
+
+	/**
+	 * Maximum number of mismatches
+	 */
+	private int maxDiffs = 2;
+
+	/**
+	 * Minimum abundance ratio between a parent and a folded sequence
+	 */
+	private double minRatio = 8;
+
+	/**
+	 * Packed sequences
+	 */
+	private long[][] packed;
+
+	/**
+	 * Segment buckets for each sequence length
+	 */
+	private Map<Integer, long[][]> buckets;
+
+	/**
+	 * Constructor
+	 *
+	 * @param seqs
+	 *            the sequences ordered by decreasing abundance
+	 * @param sizes
+	 *            the abundance of each sequence
+	 * @param threads
+	 *            the number of threads
+	 */
+	public HammingPreclusterer(byte[][] seqs, long[] sizes, int threads) {
+		this.seqs = seqs;
+		this.sizes = sizes;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param maxDiffs
+	 *            the maximum number of mismatches between a sequence and its
+	 *            parent
+	 * @return this preclusterer
+	 */
+	public HammingPreclusterer maxDiffs(int maxDiffs) {
+		if (maxDiffs < 1)
+			throw new IllegalArgumentException(
+					"the number of mismatches must be at least 1");
+		this.maxDiffs = maxDiffs;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param minRatio
+	 *            the minimum abundance ratio between a parent and the
+	 *            sequences folded into it
+	 * @return this preclusterer
+	 */
+	public HammingPreclusterer minRatio(double minRatio) {
+		this.minRatio = minRatio;
+		return this;
+	}
+
+	/**
+	 * Pre-clusters the sequences
+	 *
+	 * @return for each sequence the index of the sequence it is folded into.
+	 *         Sequences that are not folded are assigned to themselves
+	 * @throws InterruptedException
+	 *             if the pre-clustering is interrupted
+	 * @throws ExecutionException
+	 *             if a worker thread throws an exception
+	 */
+	public int[] cluster() throws InterruptedException, ExecutionException {
+		final int n = seqs.length;
+		this.index();
+
+		final int[] parent = new int[n];
+		ExecutorService ex = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			int chunk = (n + threads - 1) / threads;
+			for (int t = 0; t < threads; t++) {
+				final int from = t * chunk;
+				final int to = Math.min(n, from + chunk);
+				if (from >= to)
+					break;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						int limit = 0;
+						for (int q = from; q < to; q++) {
+							// Parents are the sequences before this limit
+							while (limit < q
+									&& sizes[limit] >= minRatio * sizes[q])
+								limit++;
+							parent[q] = search(q, limit);
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<Void> f : ex.invokeAll(tasks))
+				f.get();
+		} finally {
+			ex.shutdownNow();
+		}
+
+		// Parents always precede their children
+		for (int q = 0; q < n; q++)
+			parent[q] = (parent[q] == q) ? q : parent[parent[q]];
+		return parent;
+	}
+
+	/**
+	 * Searches the best parent of a sequence
+	 *
+	 * @param q
+	 *            the sequence index
+	 * @param limit
+	 *            parents must have an index lower than this
+	 * @return the parent or <code>q</code> if no parent is found
+	 */
+	private int search(int q, int limit) {
+		long[] pq = packed[q];
+		if (pq == null || limit == 0)
+			return q;
+		int len = seqs[q].length;
+		long[][] b = buckets.get(len);
+		int best = q;
+		int bestDiffs = maxDiffs;
+		for (int s = 0; s <= maxDiffs; s++) {
+			long key = (long) segmentHash(seqs[q], s) << 32;
+			long[] bucket = b[s];
+			int i = Arrays.binarySearch(bucket, key);
+			if (i < 0)
+				i = -i - 1;
+			for (; i < bucket.length; i++) {
+				if ((bucket[i] & 0xFFFFFFFF00000000L) != key)
+					break;
+				int t = (int) bucket[i];
+				if (t >= limit)
+					break;
+				int d = hamming(pq, packed[t], bestDiffs + 1);
+				if (d < bestDiffs
+						|| (d == bestDiffs && (best == q || t < best))) {
+					best = t;
+					bestDiffs = d;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Packs the sequences and builds the segment buckets of each length
+	 */
+	private void index() {
+		int n = seqs.length;
+		packed = new long[n][];
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (int i = 0; i < n; i++) {
+			packed[i] = pack(seqs[i]);
+			if (packed[i] == null || seqs[i].length <= maxDiffs)
+				continue;
+			Integer c = counts.get(seqs[i].length);
+			counts.put(seqs[i].length, (c == null) ? 1 : c + 1);
+		}
+
+		buckets = new HashMap<Integer, long[][]>();
+		Map<Integer, Integer> filled = new HashMap<Integer, Integer>();
+		for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+			buckets.put(e.getKey(), new long[maxDiffs + 1][e.getValue()]);
+			filled.put(e.getKey(), 0);
+		}
+		for (int i = 0; i < n; i++) {
+			int len = seqs[i].length;
+			if (packed[i] == null || len <= maxDiffs) {
+				packed[i] = null;
+				continue;
+			}
+			long[][] b = buckets.get(len);
+			int f = filled.get(len);
+			for (int s = 0; s <= maxDiffs; s++)
+				b[s][f] = ((long) segmentHash(seqs[i], s) << 32) | i;
+			filled.put(len, f + 1);
+		}
+		for (long[][] b : buckets.values())
+			for (long[] bucket : b)
+				Arrays.sort(bucket);
+	}
+
+	/**
+	 * @param seq
+	 *            a sequence
+	 * @param s
+	 *            the segment number
+	 * @return a 32-bit hash of the segment
+	 */
+	private int segmentHash(byte[] seq, int s) {
+		int parts = maxDiffs + 1;
+		int from = (int) ((long) seq.length * s / parts);
+		int to = (int) ((long) seq.length * (s + 1) / parts);
+		long h = 0xCBF29CE484222325L;
+		for (int i = from; i < to; i++) {
+			h ^= seq[i];
+			h *= 0x100000001B3L;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Packs a sequence in 2 bits per base
+	 *
+	 * @param seq
+	 *            the sequence
+	 * @return the packed sequence or <code>null</code> if the sequence has
+	 *         bases other than A, C, G and T
+	 */
+	static long[] pack(byte[] seq) {
+		long[] words = new long[(seq.length + 31) >>> 5];
+		for (int i = 0; i < seq.length; i++) {
+			int c = Kmers.code(seq[i]);
+			if (c < 0)
+				return null;
+			words[i >>> 5] |= (long) c << ((i & 31) << 1);
+		}
+		return words;
+	}
+
+	/**
+	 * Counts the mismatches between two packed sequences of the same length
+	 *
+	 * @param a
+	 *            the first sequence
+	 * @param b
+	 *            the second sequence
+	 * @param max
+	 *            the counting stops once this number is reached
+	 * @return the number of mismatches or <code>max</code> if it is reached
+	 */
+	static int hamming(long[] a, long[] b, int max) {
+		int d = 0;
+		for (int i = 0; i < a.length; i++) {
+			long x = a[i] ^ b[i];
+			d += Long.bitCount((x | (x >>> 1)) & 0x5555555555555555L);
+			if (d >= max)
+				return max;
+		}
+		return d;
+	}
+
+}
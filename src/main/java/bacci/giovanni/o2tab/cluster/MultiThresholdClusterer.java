@@ -0,0 +1,207 @@
+package bacci.giovanni.o2tab.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.align.BatchAligner;
+import bacci.giovanni.o2tab.align.GlobalAligner;
+import bacci.giovanni.o2tab.index.KmerIndex;
+
+/**
+ * Greedy abundance ordered clustering at several identity thresholds at once.
+ * Every sequence is first aligned, in parallel, with the more abundant
+ * sequences shortlisted by a {@link KmerIndex}, keeping the candidates and
+ * the identities of the pairs reaching the lowest threshold. The clustering of
+ * each threshold is then run with a {@link CentroidClusterer} that reads the
+ * stored identities and aligns only the pairs that were not shortlisted, so
+ * the result at each threshold is the same as the one of a
+ * {@link GreedyClusterer}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class MultiThresholdClusterer {
+
+	/**
+	 * The sequences ordered by decreasing abundance
+	 */
+	private final byte[][] seqs;
+
+	/**
+	 * The abundance of each sequence
+	 */
+	private final long[] sizes;
+
+	/**
+	 * The identity thresholds
+	 */
+	private final double[] identities;
+
+	/**
+	 * Number of threads
+	 */
+	private final int threads;
+
+	/**
+	 * Maximum number of sequences aligned with each query
+	 */
+	private int maxCandidates = 32;
+
+	/**
+	 * Constructor
+	 *
+	 * @param seqs
+	 *            the sequences ordered by decreasing abundance
+	 * @param sizes
+	 *            the abundance of each sequence
+	 * @param identities
+	 *            the identity thresholds
+	 * @param threads
+	 *            the number of threads
+	 */
+	public MultiThresholdClusterer(byte[][] seqs, long[] sizes,
+			double[] identities, int threads) {
+		this.seqs = seqs;
+		this.sizes = sizes;
+		this.identities = identities;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Clusters the sequences
+	 *
+	 * @return for each threshold (in the order they were given) and for each
+	 *         sequence the index of its centroid. Centroids are assigned to
+	 *         themselves
+	 * @throws InterruptedException
+	 *             if the clustering is interrupted
+	 * @throws ExecutionException
+	 *             if a worker thread throws an exception
+	 */
+	public int[][] cluster() throws InterruptedException, ExecutionException {
+		final int n = seqs.length;
+		double min = 1;
+		for (double id : identities)
+			min = Math.min(min, id);
+		final double minIdentity = min;
+
+		final KmerIndex index = new KmerIndex();
+		KmerIndex.Counter c = new KmerIndex.Counter(index.getK());
+		for (int i = 0; i < n; i++)
+			index.add(i, seqs[i], c);
+
+		// Aligned candidates, the ones reaching the lowest threshold first,
+		// and the identities of the latter
+		final int[][] targets = new int[n][];
+		final double[][] ids = new double[n][];
+
+		ExecutorService ex = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			int chunk = (n + threads - 1) / threads;
+			for (int t = 0; t < threads; t++) {
+				final int from = t * chunk;
+				final int to = Math.min(n, from + chunk);
+				if (from >= to)
+					break;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						KmerIndex.Counter counter = new KmerIndex.Counter(
+								index.getK());
+						BatchAligner aligner = new BatchAligner()
+								.earlyExit(true);
+						int[] cand = new int[maxCandidates];
+						double[] cid = new double[maxCandidates];
+						int[] aligned = new int[maxCandidates];
+						double[] hitI = new double[maxCandidates];
+						for (int q = from; q < to; q++) {
+							int found = index.candidates(seqs[q], 0, q,
+									counter, cand);
+							aligner.identities(seqs[q], seqs, cand, found,
+									minIdentity, cid);
+							int hits = 0;
+							int misses = found;
+							for (int i = 0; i < found; i++) {
+								if (cid[i] < minIdentity) {
+									aligned[--misses] = cand[i];
+								} else {
+									aligned[hits] = cand[i];
+									hitI[hits++] = cid[i];
+								}
+							}
+							targets[q] = Arrays.copyOf(aligned, found);
+							ids[q] = Arrays.copyOf(hitI, hits);
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<Void> f : ex.invokeAll(tasks))
+				f.get();
+		} finally {
+			ex.shutdownNow();
+		}
+
+		int[][] assign = new int[identities.length][];
+		for (int t = 0; t < identities.length; t++)
+			assign[t] = new Replay(targets, ids, identities[t]).cluster();
+		return assign;
+	}
+
+	/**
+	 * Greedy clustering at one threshold reading the identities computed by
+	 * the first step
+	 */
+	private class Replay extends CentroidClusterer {
+
+		private final int[][] targets;
+
+		private final double[][] ids;
+
+		private final double identity;
+
+		private Replay(int[][] targets, double[][] ids, double identity) {
+			super(MultiThresholdClusterer.this.seqs,
+					MultiThresholdClusterer.this.sizes, threads);
+			this.targets = targets;
+			this.ids = ids;
+			this.identity = identity;
+			this.maxCandidates(maxCandidates);
+		}
+
+		@Override
+		protected Matcher createMatcher() {
+			return new Matcher() {
+
+				private final GlobalAligner aligner = new GlobalAligner()
+						.earlyExit(true);
+
+				@Override
+				public boolean accepts(int query, int centroid) {
+					int[] t = targets[query];
+					for (int i = 0; i < t.length; i++) {
+						// Candidates not in the hits are below the lowest
+						// threshold
+						if (t[i] == centroid)
+							return i < ids[query].length
+									&& ids[query][i] >= identity;
+					}
+					double id = aligner.identity(seqs[query], seqs[centroid],
+							identity);
+					return id >= identity;
+				}
+
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,450 @@
+package bacci.giovanni.o2tab.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.align.MyersEditDistance;
+import bacci.giovanni.o2tab.index.KmerIndex;
+
+/**
+ * Single-linkage clustering with a local edit distance threshold, in the
+ * style of Swarm. Two unique sequences are linked when their edit distance is
+ * at most <i>d</i>; clusters grow from the most abundant unlinked sequence
+ * following the links towards sequences that are not more abundant, so that
+ * two abundant sequences joined by a valley of rare variants end up in
+ * separate clusters.
+ * <p>
+ * With <i>d</i> = 1 the links are found without any alignment: every
+ * substitution, insertion and deletion of a sequence is enumerated and looked
+ * up in a hash table of the unique sequences. The polynomial hash of each
+ * variant is derived in constant time from the prefix hashes of the sequence,
+ * and a variant is built only when its hash is found in the table. With
+ * greater distances the candidates are filtered with a {@link KmerIndex}
+ * (q-gram lemma) and checked with {@link MyersEditDistance}.
+ * <p>
+ * Links are found in parallel; the cluster growth is sequential and
+ * deterministic.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class SwarmClusterer {
+
+	/**
+	 * Base of the polynomial hash
+	 */
+	private static final long BASE = 0x100000001B3L;
+
+	/**
+	 * Bases enumerated for substitutions and insertions
+	 */
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	/**
+	 * The sequences ordered by decreasing abundance
+	 */
+	private final byte[][] seqs;
+
+	/**
+	 * The abundance of each sequence
+	 */
+	private final long[] sizes;
+
+	/**
+	 * Maximum edit distance between linked sequences
+	 */
+	private final int d;
+
+	/**
+	 * Number of threads
+	 */
+	private final int threads;
+
+	/**
+	 * Hash table keys
+	 */
+	private long[] keys;
+
+	/**
+	 * Hash table values (sequence index plus one, 0 for empty slots)
+	 */
+	private int[] values;
+
+	/**
+	 * Constructor
+	 *
+	 * @param seqs
+	 *            the sequences ordered by decreasing abundance
+	 * @param sizes
+	 *            the abundance of each sequence
+	 * @param d
+	 *            the maximum edit distance between linked sequences
+	 * @param threads
+	 *            the number of threads
+	 */
+	public SwarmClusterer(byte[][] seqs, long[] sizes, int d, int threads) {
+		if (d < 1)
+			throw new IllegalArgumentException("d must be at least 1");
+		this.seqs = seqs;
+		this.sizes = sizes;
+		this.d = d;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Clusters the sequences
+	 *
+	 * @return for each sequence the index of the seed of its cluster. Seeds
+	 *         are assigned to themselves
+	 * @throws InterruptedException
+	 *             if the clustering is interrupted
+	 * @throws ExecutionException
+	 *             if a worker thread throws an exception
+	 */
+	public int[] cluster() throws InterruptedException, ExecutionException {
+		int[][] links = this.links();
+		int n = seqs.length;
+		int[] assign = new int[n];
+		Arrays.fill(assign, -1);
+		int[] queue = new int[n];
+		for (int seed = 0; seed < n; seed++) {
+			if (assign[seed] >= 0)
+				continue;
+			assign[seed] = seed;
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = seed;
+			while (head < tail) {
+				int a = queue[head++];
+				for (int b : links[a]) {
+					if (assign[b] < 0 && sizes[b] <= sizes[a]) {
+						assign[b] = seed;
+						queue[tail++] = b;
+					}
+				}
+			}
+		}
+		return assign;
+	}
+
+	/**
+	 * Finds the links of every sequence in parallel
+	 *
+	 * @return for each sequence the sorted indices of the linked sequences
+	 * @throws InterruptedException
+	 *             if the search is interrupted
+	 * @throws ExecutionException
+	 *             if a worker thread throws an exception
+	 */
+	private int[][] links() throws InterruptedException, ExecutionException {
+		final int n = seqs.length;
+		final int[][] links = new int[n][];
+		final KmerIndex index;
+		if (d == 1) {
+			this.buildTable();
+			index = null;
+		} else {
+			index = new KmerIndex();
+			KmerIndex.Counter c = new KmerIndex.Counter(index.getK());
+			for (int i = 0; i < n; i++)
+				index.add(i, seqs[i], c);
+		}
+
+		ExecutorService ex = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			// Small interleaved chunks balance the load between threads
+			final int chunk = 256;
+			final int step = chunk * threads;
+			for (int t = 0; t < threads; t++) {
+				final int start = t * chunk;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						Links l = (index == null) ? new HashLinks()
+								: new AlignedLinks(index);
+						for (int from = start; from < n; from += step) {
+							int to = Math.min(n, from + chunk);
+							for (int q = from; q < to; q++)
+								links[q] = l.find(q);
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<Void> f : ex.invokeAll(tasks))
+				f.get();
+		} finally {
+			ex.shutdownNow();
+		}
+		return links;
+	}
+
+	/**
+	 * Fills the hash table with all the sequences
+	 */
+	private void buildTable() {
+		int cap = Integer.highestOneBit(Math.max(2, seqs.length) * 2 - 1) << 1;
+		keys = new long[cap];
+		values = new int[cap];
+		for (int i = 0; i < seqs.length; i++) {
+			long h = hash(seqs[i]);
+			int slot = mix(h) & (cap - 1);
+			while (values[slot] != 0)
+				slot = (slot + 1) & (cap - 1);
+			keys[slot] = h;
+			values[slot] = i + 1;
+		}
+	}
+
+	/**
+	 * @param seq
+	 *            a sequence
+	 * @return the polynomial hash of the sequence
+	 */
+	private static long hash(byte[] seq) {
+		long h = 0;
+		for (byte b : seq)
+			h = h * BASE + b;
+		return h;
+	}
+
+	/**
+	 * @param h
+	 *            a hash
+	 * @return the hash mixed for addressing the table
+	 */
+	private static int mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	/**
+	 * Link search strategy, one instance per thread
+	 */
+	private interface Links {
+
+		/**
+		 * @param q
+		 *            a sequence index
+		 * @return the sorted indices of the sequences linked to
+		 *         <code>q</code>
+		 */
+		int[] find(int q);
+
+	}
+
+	/**
+	 * Finds the sequences at distance one by enumerating the variants of the
+	 * query and looking up their hashes
+	 */
+	private class HashLinks implements Links {
+
+		/**
+		 * Prefix hashes of the query
+		 */
+		private long[] prefix = new long[0];
+
+		/**
+		 * Powers of the base
+		 */
+		private long[] pow = new long[0];
+
+		/**
+		 * Scratch space for building a variant
+		 */
+		private byte[] variant = new byte[0];
+
+		/**
+		 * Links found so far
+		 */
+		private int[] found = new int[16];
+
+		/**
+		 * Number of links found so far
+		 */
+		private int size;
+
+		@Override
+		public int[] find(int q) {
+			byte[] s = seqs[q];
+			int len = s.length;
+			if (prefix.length < len + 2) {
+				prefix = new long[len + 2];
+				pow = new long[len + 2];
+				variant = new byte[len + 1];
+				pow[0] = 1;
+				for (int i = 1; i < pow.length; i++)
+					pow[i] = pow[i - 1] * BASE;
+			}
+			for (int i = 0; i < len; i++)
+				prefix[i + 1] = prefix[i] * BASE + s[i];
+			long full = prefix[len];
+			size = 0;
+
+			for (int i = 0; i < len; i++) {
+				// Substitutions
+				for (byte c : BASES) {
+					if (c == s[i])
+						continue;
+					long h = full + (c - s[i]) * pow[len - 1 - i];
+					lookup(h, s, 0, i, c);
+				}
+				// Deletions
+				long suffix = full - prefix[i + 1] * pow[len - 1 - i];
+				lookup(prefix[i] * pow[len - 1 - i] + suffix, s, 1, i, (byte) 0);
+			}
+			// Insertions, also after the last base
+			for (int i = 0; i <= len; i++) {
+				long suffix = full - prefix[i] * pow[len - i];
+				for (byte c : BASES) {
+					long h = prefix[i] * pow[len - i + 1] + c * pow[len - i]
+							+ suffix;
+					lookup(h, s, 2, i, c);
+				}
+			}
+
+			// The same variant can be reached in more ways (e.g. inside
+			// homopolymers)
+			Arrays.sort(found, 0, size);
+			int unique = 0;
+			for (int i = 0; i < size; i++)
+				if (unique == 0 || found[unique - 1] != found[i])
+					found[unique++] = found[i];
+			return Arrays.copyOf(found, unique);
+		}
+
+		/**
+		 * Looks up a variant of the query, building it only when its hash is
+		 * in the table
+		 *
+		 * @param h
+		 *            the hash of the variant
+		 * @param s
+		 *            the query
+		 * @param type
+		 *            0 for substitutions, 1 for deletions and 2 for insertions
+		 * @param pos
+		 *            position of the edit
+		 * @param c
+		 *            the base substituted or inserted
+		 */
+		private void lookup(long h, byte[] s, int type, int pos, byte c) {
+			int mask = keys.length - 1;
+			int slot = mix(h) & mask;
+			int len = -1;
+			while (values[slot] != 0) {
+				if (keys[slot] == h) {
+					if (len < 0)
+						len = build(s, type, pos, c);
+					int t = values[slot] - 1;
+					if (equal(seqs[t], len)) {
+						if (size == found.length)
+							found = Arrays.copyOf(found, size * 2);
+						found[size++] = t;
+						return;
+					}
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		/**
+		 * Builds a variant of the query in the scratch space
+		 *
+		 * @return the length of the variant
+		 */
+		private int build(byte[] s, int type, int pos, byte c) {
+			switch (type) {
+			case 0:
+				System.arraycopy(s, 0, variant, 0, s.length);
+				variant[pos] = c;
+				return s.length;
+			case 1:
+				System.arraycopy(s, 0, variant, 0, pos);
+				System.arraycopy(s, pos + 1, variant, pos, s.length - pos - 1);
+				return s.length - 1;
+			default:
+				System.arraycopy(s, 0, variant, 0, pos);
+				variant[pos] = c;
+				System.arraycopy(s, pos, variant, pos + 1, s.length - pos);
+				return s.length + 1;
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if the sequence is equal to the variant
+		 */
+		private boolean equal(byte[] t, int len) {
+			if (t.length != len)
+				return false;
+			for (int i = 0; i < len; i++)
+				if (t[i] != variant[i])
+					return false;
+			return true;
+		}
+
+	}
+
+	/**
+	 * Finds the linked sequences with a k-mer filter and a bit-parallel edit
+	 * distance
+	 */
+	private class AlignedLinks implements Links {
+
+		/**
+		 * The k-mer index of all the sequences
+		 */
+		private final KmerIndex index;
+
+		/**
+		 * Scratch space of the index
+		 */
+		private final KmerIndex.Counter counter;
+
+		/**
+		 * Edit distance calculator
+		 */
+		private final MyersEditDistance distance = new MyersEditDistance();
+
+		/**
+		 * Constructor
+		 *
+		 * @param index
+		 *            the k-mer index of all the sequences
+		 */
+		AlignedLinks(KmerIndex index) {
+			this.index = index;
+			this.counter = new KmerIndex.Counter(index.getK());
+		}
+
+		@Override
+		public int[] find(int q) {
+			byte[] s = seqs[q];
+			int hits = index.matching(s, index.getK() * d, 0, seqs.length,
+					counter);
+			int[] cand = counter.getHits();
+			int[] found = new int[hits];
+			int size = 0;
+			for (int i = 0; i < hits; i++) {
+				int t = cand[i];
+				if (t == q || Math.abs(seqs[t].length - s.length) > d)
+					continue;
+				if (distance.distance(s, seqs[t], d) <= d)
+					found[size++] = t;
+			}
+			return Arrays.copyOf(found, size);
+		}
+
+	}
+
+}
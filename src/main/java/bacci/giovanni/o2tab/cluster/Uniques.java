@@ -0,0 +1,112 @@
+package bacci.giovanni.o2tab.cluster;
+
+import java.io.IOException;
+import java.util.List;
+
+import bacci.giovanni.o2tab.util.AbundanceSort;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+
+/**
+ * Unique sequences with their abundances, ordered by decreasing abundance.
+ * Abundances are read from the <code>;size=</code> annotation of the labels
+ * written by the dereplication process.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class Uniques {
+
+	/**
+	 * Labels
+	 */
+	private final String[] labels;
+
+	/**
+	 * Sequences
+	 */
+	private final byte[][] seqs;
+
+	/**
+	 * Abundances
+	 */
+	private final long[] sizes;
+
+	/**
+	 * Constructor. The arrays must be already ordered by decreasing
+	 * abundance.
+	 *
+	 * @param labels
+	 *            the labels
+	 * @param seqs
+	 *            the sequences
+	 * @param sizes
+	 *            the abundances
+	 */
+	public Uniques(String[] labels, byte[][] seqs, long[] sizes) {
+		this.labels = labels;
+		this.seqs = seqs;
+		this.sizes = sizes;
+	}
+
+	/**
+	 * Reads the unique sequences of a FASTA file, ordering them with
+	 * {@link AbundanceSort}
+	 *
+	 * @param file
+	 *            the FASTA file
+	 * @return the unique sequences
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static Uniques read(String file) throws IOException {
+		List<FastaRecord> records = FastaRecordReader.readAll(file);
+		int n = records.size();
+		byte[][] seqs = new byte[n][];
+		long[] sizes = new long[n];
+		for (int i = 0; i < n; i++) {
+			seqs[i] = records.get(i).getSequence();
+			sizes[i] = records.get(i).getSize();
+		}
+		int[] order = AbundanceSort.order(sizes, seqs);
+		String[] l = new String[n];
+		byte[][] s = new byte[n][];
+		long[] z = new long[n];
+		for (int i = 0; i < n; i++) {
+			l[i] = records.get(order[i]).getLabel();
+			s[i] = seqs[order[i]];
+			z[i] = sizes[order[i]];
+		}
+		return new Uniques(l, s, z);
+	}
+
+	/**
+	 * @return the number of unique sequences
+	 */
+	public int size() {
+		return seqs.length;
+	}
+
+	/**
+	 * @return the labels
+	 */
+	public String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return the sequences
+	 */
+	public byte[][] getSequences() {
+		return seqs;
+	}
+
+	/**
+	 * @return the abundances
+	 */
+	public long[] getSizes() {
+		return sizes;
+	}
+
+}
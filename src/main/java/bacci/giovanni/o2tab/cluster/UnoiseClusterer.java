@@ -0,0 +1,91 @@
+package bacci.giovanni.o2tab.cluster;
+
+import bacci.giovanni.o2tab.align.MyersEditDistance;
+
+/**
+ * Denoising with the abundance skew model of UNOISE. A sequence is an error
+ * of a more abundant centroid when their edit distance <i>d</i> and their
+ * abundance ratio (skew) satisfy
+ * <p>
+ * <i>skew</i> &le; 1 / 2<sup>&alpha;&middot;d + 1</sup>
+ * <p>
+ * otherwise it becomes a new centroid, i.e. a zero-radius OTU. The larger the
+ * distance the more abundant the centroid has to be for absorbing the
+ * sequence.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class UnoiseClusterer extends CentroidClusterer {
+
+	/**
+	 * Default value of the alpha parameter
+	 */
+	public final static double DEFAULT_ALPHA = 2.0;
+
+	/**
+	 * The alpha parameter
+	 */
+	private final double alpha;
+
+	/**
+	 * Constructor
+	 *
+	 * @param seqs
+	 *            the sequences ordered by decreasing abundance
+	 * @param sizes
+	 *            the abundance of each sequence
+	 * @param alpha
+	 *            the alpha parameter of the skew model
+	 * @param threads
+	 *            the number of threads
+	 */
+	public UnoiseClusterer(byte[][] seqs, long[] sizes, double alpha,
+			int threads) {
+		super(seqs, sizes, threads);
+		if (alpha <= 0)
+			throw new IllegalArgumentException("alpha must be positive");
+		this.alpha = alpha;
+	}
+
+	/**
+	 * @param skew
+	 *            the abundance of a sequence divided by the one of the
+	 *            centroid
+	 * @param alpha
+	 *            the alpha parameter
+	 * @return the maximum edit distance allowed for the given skew, negative
+	 *         if the sequence cannot be absorbed at all
+	 */
+	static int maxDistance(double skew, double alpha) {
+		if (skew <= 0)
+			return Integer.MAX_VALUE;
+		// skew <= 2^-(alpha * d + 1) <=> d <= (-log2(skew) - 1) / alpha
+		double d = (-Math.log(skew) / Math.log(2) - 1) / alpha;
+		return (int) Math.floor(d + 1e-9);
+	}
+
+	@Override
+	protected Matcher createMatcher() {
+		return new Matcher() {
+
+			private final MyersEditDistance distance = new MyersEditDistance();
+
+			@Override
+			public boolean accepts(int query, int centroid) {
+				int max = maxDistance(
+						(double) sizes[query] / sizes[centroid], alpha);
+				if (max < 1)
+					return false;
+				byte[] q = seqs[query];
+				byte[] c = seqs[centroid];
+				if (Math.abs(q.length - c.length) > max)
+					return false;
+				return distance.distance(q, c, max) <= max;
+			}
+
+		};
+	}
+
+}
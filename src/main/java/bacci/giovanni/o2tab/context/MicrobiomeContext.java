@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
@@ -14,16 +15,29 @@ import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
+import bacci.giovanni.o2tab.diversity.BetaMetric;
 import bacci.giovanni.o2tab.pipeline.MandatoryPipeline;
 import bacci.giovanni.o2tab.pipeline.PipelineProcess;
 import bacci.giovanni.o2tab.pipeline.PipelineProcessQueue;
+import bacci.giovanni.o2tab.process.ChimeraProcess;
+import bacci.giovanni.o2tab.process.ClosedReferenceOTU;
 import bacci.giovanni.o2tab.process.ClusteringOTU;
+import bacci.giovanni.o2tab.process.DenoisingProcess;
 import bacci.giovanni.o2tab.process.DereplicationProcess;
+import bacci.giovanni.o2tab.process.DiversityProcess;
+import bacci.giovanni.o2tab.process.GreedyClusteringOTU;
 import bacci.giovanni.o2tab.process.MappingProcess;
 import bacci.giovanni.o2tab.process.MultiPoolingProcess;
+import bacci.giovanni.o2tab.process.NativeMappingProcess;
+import bacci.giovanni.o2tab.process.NativeTableProcess;
 import bacci.giovanni.o2tab.process.PANDAseqProcessBuilder;
+import bacci.giovanni.o2tab.process.PhylogenyProcess;
+import bacci.giovanni.o2tab.process.PreclusteringProcess;
+import bacci.giovanni.o2tab.process.StoreUpdateProcess;
 import bacci.giovanni.o2tab.process.StreamingTrimLight;
+import bacci.giovanni.o2tab.process.SwarmClusteringOTU;
 import bacci.giovanni.o2tab.process.TableProcess;
+import bacci.giovanni.o2tab.table.TableFormat;
 import bacci.giovanni.o2tab.util.QualityEncoding;
 import bacci.giovanni.o2tab.util.Utils;
 
@@ -118,6 +132,129 @@ public class MicrobiomeContext {
 						"filter files in input folder based on this string")
 				.withRequiredArg().ofType(String.class);
 
+		OptionSpec<Void> fingerprint = parser.accepts("fingerprint",
+				"dereplicate on 128-bit sequence fingerprints");
+
+		OptionSpec<Void> verify = parser.accepts("verify",
+				"check fingerprint collisions during dereplication (needs --fingerprint)");
+
+		OptionSpec<Void> prefix = parser.accepts("prefix",
+				"fold sequences into their longest extension when dereplicating (not with --fingerprint)");
+
+		OptionSpec<Void> precluster = parser.accepts("precluster",
+				"fold rare uniques into abundant ones with few mismatches");
+
+		OptionSpec<Integer> preclusterDiffs = parser
+				.accepts("precluster_diffs",
+						"maximum number of mismatches when pre-clustering")
+				.withRequiredArg().ofType(Integer.class);
+
+		OptionSpec<String> cluster = parser
+				.accepts("cluster",
+						"clustering engine: usearch (default), greedy, swarm, unoise or closed")
+				.withRequiredArg().ofType(String.class);
+
+		OptionSpec<Double> otuId = parser
+				.accepts("otu_id",
+						"identity thresholds of the greedy and closed reference engines")
+				.withRequiredArg().withValuesSeparatedBy(',')
+				.ofType(Double.class);
+
+		OptionSpec<Integer> swarmD = parser
+				.accepts("swarm_d",
+						"maximum edit distance between linked sequences in swarm clustering")
+				.withRequiredArg().ofType(Integer.class);
+
+		OptionSpec<Double> unoiseAlpha = parser
+				.accepts("unoise_alpha",
+						"alpha parameter of the unoise denoising engine")
+				.withRequiredArg().ofType(Double.class);
+
+		OptionSpec<Integer> unoiseMinSize = parser
+				.accepts("unoise_min_size",
+						"minimum abundance of a denoised sequence")
+				.withRequiredArg().ofType(Integer.class);
+
+		OptionSpec<String> reference = parser
+				.accepts("reference",
+						"reference sequences of the closed reference engine")
+				.withRequiredArg().ofType(String.class);
+
+		OptionSpec<String> referenceIndex = parser
+				.accepts("reference_index",
+						"k-mer index of the reference sequences, built if missing")
+				.withRequiredArg().ofType(String.class);
+
+		OptionSpec<Void> chimera = parser.accepts("chimera",
+				"remove chimeric OTUs after clustering");
+
+		OptionSpec<String> mapper = parser
+				.accepts("mapper",
+						"read mapping engine: usearch (default) or native")
+				.withRequiredArg().ofType(String.class);
+
+		OptionSpec<Void> mapUniques = parser.accepts("map_uniques",
+				"search each distinct read once and write a record weighted by its count for each sample (native mapper and table only)");
+
+		OptionSpec<Void> streamTable = parser.accepts("stream_table",
+				"build the OTU table while usearch maps the reads (usearch mapper only, replaces --table)");
+
+		OptionSpec<String> table = parser
+				.accepts("table",
+						"OTU table engine: python (uc2otutab.py, default) or native")
+				.withRequiredArg().ofType(String.class);
+
+		OptionSpec<String> tableFormat = parser
+				.accepts("table_format",
+						"additional OTU table formats: binary, biom and triplet")
+				.withRequiredArg().withValuesSeparatedBy(',')
+				.ofType(String.class);
+
+		OptionSpec<Long> rarefy = parser
+				.accepts("rarefy",
+						"rarefy the OTU tables at these depths and compute alpha diversity")
+				.withRequiredArg().withValuesSeparatedBy(',')
+				.ofType(Long.class);
+
+		OptionSpec<Long> rarefyStep = parser
+				.accepts("rarefy_step",
+						"distance between the depths of the rarefaction curves")
+				.withRequiredArg().ofType(Long.class);
+
+		OptionSpec<Long> seed = parser
+				.accepts("seed", "seed of the random rarefaction")
+				.withRequiredArg().ofType(Long.class);
+
+		OptionSpec<String> beta = parser
+				.accepts("beta",
+						"sample distance matrices: bray_curtis and jaccard")
+				.withRequiredArg().withValuesSeparatedBy(',')
+				.ofType(String.class);
+
+		OptionSpec<Void> betaBinary = parser.accepts("beta_binary",
+				"write the distance matrices in binary format");
+
+		OptionSpec<Void> unifrac = parser.accepts("unifrac",
+				"build a tree of the OTUs and compute UniFrac distances");
+
+		OptionSpec<String> treeDistance = parser
+				.accepts("tree_distance",
+						"OTU distances of the tree: kmer (default) or align")
+				.withRequiredArg().ofType(String.class);
+
+		OptionSpec<String> store = parser
+				.accepts("store",
+						"OTU store updated with the new samples instead of clustering them from scratch")
+				.withRequiredArg().ofType(String.class);
+
+		OptionSpec<Void> storeMerge = parser.accepts("store_merge",
+				"add the counts of samples already in the store to the stored ones");
+
+		OptionSpec<Integer> partitions = parser
+				.accepts("partitions",
+						"number of partitions clustered by separate usearch instances")
+				.withRequiredArg().ofType(Integer.class);
+
 		OptionSpec<Void> enc64 = parser.accepts("64",
 				"set the Phred+64 quality encoding");
 
@@ -143,6 +280,17 @@ public class MicrobiomeContext {
 		if (set.has(help))
 			this.printHelpAndExit(parser);
 
+		// Dereplication modes
+		if (set.has(verify) && !set.has(fingerprint)) {
+			System.err.println("--verify needs --fingerprint");
+			System.exit(-1);
+		}
+		if (set.has(fingerprint) && set.has(prefix)) {
+			System.err.println("--fingerprint cannot be used with --prefix, "
+					+ "prefix folding needs the full sequences");
+			System.exit(-1);
+		}
+
 		// Retriving params
 
 		// Adjusting inputs
@@ -213,18 +361,250 @@ public class MicrobiomeContext {
 			queue.addPipelineProcess(pooling.setInputFiles(inputs));
 		}
 
-		// Dereplication process
+		List<TableFormat> formats = new ArrayList<TableFormat>();
+		for (String f : set.valuesOf(tableFormat)) {
+			try {
+				formats.add(TableFormat.valueOf(f.toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown table format: " + f);
+				System.exit(-1);
+			}
+		}
 		int min = (set.has(minSize)) ? set.valueOf(minSize) : 1;
-		queue.addPipelineProcess(new DereplicationProcess(min)
-				.setProcessNumber(processNumber++));
-
-		// Clustering, mapping and tabling
-		queue.addPipelineProcess(new ClusteringOTU()
-				.setProcessNumber(processNumber++));
-		queue.addPipelineProcess(new MappingProcess()
-				.setProcessNumber(processNumber++));
-		queue.addPipelineProcess(new TableProcess()
-				.setProcessNumber(processNumber++));
+		PhylogenyProcess phylogeny = null;
+		if (set.has(store)) {
+			// Incremental update of an OTU store, replacing all the
+			// processes from dereplication to tabling
+			OptionSpec<?>[] replaced = { fingerprint, verify, prefix,
+					precluster, cluster, chimera, unifrac, mapper, mapUniques,
+					streamTable, table, partitions, reference, referenceIndex,
+					swarmD, preclusterDiffs, treeDistance };
+			for (OptionSpec<?> o : replaced) {
+				if (set.has(o)) {
+					System.err.println("--" + o.options().iterator().next()
+							+ " cannot be used with --store");
+					System.exit(-1);
+				}
+			}
+			if (set.valuesOf(otuId).size() > 1) {
+				System.err.println("Multiple identity thresholds "
+						+ "cannot be used with --store");
+				System.exit(-1);
+			}
+			StoreUpdateProcess update = new StoreUpdateProcess(
+					set.valueOf(store)).minSize(min).merge(
+					set.has(storeMerge));
+			if (set.has(otuId))
+				update.identity(set.valueOf(otuId));
+			queue.addPipelineProcess(update.formats(formats)
+					.thread(threadNum).setProcessNumber(processNumber++));
+		} else if (set.has(storeMerge)) {
+			System.err.println("--store_merge needs --store");
+			System.exit(-1);
+		} else {
+			// Dereplication process
+			DereplicationProcess derep = new DereplicationProcess(min);
+			if (set.has(fingerprint))
+				derep.fingerprint(set.has(verify));
+			if (set.has(prefix))
+				derep.prefix();
+			queue.addPipelineProcess(derep.setProcessNumber(processNumber++));
+
+			// Pre-clustering
+			if (set.has(preclusterDiffs) && !set.has(precluster)) {
+				System.err.println("--precluster_diffs needs --precluster");
+				System.exit(-1);
+			}
+			if (set.has(precluster)) {
+				PreclusteringProcess pre = new PreclusteringProcess();
+				if (set.has(preclusterDiffs))
+					pre.differences(set.valueOf(preclusterDiffs));
+				queue.addPipelineProcess(pre.thread(threadNum).setProcessNumber(
+						processNumber++));
+			}
+
+			// Clustering, mapping and tabling
+			String engine = (set.has(cluster)) ? set.valueOf(cluster)
+					: "usearch";
+			double[] ids = { 0.97 };
+			if (set.has(otuId)) {
+				ids = new double[set.valuesOf(otuId).size()];
+				for (int i = 0; i < ids.length; i++)
+					ids[i] = set.valuesOf(otuId).get(i);
+			}
+			if (!engine.equals("closed")) {
+				for (OptionSpec<?> o : new OptionSpec<?>[] { reference,
+						referenceIndex }) {
+					if (set.has(o)) {
+						System.err.println("--"
+								+ o.options().iterator().next()
+								+ " needs the closed reference engine");
+						System.exit(-1);
+					}
+				}
+			}
+			if (set.has(otuId)
+					&& (engine.equals("swarm") || engine.equals("unoise"))) {
+				System.err.println("--otu_id cannot be used with the "
+						+ engine + " engine, it has no identity threshold");
+				System.exit(-1);
+			}
+			if (set.has(partitions) && !engine.equals("usearch")) {
+				System.err.println("--partitions needs the usearch "
+						+ "clustering engine");
+				System.exit(-1);
+			}
+			if (set.has(swarmD) && !engine.equals("swarm")) {
+				System.err.println("--swarm_d needs the swarm clustering "
+						+ "engine");
+				System.exit(-1);
+			}
+			// The chimera filter needs the size of the OTUs
+			boolean sizeout = set.has(chimera);
+			if (engine.equals("greedy")) {
+				queue.addPipelineProcess(new GreedyClusteringOTU()
+						.identities(ids).sizeout(sizeout).thread(threadNum)
+						.setProcessNumber(processNumber++));
+			} else if (engine.equals("swarm")) {
+				int d = (set.has(swarmD)) ? set.valueOf(swarmD) : 1;
+				queue.addPipelineProcess(new SwarmClusteringOTU().differences(d)
+						.sizeout(sizeout).thread(threadNum)
+						.setProcessNumber(processNumber++));
+			} else if (engine.equals("unoise")) {
+				DenoisingProcess denoise = new DenoisingProcess();
+				if (set.has(unoiseAlpha))
+					denoise.alpha(set.valueOf(unoiseAlpha));
+				if (set.has(unoiseMinSize))
+					denoise.minSize(set.valueOf(unoiseMinSize));
+				queue.addPipelineProcess(denoise.sizeout(sizeout)
+						.thread(threadNum).setProcessNumber(processNumber++));
+			} else if (engine.equals("closed")) {
+				if (!set.has(reference)) {
+					System.err.println("The closed reference engine "
+							+ "needs the reference sequences");
+					System.exit(-1);
+				}
+				if (ids.length > 1) {
+					System.err.println("Multiple identity thresholds "
+							+ "need the greedy clustering engine");
+					System.exit(-1);
+				}
+				ClosedReferenceOTU closed = new ClosedReferenceOTU(
+						set.valueOf(reference)).identity(ids[0]);
+				if (set.has(referenceIndex))
+					closed.index(set.valueOf(referenceIndex));
+				queue.addPipelineProcess(closed.sizeout(sizeout)
+						.thread(threadNum).setProcessNumber(processNumber++));
+			} else if (engine.equals("usearch") && ids.length > 1) {
+				System.err.println("Multiple identity thresholds "
+						+ "need the greedy clustering engine");
+				System.exit(-1);
+			} else if (engine.equals("usearch")) {
+				int parts = (set.has(partitions)) ? set.valueOf(partitions) : 1;
+				queue.addPipelineProcess(new ClusteringOTU().partitions(parts)
+						.sizeout(sizeout).thread(threadNum)
+						.setProcessNumber(processNumber++));
+			} else {
+				System.err.println("Unknown clustering engine: " + engine);
+				System.exit(-1);
+			}
+			if (set.has(treeDistance) && !set.has(unifrac)) {
+				System.err.println("--tree_distance needs --unifrac");
+				System.exit(-1);
+			}
+			if (set.has(chimera))
+				queue.addPipelineProcess(new ChimeraProcess().thread(threadNum)
+						.setProcessNumber(processNumber++));
+			if (set.has(unifrac)) {
+				String dist = (set.has(treeDistance)) ? set
+						.valueOf(treeDistance) : "kmer";
+				if (!dist.equals("kmer") && !dist.equals("align")) {
+					System.err.println("Unknown tree distance: " + dist);
+					System.exit(-1);
+				}
+				phylogeny = new PhylogenyProcess().alignment(
+						dist.equals("align")).thread(threadNum);
+				queue.addPipelineProcess(phylogeny
+						.setProcessNumber(processNumber++));
+			}
+			String mapEngine = (set.has(mapper)) ? set.valueOf(mapper)
+					: "usearch";
+			if (set.has(mapUniques) && !mapEngine.equals("native")) {
+				System.err.println("--map_uniques needs the native mapper");
+				System.exit(-1);
+			}
+			if (set.has(mapUniques)
+					&& !(set.has(table) && set.valueOf(table).equals("native"))) {
+				System.err.println("--map_uniques needs the native table "
+						+ "engine, uc2otutab.py counts one read per record");
+				System.exit(-1);
+			}
+			if (set.has(streamTable) && !mapEngine.equals("usearch")) {
+				System.err.println("--stream_table needs the usearch mapper");
+				System.exit(-1);
+			}
+			if (set.has(streamTable) && set.has(table)) {
+				System.err.println("--table cannot be used with "
+						+ "--stream_table, the tables are written by the "
+						+ "mapping process");
+				System.exit(-1);
+			}
+			if (mapEngine.equals("native")) {
+				queue.addPipelineProcess(new NativeMappingProcess()
+						.uniques(set.has(mapUniques)).thread(threadNum)
+						.setProcessNumber(processNumber++));
+			} else if (mapEngine.equals("usearch")) {
+				queue.addPipelineProcess(new MappingProcess().thread(threadNum)
+						.streamTable(set.has(streamTable))
+						.tableFormats(formats)
+						.setProcessNumber(processNumber++));
+			} else {
+				System.err.println("Unknown mapping engine: " + mapEngine);
+				System.exit(-1);
+			}
+			String tableEngine = (set.has(table)) ? set.valueOf(table)
+					: "python";
+			if (mapEngine.equals("usearch") && set.has(streamTable)) {
+				// In streaming mode the tables are written by the mapping
+				// process
+			} else if (tableEngine.equals("native")) {
+				queue.addPipelineProcess(new NativeTableProcess()
+						.thread(threadNum).formats(formats)
+						.setProcessNumber(processNumber++));
+			} else if (tableEngine.equals("python")) {
+				queue.addPipelineProcess(new TableProcess()
+						.formats(formats)
+						.setProcessNumber(processNumber++));
+			} else {
+				System.err.println("Unknown table engine: " + tableEngine);
+				System.exit(-1);
+			}
+		}
+
+		// Diversity analysis
+		List<BetaMetric> metrics = new ArrayList<BetaMetric>();
+		for (String m : set.valuesOf(beta)) {
+			try {
+				metrics.add(BetaMetric.fromString(m));
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(-1);
+			}
+		}
+		if (set.has(rarefy) || set.has(rarefyStep) || !metrics.isEmpty()
+				|| phylogeny != null) {
+			long[] depths = new long[set.valuesOf(rarefy).size()];
+			for (int i = 0; i < depths.length; i++)
+				depths[i] = set.valuesOf(rarefy).get(i);
+			DiversityProcess div = new DiversityProcess().depths(depths);
+			if (set.has(rarefyStep))
+				div.step(set.valueOf(rarefyStep));
+			if (set.has(seed))
+				div.seed(set.valueOf(seed));
+			queue.addPipelineProcess(div.beta(metrics).unifrac(phylogeny)
+					.binary(set.has(betaBinary)).thread(threadNum)
+					.setProcessNumber(processNumber++));
+		}
 	}
 
 	/**
@@ -0,0 +1,194 @@
+package bacci.giovanni.o2tab.diversity;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bacci.giovanni.o2tab.table.SparseVector;
+
+/**
+ * Rarefaction and alpha diversity of all the samples of an OTU table. Each
+ * sample is rarefied with a {@link Rarefier} at a set of depths and, if a
+ * step is given, at all the multiples of the step up to its number of reads,
+ * giving its rarefaction curve. Samples are rarefied in parallel on a fork
+ * join pool.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class AlphaDiversity {
+
+	/**
+	 * Samples rarefied by a task without splitting it
+	 */
+	private final static int LEAF = 4;
+
+	private final long[] depths;
+
+	private long step = 0;
+
+	private long seed = 0;
+
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param depths
+	 *            the rarefaction depths
+	 */
+	public AlphaDiversity(long... depths) {
+		long[] d = depths.clone();
+		Arrays.sort(d);
+		for (long x : d)
+			if (x < 1)
+				throw new IllegalArgumentException("depths must be positive");
+		this.depths = d;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param step
+	 *            the distance between the depths of the rarefaction curves,
+	 *            <code>0</code> for no curve
+	 * @return this object
+	 */
+	public AlphaDiversity step(long step) {
+		if (step < 0)
+			throw new IllegalArgumentException("step must not be negative");
+		this.step = step;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param seed
+	 *            the seed of the random generators
+	 * @return this object
+	 */
+	public AlphaDiversity seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the parallelism of the fork join pool
+	 * @return this object
+	 */
+	public AlphaDiversity thread(int thread) {
+		this.thread = Math.max(1, thread);
+		return this;
+	}
+
+	/**
+	 * @return the rarefaction depths, increasing
+	 */
+	public long[] getDepths() {
+		return depths.clone();
+	}
+
+	/**
+	 * Rarefies the samples
+	 *
+	 * @param labels
+	 *            the sample labels
+	 * @param samples
+	 *            the counts of each sample
+	 * @return the alpha diversity of each sample at each depth, increasing,
+	 *         that is a rarefaction depth or a point of the curve not greater
+	 *         than the number of reads of the sample
+	 * @throws IllegalArgumentException
+	 *             if a sample has too many reads to be rarefied at its
+	 *             largest depth, checked before any sample is rarefied
+	 */
+	public AlphaMetrics[][] rarefy(List<String> labels, SparseVector[] samples) {
+		for (int s = 0; s < samples.length; s++) {
+			long total = samples[s].getTotal();
+			long max = 0;
+			for (long d : depths(total))
+				if (d <= total)
+					max = d;
+			if (!Rarefier.fits(total, max))
+				throw new IllegalArgumentException("sample " + labels.get(s)
+						+ " of " + total + " reads cannot be rarefied at depth "
+						+ max);
+		}
+		AlphaMetrics[][] out = new AlphaMetrics[samples.length][];
+		ForkJoinPool pool = new ForkJoinPool(thread);
+		try {
+			pool.invoke(new Task(labels, samples, out, 0, samples.length));
+		} finally {
+			pool.shutdown();
+		}
+		return out;
+	}
+
+	/**
+	 * @param total
+	 *            the number of reads of a sample
+	 * @return the rarefaction depths and the points of the curve of the
+	 *         sample, increasing and distinct
+	 */
+	private long[] depths(long total) {
+		long points = (step == 0) ? 0 : total / step;
+		long[] all = Arrays.copyOf(depths, (int) (depths.length + points));
+		for (int i = 0; i < points; i++)
+			all[depths.length + i] = step * (i + 1);
+		Arrays.sort(all);
+		int n = 0;
+		for (int i = 0; i < all.length; i++)
+			if (i == 0 || all[i] != all[i - 1])
+				all[n++] = all[i];
+		return Arrays.copyOf(all, n);
+	}
+
+	/**
+	 * Rarefies a range of samples, splitting it in halves
+	 */
+	private class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> labels;
+
+		private final SparseVector[] samples;
+
+		private final AlphaMetrics[][] out;
+
+		private final int from;
+
+		private final int to;
+
+		private Task(List<String> labels, SparseVector[] samples,
+				AlphaMetrics[][] out, int from, int to) {
+			this.labels = labels;
+			this.samples = samples;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > LEAF) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(labels, samples, out, from, mid), new Task(
+						labels, samples, out, mid, to));
+				return;
+			}
+			Rarefier r = new Rarefier(seed);
+			for (int s = from; s < to; s++)
+				out[s] = r.rarefy(labels.get(s), samples[s],
+						depths(samples[s].getTotal()));
+		}
+
+	}
+
+}
@@ -0,0 +1,67 @@
+package bacci.giovanni.o2tab.diversity;
+
+/**
+ * Alpha diversity of a sample rarefied to a depth
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class AlphaMetrics {
+
+	private final long depth;
+
+	private final int richness;
+
+	private final double shannon;
+
+	private final double chao1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param depth
+	 *            the number of reads drawn
+	 * @param richness
+	 *            the number of OTUs observed
+	 * @param shannon
+	 *            the Shannon index
+	 * @param chao1
+	 *            the Chao1 estimate
+	 */
+	public AlphaMetrics(long depth, int richness, double shannon, double chao1) {
+		this.depth = depth;
+		this.richness = richness;
+		this.shannon = shannon;
+		this.chao1 = chao1;
+	}
+
+	/**
+	 * @return the number of reads drawn
+	 */
+	public long getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the number of OTUs observed
+	 */
+	public int getRichness() {
+		return richness;
+	}
+
+	/**
+	 * @return the Shannon index, with natural logarithms
+	 */
+	public double getShannon() {
+		return shannon;
+	}
+
+	/**
+	 * @return the bias corrected Chao1 estimate of the richness
+	 */
+	public double getChao1() {
+		return chao1;
+	}
+
+}
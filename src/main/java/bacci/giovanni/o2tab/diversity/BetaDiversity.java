@@ -0,0 +1,233 @@
+package bacci.giovanni.o2tab.diversity;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bacci.giovanni.o2tab.table.SparseVector;
+
+/**
+ * Distance matrices between all the samples of an OTU table. The pairs of
+ * samples are split into square tiles of {@link #BLOCK} by {@link #BLOCK}
+ * samples, computed in parallel on a fork join pool. Inside a tile the
+ * counts of a sample are spread over a dense array, then the non zero counts
+ * of each sample of the other block, which stay in cache for the whole tile,
+ * are looked up in it. All the metrics are computed in the same pass.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class BetaDiversity {
+
+	/**
+	 * Samples of the side of a tile
+	 */
+	private final static int BLOCK = 128;
+
+	private final BetaMetric[] metrics;
+
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param metrics
+	 *            the metrics to compute
+	 */
+	public BetaDiversity(BetaMetric... metrics) {
+		this.metrics = metrics.clone();
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the parallelism of the fork join pool
+	 * @return this object
+	 */
+	public BetaDiversity thread(int thread) {
+		this.thread = Math.max(1, thread);
+		return this;
+	}
+
+	/**
+	 * Computes the distances between all the samples
+	 *
+	 * @param labels
+	 *            the sample labels
+	 * @param samples
+	 *            the counts of each sample, by increasing OTU identifier
+	 * @param otus
+	 *            the number of OTUs
+	 * @return a matrix for each metric, in the order of the constructor
+	 */
+	public DistanceMatrix[] compute(List<String> labels,
+			SparseVector[] samples, int otus) {
+		int n = samples.length;
+		// Counts of all the samples, one after the other
+		int[] starts = new int[n + 1];
+		for (int s = 0; s < n; s++)
+			starts[s + 1] = starts[s] + samples[s].size();
+		int[] indices = new int[starts[n]];
+		long[] counts = new long[starts[n]];
+		long[] totals = new long[n];
+		for (int s = 0; s < n; s++) {
+			for (int i = 0; i < samples[s].size(); i++) {
+				indices[starts[s] + i] = samples[s].getIndex(i);
+				counts[starts[s] + i] = samples[s].getValue(i);
+			}
+			totals[s] = samples[s].getTotal();
+		}
+
+		DistanceMatrix[] out = new DistanceMatrix[metrics.length];
+		for (int m = 0; m < out.length; m++)
+			out[m] = new DistanceMatrix(labels);
+		int blocks = (n + BLOCK - 1) / BLOCK;
+		ForkJoinPool pool = new ForkJoinPool(thread);
+		try {
+			pool.invoke(new Task(new Data(starts, indices, counts, totals,
+					otus, out), blocks, 0, blocks * (blocks + 1) / 2));
+		} finally {
+			pool.shutdown();
+		}
+		return out;
+	}
+
+	/**
+	 * Computes the distances of a tile
+	 *
+	 * @param d
+	 *            the counts and the matrices
+	 * @param dense
+	 *            array of the number of OTUs, all zeros, of the calling
+	 *            thread
+	 * @param bi
+	 *            the block of the rows
+	 * @param bj
+	 *            the block of the columns, not lower than <code>bi</code>
+	 */
+	private void tile(Data d, long[] dense, int bi, int bj) {
+		int n = d.totals.length;
+		int iEnd = Math.min(n, (bi + 1) * BLOCK);
+		int jEnd = Math.min(n, (bj + 1) * BLOCK);
+		for (int i = bi * BLOCK; i < iEnd; i++) {
+			int from = d.starts[i];
+			int to = d.starts[i + 1];
+			for (int k = from; k < to; k++)
+				dense[d.indices[k]] = d.counts[k];
+			for (int j = Math.max(i + 1, bj * BLOCK); j < jEnd; j++) {
+				long min = 0;
+				int shared = 0;
+				for (int k = d.starts[j]; k < d.starts[j + 1]; k++) {
+					long c = dense[d.indices[k]];
+					if (c != 0) {
+						min += Math.min(c, d.counts[k]);
+						shared++;
+					}
+				}
+				for (int m = 0; m < metrics.length; m++)
+					d.out[m].set(i, j, this.distance(metrics[m], d, i, j,
+							min, shared));
+			}
+			for (int k = from; k < to; k++)
+				dense[d.indices[k]] = 0;
+		}
+	}
+
+	private float distance(BetaMetric metric, Data d, int i, int j, long min,
+			int shared) {
+		switch (metric) {
+		case BRAY_CURTIS:
+			long sum = d.totals[i] + d.totals[j];
+			return (sum == 0) ? 0 : (float) (1 - 2.0 * min / sum);
+		default:
+			int union = d.starts[i + 1] - d.starts[i] + d.starts[j + 1]
+					- d.starts[j] - shared;
+			return (union == 0) ? 0 : (float) (1 - (double) shared / union);
+		}
+	}
+
+	/**
+	 * Counts shared by the tasks
+	 */
+	private static class Data {
+
+		private final int[] starts;
+
+		private final int[] indices;
+
+		private final long[] counts;
+
+		private final long[] totals;
+
+		private final DistanceMatrix[] out;
+
+		/**
+		 * Dense array of the counts of each worker thread
+		 */
+		private final ThreadLocal<long[]> dense;
+
+		private Data(int[] starts, int[] indices, long[] counts,
+				long[] totals, final int otus, DistanceMatrix[] out) {
+			this.starts = starts;
+			this.indices = indices;
+			this.counts = counts;
+			this.totals = totals;
+			this.out = out;
+			this.dense = new ThreadLocal<long[]>() {
+				@Override
+				protected long[] initialValue() {
+					return new long[otus];
+				}
+			};
+		}
+
+	}
+
+	/**
+	 * Computes a range of the tiles above the diagonal, numbered row by row,
+	 * splitting it in halves
+	 */
+	private class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Data data;
+
+		private final int blocks;
+
+		private final int from;
+
+		private final int to;
+
+		private Task(Data data, int blocks, int from, int to) {
+			this.data = data;
+			this.blocks = blocks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(data, blocks, from, mid), new Task(data,
+						blocks, mid, to));
+				return;
+			}
+			if (to == from)
+				return;
+			// Row and column of the tile
+			int bi = 0;
+			int t = from;
+			while (t >= blocks - bi) {
+				t -= blocks - bi;
+				bi++;
+			}
+			tile(data, data.dense.get(), bi, bi + t);
+		}
+
+	}
+
+}
@@ -0,0 +1,50 @@
+package bacci.giovanni.o2tab.diversity;
+
+/**
+ * Distances between the samples of an OTU table
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public enum BetaMetric {
+
+	/**
+	 * Bray-Curtis dissimilarity of the counts
+	 */
+	BRAY_CURTIS("bray_curtis"),
+
+	/**
+	 * Jaccard distance of the sets of OTUs present
+	 */
+	JACCARD("jaccard");
+
+	private final String name;
+
+	private BetaMetric(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the name used in the file names
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param name
+	 *            a metric name
+	 * @return the metric with the name
+	 * @throws IllegalArgumentException
+	 *             if no metric has the name
+	 */
+	public static BetaMetric fromString(String name) {
+		for (BetaMetric m : values())
+			if (m.name.equalsIgnoreCase(name))
+				return m;
+		throw new IllegalArgumentException("Unknown metric: " + name);
+	}
+
+}
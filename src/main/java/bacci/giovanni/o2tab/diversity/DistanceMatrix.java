@@ -0,0 +1,238 @@
+package bacci.giovanni.o2tab.diversity;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Symmetric matrix of distances between labelled items with a zero diagonal.
+ * Only the pairs above the diagonal are stored, row by row, as single
+ * precision values.
+ * <p>
+ * The binary file of a matrix has a header (magic number, version and number
+ * of items) followed by the labels, as UTF-8 strings preceded by their
+ * length, and by the stored pairs. All values are little endian.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class DistanceMatrix {
+
+	/**
+	 * Magic number of the matrix files
+	 */
+	private final static int MAGIC = 0x4d44324f;
+
+	/**
+	 * Version of the file format
+	 */
+	private final static int VERSION = 1;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<String> labels;
+
+	private final float[] values;
+
+	/**
+	 * Constructor of a matrix of zeros
+	 *
+	 * @param labels
+	 *            the labels of the items
+	 */
+	public DistanceMatrix(List<String> labels) {
+		long pairs = (long) labels.size() * (labels.size() - 1) / 2;
+		if (pairs > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many items: "
+					+ labels.size());
+		this.labels = Collections.unmodifiableList(new ArrayList<String>(
+				labels));
+		this.values = new float[(int) pairs];
+	}
+
+	/**
+	 * @return the number of items
+	 */
+	public int size() {
+		return labels.size();
+	}
+
+	/**
+	 * @return the labels of the items
+	 */
+	public List<String> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @param i
+	 *            an item
+	 * @param j
+	 *            another item
+	 * @return the distance between the items
+	 */
+	public float get(int i, int j) {
+		if (i == j)
+			return 0;
+		return values[index(i, j)];
+	}
+
+	/**
+	 * @param i
+	 *            an item
+	 * @param j
+	 *            another item
+	 * @param distance
+	 *            the distance between the items
+	 */
+	public void set(int i, int j, float distance) {
+		if (i == j)
+			throw new IllegalArgumentException("the diagonal is zero");
+		values[index(i, j)] = distance;
+	}
+
+	/**
+	 * Writes the square matrix as tab separated values, with the labels in
+	 * the first row and in the first column
+	 *
+	 * @param file
+	 *            the output file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(String file) throws IOException {
+		BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+		try {
+			for (String l : labels) {
+				wr.write('\t');
+				wr.write(l);
+			}
+			wr.newLine();
+			for (int i = 0; i < labels.size(); i++) {
+				wr.write(labels.get(i));
+				for (int j = 0; j < labels.size(); j++) {
+					wr.write('\t');
+					wr.write(Float.toString(this.get(i, j)));
+				}
+				wr.newLine();
+			}
+		} finally {
+			wr.close();
+		}
+	}
+
+	/**
+	 * Writes the matrix in binary format
+	 *
+	 * @param file
+	 *            the output file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeBinary(String file) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(0);
+			FileChannel ch = out.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(
+					ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(labels.size());
+			for (String l : labels) {
+				byte[] b = l.getBytes(UTF8);
+				if (buf.remaining() < b.length + 4)
+					flush(ch, buf);
+				if (buf.remaining() < b.length + 4) {
+					ByteBuffer big = ByteBuffer.allocate(b.length + 4).order(
+							ByteOrder.LITTLE_ENDIAN);
+					big.putInt(b.length).put(b);
+					flush(ch, big);
+				} else {
+					buf.putInt(b.length).put(b);
+				}
+			}
+			for (float v : values) {
+				if (buf.remaining() < 4)
+					flush(ch, buf);
+				buf.putFloat(v);
+			}
+			flush(ch, buf);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a matrix written in binary format
+	 *
+	 * @param file
+	 *            the matrix file
+	 * @return the matrix
+	 * @throws IOException
+	 *             if an I/O error occurs or the file is not a matrix
+	 */
+	public static DistanceMatrix readBinary(String file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = in.getChannel();
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large");
+			ByteBuffer buf = ByteBuffer.allocate((int) ch.size()).order(
+					ByteOrder.LITTLE_ENDIAN);
+			while (buf.hasRemaining())
+				if (ch.read(buf) < 0)
+					break;
+			buf.flip();
+			if (buf.remaining() < 12 || buf.getInt() != MAGIC
+					|| buf.getInt() != VERSION)
+				throw new IOException(file + " is not a distance matrix");
+			int n = buf.getInt();
+			List<String> labels = new ArrayList<String>(n);
+			for (int i = 0; i < n; i++) {
+				byte[] b = new byte[buf.getInt()];
+				buf.get(b);
+				labels.add(new String(b, UTF8));
+			}
+			DistanceMatrix m = new DistanceMatrix(labels);
+			if (buf.remaining() != m.values.length * 4)
+				throw new IOException(file + " is corrupted");
+			buf.asFloatBuffer().get(m.values);
+			return m;
+		} catch (RuntimeException e) {
+			// Buffer underflows and negative sizes
+			throw new IOException(file + " is corrupted", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the position of a pair in the stored values
+	 */
+	private int index(int i, int j) {
+		if (i > j) {
+			int t = i;
+			i = j;
+			j = t;
+		}
+		long n = labels.size();
+		return (int) (i * n - (long) i * (i + 1) / 2 + j - i - 1);
+	}
+
+	private static void flush(FileChannel ch, ByteBuffer buf)
+			throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			ch.write(buf);
+		buf.clear();
+	}
+
+}
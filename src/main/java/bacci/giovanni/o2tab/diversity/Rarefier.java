@@ -0,0 +1,245 @@
+package bacci.giovanni.o2tab.diversity;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import bacci.giovanni.o2tab.table.SparseVector;
+
+/**
+ * Rarefaction of the counts of a sample. The reads of the sample are drawn
+ * without replacement in a random order, a partial Fisher-Yates shuffle of
+ * the reads, and the alpha diversity is computed when the number of drawn
+ * reads reaches each requested depth. The reads drawn at a depth are the
+ * first ones drawn at the next depth, so the values at increasing depths are
+ * a rarefaction curve.
+ * <p>
+ * The random generator of a sample is seeded with the seed of the rarefier
+ * and the label of the sample, so the results do not depend on the order
+ * or on the thread the samples are rarefied in. Instances are not thread
+ * safe.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class Rarefier {
+
+	/**
+	 * Marks an empty slot of the swap table
+	 */
+	private final static long EMPTY = -1;
+
+	/**
+	 * Maximum depth of the samples too large to be shuffled in place
+	 */
+	private final static long MAX_SWAPS = 1 << 28;
+
+	private final long seed;
+
+	/**
+	 * Read of each position, when the reads are shuffled in place
+	 */
+	private int[] reads = new int[0];
+
+	/**
+	 * Positions swapped by the shuffle and their reads, when the reads are too
+	 * many to be shuffled in place
+	 */
+	private long[] keys = new long[0];
+
+	private long[] values = new long[0];
+
+	/**
+	 * Constructor
+	 *
+	 * @param seed
+	 *            the seed of the random generators
+	 */
+	public Rarefier(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Rarefies a sample
+	 *
+	 * @param label
+	 *            the label of the sample
+	 * @param counts
+	 *            the counts of the sample
+	 * @param depths
+	 *            the increasing depths
+	 * @return the alpha diversity at each depth not greater than the number of
+	 *         reads of the sample
+	 * @throws IllegalArgumentException
+	 *             if the sample cannot be rarefied at the largest of these
+	 *             depths, as told by {@link #fits(long, long)}
+	 */
+	public AlphaMetrics[] rarefy(String label, SparseVector counts,
+			long[] depths) {
+		long total = counts.getTotal();
+		int n = 0;
+		while (n < depths.length && depths[n] <= total)
+			n++;
+		AlphaMetrics[] metrics = new AlphaMetrics[n];
+		if (n == 0)
+			return metrics;
+		long max = depths[n - 1];
+
+		// Reads are numbered by OTU: reads from ends[o - 1] to ends[o] belong
+		// to the o-th OTU of the sample
+		long[] ends = new long[counts.size()];
+		for (int o = 0; o < ends.length; o++)
+			ends[o] = ((o == 0) ? 0 : ends[o - 1]) + counts.getValue(o);
+		if (!fits(total, max))
+			throw new IllegalArgumentException("sample " + label + " of "
+					+ total + " reads cannot be rarefied at depth " + max);
+		boolean dense = dense(total, max);
+		if (dense)
+			this.fill(ends, (int) total);
+		else
+			this.clear(max);
+
+		Random rnd = new Random(scramble(seed ^ scramble(label.hashCode())));
+		long[] drawn = new long[ends.length];
+		int richness = 0;
+		int singletons = 0;
+		int doubletons = 0;
+		double sum = 0; // sum of c ln c over the drawn counts
+		int next = 0;
+		for (long i = 0; i < max; i++) {
+			long j = i + nextLong(rnd, total - i);
+			int otu;
+			if (dense) {
+				otu = reads[(int) j];
+				reads[(int) j] = reads[(int) i];
+			} else {
+				long read = this.get(j);
+				this.put(j, this.get(i));
+				otu = Arrays.binarySearch(ends, read);
+				otu = (otu < 0) ? -otu - 1 : otu + 1;
+			}
+			long c = drawn[otu]++;
+			if (c == 0) {
+				richness++;
+				singletons++;
+			} else if (c == 1) {
+				singletons--;
+				doubletons++;
+			} else if (c == 2) {
+				doubletons--;
+			}
+			sum += (c + 1) * Math.log(c + 1);
+			if (c > 0)
+				sum -= c * Math.log(c);
+			if (i + 1 == depths[next]) {
+				double d = i + 1;
+				double chao1 = richness + singletons * (singletons - 1.0)
+						/ (2.0 * (doubletons + 1));
+				metrics[next++] = new AlphaMetrics(i + 1, richness,
+						Math.log(d) - sum / d, chao1);
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @param total
+	 *            the number of reads of a sample
+	 * @param depth
+	 *            a depth not greater than the number of reads
+	 * @return <code>false</code> if the sample has too many reads to be
+	 *         shuffled in place and the depth needs more than
+	 *         2<sup>28</sup> swaps
+	 */
+	static boolean fits(long total, long depth) {
+		return dense(total, depth) || depth <= MAX_SWAPS;
+	}
+
+	/**
+	 * Shuffling in place costs a slot per read, the swap table two slots per
+	 * drawn read at half load
+	 *
+	 * @return <code>true</code> if the reads are shuffled in place
+	 */
+	private static boolean dense(long total, long depth) {
+		return total < Integer.MAX_VALUE && total <= 4 * depth;
+	}
+
+	/**
+	 * Writes the OTU of each read
+	 */
+	private void fill(long[] ends, int total) {
+		if (reads.length < total)
+			reads = new int[total];
+		for (int o = 0, r = 0; o < ends.length; o++)
+			while (r < ends[o])
+				reads[r++] = o;
+	}
+
+	/**
+	 * Empties the swap table, sized for a number of swaps
+	 */
+	private void clear(long swaps) {
+		int size = Integer.highestOneBit((int) Math.max(8, swaps * 2) - 1);
+		size <<= 1;
+		if (keys.length < size) {
+			keys = new long[size];
+			values = new long[size];
+		}
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * @return the read at a position of the shuffle
+	 */
+	private long get(long pos) {
+		int mask = keys.length - 1;
+		for (int i = mix(pos) & mask; keys[i] != EMPTY; i = (i + 1) & mask)
+			if (keys[i] == pos)
+				return values[i];
+		return pos;
+	}
+
+	/**
+	 * Sets the read at a position of the shuffle
+	 */
+	private void put(long pos, long read) {
+		int mask = keys.length - 1;
+		int i = mix(pos) & mask;
+		while (keys[i] != EMPTY && keys[i] != pos)
+			i = (i + 1) & mask;
+		keys[i] = pos;
+		values[i] = read;
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Finalizer of SplitMix64. Close seeds give correlated first numbers in
+	 * {@link Random}, so the seed of each sample is scrambled.
+	 */
+	private static long scramble(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * @return a uniform random number from 0 to <code>bound</code> excluded
+	 */
+	static long nextLong(Random rnd, long bound) {
+		if (bound <= Integer.MAX_VALUE)
+			return rnd.nextInt((int) bound);
+		long bits;
+		long value;
+		do {
+			bits = rnd.nextLong() >>> 1;
+			value = bits % bound;
+		} while (bits - value + (bound - 1) < 0);
+		return value;
+	}
+
+}
@@ -0,0 +1,368 @@
+package bacci.giovanni.o2tab.diversity;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bacci.giovanni.o2tab.phylo.Tree;
+import bacci.giovanni.o2tab.table.SparseVector;
+
+/**
+ * Unweighted and normalized weighted UniFrac distances between all the
+ * samples of an OTU table, computed with the striped algorithm of Striped
+ * UniFrac. The tree is visited in post order and the proportion of each
+ * sample below each branch, the embedding of the branch, is added to the
+ * distances of all the pairs of samples. Pairs are arranged in
+ * <i>n</i>&nbsp;/&nbsp;2 stripes, the <i>s</i>-th one holding the pairs
+ * (<i>k</i>, <i>k</i>&nbsp;+&nbsp;<i>s</i> mod <i>n</i>), so each stripe is
+ * updated with contiguous reads of the embeddings and the stripes are split
+ * across a fork join pool.
+ * <p>
+ * Branches are processed in batches of 64: the presence of the samples below
+ * the branches of a batch is packed in a word per sample and the lengths of
+ * the branches shared or not shared by two samples are summed with a table
+ * lookup per byte of the words. The children of each node are visited
+ * largest first, so only a logarithmic number of embeddings is kept at a
+ * time.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class UniFrac {
+
+	/**
+	 * Branches in a batch, one per bit of a word
+	 */
+	private final static int BATCH = 64;
+
+	private final Tree tree;
+
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tree
+	 *            the tree of the OTUs
+	 */
+	public UniFrac(Tree tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the parallelism of the fork join pool
+	 * @return this object
+	 */
+	public UniFrac thread(int thread) {
+		this.thread = Math.max(1, thread);
+		return this;
+	}
+
+	/**
+	 * Finds the leaves of the OTUs. Labels are compared as they are and, if
+	 * no leaf has the same label, without the annotations following the first
+	 * <code>;</code>, such as <code>;size=</code>.
+	 *
+	 * @param otus
+	 *            the OTU labels
+	 * @return the leaf of each OTU or <code>-1</code> for OTUs not in the
+	 *         tree
+	 */
+	public int[] leaves(List<String> otus) {
+		Map<String, Integer> full = new HashMap<String, Integer>();
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		for (int i = 0; i < tree.size(); i++) {
+			String label = tree.getLabel(i);
+			if (label == null || !tree.isLeaf(i))
+				continue;
+			full.put(label, i);
+			names.put(name(label), i);
+		}
+		int[] leaves = new int[otus.size()];
+		for (int o = 0; o < leaves.length; o++) {
+			Integer leaf = full.get(otus.get(o));
+			if (leaf == null)
+				leaf = names.get(name(otus.get(o)));
+			leaves[o] = (leaf == null) ? -1 : leaf;
+		}
+		return leaves;
+	}
+
+	/**
+	 * Computes the distances between all the samples. OTUs not in the tree
+	 * are ignored, also in the proportions of the samples.
+	 *
+	 * @param labels
+	 *            the sample labels
+	 * @param samples
+	 *            the counts of each sample by OTU identifier
+	 * @param leaves
+	 *            the leaf of each OTU, as given by {@link #leaves(List)}
+	 * @return the unweighted and the weighted UniFrac distances
+	 */
+	public DistanceMatrix[] compute(List<String> labels,
+			SparseVector[] samples, int[] leaves) {
+		int n = samples.length;
+		int nodes = tree.size();
+
+		// Proportions of the samples at each leaf
+		double[] totals = new double[n];
+		int[] starts = new int[nodes + 1];
+		for (int s = 0; s < n; s++) {
+			for (int i = 0; i < samples[s].size(); i++) {
+				int leaf = leaves[samples[s].getIndex(i)];
+				if (leaf >= 0) {
+					totals[s] += samples[s].getValue(i);
+					starts[leaf + 1]++;
+				}
+			}
+		}
+		for (int i = 0; i < nodes; i++)
+			starts[i + 1] += starts[i];
+		int[] next = new int[nodes];
+		System.arraycopy(starts, 0, next, 0, nodes);
+		int[] which = new int[starts[nodes]];
+		double[] props = new double[starts[nodes]];
+		for (int s = 0; s < n; s++) {
+			for (int i = 0; i < samples[s].size(); i++) {
+				int leaf = leaves[samples[s].getIndex(i)];
+				if (leaf >= 0) {
+					which[next[leaf]] = s;
+					props[next[leaf]++] = samples[s].getValue(i) / totals[s];
+				}
+			}
+		}
+
+		Stripes st = new Stripes(n);
+		ForkJoinPool pool = new ForkJoinPool(thread);
+		try {
+			// Embeddings of the subtrees waiting for their parent
+			double[][] stack = new double[nodes][];
+			int top = 0;
+			double[][] free = new double[nodes][];
+			int freed = 0;
+			for (int node : tree.postOrder()) {
+				int k = tree.getChildCount(node);
+				double[] e;
+				if (k == 0) {
+					e = (freed > 0) ? free[--freed] : new double[n];
+					for (int s = 0; s < n; s++)
+						e[s] = 0;
+					for (int i = starts[node]; i < starts[node + 1]; i++)
+						e[which[i]] += props[i];
+				} else {
+					e = stack[top - k];
+					for (int c = top - k + 1; c < top; c++) {
+						double[] other = stack[c];
+						for (int s = 0; s < n; s++)
+							e[s] += other[s];
+						free[freed++] = other;
+					}
+					top -= k;
+				}
+				if (node != tree.getRoot() && tree.getLength(node) > 0)
+					st.add(e, tree.getLength(node), pool);
+				stack[top++] = e;
+			}
+			st.flush(pool);
+		} finally {
+			pool.shutdown();
+		}
+
+		DistanceMatrix unweighted = new DistanceMatrix(labels);
+		DistanceMatrix weighted = new DistanceMatrix(labels);
+		for (int s = 1; s <= n / 2; s++) {
+			for (int k = 0; k < n; k++) {
+				if (2 * s == n && k >= s)
+					break; // the second half of the last stripe is the first
+				int j = (k + s) % n;
+				double u = st.uDen[s - 1][k];
+				double w = st.den[k] + st.den[j];
+				unweighted.set(k, j, (u > 0) ? (float) (st.uNum[s - 1][k] / u)
+						: 0);
+				weighted.set(k, j, (w > 0) ? (float) (st.wNum[s - 1][k] / w)
+						: 0);
+			}
+		}
+		return new DistanceMatrix[] { unweighted, weighted };
+	}
+
+	/**
+	 * @return the label without annotations
+	 */
+	private static String name(String label) {
+		int i = label.indexOf(';');
+		return (i < 0) ? label : label.substring(0, i);
+	}
+
+	/**
+	 * Sums of the stripes and batch of branches waiting to be added
+	 */
+	private static class Stripes {
+
+		private final int n;
+
+		/**
+		 * Numerators of the weighted distances, by stripe and first sample
+		 */
+		private final double[][] wNum;
+
+		/**
+		 * Lengths of the branches not shared by two samples, by stripe and
+		 * first sample
+		 */
+		private final double[][] uNum;
+
+		/**
+		 * Lengths of the branches of either sample, by stripe and first
+		 * sample
+		 */
+		private final double[][] uDen;
+
+		/**
+		 * Distances of the samples from the root, weighted by their
+		 * proportions
+		 */
+		private final double[] den;
+
+		private final double[][] embeddings;
+
+		private final double[] lengths = new double[BATCH];
+
+		/**
+		 * Branches of the batch below which each sample is found
+		 */
+		private final long[] bits;
+
+		/**
+		 * Sums of the lengths of the branches of each byte of a batch
+		 */
+		private final double[][] sums = new double[BATCH / 8][256];
+
+		private int size = 0;
+
+		private Stripes(int n) {
+			this.n = n;
+			int stripes = n / 2;
+			this.wNum = new double[stripes][n];
+			this.uNum = new double[stripes][n];
+			this.uDen = new double[stripes][n];
+			this.den = new double[n];
+			this.embeddings = new double[BATCH][n];
+			this.bits = new long[n];
+		}
+
+		/**
+		 * Adds a branch to the batch, adding the batch to the stripes when
+		 * full
+		 */
+		private void add(double[] e, double length, ForkJoinPool pool) {
+			System.arraycopy(e, 0, embeddings[size], 0, n);
+			lengths[size] = length;
+			long bit = 1L << size;
+			for (int s = 0; s < n; s++) {
+				if (e[s] > 0) {
+					bits[s] |= bit;
+					den[s] += length * e[s];
+				}
+			}
+			if (++size == BATCH)
+				this.flush(pool);
+		}
+
+		/**
+		 * Adds the batch to the stripes
+		 */
+		private void flush(ForkJoinPool pool) {
+			if (size == 0)
+				return;
+			for (int b = 0; b < BATCH / 8; b++) {
+				double[] t = sums[b];
+				t[0] = 0;
+				for (int v = 1; v < 256; v++) {
+					int low = Integer.numberOfTrailingZeros(v);
+					int branch = b * 8 + low;
+					t[v] = t[v & (v - 1)]
+							+ ((branch < size) ? lengths[branch] : 0);
+				}
+			}
+			if (n > 1)
+				pool.invoke(new Task(this, 1, n / 2 + 1));
+			for (int s = 0; s < n; s++)
+				bits[s] = 0;
+			size = 0;
+		}
+
+		/**
+		 * Adds the batch to a stripe
+		 */
+		private void stripe(int s) {
+			double[] wn = wNum[s - 1];
+			double[] un = uNum[s - 1];
+			double[] ud = uDen[s - 1];
+			for (int b = 0; b < size; b++) {
+				double l = lengths[b];
+				double[] e = embeddings[b];
+				for (int k = 0; k < n - s; k++)
+					wn[k] += l * Math.abs(e[k] - e[k + s]);
+				for (int k = n - s; k < n; k++)
+					wn[k] += l * Math.abs(e[k] - e[k + s - n]);
+			}
+			int bytes = (size + 7) / 8;
+			for (int k = 0; k < n; k++) {
+				int j = (k + s < n) ? k + s : k + s - n;
+				long x = bits[k] ^ bits[j];
+				long o = bits[k] | bits[j];
+				double sx = 0;
+				double so = 0;
+				for (int b = 0; b < bytes; b++) {
+					sx += sums[b][(int) (x >>> (8 * b)) & 0xff];
+					so += sums[b][(int) (o >>> (8 * b)) & 0xff];
+				}
+				un[k] += sx;
+				ud[k] += so;
+			}
+		}
+
+	}
+
+	/**
+	 * Adds the batch to a range of stripes, splitting it in halves
+	 */
+	private static class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Stripes stripes;
+
+		private final int from;
+
+		private final int to;
+
+		private Task(Stripes stripes, int from, int to) {
+			this.stripes = stripes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(stripes, from, mid), new Task(stripes, mid,
+						to));
+				return;
+			}
+			for (int s = from; s < to; s++)
+				stripes.stripe(s);
+		}
+
+	}
+
+}
@@ -0,0 +1,365 @@
+package bacci.giovanni.o2tab.index;
+
+import java.util.Arrays;
+
+/**
+ * In memory k-mer inverted index. Targets are identified by non negative
+ * integers and can be added incrementally. Each target is listed at most once
+ * in the posting list of each k-mer it contains, so that the number of hits
+ * collected by a query is the number of distinct k-mers it shares with a
+ * target.
+ * <p>
+ * Targets must not be added while queries are running, but any number of
+ * threads can query the index at the same time, each one using its own
+ * {@link Counter}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class KmerIndex implements KmerSearch {
+
+	/**
+	 * Default word length
+	 */
+	public final static int DEFAULT_K = 8;
+
+	/**
+	 * Word length
+	 */
+	private final int k;
+
+	/**
+	 * Posting lists
+	 */
+	private final int[][] postings;
+
+	/**
+	 * Size of each posting list
+	 */
+	private final int[] sizes;
+
+	/**
+	 * Highest target identifier plus one
+	 */
+	private int targets = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param k
+	 *            the word length (from 1 to 15)
+	 */
+	public KmerIndex(int k) {
+		if (k < 1 || k > 15)
+			throw new IllegalArgumentException("k must be between 1 and 15");
+		this.k = k;
+		this.postings = new int[1 << (2 * k)][];
+		this.sizes = new int[1 << (2 * k)];
+	}
+
+	/**
+	 * Constructor with the {@link #DEFAULT_K default word length}
+	 */
+	public KmerIndex() {
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * Adds a target to the index
+	 *
+	 * @param target
+	 *            the target identifier
+	 * @param seq
+	 *            the target sequence
+	 * @param counter
+	 *            a counter used as scratch space
+	 */
+	public void add(int target, byte[] seq, Counter counter) {
+		int n = Kmers.distinct(seq, k, counter);
+		for (int i = 0; i < n; i++) {
+			int kmer = counter.kmers[i];
+			int[] list = postings[kmer];
+			if (list == null) {
+				list = new int[4];
+				postings[kmer] = list;
+			} else if (sizes[kmer] == list.length) {
+				list = Arrays.copyOf(list, list.length * 2);
+				postings[kmer] = list;
+			}
+			list[sizes[kmer]++] = target;
+		}
+		targets = Math.max(targets, target + 1);
+	}
+
+	/**
+	 * Finds the targets sharing the highest number of k-mers with the query.
+	 * Candidates are sorted by decreasing number of shared k-mers, ties are
+	 * broken by target identifier.
+	 *
+	 * @param seq
+	 *            the query sequence
+	 * @param minTarget
+	 *            targets with an identifier lower than this are ignored
+	 * @param maxTarget
+	 *            targets with an identifier greater or equal than this are
+	 *            ignored
+	 * @param counter
+	 *            the counter of the calling thread
+	 * @param out
+	 *            array in which the candidates will be stored. Its length is
+	 *            the maximum number of candidates returned
+	 * @return the number of candidates stored in <code>out</code>
+	 */
+	@Override
+	public int candidates(byte[] seq, int minTarget, int maxTarget,
+			Counter counter, int[] out) {
+		return this.candidates(seq, 0, seq.length, minTarget, maxTarget,
+				counter, out);
+	}
+
+	/**
+	 * Finds the targets sharing the highest number of k-mers with a region of
+	 * the query, as {@link #candidates(byte[], int, int, Counter, int[])}
+	 *
+	 * @param seq
+	 *            the query sequence
+	 * @param from
+	 *            the start of the region
+	 * @param to
+	 *            the end of the region (exclusive)
+	 * @param minTarget
+	 *            targets with an identifier lower than this are ignored
+	 * @param maxTarget
+	 *            targets with an identifier greater or equal than this are
+	 *            ignored
+	 * @param counter
+	 *            the counter of the calling thread
+	 * @param out
+	 *            array in which the candidates will be stored. Its length is
+	 *            the maximum number of candidates returned
+	 * @return the number of candidates stored in <code>out</code>
+	 */
+	public int candidates(byte[] seq, int from, int to, int minTarget,
+			int maxTarget, Counter counter, int[] out) {
+		counter.ensureTargets(targets);
+		int n = Kmers.distinct(seq, from, to, k, counter);
+		int[] counts = counter.counts;
+		int touched = 0;
+		for (int i = 0; i < n; i++) {
+			int kmer = counter.kmers[i];
+			int[] list = postings[kmer];
+			if (list == null)
+				continue;
+			for (int j = 0, s = sizes[kmer]; j < s; j++) {
+				int t = list[j];
+				if (t < minTarget || t >= maxTarget)
+					continue;
+				if (counts[t]++ == 0)
+					counter.touched[touched++] = t;
+			}
+		}
+		return counter.top(touched, out);
+	}
+
+	/**
+	 * Finds all the targets containing all the distinct k-mers of the query
+	 * but at most a given number. Unlike
+	 * {@link #candidates(byte[], int, int, Counter, int[])} the number of
+	 * targets returned is not limited, so this method can be used as a
+	 * lossless filter based on the q-gram lemma (each edit removes at most
+	 * <i>k</i> k-mers from the query).
+	 *
+	 * @param seq
+	 *            the query sequence
+	 * @param maxMissing
+	 *            the maximum number of query k-mers missing from a target
+	 * @param minTarget
+	 *            targets with an identifier lower than this are ignored
+	 * @param maxTarget
+	 *            targets with an identifier greater or equal than this are
+	 *            ignored
+	 * @param counter
+	 *            the counter of the calling thread. The targets found are
+	 *            stored in increasing order in {@link Counter#getHits()}
+	 * @return the number of targets found
+	 */
+	@Override
+	public int matching(byte[] seq, int maxMissing, int minTarget,
+			int maxTarget, Counter counter) {
+		counter.ensureTargets(targets);
+		int n = Kmers.distinct(seq, k, counter);
+		int minShared = Math.max(1, n - maxMissing);
+		int[] counts = counter.counts;
+		int touched = 0;
+		for (int i = 0; i < n; i++) {
+			int kmer = counter.kmers[i];
+			int[] list = postings[kmer];
+			if (list == null)
+				continue;
+			for (int j = 0, s = sizes[kmer]; j < s; j++) {
+				int t = list[j];
+				if (t < minTarget || t >= maxTarget)
+					continue;
+				if (counts[t]++ == 0)
+					counter.touched[touched++] = t;
+			}
+		}
+		int found = 0;
+		for (int i = 0; i < touched; i++) {
+			int t = counter.touched[i];
+			if (counts[t] >= minShared)
+				counter.hits[found++] = t;
+			counts[t] = 0;
+		}
+		Arrays.sort(counter.hits, 0, found);
+		return found;
+	}
+
+	/**
+	 * @return the word length
+	 */
+	@Override
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @return the highest target identifier plus one
+	 */
+	@Override
+	public int getTargets() {
+		return targets;
+	}
+
+	/**
+	 * Per thread scratch space for adding and querying sequences
+	 *
+	 * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+	 *         Bacci</a>
+	 *
+	 */
+	public static class Counter {
+
+		/**
+		 * Hits per target
+		 */
+		int[] counts = new int[0];
+
+		/**
+		 * Targets with at least one hit
+		 */
+		int[] touched = new int[0];
+
+		/**
+		 * Targets found by the last call to
+		 * {@link KmerIndex#matching(byte[], int, int, int, Counter)}
+		 */
+		int[] hits = new int[0];
+
+		/**
+		 * Distinct k-mers of the last sequence
+		 */
+		int[] kmers = new int[256];
+
+		/**
+		 * Number of distinct k-mers of the last query
+		 */
+		int distinct = 0;
+
+		/**
+		 * Stamps used to find distinct k-mers without clearing memory
+		 */
+		int[] stamps;
+
+		/**
+		 * Current stamp
+		 */
+		int stamp = 0;
+
+		/**
+		 * Constructor
+		 *
+		 * @param k
+		 *            the word length of the index this counter is used with
+		 */
+		public Counter(int k) {
+			this.stamps = new int[1 << (2 * k)];
+		}
+
+		/**
+		 * Makes room for the given number of targets
+		 *
+		 * @param targets
+		 *            number of targets
+		 */
+		void ensureTargets(int targets) {
+			if (counts.length < targets) {
+				int size = Math.max(targets, counts.length * 2);
+				counts = new int[size];
+				touched = new int[size];
+				hits = new int[size];
+			}
+		}
+
+		/**
+		 * @return the targets found by the last call to
+		 *         {@link KmerIndex#matching(byte[], int, int, int, Counter)}
+		 */
+		public int[] getHits() {
+			return hits;
+		}
+
+		/**
+		 * Selects the targets with the highest counts, clearing the counts
+		 * of all the touched targets
+		 *
+		 * @param touched
+		 *            number of touched targets
+		 * @param out
+		 *            the output array
+		 * @return number of candidates stored
+		 */
+		int top(int touched, int[] out) {
+			int found = 0;
+			for (int i = 0; i < touched; i++) {
+				int t = this.touched[i];
+				int c = counts[t];
+				if (found == out.length) {
+					int last = out[found - 1];
+					if (!better(t, c, last))
+						continue;
+					found--;
+				}
+				int j = found++;
+				while (j > 0 && better(t, c, out[j - 1])) {
+					out[j] = out[j - 1];
+					j--;
+				}
+				out[j] = t;
+			}
+			// Counts are read by better() so they are cleared only at the end
+			for (int i = 0; i < touched; i++)
+				counts[this.touched[i]] = 0;
+			return found;
+		}
+
+		private boolean better(int t, int c, int other) {
+			int co = counts[other];
+			return c > co || (c == co && t < other);
+		}
+
+		/**
+		 * @return the next stamp, clearing the stamps on overflow
+		 */
+		int nextStamp() {
+			if (++stamp == Integer.MAX_VALUE) {
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+			return stamp;
+		}
+
+	}
+
+}
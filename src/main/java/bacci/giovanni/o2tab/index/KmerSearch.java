@@ -0,0 +1,68 @@
+package bacci.giovanni.o2tab.index;
+
+/**
+ * Queries shared by the k-mer indices. Hits are counted on the distinct
+ * k-mers of the query, each thread using its own {@link KmerIndex.Counter}
+ * built with the word length of the index.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public interface KmerSearch {
+
+	/**
+	 * Finds the targets sharing the highest number of k-mers with the query.
+	 * Candidates are sorted by decreasing number of shared k-mers, ties are
+	 * broken by target identifier.
+	 *
+	 * @param seq
+	 *            the query sequence
+	 * @param minTarget
+	 *            targets with an identifier lower than this are ignored
+	 * @param maxTarget
+	 *            targets with an identifier greater or equal than this are
+	 *            ignored
+	 * @param counter
+	 *            the counter of the calling thread
+	 * @param out
+	 *            array in which the candidates will be stored. Its length is
+	 *            the maximum number of candidates returned
+	 * @return the number of candidates stored in <code>out</code>
+	 */
+	public int candidates(byte[] seq, int minTarget, int maxTarget,
+			KmerIndex.Counter counter, int[] out);
+
+	/**
+	 * Finds all the targets containing all the distinct k-mers of the query
+	 * but at most a given number
+	 *
+	 * @param seq
+	 *            the query sequence
+	 * @param maxMissing
+	 *            the maximum number of query k-mers missing from a target
+	 * @param minTarget
+	 *            targets with an identifier lower than this are ignored
+	 * @param maxTarget
+	 *            targets with an identifier greater or equal than this are
+	 *            ignored
+	 * @param counter
+	 *            the counter of the calling thread. The targets found are
+	 *            stored in increasing order in
+	 *            {@link KmerIndex.Counter#getHits()}
+	 * @return the number of targets found
+	 */
+	public int matching(byte[] seq, int maxMissing, int minTarget,
+			int maxTarget, KmerIndex.Counter counter);
+
+	/**
+	 * @return the word length
+	 */
+	public int getK();
+
+	/**
+	 * @return the highest target identifier plus one
+	 */
+	public int getTargets();
+
+}
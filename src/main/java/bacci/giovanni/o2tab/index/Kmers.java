@@ -0,0 +1,103 @@
+package bacci.giovanni.o2tab.index;
+
+import java.util.Arrays;
+
+/**
+ * Utility methods for encoding nucleotide k-mers as integers (two bits per
+ * base). Words containing bases other than A, C, G or T are skipped.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class Kmers {
+
+	/**
+	 * Two bit codes of the bases, -1 for any other letter
+	 */
+	private final static int[] CODES = new int[256];
+
+	static {
+		Arrays.fill(CODES, -1);
+		CODES['A'] = CODES['a'] = 0;
+		CODES['C'] = CODES['c'] = 1;
+		CODES['G'] = CODES['g'] = 2;
+		CODES['T'] = CODES['t'] = 3;
+		CODES['U'] = CODES['u'] = 3;
+	}
+
+	/**
+	 * Private constructor
+	 */
+	private Kmers() {
+	}
+
+	/**
+	 * @param base
+	 *            a base
+	 * @return the two bit code of the base or -1 if it is not a nucleotide
+	 */
+	public static int code(byte base) {
+		return CODES[base & 0xff];
+	}
+
+	/**
+	 * Encodes all the distinct k-mers of a sequence, storing them in
+	 * {@link KmerIndex.Counter#kmers}
+	 *
+	 * @param seq
+	 *            the sequence
+	 * @param k
+	 *            the word length
+	 * @param counter
+	 *            the counter
+	 * @return the number of distinct k-mers
+	 */
+	static int distinct(byte[] seq, int k, KmerIndex.Counter counter) {
+		return distinct(seq, 0, seq.length, k, counter);
+	}
+
+	/**
+	 * Encodes all the distinct k-mers of a region of a sequence, storing them
+	 * in {@link KmerIndex.Counter#kmers}
+	 *
+	 * @param seq
+	 *            the sequence
+	 * @param from
+	 *            the start of the region
+	 * @param to
+	 *            the end of the region (exclusive)
+	 * @param k
+	 *            the word length
+	 * @param counter
+	 *            the counter
+	 * @return the number of distinct k-mers
+	 */
+	static int distinct(byte[] seq, int from, int to, int k,
+			KmerIndex.Counter counter) {
+		if (counter.kmers.length < to - from)
+			counter.kmers = new int[to - from];
+		int stamp = counter.nextStamp();
+		int[] stamps = counter.stamps;
+		int mask = (1 << (2 * k)) - 1;
+		int kmer = 0;
+		int valid = 0;
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			int c = CODES[seq[i] & 0xff];
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			kmer = ((kmer << 2) | c) & mask;
+			if (++valid < k)
+				continue;
+			if (stamps[kmer] != stamp) {
+				stamps[kmer] = stamp;
+				counter.kmers[n++] = kmer;
+			}
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,596 @@
+package bacci.giovanni.o2tab.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+import bacci.giovanni.o2tab.util.MurmurHash3;
+
+/**
+ * On disk k-mer inverted index, typically built once over a file of OTUs or
+ * reference sequences and then shared by all the runs searching it. The
+ * posting list of each k-mer holds the increasing identifiers of the targets
+ * containing it, stored as varint encoded differences. The file is memory
+ * mapped when the index is opened, so loading does not read the postings and
+ * the pages are shared by all the processes using the same index.
+ * <p>
+ * The file starts with a header (magic number, version, word length, number
+ * of targets and {@link #fingerprint(byte[][]) fingerprint} of the targets)
+ * followed by the offset of each posting list and by the
+ * posting lists themselves. All values are little endian. Since a single
+ * mapping cannot exceed 2 GB, the posting lists are mapped in segments.
+ * <p>
+ * Any number of threads can query the index at the same time, each one using
+ * its own {@link KmerIndex.Counter}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class MappedKmerIndex implements KmerSearch, Closeable {
+
+	/**
+	 * Magic number of the index files
+	 */
+	private final static int MAGIC = 0x4b54324f;
+
+	/**
+	 * Version of the file format
+	 */
+	private final static int VERSION = 2;
+
+	/**
+	 * Size of the header in bytes
+	 */
+	private final static int HEADER = 24;
+
+	/**
+	 * Maximum word length, the offsets of longer words would not fit in a
+	 * single mapping
+	 */
+	public final static int MAX_K = 13;
+
+	/**
+	 * Postings built by a pass of {@link #build(byte[][], int, String, int)}
+	 */
+	private final static long PASS = 1L << 25;
+
+	/**
+	 * Bits of the number of buckets of words counted for sizing the passes
+	 */
+	private final static int BUCKET_BITS = 12;
+
+	/**
+	 * Maximum number of words encoded by a task
+	 */
+	private final static int MAX_CHUNK = 1 << 16;
+
+	/**
+	 * The k-mers of a target with none in the range of a pass
+	 */
+	private final static int[] NONE = new int[0];
+
+	/**
+	 * Bits of the segment size
+	 */
+	private final static int SEGMENT_BITS = 30;
+
+	/**
+	 * Mask of the position inside a segment
+	 */
+	private final static long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	/**
+	 * The file
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * Word length
+	 */
+	private final int k;
+
+	/**
+	 * Number of targets
+	 */
+	private final int targets;
+
+	/**
+	 * Fingerprint of the targets
+	 */
+	private final long fingerprint;
+
+	/**
+	 * Offsets of the posting lists, relative to the first one
+	 */
+	private final ByteBuffer offsets;
+
+	/**
+	 * Posting lists
+	 */
+	private final ByteBuffer[] segments;
+
+	/**
+	 * Opens an index
+	 *
+	 * @param path
+	 *            the index file
+	 * @throws IOException
+	 *             if the file cannot be read or it is not an index
+	 */
+	public MappedKmerIndex(String path) throws IOException {
+		this.file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel ch = file.getChannel();
+			ByteBuffer header = ch.map(MapMode.READ_ONLY, 0, HEADER).order(
+					ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+				throw new IOException(path + " is not a k-mer index");
+			this.k = header.getInt(8);
+			this.targets = header.getInt(12);
+			this.fingerprint = header.getLong(16);
+			if (k < 1 || k > MAX_K || targets < 0)
+				throw new IOException(path + " is corrupted");
+
+			long words = 1L << (2 * k);
+			long start = HEADER + (words + 1) * 8;
+			this.offsets = ch.map(MapMode.READ_ONLY, HEADER, start - HEADER)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			long size = offsets.getLong((int) (words * 8));
+			if (start + size != ch.size())
+				throw new IOException(path + " is truncated");
+
+			int count = (int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+			this.segments = new ByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long from = (long) i << SEGMENT_BITS;
+				long len = Math.min(SEGMENT_MASK + 1, size - from);
+				segments[i] = ch.map(MapMode.READ_ONLY, start + from, len);
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Builds an index over the sequences of a FASTA file, identifying each
+	 * target by its position in the file
+	 *
+	 * @param fasta
+	 *            the FASTA file
+	 * @param k
+	 *            the word length
+	 * @param path
+	 *            the index file
+	 * @param threads
+	 *            the number of threads
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the build is interrupted
+	 * @throws ExecutionException
+	 *             if a thread fails
+	 */
+	public static void build(String fasta, int k, String path, int threads)
+			throws IOException, InterruptedException, ExecutionException {
+		List<FastaRecord> records = FastaRecordReader.readAll(fasta);
+		byte[][] seqs = new byte[records.size()][];
+		for (int i = 0; i < seqs.length; i++)
+			seqs[i] = records.get(i).getSequence();
+		build(seqs, k, path, threads);
+	}
+
+	/**
+	 * Builds an index and writes it. The posting lists are built in passes
+	 * over ranges of words, each pass scanning all the targets again and
+	 * keeping only their k-mers in its range. A first scan counts the k-mers
+	 * of each range, so that a pass holds at most about {@link #PASS}
+	 * postings (4 bytes each while sorted, then varint encoded) besides the
+	 * sequences and a {@link KmerIndex.Counter} per thread, whatever the
+	 * number of targets.
+	 *
+	 * @param seqs
+	 *            the target sequences, identified by their position
+	 * @param k
+	 *            the word length
+	 * @param path
+	 *            the index file
+	 * @param threads
+	 *            the number of threads
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the build is interrupted
+	 * @throws ExecutionException
+	 *             if a thread fails
+	 */
+	public static void build(final byte[][] seqs, final int k, String path,
+			int threads) throws IOException, InterruptedException,
+			ExecutionException {
+		if (k < 1 || k > MAX_K)
+			throw new IllegalArgumentException("k must be between 1 and "
+					+ MAX_K);
+		final int words = 1 << (2 * k);
+		threads = Math.max(1, threads);
+		ExecutorService ex = Executors.newFixedThreadPool(threads);
+		RandomAccessFile out = null;
+		try {
+			// Distinct k-mers of the targets in each bucket of words
+			final int shift = Math.max(0, 2 * k - BUCKET_BITS);
+			long[] buckets = count(ex, seqs, k, shift, threads);
+
+			out = new RandomAccessFile(path, "rw");
+			out.setLength(0);
+			FileChannel ch = out.getChannel();
+			long start = HEADER + ((long) words + 1) * 8;
+			long written = 0;
+			for (int b = 0; b < buckets.length;) {
+				long postings = buckets[b];
+				int e = b + 1;
+				while (e < buckets.length && postings + buckets[e] <= PASS)
+					postings += buckets[e++];
+				written = pass(ex, ch, seqs, k, b << shift, e << shift,
+						start, written, threads);
+				b = e;
+			}
+			ByteBuffer end = ByteBuffer.allocate(8)
+					.order(ByteOrder.LITTLE_ENDIAN).putLong(written);
+			end.flip();
+			while (end.hasRemaining())
+				ch.write(end, HEADER + (long) words * 8 + end.position());
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(
+					ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(k).putInt(seqs.length)
+					.putLong(fingerprint(seqs));
+			header.flip();
+			while (header.hasRemaining())
+				ch.write(header, header.position());
+		} finally {
+			ex.shutdownNow();
+			if (out != null)
+				out.close();
+		}
+	}
+
+	/**
+	 * Counts the distinct k-mers of the targets by bucket of words
+	 *
+	 * @return the number of k-mers of each bucket, the words of a bucket
+	 *         sharing the bits above <code>shift</code>
+	 */
+	private static long[] count(ExecutorService ex, final byte[][] seqs,
+			final int k, final int shift, int threads)
+			throws InterruptedException, ExecutionException {
+		final int size = 1 << (2 * k - shift);
+		List<Callable<long[]>> scans = new ArrayList<Callable<long[]>>();
+		int chunk = (seqs.length + threads - 1) / threads;
+		for (int from = 0; from < seqs.length; from += chunk) {
+			final int lo = from;
+			final int hi = Math.min(seqs.length, from + chunk);
+			scans.add(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					long[] counts = new long[size];
+					KmerIndex.Counter c = new KmerIndex.Counter(k);
+					for (int t = lo; t < hi; t++) {
+						int n = Kmers.distinct(seqs[t], k, c);
+						for (int i = 0; i < n; i++)
+							counts[c.kmers[i] >>> shift]++;
+					}
+					return counts;
+				}
+			});
+		}
+		long[] counts = new long[size];
+		for (Future<long[]> f : ex.invokeAll(scans)) {
+			long[] part = f.get();
+			for (int i = 0; i < size; i++)
+				counts[i] += part[i];
+		}
+		return counts;
+	}
+
+	/**
+	 * Writes the posting lists and the offsets of a range of words
+	 *
+	 * @param start
+	 *            the position of the first posting list in the file
+	 * @param written
+	 *            the bytes of posting lists written by the previous passes
+	 * @return the bytes of posting lists written by this pass and the
+	 *         previous ones
+	 */
+	private static long pass(ExecutorService ex, FileChannel ch,
+			final byte[][] seqs, final int k, final int lo, final int hi,
+			long start, long written, int threads) throws IOException,
+			InterruptedException, ExecutionException {
+		// Sorted distinct k-mers of each target in the range
+		final int[][] kmers = new int[seqs.length][];
+		List<Callable<Void>> scans = new ArrayList<Callable<Void>>();
+		int chunk = (seqs.length + threads - 1) / threads;
+		for (int from = 0; from < seqs.length; from += chunk) {
+			final int first = from;
+			final int last = Math.min(seqs.length, from + chunk);
+			scans.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					KmerIndex.Counter c = new KmerIndex.Counter(k);
+					for (int t = first; t < last; t++) {
+						int n = Kmers.distinct(seqs[t], k, c);
+						int m = 0;
+						for (int i = 0; i < n; i++)
+							if (c.kmers[i] >= lo && c.kmers[i] < hi)
+								c.kmers[m++] = c.kmers[i];
+						kmers[t] = (m == 0) ? NONE : Arrays.copyOf(c.kmers,
+								m);
+						Arrays.sort(kmers[t]);
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> f : ex.invokeAll(scans))
+			f.get();
+
+		// Each task encodes the posting lists of a range of words
+		List<Future<Postings>> futures = new ArrayList<Future<Postings>>();
+		List<Integer> lows = new ArrayList<Integer>();
+		chunk = Math.min(MAX_CHUNK, (hi - lo + threads * 4 - 1)
+				/ (threads * 4));
+		for (int from = lo; from < hi; from += chunk) {
+			final int first = from;
+			final int last = Math.min(hi, from + chunk);
+			lows.add(first);
+			futures.add(ex.submit(new Callable<Postings>() {
+				@Override
+				public Postings call() {
+					return encode(kmers, first, last);
+				}
+			}));
+		}
+		for (int f = 0; f < futures.size(); f++) {
+			Postings p = futures.get(f).get();
+			long pos = start + written;
+			ByteBuffer table = ByteBuffer.allocate(p.lengths.length * 8)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < p.lengths.length; i++) {
+				table.putLong(written);
+				written += p.lengths[i];
+			}
+			table.flip();
+			long at = HEADER + (long) lows.get(f) * 8;
+			while (table.hasRemaining())
+				ch.write(table, at + table.position());
+			ByteBuffer data = ByteBuffer.wrap(p.data, 0, p.size);
+			while (data.hasRemaining())
+				ch.write(data, pos + data.position());
+		}
+		return written;
+	}
+
+	/**
+	 * Encodes the posting lists of a range of words
+	 *
+	 * @param kmers
+	 *            the sorted distinct k-mers of each target
+	 * @param lo
+	 *            the first word
+	 * @param hi
+	 *            the last word (exclusive)
+	 * @return the encoded posting lists
+	 */
+	private static Postings encode(int[][] kmers, int lo, int hi) {
+		int[] last = new int[hi - lo];
+		Arrays.fill(last, -1);
+		Postings p = new Postings(hi - lo);
+		// Targets are scanned in increasing order, so each list is sorted
+		for (int t = 0; t < kmers.length; t++) {
+			int[] words = kmers[t];
+			int i = Arrays.binarySearch(words, lo);
+			for (i = (i < 0) ? -i - 1 : i; i < words.length; i++) {
+				int w = words[i] - lo;
+				if (w >= hi - lo)
+					break;
+				p.add(w, t - last[w] - 1);
+				last[w] = t;
+			}
+		}
+		return p.pack();
+	}
+
+	@Override
+	public int candidates(byte[] seq, int minTarget, int maxTarget,
+			KmerIndex.Counter counter, int[] out) {
+		return counter.top(this.count(seq, minTarget, maxTarget, counter),
+				out);
+	}
+
+	@Override
+	public int matching(byte[] seq, int maxMissing, int minTarget,
+			int maxTarget, KmerIndex.Counter counter) {
+		int touched = this.count(seq, minTarget, maxTarget, counter);
+		int minShared = Math.max(1, counter.distinct - maxMissing);
+		int[] counts = counter.counts;
+		int found = 0;
+		for (int i = 0; i < touched; i++) {
+			int t = counter.touched[i];
+			if (counts[t] >= minShared)
+				counter.hits[found++] = t;
+			counts[t] = 0;
+		}
+		Arrays.sort(counter.hits, 0, found);
+		return found;
+	}
+
+	/**
+	 * Counts the k-mers shared by the query and each target
+	 *
+	 * @return the number of touched targets
+	 */
+	private int count(byte[] seq, int minTarget, int maxTarget,
+			KmerIndex.Counter counter) {
+		counter.ensureTargets(targets);
+		int n = Kmers.distinct(seq, k, counter);
+		counter.distinct = n;
+		int[] counts = counter.counts;
+		int touched = 0;
+		for (int i = 0; i < n; i++) {
+			int w = counter.kmers[i];
+			long pos = offsets.getLong(w * 8);
+			long end = offsets.getLong(w * 8 + 8);
+			int t = -1;
+			while (pos < end) {
+				// Varint: 7 bits per byte, high bit set on all but the last
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = segments[(int) (pos >>> SEGMENT_BITS)]
+							.get((int) (pos & SEGMENT_MASK));
+					pos++;
+					delta |= (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+				t += delta + 1;
+				if (t < minTarget)
+					continue;
+				if (t >= maxTarget)
+					break;
+				if (counts[t]++ == 0)
+					counter.touched[touched++] = t;
+			}
+		}
+		return touched;
+	}
+
+	@Override
+	public int getK() {
+		return k;
+	}
+
+	@Override
+	public int getTargets() {
+		return targets;
+	}
+
+	/**
+	 * @return the fingerprint of the targets the index was built from
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Computes a fingerprint of a set of targets, for checking that an index
+	 * was built from the same sequences in the same order
+	 *
+	 * @param seqs
+	 *            the target sequences
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(byte[][] seqs) {
+		long[] hash = new long[2];
+		long h = seqs.length;
+		for (byte[] s : seqs) {
+			MurmurHash3.hash128(s, 0, s.length, h, hash);
+			h = hash[0] ^ Long.rotateLeft(hash[1], 32);
+		}
+		return h;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Growing buffer of varint encoded posting lists
+	 */
+	private static class Postings {
+
+		/**
+		 * Encoded values of each list while building, then the lists one
+		 * after the other
+		 */
+		private byte[][] lists;
+
+		/**
+		 * Bytes used by each list
+		 */
+		private final int[] lengths;
+
+		/**
+		 * The packed lists
+		 */
+		private byte[] data;
+
+		/**
+		 * Bytes used in <code>data</code>
+		 */
+		private int size = 0;
+
+		private Postings(int words) {
+			this.lists = new byte[words][];
+			this.lengths = new int[words];
+		}
+
+		/**
+		 * Appends a value to a list
+		 */
+		private void add(int list, int value) {
+			byte[] l = lists[list];
+			if (l == null) {
+				l = new byte[8];
+				lists[list] = l;
+			} else if (l.length - lengths[list] < 5) {
+				l = Arrays.copyOf(l, l.length * 2);
+				lists[list] = l;
+			}
+			int len = lengths[list];
+			while ((value & ~0x7f) != 0) {
+				l[len++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			l[len++] = (byte) value;
+			lengths[list] = len;
+		}
+
+		/**
+		 * Concatenates the lists
+		 */
+		private Postings pack() {
+			long total = 0;
+			for (int len : lengths)
+				total += len;
+			if (total > Integer.MAX_VALUE - 8)
+				throw new IllegalStateException("posting lists too large");
+			data = new byte[(int) total];
+			for (int i = 0; i < lists.length; i++) {
+				if (lists[i] == null)
+					continue;
+				System.arraycopy(lists[i], 0, data, size, lengths[i]);
+				size += lengths[i];
+			}
+			lists = null;
+			return this;
+		}
+
+	}
+
+}
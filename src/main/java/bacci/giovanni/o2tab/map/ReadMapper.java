@@ -0,0 +1,241 @@
+package bacci.giovanni.o2tab.map;
+
+import bacci.giovanni.o2tab.align.BatchAligner;
+import bacci.giovanni.o2tab.align.GlobalAligner;
+import bacci.giovanni.o2tab.index.KmerIndex;
+import bacci.giovanni.o2tab.index.KmerSearch;
+
+/**
+ * Global search of reads against a set of targets in the style of
+ * <code>usearch -usearch_global</code>. The targets of a read are tried by
+ * decreasing number of shared k-mers and verified with a banded alignment at
+ * the identity threshold: the search stops after a given number of accepted
+ * targets (identity not lower than the threshold) or of rejected ones, and the
+ * accepted target with the highest identity is the hit.
+ * <p>
+ * The mapper itself is immutable, each thread searches with its own
+ * {@link Searcher}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class ReadMapper {
+
+	/**
+	 * Default maximum number of accepted targets
+	 */
+	public final static int DEFAULT_MAX_ACCEPTS = 1;
+
+	/**
+	 * Default maximum number of rejected targets
+	 */
+	public final static int DEFAULT_MAX_REJECTS = 32;
+
+	/**
+	 * The target sequences
+	 */
+	private final byte[][] targets;
+
+	/**
+	 * Index of the targets
+	 */
+	private final KmerSearch index;
+
+	/**
+	 * The identity threshold
+	 */
+	private final double minIdentity;
+
+	/**
+	 * Maximum number of accepted targets
+	 */
+	private int maxAccepts = DEFAULT_MAX_ACCEPTS;
+
+	/**
+	 * Maximum number of rejected targets
+	 */
+	private int maxRejects = DEFAULT_MAX_REJECTS;
+
+	/**
+	 * Constructor
+	 *
+	 * @param targets
+	 *            the target sequences
+	 * @param index
+	 *            an index of the targets, identified by their position in
+	 *            <code>targets</code>
+	 * @param minIdentity
+	 *            the identity threshold
+	 */
+	public ReadMapper(byte[][] targets, KmerSearch index, double minIdentity) {
+		this.targets = targets;
+		this.index = index;
+		this.minIdentity = minIdentity;
+	}
+
+	/**
+	 * Constructor indexing the targets in memory
+	 *
+	 * @param targets
+	 *            the target sequences
+	 * @param minIdentity
+	 *            the identity threshold
+	 */
+	public ReadMapper(byte[][] targets, double minIdentity) {
+		this(targets, index(targets), minIdentity);
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param maxAccepts
+	 *            the maximum number of accepted targets
+	 * @return this mapper
+	 */
+	public ReadMapper maxAccepts(int maxAccepts) {
+		if (maxAccepts < 1)
+			throw new IllegalArgumentException("maxaccepts must be positive");
+		this.maxAccepts = maxAccepts;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param maxRejects
+	 *            the maximum number of rejected targets
+	 * @return this mapper
+	 */
+	public ReadMapper maxRejects(int maxRejects) {
+		if (maxRejects < 1)
+			throw new IllegalArgumentException("maxrejects must be positive");
+		this.maxRejects = maxRejects;
+		return this;
+	}
+
+	/**
+	 * @return a new searcher
+	 */
+	public Searcher searcher() {
+		return new Searcher();
+	}
+
+	/**
+	 * @return the identity threshold
+	 */
+	public double getMinIdentity() {
+		return minIdentity;
+	}
+
+	/**
+	 * Indexes the targets in memory
+	 */
+	private static KmerIndex index(byte[][] targets) {
+		KmerIndex index = new KmerIndex();
+		KmerIndex.Counter c = new KmerIndex.Counter(index.getK());
+		for (int i = 0; i < targets.length; i++)
+			index.add(i, targets[i], c);
+		return index;
+	}
+
+	/**
+	 * Per thread search state. The details of the last hit are available
+	 * until the next search.
+	 *
+	 * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+	 *         Bacci</a>
+	 *
+	 */
+	public class Searcher {
+
+		private final KmerIndex.Counter counter = new KmerIndex.Counter(
+				index.getK());
+
+		private final BatchAligner batch = new BatchAligner().earlyExit(true);
+
+		private final GlobalAligner single = new GlobalAligner()
+				.earlyExit(true);
+
+		private final GlobalAligner aligner = new GlobalAligner();
+
+		private final int[] cand = new int[maxAccepts + maxRejects];
+
+		private final double[] ids = new double[BatchAligner.LANES];
+
+		private final int[] lane = new int[BatchAligner.LANES];
+
+		private int target = -1;
+
+		private double identity = 0;
+
+		private byte[] read = null;
+
+		private Searcher() {
+		}
+
+		/**
+		 * Searches a read
+		 *
+		 * @param read
+		 *            the read
+		 * @return the hit or <code>-1</code> if no target is accepted
+		 */
+		public int search(byte[] read) {
+			this.read = read;
+			target = -1;
+			identity = 0;
+			int found = index.candidates(read, 0, targets.length, counter,
+					cand);
+			int accepts = 0;
+			int rejects = 0;
+			// The best candidate is usually the hit so it is aligned alone,
+			// the others a batch at a time, in k-mer order
+			for (int from = 0, count = 1; from < found; from += count) {
+				count = Math.min((from == 0) ? 1 : BatchAligner.LANES, found
+						- from);
+				if (count == 1) {
+					lane[0] = cand[from];
+					ids[0] = single.identity(read, targets[lane[0]],
+							minIdentity);
+				} else {
+					System.arraycopy(cand, from, lane, 0, count);
+					batch.identities(read, targets, lane, count, minIdentity,
+							ids);
+				}
+				for (int i = 0; i < count; i++) {
+					if (ids[i] >= minIdentity) {
+						if (ids[i] > identity || target < 0) {
+							target = lane[i];
+							identity = ids[i];
+						}
+						if (++accepts == maxAccepts)
+							return target;
+					} else if (++rejects == maxRejects) {
+						return target;
+					}
+				}
+			}
+			return target;
+		}
+
+		/**
+		 * @return the identity of the last hit
+		 */
+		public double getIdentity() {
+			return identity;
+		}
+
+		/**
+		 * @return the alignment of the last hit as a compressed CIGAR string
+		 *         (see {@link GlobalAligner#cigar(byte[], byte[], double)})
+		 */
+		public String getCigar() {
+			if (target < 0)
+				return null;
+			return aligner.cigar(read, targets[target], minIdentity);
+		}
+
+	}
+
+}
@@ -0,0 +1,361 @@
+package bacci.giovanni.o2tab.phylo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import bacci.giovanni.o2tab.diversity.DistanceMatrix;
+
+/**
+ * Neighbor joining tree of a distance matrix, searching the pair to join as
+ * RapidNJ does. Each row keeps the distances it had when its node was
+ * created, sorted, so the scan of a row stops as soon as
+ * (<i>m</i> - 2)<i>d</i> - <i>r<sub>i</sub></i> - max <i>r</i> can no longer
+ * beat the best Q value found, which usually happens after a few entries.
+ * Each pair is kept in one row only: the row of the most recent node, or of
+ * the first leaf for two leaves. Entries of joined nodes are skipped, and
+ * removed when they fill most of the scanned part of a row.
+ * <p>
+ * Negative branch lengths are set to zero and the unrooted tree is rooted at
+ * the midpoint of its longest path between two leaves.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class NeighborJoining {
+
+	/**
+	 * Dead entries scanned before a row is compacted
+	 */
+	private final static int MIN_DEAD = 16;
+
+	/**
+	 * Private constructor
+	 */
+	private NeighborJoining() {
+	}
+
+	/**
+	 * Builds the tree of a distance matrix
+	 *
+	 * @param matrix
+	 *            the distances between the leaves
+	 * @return the tree, whose first nodes are the leaves in the order of the
+	 *         matrix
+	 */
+	public static Tree build(DistanceMatrix matrix) {
+		int n = matrix.size();
+		List<String> labels = matrix.getLabels();
+		if (n == 0)
+			throw new IllegalArgumentException("empty matrix");
+		if (n == 1)
+			return new Tree(new int[] { -1 }, new double[1],
+					new String[] { labels.get(0) });
+
+		// Nodes of the unrooted tree: the leaves, then the joined nodes
+		int nodes = 2 * n - 2;
+		int[] parent = new int[nodes];
+		double[] length = new double[nodes];
+
+		// Slot of each node in the matrix, -1 once joined, and node of each
+		// slot, -1 once empty
+		int[] slotOf = new int[nodes];
+		Arrays.fill(slotOf, -1);
+		int[] node = new int[n];
+		float[] d = new float[(int) ((long) n * (n - 1) / 2)];
+		double[] r = new double[n];
+		float[][] rowD = new float[n][];
+		int[][] rowId = new int[n][];
+		int[] rowLen = new int[n];
+		for (int i = 0; i < n; i++) {
+			node[i] = i;
+			slotOf[i] = i;
+			for (int j = i + 1; j < n; j++) {
+				float v = matrix.get(i, j);
+				d[index(n, i, j)] = v;
+				r[i] += v;
+				r[j] += v;
+			}
+		}
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			int len = 0;
+			for (int j = i + 1; j < n; j++)
+				keys[len++] = key(d[index(n, i, j)], j);
+			sortRow(keys, len, rowD, rowId, i);
+			rowLen[i] = len;
+		}
+
+		int next = n;
+		int m = n;
+		while (m > 2) {
+			double rmax = Double.NEGATIVE_INFINITY;
+			for (int s = 0; s < n; s++)
+				if (node[s] >= 0 && r[s] > rmax)
+					rmax = r[s];
+			double qmin = Double.POSITIVE_INFINITY;
+			int bi = -1;
+			int bj = -1;
+			for (int s = 0; s < n; s++) {
+				if (node[s] < 0)
+					continue;
+				float[] rd = rowD[s];
+				int[] ri = rowId[s];
+				int len = rowLen[s];
+				int dead = 0;
+				int e = 0;
+				for (; e < len; e++) {
+					int t = slotOf[ri[e]];
+					if (t < 0) {
+						dead++;
+						continue;
+					}
+					double base = (m - 2) * (double) rd[e] - r[s];
+					if (base - rmax >= qmin)
+						break;
+					double q = base - r[t];
+					if (q < qmin) {
+						qmin = q;
+						bi = s;
+						bj = t;
+					}
+				}
+				if (dead >= MIN_DEAD && 2 * dead >= e)
+					rowLen[s] = compact(rd, ri, len, slotOf);
+			}
+
+			// Joins the pair in the slot of the first node
+			double dij = d[index(n, bi, bj)];
+			double li = 0.5 * dij + (r[bi] - r[bj]) / (2.0 * (m - 2));
+			li = Math.min(dij, Math.max(0, li));
+			int u = next++;
+			parent[node[bi]] = u;
+			length[node[bi]] = li;
+			parent[node[bj]] = u;
+			length[node[bj]] = Math.max(0, dij - li);
+			slotOf[node[bi]] = -1;
+			slotOf[node[bj]] = -1;
+			node[bi] = u;
+			slotOf[u] = bi;
+			node[bj] = -1;
+
+			double sum = 0;
+			int len = 0;
+			for (int k = 0; k < n; k++) {
+				if (k == bi || k == bj || node[k] < 0)
+					continue;
+				int ik = index(n, bi, k);
+				double dik = d[ik];
+				double djk = d[index(n, bj, k)];
+				float duk = (float) ((dik + djk - dij) / 2);
+				r[k] += duk - dik - djk;
+				d[ik] = duk;
+				sum += duk;
+				keys[len++] = key(duk, node[k]);
+			}
+			r[bi] = sum;
+			sortRow(keys, len, rowD, rowId, bi);
+			rowLen[bi] = len;
+			rowD[bj] = null;
+			rowId[bj] = null;
+			m--;
+		}
+
+		// The last two nodes
+		int a = -1;
+		int b = -1;
+		for (int s = 0; s < n; s++) {
+			if (node[s] < 0)
+				continue;
+			if (a < 0)
+				a = s;
+			else
+				b = s;
+		}
+		parent[node[a]] = node[b];
+		length[node[a]] = Math.max(0, d[index(n, a, b)]);
+		parent[node[b]] = -1;
+
+		return midpoint(parent, length, labels);
+	}
+
+	/**
+	 * Roots an unrooted tree at the midpoint of its longest path between two
+	 * leaves
+	 *
+	 * @param links
+	 *            a node linked to each node, <code>-1</code> for one of them
+	 * @param length
+	 *            the length of each link
+	 * @param labels
+	 *            the labels of the first nodes, the leaves
+	 * @return the rooted tree, with the root as last node
+	 */
+	private static Tree midpoint(int[] links, double[] length, List<String> labels) {
+		int nodes = links.length;
+		int[] degree = new int[nodes];
+		for (int i = 0; i < nodes; i++) {
+			if (links[i] >= 0) {
+				degree[i]++;
+				degree[links[i]]++;
+			}
+		}
+		int[][] adj = new int[nodes][];
+		double[][] w = new double[nodes][];
+		for (int i = 0; i < nodes; i++) {
+			adj[i] = new int[degree[i]];
+			w[i] = new double[degree[i]];
+			degree[i] = 0;
+		}
+		for (int i = 0; i < nodes; i++) {
+			int j = links[i];
+			if (j < 0)
+				continue;
+			adj[i][degree[i]] = j;
+			w[i][degree[i]++] = length[i];
+			adj[j][degree[j]] = i;
+			w[j][degree[j]++] = length[i];
+		}
+
+		int[] pred = new int[nodes];
+		double[] dist = new double[nodes];
+		int from = farthest(0, adj, w, pred, dist, labels.size());
+		int to = farthest(from, adj, w, pred, dist, labels.size());
+
+		// Walks back from the farthest leaf to the half of the path, which is
+		// on the link between x and y
+		double half = dist[to] / 2;
+		int x = to;
+		while (pred[x] >= 0 && dist[pred[x]] > half)
+			x = pred[x];
+		int y = pred[x];
+		double lx = dist[x] - half;
+		double ly = half - ((y < 0) ? 0 : dist[y]);
+		if (y < 0) {
+			// All the leaves are at zero distance
+			y = adj[x][0];
+			lx = 0;
+			ly = w[x][0];
+		}
+
+		// Rooted tree with a new root between x and y
+		int root = nodes;
+		int[] parent = new int[nodes + 1];
+		double[] len = new double[nodes + 1];
+		String[] names = new String[nodes + 1];
+		for (int i = 0; i < labels.size(); i++)
+			names[i] = labels.get(i);
+		parent[root] = -1;
+		parent[x] = root;
+		len[x] = lx;
+		parent[y] = root;
+		len[y] = ly;
+		boolean[] seen = new boolean[nodes + 1];
+		seen[x] = true;
+		seen[y] = true;
+		int[] queue = new int[nodes + 1];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = x;
+		queue[tail++] = y;
+		while (head < tail) {
+			int v = queue[head++];
+			for (int e = 0; e < adj[v].length; e++) {
+				int c = adj[v][e];
+				if (seen[c])
+					continue;
+				seen[c] = true;
+				parent[c] = v;
+				len[c] = w[v][e];
+				queue[tail++] = c;
+			}
+		}
+		return new Tree(parent, len, names);
+	}
+
+	/**
+	 * Finds the leaf farthest from a node
+	 *
+	 * @return the farthest leaf, with the distances from the node and the
+	 *         previous node of each path filled
+	 */
+	private static int farthest(int start, int[][] adj, double[][] w,
+			int[] pred, double[] dist, int leaves) {
+		Arrays.fill(pred, -2);
+		pred[start] = -1;
+		dist[start] = 0;
+		int[] stack = new int[pred.length];
+		int top = 0;
+		stack[top++] = start;
+		int best = start;
+		while (top > 0) {
+			int v = stack[--top];
+			if (v < leaves && dist[v] > dist[best])
+				best = v;
+			for (int e = 0; e < adj[v].length; e++) {
+				int c = adj[v][e];
+				if (pred[c] != -2)
+					continue;
+				pred[c] = v;
+				dist[c] = dist[v] + w[v][e];
+				stack[top++] = c;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Removes the entries of the joined nodes from a row
+	 *
+	 * @return the new length of the row
+	 */
+	private static int compact(float[] rd, int[] ri, int len, int[] slotOf) {
+		int n = 0;
+		for (int e = 0; e < len; e++) {
+			if (slotOf[ri[e]] >= 0) {
+				rd[n] = rd[e];
+				ri[n++] = ri[e];
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Sorts the entries of a row and stores them
+	 */
+	private static void sortRow(long[] keys, int len, float[][] rowD,
+			int[][] rowId, int row) {
+		Arrays.sort(keys, 0, len);
+		float[] rd = new float[len];
+		int[] ri = new int[len];
+		for (int e = 0; e < len; e++) {
+			int bits = (int) (keys[e] >> 32);
+			rd[e] = Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7fffffff));
+			ri[e] = (int) keys[e];
+		}
+		rowD[row] = rd;
+		rowId[row] = ri;
+	}
+
+	/**
+	 * @return a key ordering the entries by distance, negative ones included
+	 */
+	private static long key(float distance, int node) {
+		int bits = Float.floatToIntBits(distance);
+		bits ^= (bits >> 31) & 0x7fffffff;
+		return ((long) bits << 32) | node;
+	}
+
+	/**
+	 * @return the position of a pair of slots in the condensed matrix
+	 */
+	private static int index(int n, int i, int j) {
+		if (i > j) {
+			int t = i;
+			i = j;
+			j = t;
+		}
+		return (int) (i * (long) n - (long) i * (i + 1) / 2 + j - i - 1);
+	}
+
+}
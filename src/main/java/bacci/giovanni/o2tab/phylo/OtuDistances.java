@@ -0,0 +1,235 @@
+package bacci.giovanni.o2tab.phylo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bacci.giovanni.o2tab.align.GlobalAligner;
+import bacci.giovanni.o2tab.diversity.DistanceMatrix;
+import bacci.giovanni.o2tab.index.Kmers;
+
+/**
+ * Distances between all the pairs of OTU sequences. By default the distance
+ * is estimated from the fraction <i>F</i> of the distinct k-mers of the
+ * shorter sequence found in the other one as 1 - <i>F</i><sup>1/k</sup>, the
+ * probability of a substitution that leaves <i>F</i> of the k-mers intact.
+ * The k-mers of each sequence are kept sorted so a pair costs a merge of two
+ * short arrays. The distance can also be computed as 1 minus the identity of
+ * a global alignment, which is more accurate and much slower.
+ * <p>
+ * The rows of the matrix are split across a fork/join pool. Each thread
+ * keeps its own aligner.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class OtuDistances {
+
+	/**
+	 * Number of pairs below which a task is not split
+	 */
+	private final static long GRAIN = 1024;
+
+	/**
+	 * Identity used for sizing the band of the alignments: more distant
+	 * sequences get a lower bound of their identity
+	 */
+	private final static double MIN_IDENTITY = 0.5;
+
+	private int k = 8;
+
+	private boolean alignment = false;
+
+	private int thread = 1;
+
+	/**
+	 * Build method
+	 *
+	 * @param k
+	 *            the k-mer length, from 1 to 15
+	 * @return this object
+	 */
+	public OtuDistances k(int k) {
+		if (k < 1 || k > 15)
+			throw new IllegalArgumentException("k must be from 1 to 15: " + k);
+		this.k = k;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param alignment
+	 *            <code>true</code> for computing the distances from global
+	 *            alignments instead of k-mers
+	 * @return this object
+	 */
+	public OtuDistances alignment(boolean alignment) {
+		this.alignment = alignment;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the parallelism of the fork join pool
+	 * @return this object
+	 */
+	public OtuDistances thread(int thread) {
+		this.thread = Math.max(1, thread);
+		return this;
+	}
+
+	/**
+	 * Computes the distances between all the sequences
+	 *
+	 * @param labels
+	 *            the labels of the sequences
+	 * @param seqs
+	 *            the sequences
+	 * @return the distance matrix
+	 */
+	public DistanceMatrix compute(List<String> labels, byte[][] seqs) {
+		if (labels.size() != seqs.length)
+			throw new IllegalArgumentException("labels and sequences differ");
+		DistanceMatrix out = new DistanceMatrix(labels);
+		int[][] kmers = null;
+		if (!alignment) {
+			kmers = new int[seqs.length][];
+			for (int i = 0; i < seqs.length; i++)
+				kmers[i] = this.kmers(seqs[i]);
+		}
+		ForkJoinPool pool = new ForkJoinPool(thread);
+		try {
+			pool.invoke(new Task(seqs, kmers, out, 0, seqs.length));
+		} finally {
+			pool.shutdown();
+		}
+		return out;
+	}
+
+	/**
+	 * @return the sorted distinct k-mers of a sequence
+	 */
+	private int[] kmers(byte[] seq) {
+		int[] codes = new int[Math.max(0, seq.length - k + 1)];
+		int mask = (1 << (2 * k)) - 1;
+		int kmer = 0;
+		int valid = 0;
+		int n = 0;
+		for (byte b : seq) {
+			int c = Kmers.code(b);
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			kmer = ((kmer << 2) | c) & mask;
+			if (++valid >= k)
+				codes[n++] = kmer;
+		}
+		Arrays.sort(codes, 0, n);
+		int d = 0;
+		for (int i = 0; i < n; i++)
+			if (d == 0 || codes[i] != codes[d - 1])
+				codes[d++] = codes[i];
+		return Arrays.copyOf(codes, d);
+	}
+
+	/**
+	 * @return the k-mer distance of two sequences
+	 */
+	private float distance(int[] a, int[] b) {
+		int min = Math.min(a.length, b.length);
+		if (min == 0)
+			return 1;
+		int shared = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				shared++;
+				i++;
+				j++;
+			}
+		}
+		return (float) (1 - Math.pow((double) shared / min, 1.0 / k));
+	}
+
+	/**
+	 * @return the number of pairs in a range of rows of the upper triangle of
+	 *         a matrix of size <code>n</code>
+	 */
+	private static long pairs(int n, int from, int to) {
+		// Row i holds n - 1 - i pairs
+		return (long) (to - from) * (2L * n - from - to - 1) / 2;
+	}
+
+	/**
+	 * Computes a range of rows, splitting it in two ranges with about the
+	 * same number of pairs
+	 */
+	private class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[][] seqs;
+
+		private final int[][] kmers;
+
+		private final DistanceMatrix out;
+
+		private final int from;
+
+		private final int to;
+
+		private Task(byte[][] seqs, int[][] kmers, DistanceMatrix out,
+				int from, int to) {
+			this.seqs = seqs;
+			this.kmers = kmers;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int n = seqs.length;
+			long total = pairs(n, from, to);
+			if (to - from > 1 && total > GRAIN) {
+				// First row at which half of the pairs are done
+				int lo = from + 1;
+				int hi = to - 1;
+				while (lo < hi) {
+					int m = (lo + hi) >>> 1;
+					if (2 * pairs(n, from, m) < total)
+						lo = m + 1;
+					else
+						hi = m;
+				}
+				int mid = lo;
+				invokeAll(new Task(seqs, kmers, out, from, mid), new Task(seqs,
+						kmers, out, mid, to));
+				return;
+			}
+			GlobalAligner aligner = (alignment) ? new GlobalAligner() : null;
+			for (int i = from; i < to; i++) {
+				for (int j = i + 1; j < seqs.length; j++) {
+					float d;
+					if (alignment)
+						d = (float) (1 - aligner.identity(seqs[i], seqs[j],
+								MIN_IDENTITY));
+					else
+						d = distance(kmers[i], kmers[j]);
+					out.set(i, j, d);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,441 @@
+package bacci.giovanni.o2tab.phylo;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rooted tree with branch lengths. Nodes are numbered from 0 and each node
+ * but the root has a parent and the length of the branch leading to it.
+ * Leaves have a label.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class Tree {
+
+	private final int[] parent;
+
+	private final double[] length;
+
+	private final String[] labels;
+
+	private final int root;
+
+	/**
+	 * Children of each node, as ranges of {@link #order}
+	 */
+	private final int[] firstChild;
+
+	private final int[] order;
+
+	/**
+	 * Constructor
+	 *
+	 * @param parent
+	 *            the parent of each node, <code>-1</code> for the root
+	 * @param length
+	 *            the length of the branch leading to each node
+	 * @param labels
+	 *            the label of each node, <code>null</code> for the internal
+	 *            nodes
+	 * @throws IllegalArgumentException
+	 *             if the arrays do not describe a single rooted tree
+	 */
+	public Tree(int[] parent, double[] length, String[] labels) {
+		int n = parent.length;
+		if (length.length != n || labels.length != n)
+			throw new IllegalArgumentException("arrays differ in length");
+		this.parent = parent;
+		this.length = length;
+		this.labels = labels;
+		int r = -1;
+		int[] counts = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			if (parent[i] < 0) {
+				if (r >= 0)
+					throw new IllegalArgumentException("more than one root");
+				r = i;
+			} else {
+				counts[parent[i] + 1]++;
+			}
+		}
+		if (r < 0 && n > 0)
+			throw new IllegalArgumentException("no root");
+		this.root = r;
+		for (int i = 0; i < n; i++)
+			counts[i + 1] += counts[i];
+		this.firstChild = Arrays.copyOf(counts, n + 1);
+		this.order = new int[Math.max(0, n - 1)];
+		int[] next = Arrays.copyOf(counts, n);
+		for (int i = 0; i < n; i++)
+			if (parent[i] >= 0)
+				order[next[parent[i]]++] = i;
+		if (n > 0 && this.postOrder().length != n)
+			throw new IllegalArgumentException("the tree has cycles");
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	public int size() {
+		return parent.length;
+	}
+
+	/**
+	 * @return the root
+	 */
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * @param node
+	 *            a node
+	 * @return the parent of the node or <code>-1</code> for the root
+	 */
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	/**
+	 * @param node
+	 *            a node
+	 * @return the length of the branch leading to the node
+	 */
+	public double getLength(int node) {
+		return length[node];
+	}
+
+	/**
+	 * @param node
+	 *            a node
+	 * @return the label of the node or <code>null</code>
+	 */
+	public String getLabel(int node) {
+		return labels[node];
+	}
+
+	/**
+	 * @param node
+	 *            a node
+	 * @return the number of children of the node
+	 */
+	public int getChildCount(int node) {
+		return firstChild[node + 1] - firstChild[node];
+	}
+
+	/**
+	 * @param node
+	 *            a node
+	 * @param i
+	 *            the index of a child
+	 * @return the child
+	 */
+	public int getChild(int node, int i) {
+		return order[firstChild[node] + i];
+	}
+
+	/**
+	 * @param node
+	 *            a node
+	 * @return <code>true</code> if the node has no children
+	 */
+	public boolean isLeaf(int node) {
+		return this.getChildCount(node) == 0;
+	}
+
+	/**
+	 * @return the nodes in post order, visiting the children of each node by
+	 *         decreasing size of their subtrees
+	 */
+	public int[] postOrder() {
+		int n = parent.length;
+		int[] sizes = new int[n];
+		// Sizes from the leaves up, along a breadth first order
+		int[] bfs = new int[n];
+		int count = 0;
+		if (n > 0)
+			bfs[count++] = root;
+		for (int h = 0; h < count && count <= n; h++)
+			for (int c = 0; c < this.getChildCount(bfs[h]) && count < n; c++)
+				bfs[count++] = this.getChild(bfs[h], c);
+		if (count < n)
+			return Arrays.copyOf(bfs, count);
+		for (int h = count - 1; h >= 0; h--) {
+			sizes[bfs[h]]++;
+			if (parent[bfs[h]] >= 0)
+				sizes[parent[bfs[h]]] += sizes[bfs[h]];
+		}
+
+		// Children of each node by decreasing size
+		int[] sorted = new int[order.length];
+		for (int node = 0; node < n; node++) {
+			int k = this.getChildCount(node);
+			long[] keys = new long[k];
+			for (int i = 0; i < k; i++) {
+				int child = this.getChild(node, i);
+				keys[i] = ((long) (n - sizes[child]) << 32) | child;
+			}
+			Arrays.sort(keys);
+			for (int i = 0; i < k; i++)
+				sorted[firstChild[node] + i] = (int) keys[i];
+		}
+
+		int[] post = new int[n];
+		int p = 0;
+		int[] stack = new int[n];
+		int[] visited = new int[n];
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			int node = stack[top - 1];
+			int c = visited[node]++;
+			if (c == this.getChildCount(node)) {
+				post[p++] = node;
+				top--;
+			} else {
+				stack[top++] = sorted[firstChild[node] + c];
+			}
+		}
+		return post;
+	}
+
+	/**
+	 * @return the tree in Newick format
+	 */
+	public String toNewick() {
+		StringBuilder sb = new StringBuilder();
+		if (parent.length > 0)
+			this.newick(root, sb);
+		return sb.append(';').toString();
+	}
+
+	/**
+	 * Writes the tree in Newick format
+	 *
+	 * @param file
+	 *            the output file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(String file) throws IOException {
+		BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+		try {
+			wr.write(this.toNewick());
+			wr.newLine();
+		} finally {
+			wr.close();
+		}
+	}
+
+	/**
+	 * Reads a tree in Newick format
+	 *
+	 * @param file
+	 *            the tree file
+	 * @return the tree
+	 * @throws IOException
+	 *             if an I/O error occurs or the file is not a Newick tree
+	 */
+	public static Tree read(String file) throws IOException {
+		byte[] b = Files.readAllBytes(Paths.get(file));
+		try {
+			return parse(new String(b, Charset.forName("UTF-8")));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Parses a tree in Newick format. Internal node labels and comments are
+	 * ignored, missing branch lengths are 0.
+	 *
+	 * @param newick
+	 *            the tree
+	 * @return the tree
+	 * @throws IllegalArgumentException
+	 *             if the string is not a Newick tree
+	 */
+	public static Tree parse(String newick) {
+		List<Integer> parents = new ArrayList<Integer>();
+		List<Double> lengths = new ArrayList<Double>();
+		List<String> names = new ArrayList<String>();
+		int current = -1;
+		int i = 0;
+		int n = newick.length();
+		boolean closed = false; // the current node has just been closed
+		while (i < n) {
+			char c = newick.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '[') {
+				int end = newick.indexOf(']', i);
+				if (end < 0)
+					throw new IllegalArgumentException("unterminated comment");
+				i = end + 1;
+			} else if (c == '(') {
+				current = addNode(parents, lengths, names, current);
+				closed = false;
+				i++;
+			} else if (c == ',' || c == ')' || c == ';') {
+				if (current < 0)
+					throw new IllegalArgumentException("unexpected '" + c
+							+ "'");
+				if (!closed && names.get(current) == null
+						&& c != ';' && isOpen(newick, i)) {
+					// Empty leaf, as in "(,)"
+					current = addNode(parents, lengths, names, current);
+					names.set(current, "");
+				}
+				if (c == ';') {
+					if (parents.get(current) >= 0)
+						throw new IllegalArgumentException("unbalanced tree");
+					break;
+				}
+				current = parents.get(current);
+				if (current < 0)
+					throw new IllegalArgumentException("unbalanced tree");
+				closed = (c == ')');
+				i++;
+			} else if (c == ':') {
+				if (current < 0)
+					throw new IllegalArgumentException("unexpected ':'");
+				if (!closed && isOpen(newick, i)) {
+					// Unnamed leaf, as in "(:1,A:2)"
+					current = addNode(parents, lengths, names, current);
+					names.set(current, "");
+				}
+				int end = i + 1;
+				while (end < n && ",);[".indexOf(newick.charAt(end)) < 0)
+					end++;
+				try {
+					lengths.set(current, Double.parseDouble(newick.substring(
+							i + 1, end).trim()));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("bad branch length "
+							+ newick.substring(i + 1, end));
+				}
+				i = end;
+			} else {
+				// A label: of a new leaf or of the node just closed
+				int end;
+				String label;
+				if (c == '\'') {
+					StringBuilder sb = new StringBuilder();
+					end = i + 1;
+					while (true) {
+						if (end >= n)
+							throw new IllegalArgumentException(
+									"unterminated label");
+						char q = newick.charAt(end++);
+						if (q == '\'') {
+							if (end < n && newick.charAt(end) == '\'') {
+								sb.append('\'');
+								end++;
+								continue;
+							}
+							break;
+						}
+						sb.append(q);
+					}
+					label = sb.toString();
+				} else {
+					end = i;
+					while (end < n && ",):;[".indexOf(newick.charAt(end)) < 0
+							&& !Character.isWhitespace(newick.charAt(end)))
+						end++;
+					label = newick.substring(i, end);
+				}
+				if (!closed) {
+					current = addNode(parents, lengths, names, current);
+					names.set(current, label);
+				}
+				i = end;
+			}
+		}
+		if (parents.isEmpty())
+			throw new IllegalArgumentException("empty tree");
+		if (parents.get(current) >= 0)
+			throw new IllegalArgumentException("unbalanced tree");
+
+		int size = parents.size();
+		int[] p = new int[size];
+		double[] l = new double[size];
+		String[] s = new String[size];
+		int[] children = new int[size];
+		for (int x = 0; x < size; x++) {
+			p[x] = parents.get(x);
+			l[x] = lengths.get(x);
+			if (p[x] >= 0)
+				children[p[x]]++;
+		}
+		for (int x = 0; x < size; x++)
+			s[x] = (children[x] == 0) ? names.get(x) : null;
+		return new Tree(p, l, s);
+	}
+
+	/**
+	 * Adds a node, child of the current one
+	 *
+	 * @return the new node
+	 */
+	private static int addNode(List<Integer> parents, List<Double> lengths,
+			List<String> names, int current) {
+		parents.add(current);
+		lengths.add(0.0);
+		names.add(null);
+		return parents.size() - 1;
+	}
+
+	/**
+	 * @return <code>true</code> if the last significant character before a
+	 *         position opens a node or separates two nodes
+	 */
+	private static boolean isOpen(String newick, int pos) {
+		for (int i = pos - 1; i >= 0; i--) {
+			char c = newick.charAt(i);
+			if (!Character.isWhitespace(c))
+				return c == '(' || c == ',';
+		}
+		return false;
+	}
+
+	private void newick(int node, StringBuilder sb) {
+		int k = this.getChildCount(node);
+		if (k > 0) {
+			sb.append('(');
+			for (int i = 0; i < k; i++) {
+				if (i > 0)
+					sb.append(',');
+				this.newick(this.getChild(node, i), sb);
+			}
+			sb.append(')');
+		} else if (labels[node] != null) {
+			sb.append(quote(labels[node]));
+		}
+		if (parent[node] >= 0)
+			sb.append(':').append(length[node]);
+	}
+
+	/**
+	 * @return the label, quoted if it contains characters with a meaning in
+	 *         Newick
+	 */
+	private static String quote(String label) {
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if ("()[]':;,".indexOf(c) >= 0 || Character.isWhitespace(c))
+				return "'" + label.replace("'", "''") + "'";
+		}
+		return label;
+	}
+
+}
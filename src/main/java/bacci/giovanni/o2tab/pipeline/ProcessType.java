@@ -4,10 +4,16 @@ public enum ProcessType {
 	TRIMMING("Trimming"),
 	POOLING("Pooling"),
 	DEREPLICATION("Dereplication"),
+	PRECLUSTERING("Pre-clustering"),
 	ASSEMBLY("Assembling"),
 	OTUCLUST("OTU clustering"),
+	DENOISING("Denoising"),
+	CHIMERA("Chimera filtering"),
+	PHYLOGENY("Phylogeny"),
 	MAPPING("Read mapping"),
-	TABLING("OTU tabling");
+	TABLING("OTU tabling"),
+	STORE("OTU store update"),
+	DIVERSITY("Diversity analysis");
 	
 	private String name;
 	
@@ -0,0 +1,187 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import bacci.giovanni.o2tab.cluster.ChimeraDetector;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+import bacci.giovanni.o2tab.util.Utils;
+
+/**
+ * De novo chimera filtering of the OTU representatives, to be run right after
+ * a clustering process. The inputs are one or more OTU files followed by the
+ * pooled reads, as written by the clustering processes. The OTUs of each file
+ * are expected in decreasing abundance order, so that the parents of a chimera
+ * are searched among the OTUs preceding it (see {@link ChimeraDetector}).
+ * <p>
+ * Non chimeric OTUs are written to a file with the same name as the input
+ * one, which is passed on to the mapping process together with the pooled
+ * reads. Chimeras are written to a file with the <code>chimeras_</code>
+ * prefix. The process fails if no OTU of a file is left, and warns with the
+ * number of chimeras found otherwise.
+ * <p>
+ * When every label of a file has a <code>;size=</code> annotation, as
+ * written by the clustering processes in <code>sizeout</code> mode, the OTUs
+ * are searched by decreasing size and the parents of an OTU must be at least
+ * twice as abundant as the OTU, as in UCHIME. The sizes are then removed from
+ * the labels, so the OTUs are labelled as without this process. Without
+ * abundances the parents are only required to precede the OTU.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class ChimeraProcess extends PipelineProcess {
+
+	/**
+	 * Prefix of the chimera files
+	 */
+	private static final String PREFIX = "chimeras_";
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 */
+	public ChimeraProcess() {
+		super(ProcessType.CHIMERA, "nonchimeric");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public ChimeraProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		List<String> inputs = super.getInputFiles();
+		if (inputs.size() < 2)
+			throw new WrongInputFileNumberException(2, inputs.size());
+
+		Path out = Paths.get(super.getOutputDir());
+		List<String> dbs = inputs.subList(0, inputs.size() - 1);
+		List<String> warns = new ArrayList<String>();
+		List<String> fails = new ArrayList<String>();
+		for (String db : dbs) {
+			String name = Paths.get(db).getFileName().toString();
+			String nonchim = out.resolve(name).toString();
+			super.addOuptuFile(nonchim);
+			int[] counts = this.filter(db, nonchim,
+					out.resolve(PREFIX + name).toString());
+			if (counts[0] == counts[1])
+				fails.add("no non chimeric OTUs left in " + db + " ("
+						+ counts[1] + " chimeras)");
+			else if (counts[1] > 0)
+				warns.add(counts[1] + " of " + counts[0] + " OTUs of " + db
+						+ " flagged as chimeras");
+		}
+
+		// Adding pooled read file to the output. It will be needed by the
+		// mapping process
+		super.addOuptuFile(inputs.get(inputs.size() - 1));
+		ProcessResult pr = null;
+		if (!fails.isEmpty()) {
+			pr = (warns.isEmpty()) ? new ProcessResult(PipelineResult.FAILED)
+					: new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+			pr.addAllFails(fails);
+		} else if (warns.isEmpty()) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+		}
+		return pr;
+	}
+
+	/**
+	 * Splits an OTU file in chimeric and non chimeric OTUs
+	 *
+	 * @param input
+	 *            the OTU file
+	 * @param nonchim
+	 *            the output file for non chimeric OTUs
+	 * @param chim
+	 *            the output file for chimeric OTUs
+	 * @return the number of OTUs and of chimeras
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private int[] filter(String input, String nonchim, String chim)
+			throws IOException {
+		final List<FastaRecord> records = FastaRecordReader.readAll(input);
+		int n = records.size();
+		Integer[] order = new Integer[n];
+		boolean sized = true;
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			sized &= records.get(i).getLabel().contains(FastaRecord.SIZE);
+		}
+		// Stable, so OTUs of the same size stay in file order
+		if (sized)
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					long x = records.get(a).getSize();
+					long y = records.get(b).getSize();
+					return (x == y) ? 0 : (x > y) ? -1 : 1;
+				}
+			});
+		byte[][] sorted = new byte[n][];
+		long[] sizes = (sized) ? new long[n] : null;
+		for (int i = 0; i < n; i++) {
+			sorted[i] = records.get(order[i]).getSequence();
+			if (sized)
+				sizes[i] = records.get(order[i]).getSize();
+		}
+		boolean[] flags = new ChimeraDetector(sorted, thread).sizes(sizes)
+				.detect();
+		boolean[] chimeras = new boolean[n];
+		for (int i = 0; i < n; i++)
+			chimeras[order[i]] = flags[i];
+		int found = 0;
+
+		BufferedWriter good = new BufferedWriter(new FileWriter(nonchim));
+		BufferedWriter bad = null;
+		try {
+			bad = new BufferedWriter(new FileWriter(chim));
+			for (int i = 0; i < n; i++) {
+				found += (chimeras[i]) ? 1 : 0;
+				BufferedWriter wr = (chimeras[i]) ? bad : good;
+				String label = records.get(i).getLabel();
+				wr.write(">" + ((sized) ? FastaRecord.stripSize(label) : label));
+				wr.newLine();
+				Utils.writeFASTA(wr, records.get(i).getSequence(), 80);
+			}
+		} finally {
+			good.close();
+			if (bad != null)
+				bad.close();
+		}
+		return new int[] { n, found };
+	}
+
+}
@@ -0,0 +1,365 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bacci.giovanni.o2tab.cluster.Uniques;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.index.KmerIndex;
+import bacci.giovanni.o2tab.index.MappedKmerIndex;
+import bacci.giovanni.o2tab.map.ReadMapper;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.util.AbundanceSort;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+import bacci.giovanni.o2tab.util.Utils;
+
+/**
+ * Closed reference OTU picking, an alternative to the clustering processes.
+ * Each dereplicated sequence is searched against a reference database, such
+ * as SILVA or Greengenes, with a {@link ReadMapper} on a
+ * {@link MappedKmerIndex} of the references and assigned to the closest
+ * reference with an identity not lower than the threshold, among the
+ * {@link #MAX_ACCEPTS} first references accepted in k-mer order. The references
+ * with at least one sequence assigned are the OTUs, labelled with the
+ * identifier of the reference so that the OTUs of different runs can be
+ * compared.
+ * <p>
+ * The index is built next to the reference file (<code>.kmi</code>
+ * extension) the first time it is needed, and rebuilt when its fingerprint
+ * does not match the references, so later runs only map it. The OTUs are written to
+ * <code>otus.fasta</code> by decreasing abundance and the sequences not
+ * assigned to any reference to <code>unassigned.fasta</code>.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class ClosedReferenceOTU extends PipelineProcess {
+
+	/**
+	 * Name of the main output file
+	 */
+	private static final String NAME = "otus.fasta";
+
+	/**
+	 * Name of the file of the unassigned sequences
+	 */
+	private static final String UNASSIGNED = "unassigned.fasta";
+
+	/**
+	 * Extension of the default index file
+	 */
+	private static final String EXT = ".kmi";
+
+	/**
+	 * References accepted before choosing the closest one. Close references
+	 * are common in the databases and the one sharing most k-mers with a
+	 * sequence is not always the most similar
+	 */
+	private static final int MAX_ACCEPTS = 8;
+
+	/**
+	 * Sequences searched by a thread at a time
+	 */
+	private static final int CHUNK = 256;
+
+	/**
+	 * The reference file
+	 */
+	private final String reference;
+
+	/**
+	 * The index file
+	 */
+	private String index;
+
+	/**
+	 * The identity threshold
+	 */
+	private double identity = 0.97;
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Label the OTUs with the size of their clusters
+	 */
+	private boolean sizeout = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param reference
+	 *            the FASTA file of the reference sequences
+	 */
+	public ClosedReferenceOTU(String reference) {
+		super(ProcessType.OTUCLUST, "clustered");
+		this.reference = reference;
+		this.index = reference + EXT;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param index
+	 *            the index file of the references, built if missing
+	 * @return this process with the index file set
+	 */
+	public ClosedReferenceOTU index(String index) {
+		this.index = index;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param identity
+	 *            the minimum identity between a sequence and its reference
+	 * @return this process with the identity threshold set
+	 */
+	public ClosedReferenceOTU identity(double identity) {
+		this.identity = identity;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public ClosedReferenceOTU thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param sizeout
+	 *            <code>true</code> for labelling the OTUs with the number of
+	 *            reads of their clusters (<code>;size=</code>), as needed by
+	 *            {@link ChimeraProcess}
+	 * @return this process with the labelling set
+	 */
+	public ClosedReferenceOTU sizeout(boolean sizeout) {
+		this.sizeout = sizeout;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		List<String> warns = new ArrayList<String>();
+		if (super.getInputFiles().size() < 2)
+			throw new WrongInputFileNumberException(2, super.getInputFiles()
+					.size());
+
+		if (super.getInputFiles().size() > 2)
+			warns.add("too many input files found, only the first "
+					+ "two elements will be included in the analysis");
+
+		Uniques uniques = Uniques.read(super.getInputFiles().get(0));
+		Path out = Paths.get(super.getOutputDir());
+		String output = out.resolve(NAME).toString();
+		super.addOuptuFile(output);
+
+		// Adding pooled read file to the output. It will be needed by the
+		// mapping process
+		super.addOuptuFile(super.getInputFiles().get(1));
+
+		List<FastaRecord> records = FastaRecordReader.readAll(reference);
+		byte[][] refs = new byte[records.size()][];
+		for (int i = 0; i < refs.length; i++)
+			refs[i] = records.get(i).getSequence();
+		if (uniques.size() == 0 || refs.length == 0) {
+			ProcessResult pr = (warns.isEmpty()) ? new ProcessResult(
+					PipelineResult.FAILED) : new ProcessResult(
+					PipelineResult.FAILED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+			pr.addFail((refs.length == 0) ? "no sequences in " + reference
+					: "no sequences to assign");
+			return pr;
+		}
+
+		int[] hits;
+		ExecutorService ex = Executors.newFixedThreadPool(Math.max(1, thread));
+		MappedKmerIndex idx = null;
+		try {
+			idx = this.open(refs);
+			ReadMapper mapper = new ReadMapper(refs, idx, identity)
+					.maxAccepts(MAX_ACCEPTS);
+			hits = this.search(ex, mapper, uniques.getSequences());
+		} catch (InterruptedException e) {
+			ex.shutdownNow();
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			ex.shutdown();
+			if (idx != null)
+				idx.close();
+		}
+
+		// Abundance of the references
+		long[] sizes = new long[refs.length];
+		long unassigned = 0;
+		int found = 0;
+		List<Integer> left = new ArrayList<Integer>();
+		for (int u = 0; u < hits.length; u++) {
+			long size = uniques.getSizes()[u];
+			if (hits[u] < 0) {
+				unassigned += size;
+				left.add(u);
+			} else {
+				if (sizes[hits[u]] == 0)
+					found++;
+				sizes[hits[u]] += size;
+			}
+		}
+		int[] otus = new int[found];
+		long[] otuSizes = new long[found];
+		byte[][] otuSeqs = new byte[found][];
+		for (int r = 0, o = 0; r < refs.length; r++) {
+			if (sizes[r] > 0) {
+				otus[o] = r;
+				otuSeqs[o] = refs[r];
+				otuSizes[o++] = sizes[r];
+			}
+		}
+
+		BufferedWriter wr = new BufferedWriter(new FileWriter(output));
+		try {
+			for (int o : AbundanceSort.order(otuSizes, otuSeqs)) {
+				int r = otus[o];
+				wr.write(">" + id(records.get(r).getLabel()));
+				if (sizeout)
+					wr.write(FastaRecord.SIZE + otuSizes[o]);
+				wr.newLine();
+				Utils.writeFASTA(wr, refs[r], 80);
+			}
+		} finally {
+			wr.close();
+		}
+		wr = new BufferedWriter(new FileWriter(out.resolve(UNASSIGNED)
+				.toString()));
+		try {
+			for (int u : left) {
+				wr.write(">" + uniques.getLabels()[u]);
+				wr.newLine();
+				Utils.writeFASTA(wr, uniques.getSequences()[u], 80);
+			}
+		} finally {
+			wr.close();
+		}
+
+		if (unassigned > 0)
+			warns.add(left.size() + " sequences (" + unassigned
+					+ " reads) not assigned to any reference");
+		ProcessResult pr = null;
+		if (found == 0) {
+			pr = (warns.isEmpty()) ? new ProcessResult(PipelineResult.FAILED)
+					: new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+			pr.addFail("no sequences assigned to the references");
+		} else if (warns.isEmpty()) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+		}
+		return pr;
+	}
+
+	/**
+	 * Opens the index of the references, building it if missing or built
+	 * from other sequences
+	 */
+	private MappedKmerIndex open(byte[][] refs) throws IOException,
+			InterruptedException, ExecutionException {
+		Path path = Paths.get(index);
+		if (Files.exists(path)) {
+			try {
+				MappedKmerIndex idx = new MappedKmerIndex(index);
+				if (idx.getTargets() == refs.length
+						&& idx.getFingerprint() == MappedKmerIndex
+								.fingerprint(refs))
+					return idx;
+				idx.close();
+			} catch (IOException e) {
+				// Rebuilt below
+			}
+		}
+		Path tmp = Paths.get(index + ".tmp");
+		MappedKmerIndex.build(refs, KmerIndex.DEFAULT_K, tmp.toString(),
+				thread);
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return new MappedKmerIndex(index);
+	}
+
+	/**
+	 * Searches the sequences in parallel, each thread taking the next chunk
+	 * of sequences when done with the previous one
+	 *
+	 * @return the hit of each sequence or <code>-1</code>
+	 */
+	private int[] search(ExecutorService ex, ReadMapper mapper,
+			final byte[][] seqs) throws InterruptedException,
+			ExecutionException {
+		final int[] hits = new int[seqs.length];
+		final AtomicInteger next = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < Math.max(1, thread); t++) {
+			final ReadMapper.Searcher s = mapper.searcher();
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int from;
+					while ((from = next.getAndAdd(CHUNK)) < seqs.length) {
+						int to = Math.min(seqs.length, from + CHUNK);
+						for (int i = from; i < to; i++)
+							hits[i] = s.search(seqs[i]);
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> f : ex.invokeAll(tasks))
+			f.get();
+		return hits;
+	}
+
+	/**
+	 * @return the identifier of a reference, the label up to the first
+	 *         white space
+	 */
+	private static String id(String label) {
+		String l = label.trim();
+		for (int i = 0; i < l.length(); i++) {
+			if (Character.isWhitespace(l.charAt(i)))
+				return l.substring(0, i);
+		}
+		return l;
+	}
+
+}
@@ -1,24 +1,51 @@
 package bacci.giovanni.o2tab.process;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import bacci.giovanni.o2tab.cluster.Uniques;
 import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.index.Kmers;
 import bacci.giovanni.o2tab.pipeline.PipelineProcess;
 import bacci.giovanni.o2tab.pipeline.ProcessResult;
 import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
 import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+import bacci.giovanni.o2tab.util.Utils;
 
 /**
  * Clustering process. This process uses the uparse <code>-cluster_otus</code>
  * command.
+ * <p>
+ * When more partitions are requested the dereplicated sequences are split by
+ * k-mer signature and every partition is clustered by its own usearch
+ * instance. The signature is a vote of several min-hashes of the k-mers, each
+ * one proposing a partition, so a mutation changing one of them does not move
+ * a sequence away from the similar ones. The centroids of all the partitions,
+ * labelled with the size of their clusters, are then clustered again in a
+ * final pass which merges the centroids of a cluster split across partitions
+ * and assigns the OTU labels. Each instance only sees a fraction of the
+ * sequences, so large runs fit in the memory of the 32-bit usearch and
+ * partitions are clustered concurrently. The partition files are deleted at
+ * the end, except for the logs of failed runs.
  * 
  * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
  *         Bacci</a>
@@ -46,6 +73,48 @@ public class ClusteringOTU extends PipelineProcess {
 	 */
 	private static final String LABEL = "OTU_";
 
+	/**
+	 * Name of the sub folder with the partition files
+	 */
+	private static final String PARTITIONS = "partitions";
+
+	/**
+	 * Word length used for partitioning the sequences
+	 */
+	private static final int K = 8;
+
+	/**
+	 * Min-hashes voting for the partition of a sequence
+	 */
+	private static final int HASHES = 5;
+
+	/**
+	 * Odd multipliers of the hash functions of the min-hashes
+	 */
+	private static final long[] SEEDS = { 0x9e3779b97f4a7c15L,
+			0xbf58476d1ce4e5b9L, 0x94d049bb133111ebL, 0xd6e8feb86659fd93L,
+			0xc2b2ae3d27d4eb4fL };
+
+	/**
+	 * Number of partitions
+	 */
+	private int partitions = 1;
+
+	/**
+	 * Number of usearch instances running at the same time
+	 */
+	private int thread = 1;
+
+	/**
+	 * Label the OTUs with the size of their clusters
+	 */
+	private boolean sizeout = false;
+
+	/**
+	 * Errors of the partition step
+	 */
+	private List<String> partitionFails = new ArrayList<String>();
+
 	/**
 	 * The config file reader
 	 */
@@ -59,6 +128,47 @@ public class ClusteringOTU extends PipelineProcess {
 		super(ProcessType.OTUCLUST, "clustered");
 	}
 
+	/**
+	 * Build method
+	 * 
+	 * @param partitions
+	 *            the number of partitions clustered separately before the
+	 *            final pass. With one partition (the default) all the sequences
+	 *            are clustered by a single usearch instance.
+	 * @return this process with the number of partitions set
+	 */
+	public ClusteringOTU partitions(int partitions) {
+		this.partitions = Math.max(1, partitions);
+		return this;
+	}
+
+	/**
+	 * Build method
+	 * 
+	 * @param thread
+	 *            the maximum number of usearch instances running at the same
+	 *            time
+	 * @return this process with the number of threads set
+	 */
+	public ClusteringOTU thread(int thread) {
+		this.thread = Math.max(1, thread);
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param sizeout
+	 *            <code>true</code> for labelling the OTUs with the number of
+	 *            reads of their clusters (<code>;size=</code>), as needed by
+	 *            {@link ChimeraProcess}
+	 * @return this process with the labelling set
+	 */
+	public ClusteringOTU sizeout(boolean sizeout) {
+		this.sizeout = sizeout;
+		return this;
+	}
+
 	@Override
 	public ProcessResult launch() throws IOException {
 		String warn = null;
@@ -77,10 +187,30 @@ public class ClusteringOTU extends PipelineProcess {
 		// mapping process
 		super.addOuptuFile(super.getInputFiles().get(1));
 
+		if (partitions > 1) {
+			try {
+				input = this.clusterPartitions(input);
+			} catch (InterruptedException e) {
+				this.clean(null);
+				return new ProcessResult(PipelineResult.INTERRUPTED);
+			}
+			if (input == null) {
+				ProcessResult pr = (warn == null) ? new ProcessResult(
+						PipelineResult.FAILED) : new ProcessResult(
+						PipelineResult.FAILED_WITH_WARNINGS);
+				if (warn != null)
+					pr.addWarning(warn);
+				pr.addAllFails(partitionFails);
+				return pr;
+			}
+		}
+
 		UparseOTUProcess clusteringProcess = new UparseOTUProcess(input);
 		clusteringProcess.addArgumentCommand("-otus", outputs[0]);
 		clusteringProcess.addArgumentCommand("-uparseout", outputs[1]);
 		clusteringProcess.addArgumentCommand("-relabel", LABEL);
+		if (sizeout)
+			clusteringProcess.addSingleCommand("-sizeout");
 
 		File error = new File(outputs[2]);
 		clusteringProcess.setError(Redirect.to(error));
@@ -108,7 +238,7 @@ public class ClusteringOTU extends PipelineProcess {
 					pr = new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
 					pr.addWarning(warn);
 				}
-				pr.addFail("see " + error.toString() + " for details");
+				pr.addFail(failMessage(error));
 				break;
 			}
 		} catch (InterruptedException e) {
@@ -116,10 +246,238 @@ public class ClusteringOTU extends PipelineProcess {
 			pr = new ProcessResult(PipelineResult.INTERRUPTED);
 		} catch (ExecutionException e) {
 			throw new IOException(e.getMessage());
+		} finally {
+			ex.shutdown();
+			if (partitions > 1)
+				this.clean(input);
 		}
 		return pr;
 	}
 
+	/**
+	 * Splits the dereplicated sequences in partitions, clusters each
+	 * partition with its own usearch instance and merges the centroids in a
+	 * single file ordered by decreasing abundance
+	 * 
+	 * @param input
+	 *            the dereplicated sequences
+	 * @return the merged centroid file or <code>null</code> if the
+	 *         clustering of one or more partitions failed
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the process is interrupted
+	 */
+	private String clusterPartitions(String input) throws IOException,
+			InterruptedException {
+		Path dir = Paths.get(super.getOutputDir()).resolve(PARTITIONS);
+		if (!Files.isDirectory(dir))
+			Files.createDirectory(dir);
+
+		// Writing partitions
+		String[] parts = new String[partitions];
+		BufferedWriter[] writers = new BufferedWriter[partitions];
+		boolean[] used = new boolean[partitions];
+		for (int i = 0; i < partitions; i++) {
+			parts[i] = dir.resolve(String.format("part_%d.fasta", i + 1))
+					.toString();
+			writers[i] = new BufferedWriter(new FileWriter(parts[i]));
+		}
+		Uniques uniques = Uniques.read(input);
+		long[] mins = new long[HASHES];
+		int[] votes = new int[partitions];
+		for (int i = 0; i < uniques.size(); i++) {
+			byte[] seq = uniques.getSequences()[i];
+			int p = partition(seq, mins, votes);
+			used[p] = true;
+			writers[p].write(">" + uniques.getLabels()[i]);
+			writers[p].newLine();
+			Utils.writeFASTA(writers[p], seq, 80);
+		}
+		for (BufferedWriter wr : writers)
+			wr.close();
+
+		// Clustering partitions
+		List<UparseOTUProcess> processList = new ArrayList<UparseOTUProcess>();
+		List<File> errorFiles = new ArrayList<File>();
+		List<String> centroidFiles = new ArrayList<String>();
+		for (int i = 0; i < partitions; i++) {
+			if (!used[i])
+				continue;
+			String base = parts[i].replaceAll("\\.fasta$", "");
+			UparseOTUProcess p = new UparseOTUProcess(parts[i]);
+			p.addArgumentCommand("-otus", base + ".otus.fasta");
+			p.addArgumentCommand("-uparseout", base + ".up");
+			// Centroids labelled with the size of their clusters
+			p.addSingleCommand("-sizeout");
+			File error = new File(base + ".log");
+			p.setError(Redirect.to(error));
+			processList.add(CONFIG.setExternalArguments(p));
+			errorFiles.add(error);
+			centroidFiles.add(base + ".otus.fasta");
+		}
+
+		ExecutorService ex = Executors.newFixedThreadPool(thread);
+		try {
+			List<Future<Integer>> results = ex.invokeAll(processList);
+			for (int i = 0; i < results.size(); i++) {
+				if (results.get(i).get() != 0)
+					partitionFails.add(failMessage(errorFiles.get(i)));
+				else
+					Files.deleteIfExists(errorFiles.get(i).toPath());
+			}
+		} catch (ExecutionException e) {
+			throw new IOException(e.getMessage());
+		} catch (InterruptedException e) {
+			ex.shutdownNow();
+			throw e;
+		} finally {
+			ex.shutdown();
+		}
+		if (!partitionFails.isEmpty()) {
+			this.clean(null);
+			return null;
+		}
+
+		// Merging centroids. Labels carry the size of the clusters, so the
+		// centroids are ordered by cluster size for the final pass
+		String merged = dir.resolve("centroids.fasta").toString();
+		BufferedWriter wr = new BufferedWriter(new FileWriter(merged));
+		try {
+			for (String f : centroidFiles) {
+				for (FastaRecord r : FastaRecordReader.readAll(f)) {
+					wr.write(">" + r.getLabel());
+					wr.newLine();
+					Utils.writeFASTA(wr, r.getSequence(), 80);
+				}
+			}
+		} finally {
+			wr.close();
+		}
+		Uniques centroids = Uniques.read(merged);
+		wr = new BufferedWriter(new FileWriter(merged));
+		try {
+			for (int i = 0; i < centroids.size(); i++) {
+				wr.write(">" + centroids.getLabels()[i]);
+				wr.newLine();
+				Utils.writeFASTA(wr, centroids.getSequences()[i], 80);
+			}
+		} finally {
+			wr.close();
+		}
+		return merged;
+	}
+
+	/**
+	 * Chooses the partition of a sequence: each min-hash of its k-mers votes
+	 * for a partition and the partition with most votes is taken, the first
+	 * one to reach that number of votes on ties
+	 *
+	 * @param seq
+	 *            a sequence
+	 * @param mins
+	 *            array of the min-hashes, overwritten
+	 * @param votes
+	 *            array of the votes of each partition, all zeros, left so
+	 * @return the partition
+	 */
+	int partition(byte[] seq, long[] mins, int[] votes) {
+		Arrays.fill(mins, Long.MAX_VALUE);
+		int mask = (1 << (2 * K)) - 1;
+		int kmer = 0;
+		int valid = 0;
+		for (int i = 0; i < seq.length; i++) {
+			int c = Kmers.code(seq[i]);
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			kmer = ((kmer << 2) | c) & mask;
+			if (++valid < K)
+				continue;
+			for (int f = 0; f < HASHES; f++) {
+				long h = kmer * SEEDS[f];
+				h ^= h >>> 29;
+				if (h < mins[f])
+					mins[f] = h;
+			}
+		}
+		int best = -1;
+		for (int f = 0; f < HASHES; f++) {
+			int p = (int) ((mins[f] & Long.MAX_VALUE) % partitions);
+			if (++votes[p] > ((best < 0) ? 0 : votes[best]))
+				best = p;
+		}
+		for (int f = 0; f < HASHES; f++)
+			votes[(int) ((mins[f] & Long.MAX_VALUE) % partitions)] = 0;
+		return best;
+	}
+
+	/**
+	 * Deletes the partition files and, if no log of a failed run is left,
+	 * their directory
+	 *
+	 * @param merged
+	 *            the merged centroids or <code>null</code>
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void clean(String merged) throws IOException {
+		Path dir = Paths.get(super.getOutputDir()).resolve(PARTITIONS);
+		if (!Files.isDirectory(dir))
+			return;
+		if (merged != null)
+			Files.deleteIfExists(Paths.get(merged));
+		for (int i = 0; i < partitions; i++) {
+			String base = dir.resolve(String.format("part_%d", i + 1))
+					.toString();
+			Files.deleteIfExists(Paths.get(base + ".fasta"));
+			Files.deleteIfExists(Paths.get(base + ".otus.fasta"));
+			Files.deleteIfExists(Paths.get(base + ".up"));
+		}
+		DirectoryStream<Path> left = Files.newDirectoryStream(dir);
+		boolean empty;
+		try {
+			empty = !left.iterator().hasNext();
+		} finally {
+			left.close();
+		}
+		if (empty)
+			Files.delete(dir);
+	}
+
+	/**
+	 * Builds the error message of a failed usearch run, recognising the out of
+	 * memory errors of the 32-bit version
+	 * 
+	 * @param error
+	 *            the log file of the run
+	 * @return the error message
+	 * @throws IOException
+	 *             if an I/O error occurs reading the log file
+	 */
+	private String failMessage(File error) throws IOException {
+		boolean memory = false;
+		if (error.isFile()) {
+			BufferedReader reader = new BufferedReader(new FileReader(error));
+			try {
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					if (line.toLowerCase(Locale.ROOT).contains("memory")) {
+						memory = true;
+						break;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		if (memory)
+			return "usearch ran out of memory, try again with more "
+					+ "partitions (see " + error.toString() + ")";
+		return "see " + error.toString() + " for details";
+	}
+
 	/**
 	 * @return and array of string with three output file: 0 - main output file;
 	 *         1 - uparse output file; 2 - log output file
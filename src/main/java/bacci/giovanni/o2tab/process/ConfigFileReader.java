@@ -116,6 +116,37 @@ public class ConfigFileReader<T extends CallableProcess> {
 		return callableProcess;
 	}
 
+	/**
+	 * Returns the value given to an option on an <code>ARG</code> line, so
+	 * that in-process replacements of the external tools can honour the same
+	 * config file
+	 *
+	 * @param option
+	 *            the option (e.g. <code>-id</code>)
+	 * @return the value of the option or <code>null</code> if it is not set.
+	 *         If the option is set more times the last value is returned
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public String getArgument(String option) throws IOException {
+		BufferedReader reader = this.getReader();
+		String value = null;
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] arr = line.split(COMMENT);
+				if (arr.length == 0 || !arr[0].startsWith(ARG))
+					continue;
+				String[] args = getArgs(arr[0], 3);
+				if (args[1].equals(option))
+					value = args[2];
+			}
+		} finally {
+			reader.close();
+		}
+		return value;
+	}
+
 	/**
 	 * @return a reader pointing to the config file
 	 * @throws IOException
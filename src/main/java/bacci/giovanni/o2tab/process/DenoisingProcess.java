@@ -0,0 +1,179 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import bacci.giovanni.o2tab.cluster.UnoiseClusterer;
+import bacci.giovanni.o2tab.cluster.Uniques;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+
+/**
+ * Denoising process running in the JVM. Dereplicated sequences are corrected
+ * with the abundance skew model of {@link UnoiseClusterer} and the surviving
+ * sequences are written as zero-radius OTUs. Like the clustering processes it
+ * outputs the OTU file followed by the pooled reads, so it can be followed
+ * directly by the {@link MappingProcess}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class DenoisingProcess extends PipelineProcess {
+
+	/**
+	 * Name of the output file
+	 */
+	private static final String NAME = "zotus.fasta";
+
+	/**
+	 * Label for zero-radius OTUs
+	 */
+	private static final String LABEL = "Zotu";
+
+	/**
+	 * The alpha parameter of the skew model
+	 */
+	private double alpha = UnoiseClusterer.DEFAULT_ALPHA;
+
+	/**
+	 * Minimum abundance of a zero-radius OTU
+	 */
+	private long minSize = 8;
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Label the OTUs with the size of their clusters
+	 */
+	private boolean sizeout = false;
+
+	/**
+	 * Constructor
+	 */
+	public DenoisingProcess() {
+		super(ProcessType.DENOISING, "denoised");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param alpha
+	 *            the alpha parameter of the skew model
+	 * @return this process with the alpha parameter set
+	 */
+	public DenoisingProcess alpha(double alpha) {
+		this.alpha = alpha;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param minSize
+	 *            the minimum abundance of a zero-radius OTU. Less abundant
+	 *            sequences are not denoised but their reads can still be
+	 *            mapped
+	 * @return this process with the minimum abundance set
+	 */
+	public DenoisingProcess minSize(long minSize) {
+		this.minSize = minSize;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public DenoisingProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param sizeout
+	 *            <code>true</code> for labelling the OTUs with the number of
+	 *            reads of their clusters (<code>;size=</code>), as needed by
+	 *            {@link ChimeraProcess}
+	 * @return this process with the labelling set
+	 */
+	public DenoisingProcess sizeout(boolean sizeout) {
+		this.sizeout = sizeout;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		String warn = null;
+		if (super.getInputFiles().size() < 2)
+			throw new WrongInputFileNumberException(2, super.getInputFiles()
+					.size());
+
+		if (super.getInputFiles().size() > 2)
+			warn = "too many input files found, only the first "
+					+ "two elements will be included in the analysis";
+
+		Uniques uniques = Uniques.read(super.getInputFiles().get(0));
+		String output = Paths.get(super.getOutputDir()).resolve(NAME)
+				.toString();
+		super.addOuptuFile(output);
+
+		// Adding pooled read file to the output. It will be needed by the
+		// mapping process
+		super.addOuptuFile(super.getInputFiles().get(1));
+
+		// Uniques are sorted by decreasing abundance
+		long[] sizes = uniques.getSizes();
+		int n = 0;
+		while (n < sizes.length && sizes[n] >= minSize)
+			n++;
+
+		ProcessResult pr = null;
+		if (n == 0) {
+			if (warn == null) {
+				pr = new ProcessResult(PipelineResult.FAILED);
+			} else {
+				pr = new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
+				pr.addWarning(warn);
+			}
+			pr.addFail("no sequences with abundance of at least " + minSize);
+			return pr;
+		}
+
+		byte[][] seqs = Arrays.copyOf(uniques.getSequences(), n);
+		int[] assign = null;
+		try {
+			assign = new UnoiseClusterer(seqs, Arrays.copyOf(sizes, n), alpha,
+					thread).cluster();
+		} catch (InterruptedException e) {
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+
+		GreedyClusteringOTU.writeCentroids(output, seqs, assign, LABEL,
+				(sizeout) ? sizes : null);
+
+		if (warn == null) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addWarning(warn);
+		}
+		return pr;
+	}
+
+}
@@ -5,13 +5,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
-import java.util.TreeMap;
 
 import org.biojava.bio.BioException;
 import org.biojavax.bio.seq.RichSequenceIterator;
@@ -21,6 +21,9 @@ import bacci.giovanni.o2tab.pipeline.PipelineProcess;
 import bacci.giovanni.o2tab.pipeline.ProcessResult;
 import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
 import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.util.AbundanceSort;
+import bacci.giovanni.o2tab.util.FingerprintTable;
+import bacci.giovanni.o2tab.util.MurmurHash3;
 import bacci.giovanni.o2tab.util.Utils;
 
 /**
@@ -48,6 +51,44 @@ public class DereplicationProcess extends PipelineProcess {
 	 */
 	private Map<ByteSequence, Long> freq;
 
+	/**
+	 * If <code>true</code> the frequency table is keyed on 128-bit
+	 * fingerprints instead of full sequences
+	 */
+	private boolean fingerprint = false;
+
+	/**
+	 * If <code>true</code> every sequence sharing a fingerprint with a
+	 * representative is compared with it to detect hash collisions
+	 */
+	private boolean verify = false;
+
+	/**
+	 * If <code>true</code> sequences that are prefixes of longer sequences
+	 * are folded into their longest extension
+	 */
+	private boolean prefix = false;
+
+	/**
+	 * The fingerprint frequency table
+	 */
+	private FingerprintTable table = null;
+
+	/**
+	 * Representative sequences, indexed by fingerprint table slot
+	 */
+	private byte[][] representatives = null;
+
+	/**
+	 * Number of fingerprint collisions found during the verification
+	 */
+	private long collisions = 0;
+
+	/**
+	 * Seed for the fingerprint hash function
+	 */
+	private final static long SEED = 0x9e3779b97f4a7c15L;
+
 	/**
 	 * Name of the output file
 	 */
@@ -71,59 +112,153 @@ public class DereplicationProcess extends PipelineProcess {
 		this.freq = new HashMap<DereplicationProcess.ByteSequence, Long>();
 	}
 
+	/**
+	 * Build method. Sets the fingerprint mode: sequences are counted on their
+	 * 128-bit hash and only one representative sequence is stored for each
+	 * fingerprint that survives the minimum count. Representatives are
+	 * recovered with a second pass on the input file.
+	 * 
+	 * @param verify
+	 *            if <code>true</code> all the sequences read in the second
+	 *            pass are compared with the representative of their
+	 *            fingerprint and collisions are reported as warnings
+	 * @return this process in fingerprint mode
+	 */
+	public DereplicationProcess fingerprint(boolean verify) {
+		this.fingerprint = true;
+		this.prefix = false;
+		this.verify = verify;
+		return this;
+	}
+
+	/**
+	 * Build method. Sets the prefix mode: a sequence that is a prefix of
+	 * longer sequences (for example a read truncated to a shorter length) is
+	 * counted together with its most abundant longest extension. Folding is
+	 * performed before applying the minimum count. This mode needs the full
+	 * sequences, so it disables the fingerprint mode.
+	 * 
+	 * @return this process in prefix mode
+	 */
+	public DereplicationProcess prefix() {
+		this.prefix = true;
+		this.fingerprint = false;
+		return this;
+	}
+
 	@Override
 	public ProcessResult launch() throws IOException {
-		String warn = null;
+		List<String> warnings = new ArrayList<String>();
 		if (super.getInputFiles().size() < 1)
 			throw new WrongInputFileNumberException(1, super.getInputFiles()
 					.size());
 		if (super.getInputFiles().size() > 1)
-			warn = "too many input files found, only the first "
-					+ "element will be included in the analysis";
+			warnings.add("too many input files found, only the first "
+					+ "element will be included in the analysis");
 
 		String s = super.getInputFiles().get(0);
-		RichSequenceIterator it = Utils.getSequenceIterator(s);
 
-		try {
-			while (it != null && it.hasNext()) {
-				this.addSequence(it.nextSequence().seqString());
-			}
-		} catch (NoSuchElementException e) {
-			throw new IOException("Cannot read inside sequence file: " + s);
-		} catch (BioException e) {
-			throw new IOException("Sequence file is not well formatted " + s);
-		}
+		if (fingerprint)
+			this.table = new FingerprintTable();
+		this.readSequences(s, false);
+		long uniques = (fingerprint) ? table.size() : freq.size();
 
 		ProcessResult res = null;
 
-		switch (freq.size()) {
-		case 0:
-			if (warn == null) {
+		if (uniques == 0) {
+			if (warnings.isEmpty()) {
 				res = new ProcessResult(PipelineResult.FAILED);
 			} else {
 				res = new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
-				res.addWarning(warn);
+				res.addAllWarnings(warnings);
 			}
 			res.addFail("no sequences have been dereplicated");
-			break;
-		default:
-			this.dumpResults();
+		} else {
+			if (fingerprint) {
+				this.representatives = new byte[table.capacity()][];
+				this.readSequences(s, true);
+				this.dumpFingerprints();
+				if (collisions > 0)
+					warnings.add(String.format(
+							"%d sequences collided with the fingerprint "
+									+ "of a different sequence", collisions));
+			} else {
+				this.dumpResults();
+			}
 			// Adding pooled read file to the output. It will be needed by the
 			// mapping process. It is important that this operation is performed
 			// after the execution of the dumpResults method otherwise the reads
 			// file will be the first in the output list
 			super.addOuptuFile(s);
-			if (warn == null) {
+			if (warnings.isEmpty()) {
 				res = new ProcessResult(PipelineResult.PASSED);
 			} else {
 				res = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
-				res.addWarning(warn);
+				res.addAllWarnings(warnings);
 			}
-			break;
 		}
 		return res;
 	}
 
+	/**
+	 * Reads all the sequences in the input file
+	 * 
+	 * @param s
+	 *            the input file
+	 * @param recover
+	 *            if <code>true</code> the sequences are used for recovering
+	 *            the fingerprint representatives, otherwise they are added to
+	 *            the frequency table
+	 * @throws IOException
+	 *             if an I/O error occurs or the file is not well formatted
+	 */
+	private void readSequences(String s, boolean recover) throws IOException {
+		RichSequenceIterator it = Utils.getSequenceIterator(s);
+		long[] hash = new long[2];
+		try {
+			while (it != null && it.hasNext()) {
+				String seq = it.nextSequence().seqString();
+				if (!fingerprint) {
+					this.addSequence(seq);
+					continue;
+				}
+				byte[] b = seq.getBytes(CS);
+				MurmurHash3.hash128(b, 0, b.length, SEED, hash);
+				if (recover) {
+					this.addRepresentative(b, hash);
+				} else {
+					table.increment(hash[0], hash[1]);
+				}
+			}
+		} catch (NoSuchElementException e) {
+			throw new IOException("Cannot read inside sequence file: " + s);
+		} catch (BioException e) {
+			throw new IOException("Sequence file is not well formatted " + s);
+		}
+	}
+
+	/**
+	 * Stores the sequence as the representative of its fingerprint if the
+	 * fingerprint survived the minimum count and has no representative yet.
+	 * In verification mode the sequence is compared with the stored
+	 * representative.
+	 * 
+	 * @param seq
+	 *            the sequence
+	 * @param hash
+	 *            the fingerprint of the sequence
+	 */
+	private void addRepresentative(byte[] seq, long[] hash) {
+		int slot = table.slot(hash[0], hash[1]);
+		if (slot < 0 || table.count(slot) < minCount)
+			return;
+		if (representatives[slot] == null) {
+			representatives[slot] = seq;
+		} else if (verify && !Arrays.equals(representatives[slot], seq)) {
+			collisions++;
+		}
+	}
+
 	/**
 	 * Add a sequence to the frequency table
 	 * 
@@ -140,30 +275,171 @@ public class DereplicationProcess extends PipelineProcess {
 	}
 
 	/**
-	 * Write all results in an output file
+	 * Write all results in an output file. Entries surviving the minimum count
+	 * are moved from the frequency map into primitive arrays, ordered with
+	 * {@link AbundanceSort} and written in a single pass.
 	 * 
 	 * @throws IOException
 	 *             if an I/O error occurs
 	 */
 	private void dumpResults() throws IOException {
-		BufferedWriter wr = this.getWriter();
-		Map<ByteSequence, Long> orderedFreq = new TreeMap<ByteSequence, Long>(
-				new CountComparator());
-		orderedFreq.putAll(freq);
+		byte[][] seqs = new byte[freq.size()][];
+		long[] counts = new long[freq.size()];
+		int n = 0;
+		for (Entry<ByteSequence, Long> e : freq.entrySet()) {
+			if (!prefix && e.getValue() < minCount)
+				continue;
+			seqs[n] = e.getKey().seq;
+			counts[n++] = e.getValue();
+		}
 		freq.clear();
 
-		long numSeq = 0;
-		for (Entry<ByteSequence, Long> e : orderedFreq.entrySet()) {
-			if (e.getValue() < minCount)
+		if (prefix) {
+			this.foldPrefixes(seqs, counts);
+			int j = 0;
+			for (int i = 0; i < seqs.length; i++) {
+				if (counts[i] == 0 || counts[i] < minCount)
+					continue;
+				seqs[j] = seqs[i];
+				counts[j++] = counts[i];
+			}
+			n = j;
+		}
+		this.writeOrdered(Arrays.copyOf(seqs, n), Arrays.copyOf(counts, n));
+	}
+
+	/**
+	 * Folds every sequence that is a prefix of longer sequences into one of
+	 * its longest extensions (a sequence that is not a prefix of any other
+	 * sequence). When more extensions are available the most abundant one is
+	 * chosen, ties are broken on the sequence. The sequences are visited in
+	 * lexicographic order, where the extensions of a sequence form a
+	 * contiguous range right after it, so the nested ranges are resolved with
+	 * a stack in a single pass. The counts of folded sequences are set to 0.
+	 * 
+	 * @param seqs
+	 *            the sequences
+	 * @param counts
+	 *            the counts
+	 */
+	private void foldPrefixes(byte[][] seqs, long[] counts) {
+		int n = seqs.length;
+		int[] order = AbundanceSort.sequenceOrder(seqs);
+		// Best extension found so far in the range of each open sequence
+		int[] best = new int[n];
+		int[] target = new int[n];
+		int[] stack = new int[n];
+		int top = -1;
+		Arrays.fill(target, -1);
+
+		for (int k = 0; k <= n; k++) {
+			int j = (k < n) ? order[k] : -1;
+			while (top >= 0 && (j < 0 || !isPrefix(seqs[stack[top]], seqs[j]))) {
+				int node = stack[top--];
+				if (best[node] < 0) {
+					best[node] = node;
+				} else {
+					target[node] = best[node];
+				}
+				if (top >= 0) {
+					int parent = stack[top];
+					if (best[parent] < 0
+							|| isBetter(best[node], best[parent], seqs, counts))
+						best[parent] = best[node];
+				}
+			}
+			if (j >= 0) {
+				best[j] = -1;
+				stack[++top] = j;
+			}
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (target[i] < 0)
 				continue;
-			numSeq++;
-			wr.write(String.format(">Dereplicated_sequence_%d%s%d", numSeq,
-					FLAG, e.getValue()));
-			String seq = Utils.formatFASTA(e.getKey().getSequence(), 80);
-			wr.newLine();
-			wr.write(seq);
+			counts[target[i]] += counts[i];
+			counts[i] = 0;
+		}
+	}
+
+	/**
+	 * @param a
+	 *            a sequence
+	 * @param b
+	 *            another sequence
+	 * @return <code>true</code> if <code>a</code> is a proper prefix of
+	 *         <code>b</code>
+	 */
+	private static boolean isPrefix(byte[] a, byte[] b) {
+		if (a.length >= b.length)
+			return false;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if the sequence <code>a</code> is more
+	 *         abundant than <code>b</code> or if it comes first in
+	 *         lexicographic order when they have the same count
+	 */
+	private static boolean isBetter(int a, int b, byte[][] seqs, long[] counts) {
+		if (counts[a] != counts[b])
+			return counts[a] > counts[b];
+		return AbundanceSort.compare(seqs[a], seqs[b], 0) < 0;
+	}
+
+	/**
+	 * Write the representatives of all the fingerprints that survived the
+	 * minimum count in an output file, ordered by decreasing count
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void dumpFingerprints() throws IOException {
+		int n = 0;
+		for (int i = 0; i < representatives.length; i++) {
+			if (representatives[i] != null)
+				n++;
+		}
+		byte[][] seqs = new byte[n][];
+		long[] counts = new long[n];
+		int j = 0;
+		for (int i = 0; i < representatives.length; i++) {
+			if (representatives[i] == null)
+				continue;
+			seqs[j] = representatives[i];
+			counts[j++] = table.count(i);
+		}
+		this.representatives = null;
+		this.table = null;
+		this.writeOrdered(seqs, counts);
+	}
+
+	/**
+	 * Writes the sequences ordered by decreasing count. Sequences with the
+	 * same count are written in lexicographic order.
+	 * 
+	 * @param seqs
+	 *            the sequences
+	 * @param counts
+	 *            the counts
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void writeOrdered(byte[][] seqs, long[] counts)
+			throws IOException {
+		int[] order = AbundanceSort.order(counts, seqs);
+		BufferedWriter wr = this.getWriter();
+		long numSeq = 0;
+		for (int i : order) {
+			wr.write(String.format(">Dereplicated_sequence_%d%s%d",
+					++numSeq, FLAG, counts[i]));
 			wr.newLine();
-			wr.flush();
+			Utils.writeFASTA(wr, seqs[i], 80);
+			seqs[i] = null;
 		}
 		wr.close();
 	}
@@ -195,10 +471,6 @@ public class DereplicationProcess extends PipelineProcess {
 			this.seq = sequence.getBytes(CS);
 		}
 
-		private String getSequence() {
-			return new String(seq, CS);
-		}
-
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -240,35 +512,4 @@ public class DereplicationProcess extends PipelineProcess {
 
 	}
 
-	/**
-	 * Private comparator for ordering the entries in the frequency table based
-	 * on their frequency.
-	 * 
-	 * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
-	 *         Bacci</a>
-	 *
-	 */
-	private class CountComparator implements Comparator<ByteSequence> {
-
-		@Override
-		public int compare(ByteSequence o1, ByteSequence o2) {
-			if (o1 == null && o2 == null)
-				return 0;
-			if (o1 == null)
-				return 1;
-			if (o2 == null)
-				return -1;
-			Long l1 = freq.get(o1);
-			Long l2 = freq.get(o2);
-			if (l1 == null && l2 == null)
-				return 0;
-			if (l1 == null)
-				return 1;
-			if (l2 == null)
-				return -1;
-			return l2.compareTo(l1);
-		}
-
-	}
-
 }
@@ -0,0 +1,370 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import bacci.giovanni.o2tab.diversity.AlphaDiversity;
+import bacci.giovanni.o2tab.diversity.AlphaMetrics;
+import bacci.giovanni.o2tab.diversity.BetaDiversity;
+import bacci.giovanni.o2tab.diversity.BetaMetric;
+import bacci.giovanni.o2tab.diversity.DistanceMatrix;
+import bacci.giovanni.o2tab.diversity.UniFrac;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.phylo.Tree;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.table.SparseVector;
+
+/**
+ * Diversity analysis of the OTU tables. Every table (<code>.csv</code>) found
+ * among the input files is rarefied with an {@link AlphaDiversity} and the
+ * richness, Shannon index and Chao1 estimate of each sample are written for
+ * each rarefaction depth and, optionally, along the rarefaction curves.
+ * Samples with fewer reads than a depth are left out at that depth.
+ * <p>
+ * The distances between all the samples can be computed from the counts of
+ * the tables with a {@link BetaDiversity}, writing a distance matrix for
+ * each metric. Given the {@link PhylogenyProcess} of the OTUs, the unweighted
+ * and weighted {@link UniFrac} distances are written too.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class DiversityProcess extends PipelineProcess {
+
+	/**
+	 * Alpha diversity file name
+	 */
+	private static final String ALPHA = "alpha_diversity.tsv";
+
+	/**
+	 * Rarefaction curves file name
+	 */
+	private static final String CURVES = "rarefaction_curves.tsv";
+
+	/**
+	 * Prefix of the distance matrix file names
+	 */
+	private static final String BETA = "beta_";
+
+	/**
+	 * Names of the UniFrac distances
+	 */
+	private static final String UNWEIGHTED = "unweighted_unifrac";
+
+	private static final String WEIGHTED = "weighted_unifrac";
+
+	/**
+	 * Extension of the tables
+	 */
+	private static final String CSV = ".csv";
+
+	/**
+	 * Rarefaction depths
+	 */
+	private long[] depths = new long[0];
+
+	/**
+	 * Step of the rarefaction curves
+	 */
+	private long step = 0;
+
+	/**
+	 * Seed of the random generators
+	 */
+	private long seed = 0;
+
+	/**
+	 * Distances between the samples
+	 */
+	private final List<BetaMetric> metrics = new ArrayList<BetaMetric>();
+
+	/**
+	 * Process writing the trees of the UniFrac distances
+	 */
+	private PhylogenyProcess phylogeny = null;
+
+	/**
+	 * Write the distance matrices in binary format
+	 */
+	private boolean binary = false;
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 */
+	public DiversityProcess() {
+		super(ProcessType.DIVERSITY, "diversity");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param depths
+	 *            the rarefaction depths
+	 * @return this process with the depths set
+	 */
+	public DiversityProcess depths(long... depths) {
+		this.depths = depths.clone();
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param step
+	 *            the distance between the depths of the rarefaction curves,
+	 *            <code>0</code> for no curve
+	 * @return this process with the step set
+	 */
+	public DiversityProcess step(long step) {
+		this.step = step;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param seed
+	 *            the seed of the random generators
+	 * @return this process with the seed set
+	 */
+	public DiversityProcess seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param metrics
+	 *            distances between the samples written as distance matrices
+	 * @return this process with the metrics set
+	 */
+	public DiversityProcess beta(Collection<BetaMetric> metrics) {
+		this.metrics.addAll(metrics);
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param phylogeny
+	 *            the process writing the trees of the OTUs, run before this
+	 *            one, for computing the UniFrac distances
+	 * @return this process with the UniFrac distances set
+	 */
+	public DiversityProcess unifrac(PhylogenyProcess phylogeny) {
+		this.phylogeny = phylogeny;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param binary
+	 *            <code>true</code> for writing the distance matrices in the
+	 *            binary format of {@link DistanceMatrix} instead of tab
+	 *            separated values
+	 * @return this process with the matrix format set
+	 */
+	public DiversityProcess binary(boolean binary) {
+		this.binary = binary;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public DiversityProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		List<String> tables = new ArrayList<String>();
+		for (String input : super.getInputFiles()) {
+			if (input.endsWith(CSV))
+				tables.add(input);
+		}
+		if (tables.isEmpty())
+			throw new WrongInputFileNumberException(1, 0);
+
+		AlphaDiversity alpha = new AlphaDiversity(depths).step(step)
+				.seed(seed).thread(thread);
+		long[] sorted = alpha.getDepths();
+		List<String> warns = new ArrayList<String>();
+		Path dir = Paths.get(super.getOutputDir());
+		for (String input : tables) {
+			String suffix = suffix(input);
+			OtuTable table = OtuTable.read(input);
+			List<String> samples = table.getSamples();
+			SparseVector[] columns = table.getColumns();
+
+			if (!metrics.isEmpty()) {
+				DistanceMatrix[] dist = new BetaDiversity(
+						metrics.toArray(new BetaMetric[metrics.size()]))
+						.thread(thread).compute(samples, columns,
+								table.getOtus().size());
+				for (int m = 0; m < dist.length; m++)
+					this.write(dist[m], metrics.get(m).toString(), suffix);
+			}
+			if (phylogeny != null) {
+				String tree = phylogeny.getTrees().get(suffix);
+				if (tree == null) {
+					warns.add("no tree for the OTUs of " + input);
+				} else {
+					UniFrac unifrac = new UniFrac(Tree.read(tree))
+							.thread(thread);
+					int[] leaves = unifrac.leaves(table.getOtus());
+					int missing = 0;
+					for (int leaf : leaves)
+						if (leaf < 0)
+							missing++;
+					if (missing > 0)
+						warns.add(missing + " OTUs of " + input
+								+ " are not in " + tree);
+					DistanceMatrix[] dist = unifrac.compute(samples, columns,
+							leaves);
+					this.write(dist[0], UNWEIGHTED, suffix);
+					this.write(dist[1], WEIGHTED, suffix);
+				}
+			}
+			if (sorted.length == 0 && step == 0)
+				continue;
+
+			AlphaMetrics[][] alphas;
+			try {
+				alphas = alpha.rarefy(samples, columns);
+			} catch (IllegalArgumentException e) {
+				ProcessResult pr = (warns.isEmpty()) ? new ProcessResult(
+						PipelineResult.FAILED) : new ProcessResult(
+						PipelineResult.FAILED_WITH_WARNINGS);
+				pr.addAllWarnings(warns);
+				pr.addFail(e.getMessage() + " in " + input);
+				return pr;
+			}
+
+			if (sorted.length > 0) {
+				String out = dir.resolve(
+						MappingProcess.withSuffix(ALPHA, suffix)).toString();
+				BufferedWriter wr = new BufferedWriter(new FileWriter(out));
+				try {
+					wr.write("SampleId\tDepth\tRichness\tShannon\tChao1");
+					wr.newLine();
+					for (int s = 0; s < samples.size(); s++)
+						for (AlphaMetrics m : alphas[s])
+							if (Arrays.binarySearch(sorted, m.getDepth()) >= 0)
+								write(wr, samples.get(s), m);
+				} finally {
+					wr.close();
+				}
+				super.addOuptuFile(out);
+			}
+
+			if (step > 0) {
+				String out = dir.resolve(
+						MappingProcess.withSuffix(CURVES, suffix)).toString();
+				BufferedWriter wr = new BufferedWriter(new FileWriter(out));
+				try {
+					wr.write("SampleId\tDepth\tRichness\tShannon\tChao1");
+					wr.newLine();
+					for (int s = 0; s < samples.size(); s++)
+						for (AlphaMetrics m : alphas[s])
+							write(wr, samples.get(s), m);
+				} finally {
+					wr.close();
+				}
+				super.addOuptuFile(out);
+			}
+
+			for (long d : sorted) {
+				int below = 0;
+				for (AlphaMetrics[] m : alphas)
+					if (m.length == 0 || m[m.length - 1].getDepth() < d)
+						below++;
+				if (below > 0)
+					warns.add(below + " samples of " + input
+							+ " have fewer than " + d + " reads");
+			}
+		}
+
+		ProcessResult pr = null;
+		if (warns.isEmpty()) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+		}
+		return pr;
+	}
+
+	/**
+	 * Writes a distance matrix and adds it to the output files
+	 *
+	 * @param dist
+	 *            the matrix
+	 * @param metric
+	 *            the name of the distance
+	 * @param suffix
+	 *            the suffix of the table or <code>null</code>
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void write(DistanceMatrix dist, String metric, String suffix)
+			throws IOException {
+		String name = BETA + metric + (binary ? ".dist" : ".tsv");
+		String out = Paths.get(super.getOutputDir())
+				.resolve(MappingProcess.withSuffix(name, suffix)).toString();
+		if (binary)
+			dist.writeBinary(out);
+		else
+			dist.write(out);
+		super.addOuptuFile(out);
+	}
+
+	/**
+	 * @param table
+	 *            an OTU table
+	 * @return the suffix of the table or <code>null</code> if the table has no
+	 *         suffix
+	 */
+	private static String suffix(String table) {
+		String name = Paths.get(table).getFileName().toString();
+		name = name.substring(0, name.length() - CSV.length());
+		if (name.equals("otu_table"))
+			return null;
+		if (name.startsWith("otu_table_"))
+			return name.substring("otu_table_".length());
+		return name;
+	}
+
+	private static void write(BufferedWriter wr, String sample, AlphaMetrics m)
+			throws IOException {
+		wr.write(String.format(Locale.US, "%s\t%d\t%d\t%.6f\t%.6f", sample,
+				m.getDepth(), m.getRichness(), m.getShannon(), m.getChao1()));
+		wr.newLine();
+	}
+
+}
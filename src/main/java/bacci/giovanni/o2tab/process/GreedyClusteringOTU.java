@@ -0,0 +1,259 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+
+import bacci.giovanni.o2tab.cluster.GreedyClusterer;
+import bacci.giovanni.o2tab.cluster.MultiThresholdClusterer;
+import bacci.giovanni.o2tab.cluster.Uniques;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.Utils;
+
+/**
+ * Clustering process running in the JVM. Dereplicated sequences are clustered
+ * in decreasing abundance order with a fixed identity radius, using a k-mer
+ * index for shortlisting the centroids and more threads for comparing the
+ * sequences. This process is an alternative to {@link ClusteringOTU} that is
+ * not limited by the memory and thread caps of the 32-bit usearch.
+ * <p>
+ * When more identity thresholds are given the sequences are aligned once and
+ * clustered at every threshold, writing one <code>otus_&lt;id&gt;.fasta</code>
+ * file per threshold (e.g. <code>otus_97.fasta</code>). Downstream processes
+ * map and table each OTU set separately.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class GreedyClusteringOTU extends PipelineProcess {
+
+	/**
+	 * Name of the main output file
+	 */
+	private static final String NAME = "otus.fasta";
+
+	/**
+	 * Label for OTUs
+	 */
+	private static final String LABEL = "OTU_";
+
+	/**
+	 * Prefix of the output files in multi threshold mode
+	 */
+	private static final String PREFIX = "otus_";
+
+	/**
+	 * The identity thresholds
+	 */
+	private double[] identities = { 0.97 };
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Label the OTUs with the size of their clusters
+	 */
+	private boolean sizeout = false;
+
+	/**
+	 * Constructor
+	 */
+	public GreedyClusteringOTU() {
+		super(ProcessType.OTUCLUST, "clustered");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param identity
+	 *            the minimum identity between a sequence and its OTU centroid
+	 * @return this process with the identity threshold set
+	 */
+	public GreedyClusteringOTU identity(double identity) {
+		this.identities = new double[] { identity };
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param identities
+	 *            the identity thresholds. An OTU set is produced for each
+	 *            threshold
+	 * @return this process with the identity thresholds set
+	 */
+	public GreedyClusteringOTU identities(double... identities) {
+		if (identities.length == 0)
+			throw new IllegalArgumentException("no identity threshold given");
+		this.identities = identities.clone();
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public GreedyClusteringOTU thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param sizeout
+	 *            <code>true</code> for labelling the OTUs with the number of
+	 *            reads of their clusters (<code>;size=</code>), as needed by
+	 *            {@link ChimeraProcess}
+	 * @return this process with the labelling set
+	 */
+	public GreedyClusteringOTU sizeout(boolean sizeout) {
+		this.sizeout = sizeout;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		String warn = null;
+		if (super.getInputFiles().size() < 2)
+			throw new WrongInputFileNumberException(2, super.getInputFiles()
+					.size());
+
+		if (super.getInputFiles().size() > 2)
+			warn = "too many input files found, only the first "
+					+ "two elements will be included in the analysis";
+
+		Uniques uniques = Uniques.read(super.getInputFiles().get(0));
+		String[] outputs = new String[identities.length];
+		if (identities.length == 1) {
+			outputs[0] = Paths.get(super.getOutputDir()).resolve(NAME)
+					.toString();
+		} else {
+			for (int i = 0; i < identities.length; i++) {
+				String name = PREFIX + formatIdentity(identities[i]) + ".fasta";
+				outputs[i] = Paths.get(super.getOutputDir()).resolve(name)
+						.toString();
+			}
+		}
+		for (String output : outputs)
+			super.addOuptuFile(output);
+
+		// Adding pooled read file to the output. It will be needed by the
+		// mapping process
+		super.addOuptuFile(super.getInputFiles().get(1));
+
+		ProcessResult pr = null;
+		if (uniques.size() == 0) {
+			if (warn == null) {
+				pr = new ProcessResult(PipelineResult.FAILED);
+			} else {
+				pr = new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
+				pr.addWarning(warn);
+			}
+			pr.addFail("no sequences to cluster");
+			return pr;
+		}
+
+		int[][] assign = null;
+		try {
+			if (identities.length == 1) {
+				assign = new int[][] { new GreedyClusterer(
+						uniques.getSequences(), uniques.getSizes(),
+						identities[0], thread).cluster() };
+			} else {
+				assign = new MultiThresholdClusterer(uniques.getSequences(),
+						uniques.getSizes(), identities, thread).cluster();
+			}
+		} catch (InterruptedException e) {
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+
+		for (int i = 0; i < outputs.length; i++)
+			writeCentroids(outputs[i], uniques.getSequences(), assign[i],
+					LABEL, (sizeout) ? uniques.getSizes() : null);
+
+		if (warn == null) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addWarning(warn);
+		}
+		return pr;
+	}
+
+	/**
+	 * @param identity
+	 *            an identity threshold
+	 * @return the threshold as a percentage without trailing zeros (e.g. 97
+	 *         or 99.5)
+	 */
+	private static String formatIdentity(double identity) {
+		return new BigDecimal(identity * 100)
+				.setScale(2, RoundingMode.HALF_UP).stripTrailingZeros()
+				.toPlainString();
+	}
+
+	/**
+	 * Writes the centroids in a FASTA file, relabelling them with the given
+	 * prefix followed by a progressive number and, if the sizes of the
+	 * sequences are given, by the size of their clusters
+	 *
+	 * @param output
+	 *            the output file
+	 * @param seqs
+	 *            the sequences
+	 * @param assign
+	 *            the centroid of each sequence
+	 * @param label
+	 *            the label prefix
+	 * @param sizes
+	 *            the abundance of each sequence or <code>null</code> for
+	 *            labels without sizes
+	 * @return the number of centroids written
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	static int writeCentroids(String output, byte[][] seqs, int[] assign,
+			String label, long[] sizes) throws IOException {
+		long[] clusters = null;
+		if (sizes != null) {
+			clusters = new long[assign.length];
+			for (int i = 0; i < assign.length; i++)
+				clusters[assign[i]] += sizes[i];
+		}
+		BufferedWriter wr = new BufferedWriter(new FileWriter(output));
+		int otu = 0;
+		try {
+			for (int i = 0; i < assign.length; i++) {
+				if (assign[i] != i)
+					continue;
+				wr.write(">" + label + (++otu));
+				if (clusters != null)
+					wr.write(FastaRecord.SIZE + clusters[i]);
+				wr.newLine();
+				Utils.writeFASTA(wr, seqs[i], 80);
+			}
+		} finally {
+			wr.close();
+		}
+		return otu;
+	}
+
+}
@@ -1,24 +1,55 @@
 package bacci.giovanni.o2tab.process;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
 import bacci.giovanni.o2tab.pipeline.PipelineProcess;
 import bacci.giovanni.o2tab.pipeline.ProcessResult;
 import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
 import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.table.TableFormat;
+import bacci.giovanni.o2tab.table.UcParser;
 
 /**
  * Mapping process which maps the reads back to the OTUs. This process uses the
  * usearch command <code>-usearch_global</code>.
+ * <p>
+ * The last input file must contain the reads, all the others are OTU sets.
+ * When more OTU sets are given (multi threshold clustering) the reads are
+ * mapped on each of them and a <code>map_&lt;id&gt;.uc</code> file is written
+ * for each set.
+ * <p>
+ * With more than one thread the reads are split in as many shards of
+ * consecutive records, each shard is mapped by its own usearch instance at
+ * the same time as the others and the mapping files of the shards are
+ * concatenated in order. The shards and their mapping files are deleted
+ * when done, their logs are kept only if a usearch run fails.
  * 
  * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
  *         Bacci</a>
@@ -36,6 +67,37 @@ public class MappingProcess extends PipelineProcess {
 	 */
 	private static final String NAME_LOG = "mapping.log";
 
+	/**
+	 * Name of the sub folder with the shard files
+	 */
+	private static final String SHARDS = "shards";
+
+	/**
+	 * Name of the OTU table written in streaming mode
+	 */
+	private static final String TABLE = "otu_table.csv";
+
+	/**
+	 * Number of shards mapped concurrently
+	 */
+	private int thread = 1;
+
+	/**
+	 * Build the OTU tables while mapping
+	 */
+	private boolean streamTable = false;
+
+	/**
+	 * Additional formats of the streamed tables
+	 */
+	private final List<TableFormat> tableFormats = new ArrayList<TableFormat>();
+
+	/**
+	 * Pass the records of the streaming mode through named pipes where they
+	 * can be created
+	 */
+	private boolean pipes = true;
+
 	/**
 	 * The config file reader
 	 */
@@ -49,76 +111,492 @@ public class MappingProcess extends PipelineProcess {
 		super(ProcessType.MAPPING, "mapped");
 	}
 
+	/**
+	 * Build method
+	 * 
+	 * @param thread
+	 *            the number of shards the reads are split in, i.e. the number
+	 *            of usearch instances running at the same time
+	 * @return this process with the number of threads set
+	 */
+	public MappingProcess thread(int thread) {
+		this.thread = Math.max(1, thread);
+		return this;
+	}
+
+	/**
+	 * Build method
+	 * 
+	 * @param streamTable
+	 *            <code>true</code> for passing the mapping records of usearch
+	 *            through a named pipe to an in-process parser, which folds
+	 *            them into the OTU table while usearch is still running. The
+	 *            outputs are then the OTU tables instead of the mapping files,
+	 *            which are never written to disk.
+	 * @return this process with the streaming mode set
+	 */
+	public MappingProcess streamTable(boolean streamTable) {
+		this.streamTable = streamTable;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 * 
+	 * @param tableFormats
+	 *            additional formats each table built in streaming mode is
+	 *            written in
+	 * @return this process with the table formats set
+	 */
+	public MappingProcess tableFormats(Collection<TableFormat> tableFormats) {
+		this.tableFormats.addAll(tableFormats);
+		return this;
+	}
+
+	/**
+	 * Build method
+	 * 
+	 * @param pipes
+	 *            <code>false</code> for writing the records of the streaming
+	 *            mode to temporary files even where named pipes can be
+	 *            created
+	 * @return this process with the use of named pipes set
+	 */
+	MappingProcess pipes(boolean pipes) {
+		this.pipes = pipes;
+		return this;
+	}
+
 	@Override
 	public ProcessResult launch() throws IOException {
-		String warn = null;
 		if (super.getInputFiles().size() < 2)
 			throw new WrongInputFileNumberException(2, super.getInputFiles()
 					.size());
 
-		if (super.getInputFiles().size() > 2)
-			warn = "too many input files found, only the first two"
-					+ "elements will be included in the analysis";
-
-		String input = super.getInputFiles().get(0);
-		String[] outs = this.getOutputs();
-
-		GlobalOTUProcess otu = new GlobalOTUProcess(super.getInputFiles()
-				.get(1));
-		otu.addArgumentCommand("-db", input);
-		otu.addArgumentCommand("-uc", outs[0]);
-
-		File error = new File(outs[1]);
-		otu.setError(Redirect.to(error));
-
-		ExecutorService ex = Executors.newFixedThreadPool(1);
-		Future<Integer> res = ex.submit(CONFIG.setExternalArguments(otu));
-
-		ProcessResult pr = null;
+		// The last input file contains the reads, all the others are OTU
+		// sets (one for each identity threshold in multi threshold mode)
+		List<String> inputs = super.getInputFiles();
+		String reads = inputs.get(inputs.size() - 1);
+		List<String> dbs = inputs.subList(0, inputs.size() - 1);
 
+		List<String> fails = new ArrayList<String>();
+		List<String> shards = (thread > 1) ? this.split(reads) : null;
+		ExecutorService ex = Executors.newFixedThreadPool(thread);
 		try {
-			switch (res.get()) {
-			case 0:
-				if (warn == null) {
-					pr = new ProcessResult(PipelineResult.PASSED);
-				} else {
-					pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
-					pr.addWarning(warn);
+			for (String db : dbs) {
+				String suffix = (dbs.size() == 1) ? null : suffix(db);
+				String[] outs = this.getOutputs(suffix);
+				if (streamTable) {
+					List<String> queries = (shards != null) ? shards
+							: Collections.singletonList(reads);
+					this.mapStreaming(ex, queries, db, suffix, outs, fails);
+					continue;
 				}
-				break;
-			default:
-				if (warn == null) {
-					pr = new ProcessResult(PipelineResult.FAILED);
-				} else {
-					pr = new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
-					pr.addWarning(warn);
+				super.addOuptuFile(outs[0]);
+				if (shards != null) {
+					this.mapShards(ex, shards, db, suffix, outs[0], fails);
+					continue;
 				}
-				pr.addFail("see " + error.toString() + " for details");
-				break;
+
+				File error = new File(outs[1]);
+				Future<Integer> res = ex.submit(this.globalProcess(reads, db,
+						outs[0], error));
+				if (res.get() != 0)
+					fails.add("see " + error.toString() + " for details");
 			}
 		} catch (InterruptedException e) {
 			ex.shutdownNow();
-			pr = new ProcessResult(PipelineResult.INTERRUPTED);
+			return new ProcessResult(PipelineResult.INTERRUPTED);
 		} catch (ExecutionException e) {
 			throw new IOException(e.getMessage());
+		} finally {
+			ex.shutdown();
+			if (shards != null)
+				this.clean(shards);
+		}
+
+		ProcessResult pr = null;
+		if (fails.isEmpty()) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.FAILED);
+			pr.addAllFails(fails);
 		}
 		return pr;
 	}
 
 	/**
+	 * Splits the reads in shards of consecutive records, copying the lines
+	 * unchanged
+	 * 
+	 * @param reads
+	 *            the read file
+	 * @return the shard files, in read order
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private List<String> split(String reads) throws IOException {
+		Path dir = Paths.get(super.getOutputDir()).resolve(SHARDS);
+		if (!Files.isDirectory(dir))
+			Files.createDirectory(dir);
+
+		long records = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(reads));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null)
+				if (line.startsWith(">"))
+					records++;
+		} finally {
+			reader.close();
+		}
+
+		List<String> shards = new ArrayList<String>();
+		long perShard = Math.max(1, (records + thread - 1) / thread);
+		reader = new BufferedReader(new FileReader(reads));
+		BufferedWriter wr = null;
+		try {
+			long record = 0;
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(">") && record++ % perShard == 0) {
+					if (wr != null)
+						wr.close();
+					String shard = dir.resolve(
+							String.format("shard_%d.fasta", shards.size() + 1))
+							.toString();
+					shards.add(shard);
+					wr = new BufferedWriter(new FileWriter(shard));
+				}
+				if (wr == null)
+					continue;
+				wr.write(line);
+				wr.newLine();
+			}
+		} finally {
+			reader.close();
+			if (wr != null)
+				wr.close();
+		}
+		return shards;
+	}
+
+	/**
+	 * Maps the shards on an OTU set concurrently and concatenates their
+	 * mapping files
+	 * 
+	 * @param ex
+	 *            the executor
+	 * @param shards
+	 *            the shard files
+	 * @param db
+	 *            the OTU file
+	 * @param suffix
+	 *            the suffix of the OTU set or <code>null</code>
+	 * @param out
+	 *            the mapping file
+	 * @param fails
+	 *            list receiving the errors
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the process is interrupted
+	 * @throws ExecutionException
+	 *             if a process cannot be launched
+	 */
+	private void mapShards(ExecutorService ex, List<String> shards,
+			String db, String suffix, String out, List<String> fails)
+			throws IOException, InterruptedException, ExecutionException {
+		List<GlobalOTUProcess> processList = new ArrayList<GlobalOTUProcess>();
+		List<File> errorFiles = new ArrayList<File>();
+		List<String> ucFiles = new ArrayList<String>();
+		for (String shard : shards) {
+			String base = shard.replaceAll("\\.fasta$", "");
+			String uc = withSuffix(base + ".uc", suffix);
+			File error = new File(withSuffix(base + ".log", suffix));
+			processList.add(this.globalProcess(shard, db, uc, error));
+			errorFiles.add(error);
+			ucFiles.add(uc);
+		}
+
+		List<Future<Integer>> results = ex.invokeAll(processList);
+		boolean failed = false;
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i).get() != 0) {
+				fails.add("see " + errorFiles.get(i).toString()
+						+ " for details");
+				failed = true;
+			}
+		}
+		if (failed) {
+			// Only the logs are useful after a failure
+			for (String uc : ucFiles)
+				Files.deleteIfExists(Paths.get(uc));
+			return;
+		}
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+		try {
+			for (String uc : ucFiles)
+				Files.copy(Paths.get(uc), os);
+		} finally {
+			os.close();
+		}
+		for (int i = 0; i < ucFiles.size(); i++) {
+			Files.delete(Paths.get(ucFiles.get(i)));
+			Files.deleteIfExists(errorFiles.get(i).toPath());
+		}
+	}
+
+	/**
+	 * Deletes the shard files and, if no log of a failed run is left, their
+	 * directory
+	 * 
+	 * @param shards
+	 *            the shard files
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void clean(List<String> shards) throws IOException {
+		for (String shard : shards)
+			Files.deleteIfExists(Paths.get(shard));
+		Path dir = Paths.get(super.getOutputDir()).resolve(SHARDS);
+		DirectoryStream<Path> left = Files.newDirectoryStream(dir);
+		boolean empty;
+		try {
+			empty = !left.iterator().hasNext();
+		} finally {
+			left.close();
+		}
+		if (empty)
+			Files.delete(dir);
+	}
+
+	/**
+	 * Maps the queries on an OTU set, each usearch instance writing its
+	 * records to a named pipe read by a parser thread, and writes the OTU
+	 * table merging the tables of all the queries in order. Where named pipes
+	 * cannot be created the records are written to a temporary file parsed
+	 * when usearch ends.
+	 * 
+	 * @param ex
+	 *            the executor
+	 * @param queries
+	 *            the read file or the shard files
+	 * @param db
+	 *            the OTU file
+	 * @param suffix
+	 *            the suffix of the OTU set or <code>null</code>
+	 * @param outs
+	 *            the mapping and log file names
+	 * @param fails
+	 *            list receiving the errors
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the process is interrupted
+	 * @throws ExecutionException
+	 *             if a process cannot be launched
+	 */
+	private void mapStreaming(ExecutorService ex, List<String> queries,
+			String db, String suffix, String[] outs, List<String> fails)
+			throws IOException, InterruptedException, ExecutionException {
+		int n = queries.size();
+		int before = fails.size();
+		final String[] ucFiles = new String[n];
+		final AtomicIntegerArray opened = new AtomicIntegerArray(n);
+		List<GlobalOTUProcess> processList = new ArrayList<GlobalOTUProcess>();
+		List<File> errorFiles = new ArrayList<File>();
+		boolean fifo = true;
+		for (int i = 0; i < n; i++) {
+			File error = new File(outs[1]);
+			ucFiles[i] = outs[0];
+			if (n > 1) {
+				String base = queries.get(i).replaceAll("\\.fasta$", "");
+				ucFiles[i] = withSuffix(base + ".uc", suffix);
+				error = new File(withSuffix(base + ".log", suffix));
+			}
+			fifo &= pipes && mkfifo(ucFiles[i]);
+			processList.add(this.globalProcess(queries.get(i), db,
+					ucFiles[i], error));
+			errorFiles.add(error);
+		}
+		// usearch would block on a pipe nobody reads
+		if (!fifo)
+			for (String uc : ucFiles)
+				Files.deleteIfExists(Paths.get(uc));
+
+		List<Callable<OtuTable>> parsers = new ArrayList<Callable<OtuTable>>();
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			parsers.add(new Callable<OtuTable>() {
+				@Override
+				public OtuTable call() throws IOException {
+					OtuTable table = new OtuTable();
+					InputStream in = new FileInputStream(ucFiles[index]);
+					opened.set(index, 1);
+					try {
+						UcParser.parse(in, table);
+					} finally {
+						in.close();
+					}
+					return table;
+				}
+			});
+		}
+
+		ExecutorService readers = Executors.newFixedThreadPool(n);
+		try {
+			List<Future<OtuTable>> tables = new ArrayList<Future<OtuTable>>();
+			// Pipes are read while usearch runs, files when it ends
+			if (fifo)
+				for (Callable<OtuTable> parser : parsers)
+					tables.add(readers.submit(parser));
+			boolean[] failed = new boolean[n];
+			try {
+				List<Future<Integer>> results = ex.invokeAll(processList);
+				for (int i = 0; i < n; i++) {
+					failed[i] = results.get(i).get() != 0;
+					if (failed[i])
+						fails.add("see " + errorFiles.get(i).toString()
+								+ " for details");
+				}
+			} finally {
+				// A parser still waiting for a writer, because usearch failed
+				// or could not be launched, is released opening the pipe on
+				// this side. Blocked in the open it could not be interrupted
+				if (fifo)
+					for (int i = 0; i < n; i++)
+						if (opened.get(i) == 0)
+							new FileOutputStream(ucFiles[i]).close();
+			}
+			if (!fifo)
+				tables = readers.invokeAll(parsers);
+
+			OtuTable merged = new OtuTable();
+			for (int i = 0; i < n; i++) {
+				try {
+					OtuTable t = tables.get(i).get();
+					if (!failed[i])
+						merged.merge(t);
+				} catch (ExecutionException e) {
+					// The records of failed runs are not reliable
+					if (!failed[i])
+						throw e;
+				}
+			}
+			if (fails.isEmpty()) {
+				Path p = Paths.get(super.getOutputDir());
+				String table = p.resolve(withSuffix(TABLE, suffix)).toString();
+				merged.write(table);
+				super.addOuptuFile(table);
+				for (TableFormat f : tableFormats) {
+					String out = p.resolve(withSuffix(f.getFileName(), suffix))
+							.toString();
+					f.write(merged, out);
+					super.addOuptuFile(out);
+				}
+			}
+		} finally {
+			readers.shutdownNow();
+			for (String uc : ucFiles)
+				Files.deleteIfExists(Paths.get(uc));
+		}
+		// The logs of the shards are kept only when a run fails
+		if (n > 1 && fails.size() == before)
+			for (File error : errorFiles)
+				Files.deleteIfExists(error.toPath());
+	}
+
+	/**
+	 * Creates a named pipe
+	 * 
+	 * @param path
+	 *            the path of the pipe
+	 * @return <code>true</code> if the pipe has been created
+	 * @throws InterruptedException
+	 *             if the process is interrupted
+	 * @throws IOException
+	 *             if an I/O error occurs removing a previous file
+	 */
+	private static boolean mkfifo(String path) throws InterruptedException,
+			IOException {
+		Files.deleteIfExists(Paths.get(path));
+		try {
+			return new ProcessBuilder("mkfifo", path).start().waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param query
+	 *            the query file
+	 * @param db
+	 *            the OTU file
+	 * @param uc
+	 *            the mapping file
+	 * @param error
+	 *            the log file
+	 * @return a usearch_global process with the options of the config file
+	 * @throws IOException
+	 *             if the config file cannot be read
+	 */
+	private GlobalOTUProcess globalProcess(String query, String db,
+			String uc, File error) throws IOException {
+		GlobalOTUProcess otu = new GlobalOTUProcess(query);
+		otu.addArgumentCommand("-db", db);
+		otu.addArgumentCommand("-uc", uc);
+		otu.setError(Redirect.to(error));
+		return CONFIG.setExternalArguments(otu);
+	}
+
+	/**
+	 * @param db
+	 *            an OTU file
+	 * @return the suffix identifying the OTU set (e.g. <code>97</code> for
+	 *         <code>otus_97.fasta</code>)
+	 */
+	static String suffix(String db) {
+		String name = Paths.get(db).getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		if (name.startsWith("otus_"))
+			name = name.substring("otus_".length());
+		return name;
+	}
+
+	/**
+	 * @param suffix
+	 *            the suffix of the OTU set or <code>null</code> if there is
+	 *            only one OTU set
 	 * @return the outpu file names as an array of string. 0 - output file name;
 	 *         1 - log file name
 	 * @throws IOException
 	 *             if an I/O error occurs generating the files
 	 */
-	private String[] getOutputs() throws IOException {
+	private String[] getOutputs(String suffix) throws IOException {
 		Path p = Paths.get(super.getOutputDir());
-		String out = p.resolve(NAME).toString();
-		String log = p.resolve(NAME_LOG).toString();
-		super.addOuptuFile(out);
+		String out = p.resolve(withSuffix(NAME, suffix)).toString();
+		String log = p.resolve(withSuffix(NAME_LOG, suffix)).toString();
 		return new String[] { out, log };
 	}
 
+	/**
+	 * @param name
+	 *            a file name
+	 * @param suffix
+	 *            a suffix or <code>null</code>
+	 * @return the file name with the suffix added before the extension
+	 */
+	static String withSuffix(String name, String suffix) {
+		if (suffix == null)
+			return name;
+		int dot = name.lastIndexOf('.');
+		return name.substring(0, dot) + "_" + suffix + name.substring(dot);
+	}
+
 	/**
 	 * usearch_global process
 	 * 
@@ -0,0 +1,414 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.map.ReadMapper;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.table.SparseCounts;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+
+/**
+ * In-process replacement of {@link MappingProcess}. The reads are searched
+ * against the OTUs with a {@link ReadMapper} in parallel batches and the hits
+ * are written in the <code>.uc</code> format of
+ * <code>usearch -usearch_global</code>, so the mapping files can be tabled
+ * as usual. The identity threshold and the <code>-maxaccepts</code> and
+ * <code>-maxrejects</code> options are taken from the same config file used
+ * by usearch.
+ * <p>
+ * Inputs and outputs follow {@link MappingProcess}: the last input file
+ * contains the reads, all the others are OTU sets and a mapping file is
+ * written for each of them.
+ * <p>
+ * In uniques mode each distinct read sequence is searched once and the
+ * mapping file holds a record for each distinct sequence and sample, with
+ * the number of reads of the sample as <code>;size=</code> annotation, which
+ * {@link NativeTableProcess} adds up (<code>uc2otutab.py</code> counts one
+ * read per record, so these files are only tabled natively). The reads are dereplicated again by sample,
+ * since the output of the dereplication process has no sample counts and
+ * misses the sequences below its minimum abundance.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class NativeMappingProcess extends PipelineProcess {
+
+	/**
+	 * Output file name
+	 */
+	private static final String NAME = "map.uc";
+
+	/**
+	 * Label prefix of the distinct sequences in uniques mode
+	 */
+	private static final String LABEL = "Uniq";
+
+	/**
+	 * Reads searched between two writes
+	 */
+	private static final int BATCH = 8192;
+
+	/**
+	 * Default identity threshold
+	 */
+	private static final double DEFAULT_ID = 0.97;
+
+	/**
+	 * The config file reader
+	 */
+	private final static ConfigFileReader<CallableProcess> CONFIG = new ConfigFileReader<CallableProcess>(
+			"/usearchglobal.config");
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Search each distinct read once
+	 */
+	private boolean uniques = false;
+
+	/**
+	 * Constructor
+	 */
+	public NativeMappingProcess() {
+		super(ProcessType.MAPPING, "mapped");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public NativeMappingProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param uniques
+	 *            <code>true</code> for searching each distinct read sequence
+	 *            once and writing a record weighted by the number of reads
+	 *            for each distinct sequence and sample
+	 * @return this process with the mapping mode set
+	 */
+	public NativeMappingProcess uniques(boolean uniques) {
+		this.uniques = uniques;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		if (super.getInputFiles().size() < 2)
+			throw new WrongInputFileNumberException(2, super.getInputFiles()
+					.size());
+
+		List<String> inputs = super.getInputFiles();
+		String reads = inputs.get(inputs.size() - 1);
+		List<String> dbs = inputs.subList(0, inputs.size() - 1);
+
+		String warn = null;
+		double id = DEFAULT_ID;
+		int maxAccepts = ReadMapper.DEFAULT_MAX_ACCEPTS;
+		int maxRejects = ReadMapper.DEFAULT_MAX_REJECTS;
+		try {
+			String value = CONFIG.getArgument("-id");
+			if (value != null)
+				id = Double.parseDouble(value);
+			value = CONFIG.getArgument("-maxaccepts");
+			if (value != null)
+				maxAccepts = Integer.parseInt(value);
+			value = CONFIG.getArgument("-maxrejects");
+			if (value != null)
+				maxRejects = Integer.parseInt(value);
+		} catch (FileNotFoundException e) {
+			warn = e.getMessage() + ", using an identity threshold of "
+					+ DEFAULT_ID;
+		}
+
+		ExecutorService ex = Executors.newFixedThreadPool(thread);
+		try {
+			for (String db : dbs) {
+				String suffix = (dbs.size() == 1) ? null : MappingProcess
+						.suffix(db);
+				String out = Paths.get(super.getOutputDir())
+						.resolve(MappingProcess.withSuffix(NAME, suffix))
+						.toString();
+				super.addOuptuFile(out);
+
+				List<FastaRecord> otus = FastaRecordReader.readAll(db);
+				byte[][] seqs = new byte[otus.size()][];
+				String[] labels = new String[otus.size()];
+				for (int i = 0; i < seqs.length; i++) {
+					seqs[i] = otus.get(i).getSequence();
+					labels[i] = otus.get(i).getLabel();
+				}
+				ReadMapper mapper = new ReadMapper(seqs, id).maxAccepts(
+						maxAccepts).maxRejects(maxRejects);
+				if (uniques)
+					this.mapUniques(ex, mapper, labels, reads, out);
+				else
+					this.map(ex, mapper, labels, reads, out);
+			}
+		} catch (InterruptedException e) {
+			ex.shutdownNow();
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			ex.shutdown();
+		}
+
+		ProcessResult pr = null;
+		if (warn == null) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addWarning(warn);
+		}
+		return pr;
+	}
+
+	/**
+	 * Maps all the reads on a set of OTUs
+	 *
+	 * @param ex
+	 *            the executor
+	 * @param mapper
+	 *            the mapper
+	 * @param labels
+	 *            the OTU labels
+	 * @param reads
+	 *            the read file
+	 * @param out
+	 *            the mapping file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the mapping is interrupted
+	 * @throws ExecutionException
+	 *             if a thread fails
+	 */
+	private void map(ExecutorService ex, ReadMapper mapper,
+			final String[] labels, String reads, String out)
+			throws IOException, InterruptedException, ExecutionException {
+		final ReadMapper.Searcher[] searchers = new ReadMapper.Searcher[thread];
+		for (int t = 0; t < thread; t++)
+			searchers[t] = mapper.searcher();
+		final FastaRecord[] batch = new FastaRecord[BATCH];
+		final String[] lines = new String[BATCH];
+
+		FastaRecordReader reader = new FastaRecordReader(reads);
+		BufferedWriter wr = new BufferedWriter(new FileWriter(out));
+		try {
+			int n = 0;
+			do {
+				for (n = 0; n < BATCH; n++)
+					if ((batch[n] = reader.next()) == null)
+						break;
+				// Each thread searches a slice of the batch with its searcher
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				int chunk = (n + thread - 1) / thread;
+				for (int t = 0; t < thread && t * chunk < n; t++) {
+					final int from = t * chunk;
+					final int to = Math.min(n, from + chunk);
+					final ReadMapper.Searcher s = searchers[t];
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() {
+							for (int i = from; i < to; i++)
+								lines[i] = ucLine(s, batch[i], labels);
+							return null;
+						}
+					});
+				}
+				for (Future<Void> f : ex.invokeAll(tasks))
+					f.get();
+				for (int i = 0; i < n; i++) {
+					wr.write(lines[i]);
+					wr.newLine();
+				}
+			} while (n == BATCH);
+		} finally {
+			reader.close();
+			wr.close();
+		}
+	}
+
+	/**
+	 * Maps the distinct read sequences on a set of OTUs and writes a record
+	 * for each distinct sequence and sample
+	 *
+	 * @param ex
+	 *            the executor
+	 * @param mapper
+	 *            the mapper
+	 * @param labels
+	 *            the OTU labels
+	 * @param reads
+	 *            the read file
+	 * @param out
+	 *            the mapping file
+	 * @throws IOException
+	 *             if an I/O error occurs or a read has no barcode label
+	 * @throws InterruptedException
+	 *             if the mapping is interrupted
+	 * @throws ExecutionException
+	 *             if a thread fails
+	 */
+	private void mapUniques(ExecutorService ex, ReadMapper mapper,
+			String[] labels, String reads, String out) throws IOException,
+			InterruptedException, ExecutionException {
+		Map<ByteBuffer, Integer> ids = new HashMap<ByteBuffer, Integer>();
+		final List<byte[]> seqs = new ArrayList<byte[]>();
+		List<SparseCounts> counts = new ArrayList<SparseCounts>();
+		Map<String, Integer> sampleIds = new HashMap<String, Integer>();
+		List<String> samples = new ArrayList<String>();
+		FastaRecordReader reader = new FastaRecordReader(reads);
+		try {
+			FastaRecord r = null;
+			while ((r = reader.next()) != null) {
+				String sample = FastaRecord.getBarcode(r.getLabel());
+				if (sample == null)
+					throw new IOException("No barcode label in "
+							+ r.getLabel());
+				Integer s = sampleIds.get(sample);
+				if (s == null) {
+					s = samples.size();
+					sampleIds.put(sample, s);
+					samples.add(sample);
+				}
+				ByteBuffer key = ByteBuffer.wrap(r.getSequence());
+				Integer u = ids.get(key);
+				if (u == null) {
+					u = seqs.size();
+					ids.put(key, u);
+					seqs.add(r.getSequence());
+					counts.add(new SparseCounts());
+				}
+				counts.get(u).add(s, r.getSize());
+			}
+		} finally {
+			reader.close();
+		}
+
+		int n = seqs.size();
+		final int[] targets = new int[n];
+		final double[] identities = new double[n];
+		final String[] cigars = new String[n];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		int chunk = (n + thread - 1) / thread;
+		for (int t = 0; t < thread && t * chunk < n; t++) {
+			final int from = t * chunk;
+			final int to = Math.min(n, from + chunk);
+			final ReadMapper.Searcher s = mapper.searcher();
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = from; i < to; i++) {
+						targets[i] = s.search(seqs.get(i));
+						identities[i] = s.getIdentity();
+						cigars[i] = s.getCigar();
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> f : ex.invokeAll(tasks))
+			f.get();
+
+		int[] keys = new int[samples.size()];
+		BufferedWriter wr = new BufferedWriter(new FileWriter(out));
+		try {
+			for (int u = 0; u < n; u++) {
+				SparseCounts c = counts.get(u);
+				int k = c.keys(keys);
+				int target = targets[u];
+				for (int i = 0; i < k; i++) {
+					FastaRecord r = new FastaRecord(LABEL + (u + 1)
+							+ ";size=" + c.get(keys[i]) + ";barcodelabel="
+							+ samples.get(keys[i]) + ";", seqs.get(u));
+					wr.write(ucLine(r, target, identities[u], cigars[u],
+							(target < 0) ? null : labels[target]));
+					wr.newLine();
+				}
+			}
+		} finally {
+			wr.close();
+		}
+	}
+
+	/**
+	 * Searches a read and formats the result
+	 *
+	 * @param searcher
+	 *            the searcher of the calling thread
+	 * @param read
+	 *            the read
+	 * @param labels
+	 *            the OTU labels
+	 * @return the <code>.uc</code> record
+	 */
+	static String ucLine(ReadMapper.Searcher searcher, FastaRecord read,
+			String[] labels) {
+		int target = searcher.search(read.getSequence());
+		if (target < 0)
+			return ucLine(read, target, 0, null, null);
+		return ucLine(read, target, searcher.getIdentity(),
+				searcher.getCigar(), labels[target]);
+	}
+
+	/**
+	 * Formats the result of a search as a <code>H</code> (hit) or
+	 * <code>N</code> (no hit) record
+	 *
+	 * @param read
+	 *            the read
+	 * @param target
+	 *            the hit or <code>-1</code>
+	 * @param identity
+	 *            the identity of the hit
+	 * @param cigar
+	 *            the alignment of the hit
+	 * @param label
+	 *            the label of the hit
+	 * @return the <code>.uc</code> record
+	 */
+	static String ucLine(FastaRecord read, int target, double identity,
+			String cigar, String label) {
+		int length = read.getSequence().length;
+		if (target < 0)
+			return String.format("N\t*\t%d\t*\t*\t*\t*\t*\t%s\t*", length,
+					read.getLabel());
+		return String.format(Locale.US,
+				"H\t%d\t%d\t%.1f\t+\t0\t0\t%s\t%s\t%s", target, length,
+				identity * 100, cigar, read.getLabel(), label);
+	}
+
+}
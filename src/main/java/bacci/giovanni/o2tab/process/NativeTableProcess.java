@@ -0,0 +1,109 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.table.TableFormat;
+import bacci.giovanni.o2tab.table.UcParser;
+
+/**
+ * In-process replacement of {@link TableProcess}. Each mapping file is parsed
+ * with a {@link UcParser}, splitting it into byte ranges parsed by different
+ * threads, and the table is written in the same layout of
+ * <code>uc2otutab.py</code>.
+ * <p>
+ * Inputs and outputs follow {@link TableProcess}: a table is written for
+ * every mapping file (<code>.uc</code>) found among the input files.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class NativeTableProcess extends PipelineProcess {
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Additional formats of the tables
+	 */
+	private final List<TableFormat> formats = new ArrayList<TableFormat>();
+
+	/**
+	 * Constructor
+	 */
+	public NativeTableProcess() {
+		super(ProcessType.TABLING, "tabled");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public NativeTableProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param formats
+	 *            additional formats each table is written in
+	 * @return this process with the table formats set
+	 */
+	public NativeTableProcess formats(Collection<TableFormat> formats) {
+		this.formats.addAll(formats);
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		List<String> maps = new ArrayList<String>();
+		for (String input : super.getInputFiles()) {
+			if (input.endsWith(TableProcess.UC))
+				maps.add(input);
+		}
+		if (maps.isEmpty())
+			throw new WrongInputFileNumberException(1, 0);
+
+		ExecutorService ex = Executors.newFixedThreadPool(thread);
+		try {
+			for (String input : maps) {
+				String suffix = TableProcess.suffix(input, maps.size() > 1);
+				String out = Paths.get(super.getOutputDir())
+						.resolve(MappingProcess.withSuffix(TableProcess.NAME,
+								suffix)).toString();
+				super.addOuptuFile(out);
+				OtuTable table = UcParser.parse(input, thread, ex);
+				table.write(out);
+				for (String f : TableProcess.write(table, formats,
+						super.getOutputDir(), input, maps.size() > 1))
+					super.addOuptuFile(f);
+			}
+		} catch (InterruptedException e) {
+			ex.shutdownNow();
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} finally {
+			ex.shutdown();
+		}
+		return new ProcessResult(PipelineResult.PASSED);
+	}
+
+}
@@ -0,0 +1,172 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bacci.giovanni.o2tab.diversity.DistanceMatrix;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.phylo.NeighborJoining;
+import bacci.giovanni.o2tab.phylo.OtuDistances;
+import bacci.giovanni.o2tab.phylo.Tree;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+
+/**
+ * Phylogenetic tree of the OTU representatives, to be run after the
+ * clustering or the chimera filtering process. The inputs are one or more
+ * OTU files followed by the pooled reads. The distances between the OTUs of
+ * each file are computed with {@link OtuDistances} and a neighbor joining
+ * tree is written in Newick format to <code>otus.tree</code> or, for several
+ * OTU files, to a tree file with the suffix of each OTU file.
+ * <p>
+ * The inputs are passed on unchanged to the mapping process. The trees are
+ * read by a {@link DiversityProcess} through {@link #getTrees()}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class PhylogenyProcess extends PipelineProcess {
+
+	/**
+	 * Tree file name
+	 */
+	private static final String NAME = "otus.tree";
+
+	/**
+	 * Tree files by OTU set suffix
+	 */
+	private final Map<String, String> trees = new HashMap<String, String>();
+
+	/**
+	 * k-mer length of the distances
+	 */
+	private int k = 8;
+
+	/**
+	 * Compute the distances from alignments
+	 */
+	private boolean alignment = false;
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 */
+	public PhylogenyProcess() {
+		super(ProcessType.PHYLOGENY, "phylogeny");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param k
+	 *            the k-mer length of the distances
+	 * @return this process with the k-mer length set
+	 */
+	public PhylogenyProcess k(int k) {
+		this.k = k;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param alignment
+	 *            <code>true</code> for computing the distances from global
+	 *            alignments instead of k-mers
+	 * @return this process with the distance set
+	 */
+	public PhylogenyProcess alignment(boolean alignment) {
+		this.alignment = alignment;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public PhylogenyProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * @return the tree files by suffix of the OTU set. With only one OTU set
+	 *         its tree is keyed by <code>null</code>. Sets without OTUs have
+	 *         no tree
+	 */
+	public Map<String, String> getTrees() {
+		return Collections.unmodifiableMap(trees);
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		List<String> inputs = super.getInputFiles();
+		if (inputs.size() < 2)
+			throw new WrongInputFileNumberException(2, inputs.size());
+
+		Path out = Paths.get(super.getOutputDir());
+		List<String> dbs = inputs.subList(0, inputs.size() - 1);
+		List<String> warns = new ArrayList<String>();
+		for (String db : dbs) {
+			String suffix = (dbs.size() > 1) ? MappingProcess.suffix(db)
+					: null;
+			List<FastaRecord> records = FastaRecordReader.readAll(db);
+			if (records.isEmpty()) {
+				warns.add("no OTUs in " + db);
+				continue;
+			}
+			List<String> labels = new ArrayList<String>(records.size());
+			byte[][] seqs = new byte[records.size()][];
+			for (int i = 0; i < seqs.length; i++) {
+				labels.add(records.get(i).getLabel());
+				seqs[i] = records.get(i).getSequence();
+			}
+			DistanceMatrix dist;
+			try {
+				dist = new OtuDistances().k(k).alignment(alignment)
+						.thread(thread).compute(labels, seqs);
+			} catch (IllegalArgumentException e) {
+				ProcessResult pr = new ProcessResult(PipelineResult.FAILED);
+				pr.addFail(db + ": " + e.getMessage());
+				return pr;
+			}
+			Tree tree = NeighborJoining.build(dist);
+			String file = out.resolve(MappingProcess.withSuffix(NAME, suffix))
+					.toString();
+			tree.write(file);
+			trees.put(suffix, file);
+		}
+
+		// The OTUs and the pooled reads are needed by the mapping process
+		for (String input : inputs)
+			super.addOuptuFile(input);
+
+		ProcessResult pr = null;
+		if (warns.isEmpty()) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+		}
+		return pr;
+	}
+
+}
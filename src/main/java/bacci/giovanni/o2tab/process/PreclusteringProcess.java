@@ -0,0 +1,189 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+
+import bacci.giovanni.o2tab.cluster.HammingPreclusterer;
+import bacci.giovanni.o2tab.cluster.Uniques;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.util.AbundanceSort;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.Utils;
+
+/**
+ * Pre-clustering process to be run between the dereplication and the
+ * clustering. Rare unique sequences differing by a few mismatches from a much
+ * more abundant one are folded into it (see {@link HammingPreclusterer}) and
+ * the remaining sequences are written with their <code>;size=</code>
+ * annotation updated, in decreasing abundance order.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class PreclusteringProcess extends PipelineProcess {
+
+	/**
+	 * Name of the output file
+	 */
+	private static final String NAME = "preclustered.fasta";
+
+	/**
+	 * Maximum number of mismatches
+	 */
+	private int differences = 2;
+
+	/**
+	 * Minimum abundance ratio between a parent and a folded sequence
+	 */
+	private double ratio = 8;
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 */
+	public PreclusteringProcess() {
+		super(ProcessType.PRECLUSTERING, "preclustered");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param differences
+	 *            the maximum number of mismatches between a folded sequence
+	 *            and its parent
+	 * @return this process with the number of mismatches set
+	 */
+	public PreclusteringProcess differences(int differences) {
+		this.differences = differences;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param ratio
+	 *            the minimum abundance ratio between a parent and a folded
+	 *            sequence
+	 * @return this process with the ratio set
+	 */
+	public PreclusteringProcess ratio(double ratio) {
+		this.ratio = ratio;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public PreclusteringProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		String warn = null;
+		if (super.getInputFiles().size() < 2)
+			throw new WrongInputFileNumberException(2, super.getInputFiles()
+					.size());
+
+		if (super.getInputFiles().size() > 2)
+			warn = "too many input files found, only the first "
+					+ "two elements will be included in the analysis";
+
+		Uniques uniques = Uniques.read(super.getInputFiles().get(0));
+		String output = Paths.get(super.getOutputDir()).resolve(NAME)
+				.toString();
+		super.addOuptuFile(output);
+
+		// Adding pooled read file to the output. It will be needed by the
+		// mapping process
+		super.addOuptuFile(super.getInputFiles().get(1));
+
+		int[] root = null;
+		try {
+			root = new HammingPreclusterer(uniques.getSequences(),
+					uniques.getSizes(), thread).maxDiffs(differences)
+					.minRatio(ratio).cluster();
+		} catch (InterruptedException e) {
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		this.write(output, uniques, root);
+
+		ProcessResult pr = null;
+		if (warn == null) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addWarning(warn);
+		}
+		return pr;
+	}
+
+	/**
+	 * Writes the roots with the abundances of the sequences folded into them
+	 *
+	 * @param output
+	 *            the output file
+	 * @param uniques
+	 *            the unique sequences
+	 * @param root
+	 *            the root of each sequence
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private void write(String output, Uniques uniques, int[] root)
+			throws IOException {
+		int n = uniques.size();
+		long[] total = new long[n];
+		int roots = 0;
+		for (int i = 0; i < n; i++) {
+			total[root[i]] += uniques.getSizes()[i];
+			if (root[i] == i)
+				roots++;
+		}
+		int[] ids = new int[roots];
+		long[] sizes = new long[roots];
+		byte[][] seqs = new byte[roots][];
+		for (int i = 0, r = 0; i < n; i++) {
+			if (root[i] != i)
+				continue;
+			ids[r] = i;
+			sizes[r] = total[i];
+			seqs[r++] = uniques.getSequences()[i];
+		}
+
+		// Folding can change the abundance order
+		int[] order = AbundanceSort.order(sizes, seqs);
+		BufferedWriter wr = new BufferedWriter(new FileWriter(output));
+		try {
+			for (int r : order) {
+				String label = FastaRecord
+						.stripSize(uniques.getLabels()[ids[r]]);
+				wr.write(">" + label + FastaRecord.SIZE + sizes[r]);
+				wr.newLine();
+				Utils.writeFASTA(wr, seqs[r], 80);
+			}
+		} finally {
+			wr.close();
+		}
+	}
+
+}
@@ -0,0 +1,412 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.cluster.GreedyClusterer;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.map.ReadMapper;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+import bacci.giovanni.o2tab.store.OtuStore;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.table.SparseCounts;
+import bacci.giovanni.o2tab.table.TableFormat;
+import bacci.giovanni.o2tab.util.AbundanceSort;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+import bacci.giovanni.o2tab.util.Utils;
+
+/**
+ * Incremental update of an {@link OtuStore}, run right after the pooling
+ * process in place of dereplication, clustering, mapping and tabling. The
+ * distinct sequences of the pooled reads are searched against the stored
+ * OTUs with a {@link ReadMapper} on the memory mapped index of the store.
+ * The sequences left unassigned are clustered with a {@link GreedyClusterer}
+ * at the same identity, starting from the ones found at least a minimum
+ * number of times, and the centroids are added to the store as new OTUs.
+ * The unassigned sequences are then searched against the new OTUs.
+ * <p>
+ * The counts of the new samples are added to the table of the store, which
+ * is saved with the new OTUs, and a copy of the updated table and the new
+ * OTUs (<code>new_otus.fasta</code>) are written to the output directory.
+ * The process fails without changing the store if a sample is already in the
+ * store, unless merging is enabled, in which case the counts are added to the
+ * stored ones.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class StoreUpdateProcess extends PipelineProcess {
+
+	/**
+	 * Table file name
+	 */
+	private static final String TABLE = "otu_table.csv";
+
+	/**
+	 * New OTUs file name
+	 */
+	private static final String NEW = "new_otus.fasta";
+
+	/**
+	 * Default identity threshold
+	 */
+	private static final double DEFAULT_ID = 0.97;
+
+	/**
+	 * The store directory
+	 */
+	private final String store;
+
+	/**
+	 * The identity threshold
+	 */
+	private double identity = DEFAULT_ID;
+
+	/**
+	 * Minimum abundance of the sequences creating new OTUs
+	 */
+	private long minSize = 1;
+
+	/**
+	 * Add the counts of the samples already in the store
+	 */
+	private boolean merge = false;
+
+	/**
+	 * Additional table formats
+	 */
+	private final List<TableFormat> formats = new ArrayList<TableFormat>();
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param store
+	 *            the store directory, created if missing
+	 */
+	public StoreUpdateProcess(String store) {
+		super(ProcessType.STORE, "stored");
+		this.store = store;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param identity
+	 *            the identity threshold of the search and of the clustering
+	 * @return this process with the identity threshold set
+	 */
+	public StoreUpdateProcess identity(double identity) {
+		this.identity = identity;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param minSize
+	 *            the minimum abundance of the unassigned sequences creating
+	 *            new OTUs
+	 * @return this process with the minimum abundance set
+	 */
+	public StoreUpdateProcess minSize(long minSize) {
+		this.minSize = minSize;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param merge
+	 *            <code>true</code> for adding the counts of the samples
+	 *            already in the store to the stored ones instead of failing
+	 * @return this process with the merge mode set
+	 */
+	public StoreUpdateProcess merge(boolean merge) {
+		this.merge = merge;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param formats
+	 *            additional formats of the updated table
+	 * @return this process with the formats set
+	 */
+	public StoreUpdateProcess formats(Collection<TableFormat> formats) {
+		this.formats.addAll(formats);
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public StoreUpdateProcess thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		List<String> inputs = super.getInputFiles();
+		if (inputs.isEmpty())
+			throw new WrongInputFileNumberException(1, 0);
+		String reads = inputs.get(inputs.size() - 1);
+		List<String> warns = new ArrayList<String>();
+
+		// Distinct sequences and their counts by sample
+		Map<ByteBuffer, Integer> ids = new HashMap<ByteBuffer, Integer>();
+		List<byte[]> seqs = new ArrayList<byte[]>();
+		List<SparseCounts> counts = new ArrayList<SparseCounts>();
+		Map<String, Integer> sampleIds = new HashMap<String, Integer>();
+		List<String> samples = new ArrayList<String>();
+		FastaRecordReader reader = new FastaRecordReader(reads);
+		try {
+			FastaRecord r = null;
+			while ((r = reader.next()) != null) {
+				String sample = FastaRecord.getBarcode(r.getLabel());
+				if (sample == null)
+					throw new IOException("No barcode label in "
+							+ r.getLabel());
+				Integer s = sampleIds.get(sample);
+				if (s == null) {
+					s = samples.size();
+					sampleIds.put(sample, s);
+					samples.add(sample);
+				}
+				ByteBuffer key = ByteBuffer.wrap(r.getSequence());
+				Integer u = ids.get(key);
+				if (u == null) {
+					u = seqs.size();
+					ids.put(key, u);
+					seqs.add(r.getSequence());
+					counts.add(new SparseCounts());
+				}
+				counts.get(u).add(s, r.getSize());
+			}
+		} finally {
+			reader.close();
+		}
+
+		int n = seqs.size();
+		long[] sizes = new long[n];
+		int[] keys = new int[samples.size()];
+		for (int u = 0; u < n; u++) {
+			SparseCounts c = counts.get(u);
+			int k = c.keys(keys);
+			for (int i = 0; i < k; i++)
+				sizes[u] += c.get(keys[i]);
+		}
+
+		OtuStore st = new OtuStore(store);
+		OtuTable table = st.readTable();
+		List<String> present = new ArrayList<String>();
+		for (String sample : samples) {
+			if (table.getSamples().contains(sample))
+				present.add(sample);
+		}
+		if (!present.isEmpty()) {
+			if (!merge) {
+				st.close();
+				ProcessResult pr = new ProcessResult(PipelineResult.FAILED);
+				pr.addFail("samples already in the store: " + present);
+				return pr;
+			}
+			warns.add("samples already in the store, counts are added: "
+					+ present);
+		}
+
+		ExecutorService ex = Executors.newFixedThreadPool(thread);
+		try {
+			// Search against the stored OTUs
+			int old = st.size();
+			int[] otus = new int[n];
+			Arrays.fill(otus, -1);
+			if (old > 0) {
+				ReadMapper mapper = new ReadMapper(st.getSequences(),
+						st.index(thread), identity);
+				this.search(ex, mapper, seqs, otus, 0);
+			}
+
+			// New OTUs from the unassigned sequences
+			List<byte[]> left = new ArrayList<byte[]>();
+			List<Long> leftSizes = new ArrayList<Long>();
+			for (int u = 0; u < n; u++) {
+				if (otus[u] < 0 && sizes[u] >= minSize) {
+					left.add(seqs.get(u));
+					leftSizes.add(sizes[u]);
+				}
+			}
+			byte[][] cs = left.toArray(new byte[left.size()][]);
+			long[] cz = new long[cs.length];
+			for (int i = 0; i < cz.length; i++)
+				cz[i] = leftSizes.get(i);
+			int[] order = AbundanceSort.order(cz, cs);
+			byte[][] sorted = new byte[cs.length][];
+			long[] sortedSizes = new long[cs.length];
+			for (int i = 0; i < order.length; i++) {
+				sorted[i] = cs[order[i]];
+				sortedSizes[i] = cz[order[i]];
+			}
+			int[] assign = new GreedyClusterer(sorted, sortedSizes, identity,
+					thread).cluster();
+			List<byte[]> centroids = new ArrayList<byte[]>();
+			for (int i = 0; i < assign.length; i++) {
+				if (assign[i] == i) {
+					st.add(sorted[i]);
+					centroids.add(sorted[i]);
+				}
+			}
+			if (!centroids.isEmpty()) {
+				List<byte[]> unassigned = new ArrayList<byte[]>();
+				List<Integer> which = new ArrayList<Integer>();
+				for (int u = 0; u < n; u++) {
+					if (otus[u] < 0) {
+						unassigned.add(seqs.get(u));
+						which.add(u);
+					}
+				}
+				int[] hits = new int[unassigned.size()];
+				ReadMapper mapper = new ReadMapper(
+						centroids.toArray(new byte[centroids.size()][]),
+						identity);
+				this.search(ex, mapper, unassigned, hits, old);
+				for (int i = 0; i < hits.length; i++)
+					otus[which.get(i)] = hits[i];
+			}
+
+			// Counts of the new samples
+			int[] sampleIdx = new int[samples.size()];
+			for (int s = 0; s < samples.size(); s++)
+				sampleIdx[s] = table.sample(samples.get(s));
+			List<String> labels = st.getLabels();
+			long unassigned = 0;
+			for (int u = 0; u < n; u++) {
+				if (otus[u] < 0) {
+					unassigned += sizes[u];
+					continue;
+				}
+				int otu = table.otu(labels.get(otus[u]));
+				SparseCounts c = counts.get(u);
+				int k = c.keys(keys);
+				for (int i = 0; i < k; i++)
+					table.add(otu, sampleIdx[keys[i]], c.get(keys[i]));
+			}
+			if (unassigned > 0)
+				warns.add(unassigned + " reads not assigned to any OTU");
+			st.save(table, thread);
+
+			Path dir = Paths.get(super.getOutputDir());
+			String out = dir.resolve(TABLE).toString();
+			table.write(out);
+			super.addOuptuFile(out);
+			for (String f : TableProcess.write(table, formats,
+					dir.toString(), out, false))
+				super.addOuptuFile(f);
+			String fresh = dir.resolve(NEW).toString();
+			BufferedWriter wr = new BufferedWriter(new FileWriter(fresh));
+			try {
+				byte[][] all = st.getSequences();
+				for (int i = old; i < labels.size(); i++) {
+					wr.write(">" + labels.get(i));
+					wr.newLine();
+					Utils.writeFASTA(wr, all[i], 80);
+				}
+			} finally {
+				wr.close();
+			}
+			super.addOuptuFile(fresh);
+		} catch (InterruptedException e) {
+			ex.shutdownNow();
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			ex.shutdown();
+			st.close();
+		}
+
+		ProcessResult pr = null;
+		if (warns.isEmpty()) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addAllWarnings(warns);
+		}
+		return pr;
+	}
+
+	/**
+	 * Searches sequences in parallel slices
+	 *
+	 * @param ex
+	 *            the executor
+	 * @param mapper
+	 *            the mapper
+	 * @param seqs
+	 *            the sequences
+	 * @param out
+	 *            array in which the hit of each sequence plus the offset, or
+	 *            <code>-1</code>, is stored
+	 * @param offset
+	 *            the offset added to the hits
+	 * @throws InterruptedException
+	 *             if the search is interrupted
+	 * @throws ExecutionException
+	 *             if a thread fails
+	 */
+	private void search(ExecutorService ex, ReadMapper mapper,
+			final List<byte[]> seqs, final int[] out, final int offset)
+			throws InterruptedException, ExecutionException {
+		int n = seqs.size();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		int chunk = (n + thread - 1) / thread;
+		for (int t = 0; t < thread && t * chunk < n; t++) {
+			final int from = t * chunk;
+			final int to = Math.min(n, from + chunk);
+			final ReadMapper.Searcher s = mapper.searcher();
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = from; i < to; i++) {
+						int hit = s.search(seqs.get(i));
+						out[i] = (hit < 0) ? -1 : hit + offset;
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> f : ex.invokeAll(tasks))
+			f.get();
+	}
+
+}
@@ -0,0 +1,152 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+
+import bacci.giovanni.o2tab.cluster.SwarmClusterer;
+import bacci.giovanni.o2tab.cluster.Uniques;
+import bacci.giovanni.o2tab.exceptions.WrongInputFileNumberException;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.pipeline.ProcessType;
+
+/**
+ * Clustering process running in the JVM with a local edit distance threshold
+ * instead of a global identity radius (see {@link SwarmClusterer}). The seed
+ * of each cluster, which is its most abundant sequence, is written as the OTU
+ * representative so the output can be mapped and tabled like the one of
+ * {@link ClusteringOTU}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class SwarmClusteringOTU extends PipelineProcess {
+
+	/**
+	 * Name of the output file
+	 */
+	private static final String NAME = "otus.fasta";
+
+	/**
+	 * Label for OTUs
+	 */
+	private static final String LABEL = "OTU_";
+
+	/**
+	 * Maximum edit distance between linked sequences
+	 */
+	private int differences = 1;
+
+	/**
+	 * The number of threads
+	 */
+	private int thread = 1;
+
+	/**
+	 * Label the OTUs with the size of their clusters
+	 */
+	private boolean sizeout = false;
+
+	/**
+	 * Constructor
+	 */
+	public SwarmClusteringOTU() {
+		super(ProcessType.OTUCLUST, "clustered");
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param differences
+	 *            the maximum edit distance between linked sequences
+	 * @return this process with the distance set
+	 */
+	public SwarmClusteringOTU differences(int differences) {
+		this.differences = differences;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param thread
+	 *            the number of threads
+	 * @return this process with the number of threads set
+	 */
+	public SwarmClusteringOTU thread(int thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * Build method
+	 *
+	 * @param sizeout
+	 *            <code>true</code> for labelling the OTUs with the number of
+	 *            reads of their clusters (<code>;size=</code>), as needed by
+	 *            {@link ChimeraProcess}
+	 * @return this process with the labelling set
+	 */
+	public SwarmClusteringOTU sizeout(boolean sizeout) {
+		this.sizeout = sizeout;
+		return this;
+	}
+
+	@Override
+	public ProcessResult launch() throws IOException {
+		String warn = null;
+		if (super.getInputFiles().size() < 2)
+			throw new WrongInputFileNumberException(2, super.getInputFiles()
+					.size());
+
+		if (super.getInputFiles().size() > 2)
+			warn = "too many input files found, only the first "
+					+ "two elements will be included in the analysis";
+
+		Uniques uniques = Uniques.read(super.getInputFiles().get(0));
+		String output = Paths.get(super.getOutputDir()).resolve(NAME)
+				.toString();
+		super.addOuptuFile(output);
+
+		// Adding pooled read file to the output. It will be needed by the
+		// mapping process
+		super.addOuptuFile(super.getInputFiles().get(1));
+
+		ProcessResult pr = null;
+		if (uniques.size() == 0) {
+			if (warn == null) {
+				pr = new ProcessResult(PipelineResult.FAILED);
+			} else {
+				pr = new ProcessResult(PipelineResult.FAILED_WITH_WARNINGS);
+				pr.addWarning(warn);
+			}
+			pr.addFail("no sequences to cluster");
+			return pr;
+		}
+
+		int[] assign = null;
+		try {
+			assign = new SwarmClusterer(uniques.getSequences(),
+					uniques.getSizes(), differences, thread).cluster();
+		} catch (InterruptedException e) {
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+
+		GreedyClusteringOTU.writeCentroids(output, uniques.getSequences(),
+				assign, LABEL, (sizeout) ? uniques.getSizes() : null);
+
+		if (warn == null) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.PASSED_WITH_WARNINGS);
+			pr.addWarning(warn);
+		}
+		return pr;
+	}
+
+}
@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.lang.ProcessBuilder.Redirect;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -15,9 +18,14 @@ import bacci.giovanni.o2tab.pipeline.PipelineProcess;
 import bacci.giovanni.o2tab.pipeline.ProcessResult;
 import bacci.giovanni.o2tab.pipeline.ProcessType;
 import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.table.TableFormat;
 
 /**
  * Otu table generator. This process uses the uc2otutab.py python script.
+ * <p>
+ * A table is written for every mapping file (<code>.uc</code>) found among the
+ * input files.
  * 
  * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
  *         Bacci</a>
@@ -28,19 +36,29 @@ public class TableProcess extends PipelineProcess {
 	/**
 	 * Output file name
 	 */
-	private static final String NAME = "otu_table.csv";
+	static final String NAME = "otu_table.csv";
 
 	/**
 	 * Log file name
 	 */
 	private static final String NAME_LOG = "table.log";
 
+	/**
+	 * Extension of the mapping files
+	 */
+	static final String UC = ".uc";
+
 	/**
 	 * The config file reader
 	 */
 	private final static ConfigFileReader<Uc2otutabProcess> CONFIG = new ConfigFileReader<Uc2otutabProcess>(
 			"/uc2otutab.config");
 
+	/**
+	 * Additional formats of the tables
+	 */
+	private final List<TableFormat> formats = new ArrayList<TableFormat>();
+
 	/**
 	 * Constructor
 	 */
@@ -48,60 +66,143 @@ public class TableProcess extends PipelineProcess {
 		super(ProcessType.TABLING, "tabled");
 	}
 
+	/**
+	 * Build method
+	 * 
+	 * @param formats
+	 *            additional formats each table is written in
+	 * @return this process with the table formats set
+	 */
+	public TableProcess formats(Collection<TableFormat> formats) {
+		this.formats.addAll(formats);
+		return this;
+	}
+
 	@Override
 	public ProcessResult launch() throws IOException {
-		if (super.getInputFiles().size() > 1)
-			throw new WrongInputFileNumberException(1, super.getInputFiles()
-					.size());
-
-		String input = super.getInputFiles().get(0);
-		String[] outs = this.getOutputs();
-
-		Uc2otutabProcess tab = new Uc2otutabProcess();
-		tab.addSingleCommand(input);
-		
-		File error = new File(outs[1]);
-		tab.setOutput(Redirect.to(new File(outs[0])));
-		tab.setError(Redirect.to(error));
+		List<String> maps = new ArrayList<String>();
+		for (String input : super.getInputFiles()) {
+			if (input.endsWith(UC))
+				maps.add(input);
+		}
+		if (maps.isEmpty())
+			throw new WrongInputFileNumberException(1, 0);
 
+		List<String> fails = new ArrayList<String>();
 		ExecutorService ex = Executors.newFixedThreadPool(1);
-		Future<Integer> res = ex.submit(CONFIG.setExternalArguments(tab));
-
-		ProcessResult pr = null;
-		
 		try {
-			if (res.get() == 0) {
-				pr = new ProcessResult(PipelineResult.PASSED);
-				return pr;
-			} else {
-				pr = new ProcessResult(PipelineResult.FAILED);
-				pr.addFail("see " + error.toString() + " for details");
-				return pr;
+			for (String input : maps) {
+				String[] outs = this.getOutputs(input, maps.size() > 1);
+
+				Uc2otutabProcess tab = new Uc2otutabProcess();
+				tab.addSingleCommand(input);
+
+				File error = new File(outs[1]);
+				tab.setOutput(Redirect.to(new File(outs[0])));
+				tab.setError(Redirect.to(error));
+
+				Future<Integer> res = ex.submit(CONFIG
+						.setExternalArguments(tab));
+				if (res.get() != 0)
+					fails.add("see " + error.toString() + " for details");
+				else if (!formats.isEmpty())
+					for (String out : write(OtuTable.read(outs[0]), formats,
+							super.getOutputDir(), input, maps.size() > 1))
+						super.addOuptuFile(out);
 			}
 		} catch (ExecutionException e) {
 			throw new IOException(e);
 		} catch (InterruptedException e) {
 			ex.shutdownNow();
-			pr = new ProcessResult(PipelineResult.INTERRUPTED);
-			return pr;
+			return new ProcessResult(PipelineResult.INTERRUPTED);
+		} finally {
+			ex.shutdown();
+		}
+
+		ProcessResult pr = null;
+		if (fails.isEmpty()) {
+			pr = new ProcessResult(PipelineResult.PASSED);
+		} else {
+			pr = new ProcessResult(PipelineResult.FAILED);
+			pr.addAllFails(fails);
 		}
+		return pr;
 	}
 
 	/**
+	 * @param input
+	 *            the mapping file
+	 * @param multi
+	 *            <code>true</code> if more mapping files are tabled, in
+	 *            which case the suffix of the mapping file is added to the
+	 *            output file names
 	 * @return a String array contining all the output files: 0 - table file; 1
 	 *         - log file
 	 * @throws IOException
 	 *             if an I/O error occurs generating output files and
 	 *             directories
 	 */
-	private String[] getOutputs() throws IOException {
+	private String[] getOutputs(String input, boolean multi)
+			throws IOException {
+		String suffix = suffix(input, multi);
 		Path p = Paths.get(super.getOutputDir());
-		String out = p.resolve(NAME).toString();
-		String log = p.resolve(NAME_LOG).toString();
+		String out = p.resolve(MappingProcess.withSuffix(NAME, suffix))
+				.toString();
+		String log = p.resolve(MappingProcess.withSuffix(NAME_LOG, suffix))
+				.toString();
+		super.addOuptuFile(out);
 		return new String[] { out, log };
 
 	}
 
+	/**
+	 * @param input
+	 *            a mapping file
+	 * @param multi
+	 *            <code>true</code> if more mapping files are tabled
+	 * @return the suffix of the outputs of the mapping file, <code>null</code>
+	 *         if only one mapping file is tabled
+	 */
+	static String suffix(String input, boolean multi) {
+		if (!multi)
+			return null;
+		String suffix = MappingProcess.suffix(input);
+		if (suffix.startsWith("map_"))
+			suffix = suffix.substring("map_".length());
+		return suffix;
+	}
+
+	/**
+	 * Writes a table in additional formats
+	 * 
+	 * @param table
+	 *            the table
+	 * @param formats
+	 *            the formats
+	 * @param dir
+	 *            the output directory
+	 * @param input
+	 *            the mapping file of the table
+	 * @param multi
+	 *            <code>true</code> if more mapping files are tabled
+	 * @return the table files
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	static List<String> write(OtuTable table, List<TableFormat> formats,
+			String dir, String input, boolean multi) throws IOException {
+		List<String> outs = new ArrayList<String>();
+		String suffix = suffix(input, multi);
+		for (TableFormat f : formats) {
+			String out = Paths.get(dir)
+					.resolve(MappingProcess.withSuffix(f.getFileName(), suffix))
+					.toString();
+			f.write(table, out);
+			outs.add(out);
+		}
+		return outs;
+	}
+
 	/**
 	 * Process that uses the python script uc2otutab.py.
 	 * 
@@ -0,0 +1,284 @@
+package bacci.giovanni.o2tab.store;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import bacci.giovanni.o2tab.index.KmerIndex;
+import bacci.giovanni.o2tab.index.KmerSearch;
+import bacci.giovanni.o2tab.index.MappedKmerIndex;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+import bacci.giovanni.o2tab.util.Utils;
+
+/**
+ * Persistent set of OTUs updated run after run. A store is a directory
+ * holding the centroids of the OTUs (<code>otus.fasta</code>), a
+ * {@link MappedKmerIndex} of the centroids (<code>otus.kmi</code>) and the
+ * OTU table of all the samples added so far (<code>otu_table.csv</code>).
+ * <p>
+ * New OTUs are labelled with the {@link #LABEL} prefix followed by the
+ * highest number found among the labels of the store plus one, so the
+ * labels of the existing OTUs never change. A store can be started from the
+ * OTUs and the table of a previous run by copying them into an empty
+ * directory: the index is built the first time it is needed, and rebuilt
+ * whenever its fingerprint does not match the centroids.
+ * <p>
+ * Files are replaced by moving a complete temporary file over them, the
+ * table last, so an interrupted update leaves the store consistent.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class OtuStore implements Closeable {
+
+	/**
+	 * Label prefix of the OTUs
+	 */
+	public final static String LABEL = "OTU_";
+
+	/**
+	 * Centroids file name
+	 */
+	private final static String OTUS = "otus.fasta";
+
+	/**
+	 * Index file name
+	 */
+	private final static String INDEX = "otus.kmi";
+
+	/**
+	 * Table file name
+	 */
+	private final static String TABLE = "otu_table.csv";
+
+	private final Path dir;
+
+	private final List<String> labels = new ArrayList<String>();
+
+	private final List<byte[]> seqs = new ArrayList<byte[]>();
+
+	/**
+	 * Centroids already in the centroids file
+	 */
+	private int saved;
+
+	/**
+	 * Number of the next OTU
+	 */
+	private long next = 1;
+
+	private MappedKmerIndex index = null;
+
+	/**
+	 * Opens a store, creating its directory if missing
+	 *
+	 * @param dir
+	 *            the store directory
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public OtuStore(String dir) throws IOException {
+		this.dir = Paths.get(dir);
+		Files.createDirectories(this.dir);
+		Path otus = this.dir.resolve(OTUS);
+		if (Files.exists(otus)) {
+			for (FastaRecord r : FastaRecordReader.readAll(otus.toString())) {
+				labels.add(r.getLabel());
+				seqs.add(r.getSequence());
+				next = Math.max(next, number(r.getLabel()) + 1);
+			}
+		}
+		this.saved = labels.size();
+	}
+
+	/**
+	 * @return the labels of the OTUs, in order of addition
+	 */
+	public List<String> getLabels() {
+		return Collections.unmodifiableList(labels);
+	}
+
+	/**
+	 * @return the centroids of the OTUs, in order of addition
+	 */
+	public byte[][] getSequences() {
+		return seqs.toArray(new byte[seqs.size()][]);
+	}
+
+	/**
+	 * @return the number of OTUs
+	 */
+	public int size() {
+		return labels.size();
+	}
+
+	/**
+	 * Opens the index of the saved centroids, building it if missing or out
+	 * of date
+	 *
+	 * @param threads
+	 *            the number of threads used for building the index
+	 * @return the index, identifying the OTUs by their position
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the build is interrupted
+	 * @throws ExecutionException
+	 *             if a thread fails
+	 */
+	public KmerSearch index(int threads) throws IOException,
+			InterruptedException, ExecutionException {
+		if (index != null)
+			return index;
+		Path path = dir.resolve(INDEX);
+		if (Files.exists(path)) {
+			try {
+				index = new MappedKmerIndex(path.toString());
+				if (index.getTargets() == saved
+						&& index.getFingerprint() == MappedKmerIndex
+								.fingerprint(this.savedSequences()))
+					return index;
+				index.close();
+			} catch (IOException e) {
+				// Rebuilt below
+			}
+			index = null;
+		}
+		this.buildIndex(threads);
+		index = new MappedKmerIndex(path.toString());
+		return index;
+	}
+
+	/**
+	 * Adds an OTU. It is written to the store by {@link #save(OtuTable, int)}
+	 *
+	 * @param seq
+	 *            the centroid
+	 * @return the label of the new OTU
+	 */
+	public String add(byte[] seq) {
+		String label = LABEL + (next++);
+		labels.add(label);
+		seqs.add(seq);
+		return label;
+	}
+
+	/**
+	 * @return the table of the store, empty if there is none
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public OtuTable readTable() throws IOException {
+		Path path = dir.resolve(TABLE);
+		if (!Files.exists(path))
+			return new OtuTable();
+		return OtuTable.read(path.toString());
+	}
+
+	/**
+	 * @return the path of the table of the store
+	 */
+	public String getTable() {
+		return dir.resolve(TABLE).toString();
+	}
+
+	/**
+	 * Writes the OTUs and their index, if OTUs were added since the store was
+	 * opened, and the table
+	 *
+	 * @param table
+	 *            the table of the store
+	 * @param threads
+	 *            the number of threads used for building the index
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws InterruptedException
+	 *             if the build of the index is interrupted
+	 * @throws ExecutionException
+	 *             if a thread fails
+	 */
+	public void save(OtuTable table, int threads) throws IOException,
+			InterruptedException, ExecutionException {
+		if (saved < labels.size()) {
+			Path otus = dir.resolve(OTUS);
+			Path tmp = dir.resolve(OTUS + ".tmp");
+			BufferedWriter wr = new BufferedWriter(new FileWriter(
+					tmp.toString()));
+			try {
+				for (int i = 0; i < labels.size(); i++) {
+					wr.write(">" + labels.get(i));
+					wr.newLine();
+					Utils.writeFASTA(wr, seqs.get(i), 80);
+				}
+			} finally {
+				wr.close();
+			}
+			replace(tmp, otus);
+			saved = labels.size();
+			this.close();
+			this.buildIndex(threads);
+		}
+		Path tmp = dir.resolve(TABLE + ".tmp");
+		table.write(tmp.toString());
+		replace(tmp, dir.resolve(TABLE));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (index != null)
+			index.close();
+		index = null;
+	}
+
+	/**
+	 * Builds the index of the saved centroids
+	 */
+	private void buildIndex(int threads) throws IOException,
+			InterruptedException, ExecutionException {
+		Path tmp = dir.resolve(INDEX + ".tmp");
+		MappedKmerIndex.build(this.savedSequences(), KmerIndex.DEFAULT_K,
+				tmp.toString(), threads);
+		replace(tmp, dir.resolve(INDEX));
+	}
+
+	/**
+	 * @return the centroids in the centroids file
+	 */
+	private byte[][] savedSequences() {
+		return seqs.subList(0, saved).toArray(new byte[saved][]);
+	}
+
+	private static void replace(Path from, Path to) throws IOException {
+		Files.move(from, to, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the number of a label made of {@link #LABEL} and a number,
+	 *         <code>0</code> for any other label
+	 */
+	private static long number(String label) {
+		int end = label.indexOf(';');
+		String name = (end < 0) ? label : label.substring(0, end);
+		if (!name.startsWith(LABEL))
+			return 0;
+		try {
+			return Long.parseLong(name.substring(LABEL.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package bacci.giovanni.o2tab.table;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from labels, given as slices of a byte buffer, to
+ * integer identifiers. A label is copied only the first time it is added, so
+ * looking up the labels of a mapping file does not allocate.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+class LabelIds {
+
+	private byte[][] keys = new byte[16][];
+
+	private int[] hashes = new int[16];
+
+	private int[] values = new int[16];
+
+	/**
+	 * Number of labels
+	 */
+	private int size = 0;
+
+	/**
+	 * @param buf
+	 *            the buffer
+	 * @param from
+	 *            the start of the label, inclusive
+	 * @param to
+	 *            the end of the label, exclusive
+	 * @return the identifier of the label or <code>-1</code> if the label is
+	 *         not present
+	 */
+	int get(byte[] buf, int from, int to) {
+		int h = hash(buf, from, to);
+		int mask = keys.length - 1;
+		for (int i = h & mask; keys[i] != null; i = (i + 1) & mask)
+			if (hashes[i] == h && equals(keys[i], buf, from, to))
+				return values[i];
+		return -1;
+	}
+
+	/**
+	 * Adds a label not yet present
+	 *
+	 * @param buf
+	 *            the buffer
+	 * @param from
+	 *            the start of the label, inclusive
+	 * @param to
+	 *            the end of the label, exclusive
+	 * @param id
+	 *            the identifier of the label
+	 */
+	void put(byte[] buf, int from, int to, int id) {
+		if (++size * 2 > keys.length)
+			this.grow();
+		int h = hash(buf, from, to);
+		int mask = keys.length - 1;
+		int i = h & mask;
+		while (keys[i] != null)
+			i = (i + 1) & mask;
+		keys[i] = Arrays.copyOfRange(buf, from, to);
+		hashes[i] = h;
+		values[i] = id;
+	}
+
+	private void grow() {
+		byte[][] k = keys;
+		int[] h = hashes;
+		int[] v = values;
+		keys = new byte[k.length * 2][];
+		hashes = new int[k.length * 2];
+		values = new int[k.length * 2];
+		int mask = keys.length - 1;
+		for (int j = 0; j < k.length; j++) {
+			if (k[j] == null)
+				continue;
+			int i = h[j] & mask;
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = k[j];
+			hashes[i] = h[j];
+			values[i] = v[j];
+		}
+	}
+
+	private static int hash(byte[] buf, int from, int to) {
+		int h = 0;
+		for (int i = from; i < to; i++)
+			h = 31 * h + buf[i];
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(byte[] key, byte[] buf, int from, int to) {
+		if (key.length != to - from)
+			return false;
+		for (int i = 0; i < key.length; i++)
+			if (key[i] != buf[from + i])
+				return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,426 @@
+package bacci.giovanni.o2tab.table;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On disk OTU table in compressed sparse column layout, with a column for
+ * each sample. Only the non zero cells are stored, so the size of the file
+ * depends on the number of non zero counts instead of the number of OTUs
+ * times the number of samples. The file is memory mapped when the table is
+ * opened: the counts of a sample or of an OTU are read on request and the
+ * whole matrix is never loaded.
+ * <p>
+ * The file starts with a header (magic number, version, number of OTUs,
+ * number of samples, number of non zero cells and offset of the labels)
+ * followed by the offset of each column, by the OTU of each cell, sorted
+ * inside each column, by the count of each cell and by the labels of the
+ * OTUs and of the samples. All values are little endian and the labels are
+ * UTF-8 strings preceded by their length. Since a single mapping cannot
+ * exceed 2 GB, the cells are mapped in segments.
+ * <p>
+ * Any number of threads can read the table at the same time.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class MappedOtuTable implements Closeable {
+
+	/**
+	 * Magic number of the table files
+	 */
+	private final static int MAGIC = 0x5432544f;
+
+	/**
+	 * Version of the file format
+	 */
+	private final static int VERSION = 1;
+
+	/**
+	 * Size of the header in bytes
+	 */
+	private final static int HEADER = 32;
+
+	/**
+	 * Default bits of the number of OTU indices in a segment
+	 */
+	private final static int ROW_BITS = 28;
+
+	/**
+	 * Default bits of the number of counts in a segment
+	 */
+	private final static int VALUE_BITS = 27;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The file
+	 */
+	private final RandomAccessFile file;
+
+	private final List<String> otus;
+
+	private final List<String> samples;
+
+	/**
+	 * Bits of the number of OTU indices in a segment
+	 */
+	private final int rowBits;
+
+	/**
+	 * Bits of the number of counts in a segment
+	 */
+	private final int valueBits;
+
+	/**
+	 * Number of non zero cells
+	 */
+	private final long cells;
+
+	/**
+	 * Offset of the first cell of each sample, plus the total
+	 */
+	private final ByteBuffer columns;
+
+	/**
+	 * OTU of each cell
+	 */
+	private final ByteBuffer[] rows;
+
+	/**
+	 * Count of each cell
+	 */
+	private final ByteBuffer[] values;
+
+	/**
+	 * Opens a table
+	 *
+	 * @param path
+	 *            the table file
+	 * @throws IOException
+	 *             if the file cannot be read or it is not a table
+	 */
+	public MappedOtuTable(String path) throws IOException {
+		this(path, ROW_BITS, VALUE_BITS);
+	}
+
+	/**
+	 * Opens a table mapping the cells in segments of the given sizes
+	 *
+	 * @param path
+	 *            the table file
+	 * @param rowBits
+	 *            the bits of the number of OTU indices in a segment
+	 * @param valueBits
+	 *            the bits of the number of counts in a segment
+	 * @throws IOException
+	 *             if the file cannot be read or it is not a table
+	 */
+	MappedOtuTable(String path, int rowBits, int valueBits)
+			throws IOException {
+		this.rowBits = rowBits;
+		this.valueBits = valueBits;
+		this.file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel ch = file.getChannel();
+			ByteBuffer header = ch.map(MapMode.READ_ONLY, 0, HEADER).order(
+					ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+				throw new IOException(path + " is not an OTU table");
+			int otuCount = header.getInt(8);
+			int sampleCount = header.getInt(12);
+			this.cells = header.getLong(16);
+			long labels = header.getLong(24);
+			long rowStart = HEADER + ((long) sampleCount + 1) * 8;
+			long valueStart = align(rowStart + cells * 4);
+			if (otuCount < 0 || sampleCount < 0 || cells < 0
+					|| labels != valueStart + cells * 8 || labels > ch.size())
+				throw new IOException(path + " is corrupted");
+
+			this.columns = ch.map(MapMode.READ_ONLY, HEADER,
+					rowStart - HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			if (columns.getLong(sampleCount * 8) != cells)
+				throw new IOException(path + " is corrupted");
+			this.rows = map(ch, rowStart, cells, 2, rowBits);
+			this.values = map(ch, valueStart, cells, 3, valueBits);
+
+			ByteBuffer dict = ch.map(MapMode.READ_ONLY, labels,
+					ch.size() - labels).order(ByteOrder.LITTLE_ENDIAN);
+			this.otus = readLabels(dict, otuCount);
+			this.samples = readLabels(dict, sampleCount);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		} catch (RuntimeException e) {
+			// Buffer underflows on truncated dictionaries
+			file.close();
+			throw new IOException(path + " is corrupted", e);
+		}
+	}
+
+	/**
+	 * Writes a table
+	 *
+	 * @param table
+	 *            the table
+	 * @param path
+	 *            the table file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void write(OtuTable table, String path) throws IOException {
+		int otuCount = table.getOtus().size();
+		int sampleCount = table.getSamples().size();
+
+		// Columns are filled scanning the OTUs in order, so the OTUs of each
+		// column are sorted
+		long[] columns = new long[sampleCount + 1];
+		int[] keys = new int[sampleCount];
+		for (int o = 0; o < otuCount; o++) {
+			int n = table.getRow(o).keys(keys);
+			for (int i = 0; i < n; i++)
+				columns[keys[i] + 1]++;
+		}
+		for (int s = 0; s < sampleCount; s++)
+			columns[s + 1] += columns[s];
+		long cells = columns[sampleCount];
+		if (cells > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many non zero cells");
+		int[] rows = new int[(int) cells];
+		long[] values = new long[(int) cells];
+		long[] next = Arrays.copyOf(columns, sampleCount);
+		for (int o = 0; o < otuCount; o++) {
+			SparseCounts row = table.getRow(o);
+			int n = row.keys(keys);
+			for (int i = 0; i < n; i++) {
+				int c = (int) next[keys[i]]++;
+				rows[c] = o;
+				values[c] = row.get(keys[i]);
+			}
+		}
+
+		long rowStart = HEADER + ((long) sampleCount + 1) * 8;
+		long valueStart = align(rowStart + cells * 4);
+		RandomAccessFile out = new RandomAccessFile(path, "rw");
+		try {
+			out.setLength(0);
+			Output o = new Output(out.getChannel());
+			o.putInt(MAGIC).putInt(VERSION).putInt(otuCount)
+					.putInt(sampleCount).putLong(cells)
+					.putLong(valueStart + cells * 8);
+			for (long c : columns)
+				o.putLong(c);
+			for (int r : rows)
+				o.putInt(r);
+			if (valueStart > rowStart + cells * 4)
+				o.putInt(0);
+			for (long v : values)
+				o.putLong(v);
+			for (String l : table.getOtus())
+				o.putLabel(l);
+			for (String l : table.getSamples())
+				o.putLabel(l);
+			o.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the OTU labels, by identifier
+	 */
+	public List<String> getOtus() {
+		return otus;
+	}
+
+	/**
+	 * @return the sample labels, by identifier
+	 */
+	public List<String> getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the number of non zero cells
+	 */
+	public long getCells() {
+		return cells;
+	}
+
+	/**
+	 * @param sample
+	 *            a sample identifier
+	 * @return the counts of the sample by OTU identifier
+	 */
+	public SparseVector getSample(int sample) {
+		long from = columns.getLong(sample * 8);
+		int n = (int) (columns.getLong(sample * 8 + 8) - from);
+		int[] indices = new int[n];
+		long[] counts = new long[n];
+		for (int i = 0; i < n; i++) {
+			indices[i] = this.row(from + i);
+			counts[i] = this.value(from + i);
+		}
+		return new SparseVector(indices, counts);
+	}
+
+	/**
+	 * Collects the counts of an OTU searching it in the column of each sample
+	 *
+	 * @param otu
+	 *            an OTU identifier
+	 * @return the counts of the OTU by sample identifier
+	 */
+	public SparseVector getOtu(int otu) {
+		int[] indices = new int[samples.size()];
+		long[] counts = new long[samples.size()];
+		int n = 0;
+		for (int s = 0; s < samples.size(); s++) {
+			long lo = columns.getLong(s * 8);
+			long hi = columns.getLong(s * 8 + 8) - 1;
+			while (lo <= hi) {
+				long mid = (lo + hi) >>> 1;
+				int r = this.row(mid);
+				if (r < otu) {
+					lo = mid + 1;
+				} else if (r > otu) {
+					hi = mid - 1;
+				} else {
+					indices[n] = s;
+					counts[n++] = this.value(mid);
+					break;
+				}
+			}
+		}
+		return new SparseVector(Arrays.copyOf(indices, n), Arrays.copyOf(
+				counts, n));
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private int row(long cell) {
+		return rows[(int) (cell >>> rowBits)]
+				.getInt((int) (cell & ((1 << rowBits) - 1)) << 2);
+	}
+
+	private long value(long cell) {
+		return values[(int) (cell >>> valueBits)]
+				.getLong((int) (cell & ((1 << valueBits) - 1)) << 3);
+	}
+
+	/**
+	 * Maps an array in segments
+	 *
+	 * @param ch
+	 *            the file channel
+	 * @param start
+	 *            the offset of the array
+	 * @param length
+	 *            the number of elements
+	 * @param shift
+	 *            the bits of the element size
+	 * @param bits
+	 *            the bits of the number of elements in a segment
+	 * @return the segments
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static ByteBuffer[] map(FileChannel ch, long start, long length,
+			int shift, int bits) throws IOException {
+		int count = (int) ((length + (1L << bits) - 1) >>> bits);
+		ByteBuffer[] segments = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long from = (long) i << bits;
+			long len = Math.min(1L << bits, length - from);
+			segments[i] = ch.map(MapMode.READ_ONLY, start + (from << shift),
+					len << shift).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return segments;
+	}
+
+	private static List<String> readLabels(ByteBuffer dict, int count) {
+		List<String> labels = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] b = new byte[dict.getInt()];
+			dict.get(b);
+			labels.add(new String(b, UTF8));
+		}
+		return Collections.unmodifiableList(labels);
+	}
+
+	/**
+	 * @return the offset rounded up to a multiple of 8
+	 */
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * Buffered little endian writer
+	 */
+	private static class Output {
+
+		private final FileChannel ch;
+
+		private final ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(
+				ByteOrder.LITTLE_ENDIAN);
+
+		private Output(FileChannel ch) {
+			this.ch = ch;
+		}
+
+		private Output putInt(int v) throws IOException {
+			this.reserve(4);
+			buf.putInt(v);
+			return this;
+		}
+
+		private Output putLong(long v) throws IOException {
+			this.reserve(8);
+			buf.putLong(v);
+			return this;
+		}
+
+		private void putLabel(String label) throws IOException {
+			byte[] b = label.getBytes(UTF8);
+			this.putInt(b.length);
+			if (b.length > buf.remaining())
+				this.flush();
+			if (b.length > buf.remaining()) {
+				ByteBuffer data = ByteBuffer.wrap(b);
+				while (data.hasRemaining())
+					ch.write(data);
+			} else {
+				buf.put(b);
+			}
+		}
+
+		private void reserve(int bytes) throws IOException {
+			if (buf.remaining() < bytes)
+				this.flush();
+		}
+
+		private void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining())
+				ch.write(buf);
+			buf.clear();
+		}
+
+	}
+
+}
@@ -0,0 +1,359 @@
+package bacci.giovanni.o2tab.table;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sparse OTU table. OTU and sample labels are interned into consecutive
+ * integer identifiers in order of first appearance and each OTU keeps the
+ * non zero counts of its samples in a {@link SparseCounts}.
+ * <p>
+ * Instances are not thread safe: concurrent builders fill their own table
+ * and the partial tables are then {@link #merge(OtuTable) merged}.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class OtuTable {
+
+	private final List<String> otus = new ArrayList<String>();
+
+	private final Map<String, Integer> otuIds = new HashMap<String, Integer>();
+
+	private final List<String> samples = new ArrayList<String>();
+
+	private final Map<String, Integer> sampleIds = new HashMap<String, Integer>();
+
+	/**
+	 * Counts of each OTU by sample
+	 */
+	private final List<SparseCounts> rows = new ArrayList<SparseCounts>();
+
+	/**
+	 * @param label
+	 *            an OTU label
+	 * @return the identifier of the OTU, added if new
+	 */
+	public int otu(String label) {
+		Integer id = otuIds.get(label);
+		if (id == null) {
+			id = otus.size();
+			otuIds.put(label, id);
+			otus.add(label);
+			rows.add(new SparseCounts());
+		}
+		return id;
+	}
+
+	/**
+	 * @param label
+	 *            a sample label
+	 * @return the identifier of the sample, added if new
+	 */
+	public int sample(String label) {
+		Integer id = sampleIds.get(label);
+		if (id == null) {
+			id = samples.size();
+			sampleIds.put(label, id);
+			samples.add(label);
+		}
+		return id;
+	}
+
+	/**
+	 * Adds a count to a cell
+	 *
+	 * @param otu
+	 *            the OTU identifier
+	 * @param sample
+	 *            the sample identifier
+	 * @param count
+	 *            the count to add
+	 */
+	public void add(int otu, int sample, long count) {
+		rows.get(otu).add(sample, count);
+	}
+
+	/**
+	 * Adds all the counts of another table. OTUs and samples not yet in this
+	 * table are appended in their order in the other table, so merging the
+	 * tables of consecutive parts of a mapping file gives the same table as
+	 * reading the whole file.
+	 *
+	 * @param other
+	 *            the other table
+	 */
+	public void merge(OtuTable other) {
+		int[] remap = new int[other.samples.size()];
+		for (int s = 0; s < remap.length; s++)
+			remap[s] = this.sample(other.samples.get(s));
+		for (int o = 0; o < other.otus.size(); o++) {
+			int id = this.otu(other.otus.get(o));
+			rows.get(id).addAll(other.rows.get(o), remap);
+		}
+	}
+
+	/**
+	 * @return the OTU labels, by identifier
+	 */
+	public List<String> getOtus() {
+		return otus;
+	}
+
+	/**
+	 * @return the sample labels, by identifier
+	 */
+	public List<String> getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @param otu
+	 *            an OTU identifier
+	 * @return the counts of the OTU by sample identifier
+	 */
+	public SparseCounts getRow(int otu) {
+		return rows.get(otu);
+	}
+
+	/**
+	 * @return the counts of each sample by OTU identifier, by sample
+	 *         identifier
+	 */
+	public SparseVector[] getColumns() {
+		int[] sizes = new int[samples.size()];
+		int[] keys = new int[samples.size()];
+		for (SparseCounts row : rows) {
+			int n = row.keys(keys);
+			for (int i = 0; i < n; i++)
+				sizes[keys[i]]++;
+		}
+		int[][] indices = new int[sizes.length][];
+		long[][] values = new long[sizes.length][];
+		for (int s = 0; s < sizes.length; s++) {
+			indices[s] = new int[sizes[s]];
+			values[s] = new long[sizes[s]];
+			sizes[s] = 0;
+		}
+		// OTUs are scanned in order, so the indices of each column are sorted
+		for (int o = 0; o < rows.size(); o++) {
+			SparseCounts row = rows.get(o);
+			int n = row.keys(keys);
+			for (int i = 0; i < n; i++) {
+				int s = keys[i];
+				indices[s][sizes[s]] = o;
+				values[s][sizes[s]++] = row.get(s);
+			}
+		}
+		SparseVector[] columns = new SparseVector[sizes.length];
+		for (int s = 0; s < sizes.length; s++)
+			columns[s] = new SparseVector(indices[s], values[s]);
+		return columns;
+	}
+
+	/**
+	 * Reads a table written in the tab separated layout of
+	 * <code>uc2otutab.py</code> (see {@link #write(String)})
+	 *
+	 * @param file
+	 *            the table file
+	 * @return the table
+	 * @throws IOException
+	 *             if an I/O error occurs or the file is not a table
+	 */
+	public static OtuTable read(String file) throws IOException {
+		OtuTable table = new OtuTable();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			if (line == null || !line.startsWith("OTUId"))
+				throw new IOException(file + " is not an OTU table");
+			String[] header = line.split("\t");
+			int[] ids = new int[header.length];
+			for (int i = 1; i < header.length; i++)
+				ids[i] = table.sample(header[i]);
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				String[] fields = line.split("\t");
+				if (fields.length != header.length)
+					throw new IOException("Malformed row: " + line);
+				int otu = table.otu(fields[0]);
+				for (int i = 1; i < fields.length; i++) {
+					long count = Long.parseLong(fields[i]);
+					if (count != 0)
+						table.add(otu, ids[i], count);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException(file + " is not an OTU table", e);
+		} finally {
+			reader.close();
+		}
+		return table;
+	}
+
+	/**
+	 * Writes the table in the tab separated layout of
+	 * <code>uc2otutab.py</code>: a header with <code>OTUId</code> and the
+	 * sample labels, then a row for each OTU. OTUs and samples are in order of
+	 * first appearance.
+	 *
+	 * @param file
+	 *            the output file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(String file) throws IOException {
+		BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+		try {
+			wr.write("OTUId");
+			for (String s : samples) {
+				wr.write('\t');
+				wr.write(s);
+			}
+			wr.newLine();
+			for (int o = 0; o < otus.size(); o++) {
+				SparseCounts row = rows.get(o);
+				wr.write(otus.get(o));
+				for (int s = 0; s < samples.size(); s++) {
+					wr.write('\t');
+					wr.write(Long.toString(row.get(s)));
+				}
+				wr.newLine();
+			}
+		} finally {
+			wr.close();
+		}
+	}
+
+	/**
+	 * Writes the non zero cells as tab separated triplets: a header, then a
+	 * line with the OTU label, the sample label and the count of each cell.
+	 * Cells are written OTU by OTU, by increasing sample identifier.
+	 *
+	 * @param file
+	 *            the output file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeTriplets(String file) throws IOException {
+		BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+		try {
+			wr.write("OTUId\tSampleId\tCount");
+			wr.newLine();
+			int[] keys = new int[samples.size()];
+			for (int o = 0; o < otus.size(); o++) {
+				SparseCounts row = rows.get(o);
+				int n = row.keys(keys);
+				for (int i = 0; i < n; i++) {
+					wr.write(otus.get(o));
+					wr.write('\t');
+					wr.write(samples.get(keys[i]));
+					wr.write('\t');
+					wr.write(Long.toString(row.get(keys[i])));
+					wr.newLine();
+				}
+			}
+		} finally {
+			wr.close();
+		}
+	}
+
+	/**
+	 * Writes the table in the sparse JSON format of BIOM 1.0. The entries of
+	 * the matrix are written OTU by OTU from the non zero cells, so the size
+	 * of the file and the time to write it depend on the number of non zero
+	 * cells only.
+	 *
+	 * @param file
+	 *            the output file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeBiom(String file) throws IOException {
+		BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+		try {
+			wr.write("{\"id\": null,\"format\": \"Biological Observation Matrix 1.0.0\","
+					+ "\"format_url\": \"http://biom-format.org\","
+					+ "\"type\": \"OTU table\",\"generated_by\": \"o2tab\",");
+			wr.write("\"date\": \""
+					+ new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US)
+							.format(new Date()) + "\",");
+			wr.write("\"matrix_type\": \"sparse\",\"matrix_element_type\": \"int\",");
+			wr.write("\"shape\": [" + otus.size() + ", " + samples.size()
+					+ "],");
+			wr.newLine();
+			writeIds(wr, "rows", otus);
+			wr.write(',');
+			wr.newLine();
+			writeIds(wr, "columns", samples);
+			wr.write(',');
+			wr.newLine();
+			wr.write("\"data\": [");
+			int[] keys = new int[samples.size()];
+			boolean first = true;
+			for (int o = 0; o < otus.size(); o++) {
+				SparseCounts row = rows.get(o);
+				int n = row.keys(keys);
+				for (int i = 0; i < n; i++) {
+					if (!first)
+						wr.write(',');
+					first = false;
+					wr.newLine();
+					wr.write("[" + o + "," + keys[i] + "," + row.get(keys[i])
+							+ "]");
+				}
+			}
+			wr.write("]}");
+			wr.newLine();
+		} finally {
+			wr.close();
+		}
+	}
+
+	/**
+	 * Writes the BIOM entries of a list of labels, without metadata
+	 */
+	private static void writeIds(BufferedWriter wr, String name,
+			List<String> labels) throws IOException {
+		wr.write("\"" + name + "\": [");
+		for (int i = 0; i < labels.size(); i++) {
+			if (i > 0)
+				wr.write(',');
+			wr.newLine();
+			wr.write("{\"id\": \"" + escape(labels.get(i))
+					+ "\", \"metadata\": null}");
+		}
+		wr.write(']');
+	}
+
+	/**
+	 * @return the label as the content of a JSON string
+	 */
+	private static String escape(String label) {
+		StringBuilder sb = new StringBuilder(label.length());
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+	}
+
+}
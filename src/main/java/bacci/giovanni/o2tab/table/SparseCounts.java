@@ -0,0 +1,138 @@
+package bacci.giovanni.o2tab.table;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from non negative integer keys to counts, used for the
+ * non zero cells of a row of an OTU table
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class SparseCounts {
+
+	/**
+	 * Marks an empty slot
+	 */
+	private final static int EMPTY = -1;
+
+	private int[] keys;
+
+	private long[] values;
+
+	/**
+	 * Number of keys
+	 */
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 */
+	public SparseCounts() {
+		this.keys = new int[4];
+		this.values = new long[4];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Adds a count to a key
+	 *
+	 * @param key
+	 *            the key
+	 * @param count
+	 *            the count to add
+	 */
+	public void add(int key, long count) {
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		while (keys[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			if (++size * 2 > keys.length) {
+				values[i] = count;
+				this.grow();
+				return;
+			}
+		}
+		values[i] += count;
+	}
+
+	/**
+	 * @param key
+	 *            a key
+	 * @return the count of the key, 0 if the key is not present
+	 */
+	public long get(int key) {
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		while (keys[i] != EMPTY) {
+			if (keys[i] == key)
+				return values[i];
+			i = (i + 1) & mask;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copies the keys in increasing order
+	 *
+	 * @param out
+	 *            array receiving the keys, at least {@link #size()} long
+	 * @return the number of keys
+	 */
+	public int keys(int[] out) {
+		int n = 0;
+		for (int k : keys)
+			if (k != EMPTY)
+				out[n++] = k;
+		Arrays.sort(out, 0, n);
+		return n;
+	}
+
+	/**
+	 * Adds all the counts of another map
+	 *
+	 * @param other
+	 *            the other map
+	 * @param remap
+	 *            the key of this map for each key of the other one
+	 */
+	void addAll(SparseCounts other, int[] remap) {
+		for (int i = 0; i < other.keys.length; i++)
+			if (other.keys[i] != EMPTY)
+				this.add(remap[other.keys[i]], other.values[i]);
+	}
+
+	private void grow() {
+		int[] k = keys;
+		long[] v = values;
+		keys = new int[k.length * 2];
+		values = new long[k.length * 2];
+		Arrays.fill(keys, EMPTY);
+		int mask = keys.length - 1;
+		for (int j = 0; j < k.length; j++) {
+			if (k[j] == EMPTY)
+				continue;
+			int i = mix(k[j]) & mask;
+			while (keys[i] != EMPTY)
+				i = (i + 1) & mask;
+			keys[i] = k[j];
+			values[i] = v[j];
+		}
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+}
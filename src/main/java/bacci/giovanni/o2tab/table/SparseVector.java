@@ -0,0 +1,81 @@
+package bacci.giovanni.o2tab.table;
+
+/**
+ * Immutable sparse vector of counts, such as the OTU counts of a sample or
+ * the sample counts of an OTU. Only the non zero entries are stored, by
+ * increasing index.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class SparseVector {
+
+	private final int[] indices;
+
+	private final long[] values;
+
+	/**
+	 * Constructor
+	 *
+	 * @param indices
+	 *            the increasing indices of the non zero entries
+	 * @param values
+	 *            the values of the entries
+	 */
+	public SparseVector(int[] indices, long[] values) {
+		if (indices.length != values.length)
+			throw new IllegalArgumentException(
+					"indices and values differ in length");
+		this.indices = indices;
+		this.values = values;
+	}
+
+	/**
+	 * @return the number of non zero entries
+	 */
+	public int size() {
+		return indices.length;
+	}
+
+	/**
+	 * @param i
+	 *            an entry, from 0 to {@link #size()} excluded
+	 * @return the index of the entry
+	 */
+	public int getIndex(int i) {
+		return indices[i];
+	}
+
+	/**
+	 * @param i
+	 *            an entry, from 0 to {@link #size()} excluded
+	 * @return the value of the entry
+	 */
+	public long getValue(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @return the sum of the values
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (long v : values)
+			total += v;
+		return total;
+	}
+
+	/**
+	 * @param length
+	 *            the length of the dense vector, greater than the last index
+	 * @return the values as a dense vector
+	 */
+	public long[] toDense(int length) {
+		long[] dense = new long[length];
+		for (int i = 0; i < indices.length; i++)
+			dense[indices[i]] = values[i];
+		return dense;
+	}
+
+}
@@ -0,0 +1,72 @@
+package bacci.giovanni.o2tab.table;
+
+import java.io.IOException;
+
+/**
+ * Additional output formats of the OTU tables, written besides the tab
+ * separated table of <code>uc2otutab.py</code>. All of them are written from
+ * the non zero cells only.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public enum TableFormat {
+
+	/**
+	 * Memory mappable binary table, see {@link MappedOtuTable}
+	 */
+	BINARY("otu_table.csc") {
+		@Override
+		public void write(OtuTable table, String file) throws IOException {
+			MappedOtuTable.write(table, file);
+		}
+	},
+
+	/**
+	 * Sparse BIOM 1.0 JSON table
+	 */
+	BIOM("otu_table.biom") {
+		@Override
+		public void write(OtuTable table, String file) throws IOException {
+			table.writeBiom(file);
+		}
+	},
+
+	/**
+	 * Tab separated (OTU, sample, count) triplets
+	 */
+	TRIPLET("otu_table_triplets.tsv") {
+		@Override
+		public void write(OtuTable table, String file) throws IOException {
+			table.writeTriplets(file);
+		}
+	};
+
+	private final String fileName;
+
+	private TableFormat(String fileName) {
+		this.fileName = fileName;
+	}
+
+	/**
+	 * @return the name of the table file
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Writes a table in this format
+	 *
+	 * @param table
+	 *            the table
+	 * @param file
+	 *            the output file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public abstract void write(OtuTable table, String file)
+			throws IOException;
+
+}
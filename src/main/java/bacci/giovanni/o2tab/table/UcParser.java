@@ -0,0 +1,330 @@
+package bacci.giovanni.o2tab.table;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import bacci.giovanni.o2tab.util.FastaRecord;
+
+/**
+ * Streaming parser of mapping files (<code>.uc</code>). Every hit record
+ * (<code>H</code>) adds the size of the query, 1 if the label has no size
+ * annotation, to the cell of its target OTU and of the sample named by the
+ * barcode label of the query, as done by <code>uc2otutab.py</code>. The
+ * other records are ignored.
+ * <p>
+ * Records are parsed on the raw bytes: labels are looked up as byte slices
+ * and turned into strings only the first time they are seen. Large files can
+ * be split into byte ranges parsed in parallel, each into its own table, and
+ * the partial tables are merged in file order.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class UcParser {
+
+	/**
+	 * Field of the query label
+	 */
+	private final static int QUERY = 8;
+
+	/**
+	 * Field of the target label
+	 */
+	private final static int TARGET = 9;
+
+	private final static byte[] BARCODE = FastaRecord.BARCODE.getBytes();
+
+	private final static byte[] SIZE = ";size=".getBytes();
+
+	/**
+	 * The table receiving the counts
+	 */
+	private final OtuTable table;
+
+	/**
+	 * Table identifiers of the OTU labels
+	 */
+	private final LabelIds otus = new LabelIds();
+
+	/**
+	 * Table identifiers of the sample labels
+	 */
+	private final LabelIds samples = new LabelIds();
+
+	private byte[] buf = new byte[1 << 16];
+
+	/**
+	 * Constructor
+	 *
+	 * @param table
+	 *            the table receiving the counts
+	 */
+	public UcParser(OtuTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * Parses a mapping file
+	 *
+	 * @param file
+	 *            the mapping file, it can be a named pipe
+	 * @param table
+	 *            the table receiving the counts
+	 * @throws IOException
+	 *             if an I/O error occurs or a query has no barcode label
+	 */
+	public static void parse(String file, OtuTable table) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			parse(in, table);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses a stream of records until its end
+	 *
+	 * @param in
+	 *            the stream
+	 * @param table
+	 *            the table receiving the counts
+	 * @throws IOException
+	 *             if an I/O error occurs or a query has no barcode label
+	 */
+	public static void parse(InputStream in, OtuTable table)
+			throws IOException {
+		new UcParser(table).parse(in, false, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Parses a regular mapping file in parallel. The file is split into byte
+	 * ranges of about the same size and each record is parsed by the range
+	 * containing its first byte.
+	 *
+	 * @param file
+	 *            the mapping file
+	 * @param parts
+	 *            the number of ranges
+	 * @param ex
+	 *            the executor parsing the ranges
+	 * @return the table of the file, the same as parsing it sequentially
+	 * @throws IOException
+	 *             if an I/O error occurs or a query has no barcode label
+	 * @throws InterruptedException
+	 *             if the parsing is interrupted
+	 */
+	public static OtuTable parse(final String file, int parts,
+			ExecutorService ex) throws IOException, InterruptedException {
+		long length = new File(file).length();
+		if (parts < 2 || length < parts) {
+			OtuTable table = new OtuTable();
+			parse(file, table);
+			return table;
+		}
+
+		List<Callable<OtuTable>> tasks = new ArrayList<Callable<OtuTable>>();
+		for (int p = 0; p < parts; p++) {
+			final long from = length * p / parts;
+			final long to = length * (p + 1) / parts;
+			tasks.add(new Callable<OtuTable>() {
+				@Override
+				public OtuTable call() throws IOException {
+					return parseRange(file, from, to);
+				}
+			});
+		}
+		OtuTable table = new OtuTable();
+		try {
+			for (Future<OtuTable> f : ex.invokeAll(tasks))
+				table.merge(f.get());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		return table;
+	}
+
+	/**
+	 * Parses the records starting in a byte range. A record starting before
+	 * the range is skipped, a record starting in the range is read to its end.
+	 *
+	 * @param file
+	 *            the mapping file
+	 * @param from
+	 *            the start of the range, inclusive
+	 * @param to
+	 *            the end of the range, exclusive
+	 * @return the table of the range
+	 * @throws IOException
+	 *             if an I/O error occurs or a query has no barcode label
+	 */
+	static OtuTable parseRange(String file, long from, long to)
+			throws IOException {
+		OtuTable table = new OtuTable();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			// Reading from the byte before the range, the first line is the
+			// end of the previous record, empty if the range starts a record
+			long start = Math.max(0, from - 1);
+			in.getChannel().position(start);
+			new UcParser(table).parse(in, from > 0, to - start);
+		} finally {
+			in.close();
+		}
+		return table;
+	}
+
+	/**
+	 * Parses the lines of a stream
+	 *
+	 * @param in
+	 *            the stream
+	 * @param skip
+	 *            <code>true</code> for skipping the first line
+	 * @param limit
+	 *            lines starting at this offset of the stream or later are not
+	 *            read
+	 * @throws IOException
+	 *             if an I/O error occurs or a query has no barcode label
+	 */
+	private void parse(InputStream in, boolean skip, long limit)
+			throws IOException {
+		long base = 0; // stream offset of buf[0]
+		int len = 0; // bytes in buf
+		int pos = 0; // start of the current line
+		int scan = 0; // first byte not yet searched for the line end
+		while (base + pos < limit) {
+			int end = scan;
+			while (end < len && buf[end] != '\n')
+				end++;
+			if (end == len) {
+				// No complete line in the buffer
+				System.arraycopy(buf, pos, buf, 0, len - pos);
+				base += pos;
+				len -= pos;
+				pos = 0;
+				if (len == buf.length)
+					buf = Arrays.copyOf(buf, len * 2);
+				int read = in.read(buf, len, buf.length - len);
+				if (read < 0) {
+					if (len > 0 && !skip)
+						this.record(pos, len);
+					return;
+				}
+				scan = len;
+				len += read;
+				continue;
+			}
+			if (skip)
+				skip = false;
+			else
+				this.record(pos, (end > pos && buf[end - 1] == '\r') ? end - 1
+						: end);
+			pos = end + 1;
+			scan = pos;
+		}
+	}
+
+	/**
+	 * Counts a record
+	 *
+	 * @param from
+	 *            the start of the record in the buffer
+	 * @param to
+	 *            the end of the record, without the line terminator
+	 * @throws IOException
+	 *             if the record is malformed or the query has no barcode label
+	 */
+	private void record(int from, int to) throws IOException {
+		if (from == to || buf[from] != 'H')
+			return;
+		int field = 0;
+		int query = -1;
+		int target = -1;
+		int end = to;
+		for (int i = from; i < to; i++) {
+			if (buf[i] != '\t')
+				continue;
+			field++;
+			if (field == QUERY) {
+				query = i + 1;
+			} else if (field == TARGET) {
+				target = i + 1;
+			} else if (field == TARGET + 1) {
+				end = i;
+				break;
+			}
+		}
+		if (target < 0)
+			throw new IOException("Malformed record: " + this.string(from, to));
+		int queryEnd = target - 1;
+
+		int b = indexOf(BARCODE, query, queryEnd);
+		if (b < 0)
+			throw new IOException("No barcode label in "
+					+ this.string(query, queryEnd));
+		b += BARCODE.length;
+		int bEnd = b;
+		while (bEnd < queryEnd && buf[bEnd] != ';')
+			bEnd++;
+
+		long size = 1;
+		int s = indexOf(SIZE, query, queryEnd);
+		if (s >= 0) {
+			size = 0;
+			int d = s + SIZE.length;
+			for (; d < queryEnd && buf[d] != ';'; d++) {
+				if (buf[d] < '0' || buf[d] > '9')
+					throw new IOException("Malformed size in "
+							+ this.string(query, queryEnd));
+				size = size * 10 + (buf[d] - '0');
+			}
+			if (d == s + SIZE.length)
+				throw new IOException("Malformed size in "
+						+ this.string(query, queryEnd));
+		}
+
+		int otu = otus.get(buf, target, end);
+		if (otu < 0) {
+			otu = table.otu(this.string(target, end));
+			otus.put(buf, target, end, otu);
+		}
+		int sample = samples.get(buf, b, bEnd);
+		if (sample < 0) {
+			sample = table.sample(this.string(b, bEnd));
+			samples.put(buf, b, bEnd, sample);
+		}
+		table.add(otu, sample, size);
+	}
+
+	/**
+	 * @return the first position of a pattern in a slice of the buffer or
+	 *         <code>-1</code>
+	 */
+	private int indexOf(byte[] pattern, int from, int to) {
+		outer: for (int i = from; i <= to - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++)
+				if (buf[i + j] != pattern[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	private String string(int from, int to) {
+		return new String(buf, from, to - from);
+	}
+
+}
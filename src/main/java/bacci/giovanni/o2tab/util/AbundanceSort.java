@@ -0,0 +1,208 @@
+package bacci.giovanni.o2tab.util;
+
+import java.util.Arrays;
+
+/**
+ * Orders sequences by decreasing abundance. Counts are sorted with a least
+ * significant digit radix sort on primitive keys, then each run of equal
+ * counts is ordered by sequence with a multikey quicksort, so that the final
+ * order does not depend on the order in which the sequences were found.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class AbundanceSort {
+
+	/**
+	 * Bits per radix digit
+	 */
+	private final static int BITS = 8;
+
+	/**
+	 * Number of buckets per digit
+	 */
+	private final static int RADIX = 1 << BITS;
+
+	/**
+	 * Runs shorter than this are sorted with insertion sort
+	 */
+	private final static int INSERTION = 16;
+
+	/**
+	 * Private constructor
+	 */
+	private AbundanceSort() {
+	}
+
+	/**
+	 * Orders the sequences by decreasing count. Sequences with the same count
+	 * are in lexicographic order.
+	 *
+	 * @param counts
+	 *            the counts (non negative)
+	 * @param seqs
+	 *            the sequences, one for each count
+	 * @return the indices of the sequences in the sorted order
+	 */
+	public static int[] order(long[] counts, byte[][] seqs) {
+		int n = counts.length;
+		int[] idx = new int[n];
+		for (int i = 0; i < n; i++)
+			idx[i] = i;
+		if (n < 2)
+			return idx;
+
+		// Keys are complemented so that an ascending sort gives decreasing
+		// counts
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = Long.MAX_VALUE - counts[i];
+
+		int[] tmpIdx = new int[n];
+		long[] tmpKeys = new long[n];
+		int[] hist = new int[RADIX];
+		for (int shift = 0; shift < Long.SIZE; shift += BITS) {
+			Arrays.fill(hist, 0);
+			for (int i = 0; i < n; i++)
+				hist[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+			// Skipping digits shared by all keys
+			if (hist[(int) (keys[0] >>> shift) & (RADIX - 1)] == n)
+				continue;
+			int sum = 0;
+			for (int b = 0; b < RADIX; b++) {
+				int c = hist[b];
+				hist[b] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				int b = (int) (keys[i] >>> shift) & (RADIX - 1);
+				int p = hist[b]++;
+				tmpKeys[p] = keys[i];
+				tmpIdx[p] = idx[i];
+			}
+			long[] k = keys;
+			keys = tmpKeys;
+			tmpKeys = k;
+			int[] t = idx;
+			idx = tmpIdx;
+			tmpIdx = t;
+		}
+
+		// Breaking ties on the sequences
+		int start = 0;
+		for (int i = 1; i <= n; i++) {
+			if (i == n || keys[i] != keys[start]) {
+				if (i - start > 1)
+					sortSequences(idx, seqs, start, i, 0);
+				start = i;
+			}
+		}
+		return idx;
+	}
+
+	/**
+	 * Orders the sequences lexicographically. In this order every sequence is
+	 * immediately followed by all the sequences it is a prefix of.
+	 *
+	 * @param seqs
+	 *            the sequences
+	 * @return the indices of the sequences in the sorted order
+	 */
+	public static int[] sequenceOrder(byte[][] seqs) {
+		int[] idx = new int[seqs.length];
+		for (int i = 0; i < idx.length; i++)
+			idx[i] = i;
+		sortSequences(idx, seqs, 0, idx.length, 0);
+		return idx;
+	}
+
+	/**
+	 * Multikey quicksort of a range of indices on their sequences
+	 *
+	 * @param idx
+	 *            the indices
+	 * @param seqs
+	 *            the sequences
+	 * @param lo
+	 *            first index of the range (inclusive)
+	 * @param hi
+	 *            last index of the range (exclusive)
+	 * @param depth
+	 *            the number of leading bytes shared by all the sequences in
+	 *            the range
+	 */
+	private static void sortSequences(int[] idx, byte[][] seqs, int lo,
+			int hi, int depth) {
+		while (hi - lo > INSERTION) {
+			int pivot = byteAt(seqs[idx[lo + (hi - lo) / 2]], depth);
+			int lt = lo;
+			int gt = hi - 1;
+			int i = lo;
+			while (i <= gt) {
+				int c = byteAt(seqs[idx[i]], depth);
+				if (c < pivot) {
+					swap(idx, lt++, i++);
+				} else if (c > pivot) {
+					swap(idx, i, gt--);
+				} else {
+					i++;
+				}
+			}
+			sortSequences(idx, seqs, lo, lt, depth);
+			sortSequences(idx, seqs, gt + 1, hi, depth);
+			if (pivot < 0)
+				return;
+			lo = lt;
+			hi = gt + 1;
+			depth++;
+		}
+		for (int i = lo + 1; i < hi; i++) {
+			for (int j = i; j > lo
+					&& compare(seqs[idx[j]], seqs[idx[j - 1]], depth) < 0; j--)
+				swap(idx, j, j - 1);
+		}
+	}
+
+	/**
+	 * @param seq
+	 *            the sequence
+	 * @param depth
+	 *            the position
+	 * @return the unsigned byte at the given position or -1 if the sequence
+	 *         is shorter
+	 */
+	private static int byteAt(byte[] seq, int depth) {
+		return (depth < seq.length) ? seq[depth] & 0xff : -1;
+	}
+
+	/**
+	 * Lexicographic comparison of two sequences starting at the given
+	 * position
+	 *
+	 * @param a
+	 *            the first sequence
+	 * @param b
+	 *            the second sequence
+	 * @param from
+	 *            the first position to compare
+	 * @return a negative value, zero or a positive value if the first
+	 *         sequence is less than, equal to or greater than the second one
+	 */
+	public static int compare(byte[] a, byte[] b, int from) {
+		int len = Math.min(a.length, b.length);
+		for (int i = from; i < len; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return a.length - b.length;
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+}
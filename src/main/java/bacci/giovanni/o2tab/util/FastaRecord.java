@@ -0,0 +1,120 @@
+package bacci.giovanni.o2tab.util;
+
+/**
+ * A FASTA record made of a label and an upper case sequence.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class FastaRecord {
+
+	/**
+	 * Size flag used in labels of dereplicated sequences
+	 */
+	public final static String SIZE = ";size=";
+
+	/**
+	 * Barcode flag used in labels of pooled reads
+	 */
+	public final static String BARCODE = ";barcodelabel=";
+
+	/**
+	 * The label (header line without the leading '>')
+	 */
+	private final String label;
+
+	/**
+	 * The sequence
+	 */
+	private final byte[] sequence;
+
+	/**
+	 * Constructor
+	 *
+	 * @param label
+	 *            the label
+	 * @param sequence
+	 *            the sequence
+	 */
+	public FastaRecord(String label, byte[] sequence) {
+		this.label = label;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return the label
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return the sequence
+	 */
+	public byte[] getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the size annotation of this record or 1 if the label has no
+	 *         size annotation
+	 */
+	public long getSize() {
+		return getSize(label);
+	}
+
+	/**
+	 * @param label
+	 *            a sequence label
+	 * @return the size annotation of the label or 1 if the label has no size
+	 *         annotation
+	 */
+	public static long getSize(String label) {
+		String v = getField(label, SIZE);
+		return (v == null) ? 1 : Long.parseLong(v);
+	}
+
+	/**
+	 * @param label
+	 *            a sequence label
+	 * @return the barcode annotation of the label or <code>null</code> if the
+	 *         label has no barcode annotation
+	 */
+	public static String getBarcode(String label) {
+		return getField(label, BARCODE);
+	}
+
+	/**
+	 * @param label
+	 *            a sequence label
+	 * @return the label without the size annotation, and without the
+	 *         separator ending the label after it
+	 */
+	public static String stripSize(String label) {
+		int i = label.indexOf(SIZE);
+		if (i < 0)
+			return label;
+		int end = label.indexOf(';', i + 1);
+		return (end < 0 || end == label.length() - 1) ? label.substring(0, i)
+				: label.substring(0, i) + label.substring(end);
+	}
+
+	/**
+	 * @param label
+	 *            a sequence label
+	 * @param flag
+	 *            the flag of the field (e.g. {@link #SIZE})
+	 * @return the value of the field or <code>null</code> if the field is not
+	 *         found
+	 */
+	private static String getField(String label, String flag) {
+		int i = label.indexOf(flag);
+		if (i < 0)
+			return null;
+		int start = i + flag.length();
+		int end = label.indexOf(';', start);
+		return (end < 0) ? label.substring(start) : label.substring(start, end);
+	}
+
+}
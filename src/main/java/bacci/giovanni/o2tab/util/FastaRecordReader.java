@@ -0,0 +1,119 @@
+package bacci.giovanni.o2tab.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Light weight FASTA reader. Unlike the biojava readers this class does not
+ * validate the alphabet and does not create sequence objects, it only returns
+ * labels and upper case sequences.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class FastaRecordReader implements Closeable {
+
+	/**
+	 * The reader
+	 */
+	private final BufferedReader reader;
+
+	/**
+	 * Label of the next record
+	 */
+	private String nextLabel = null;
+
+	/**
+	 * Sequence buffer
+	 */
+	private StringBuilder buffer = new StringBuilder();
+
+	/**
+	 * Constructor
+	 *
+	 * @param file
+	 *            the FASTA file
+	 * @throws IOException
+	 *             if an I/O error occurs opening the file
+	 */
+	public FastaRecordReader(String file) throws IOException {
+		this(new BufferedReader(new FileReader(file)));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param reader
+	 *            a reader pointing to FASTA formatted data
+	 */
+	public FastaRecordReader(BufferedReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * @return the next record or <code>null</code> if there are no more
+	 *         records
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public FastaRecord next() throws IOException {
+		String line = null;
+		if (nextLabel == null) {
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(">")) {
+					nextLabel = line.substring(1).trim();
+					break;
+				}
+			}
+			if (nextLabel == null)
+				return null;
+		}
+		buffer.setLength(0);
+		String label = nextLabel;
+		nextLabel = null;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith(">")) {
+				nextLabel = line.substring(1).trim();
+				break;
+			}
+			buffer.append(line.trim());
+		}
+		byte[] seq = new byte[buffer.length()];
+		for (int i = 0; i < seq.length; i++)
+			seq[i] = (byte) Character.toUpperCase(buffer.charAt(i));
+		return new FastaRecord(label, seq);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Reads all the records of a FASTA file
+	 *
+	 * @param file
+	 *            the FASTA file
+	 * @return the records in file order
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static List<FastaRecord> readAll(String file) throws IOException {
+		List<FastaRecord> records = new ArrayList<FastaRecord>();
+		FastaRecordReader reader = new FastaRecordReader(file);
+		try {
+			FastaRecord r = null;
+			while ((r = reader.next()) != null)
+				records.add(r);
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+}
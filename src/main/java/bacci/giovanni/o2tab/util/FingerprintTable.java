@@ -0,0 +1,152 @@
+package bacci.giovanni.o2tab.util;
+
+/**
+ * Open addressing frequency table keyed on 128-bit fingerprints. Each entry
+ * takes two longs for the fingerprint and one long for the counter, so the
+ * memory footprint does not depend on the length of the hashed sequences.
+ * Slots are stable until the table is resized, so callers can associate
+ * additional data to a slot once all the fingerprints have been added.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class FingerprintTable {
+
+	/**
+	 * Maximum load factor before resizing
+	 */
+	private final static double LOAD = 0.7;
+
+	/**
+	 * Fingerprints, two longs per slot
+	 */
+	private long[] keys;
+
+	/**
+	 * Counters. A zero counter marks an empty slot
+	 */
+	private long[] counts;
+
+	/**
+	 * Number of fingerprints stored
+	 */
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param expected
+	 *            the expected number of fingerprints
+	 */
+	public FingerprintTable(int expected) {
+		int cap = Integer.highestOneBit(Math.max(16,
+				(int) (expected / LOAD) + 1) - 1) << 1;
+		this.keys = new long[cap * 2];
+		this.counts = new long[cap];
+	}
+
+	/**
+	 * Constructor with a default initial size
+	 */
+	public FingerprintTable() {
+		this(1 << 16);
+	}
+
+	/**
+	 * Increments the counter of a fingerprint, adding it if it is not in the
+	 * table
+	 *
+	 * @param h1
+	 *            the first half of the fingerprint
+	 * @param h2
+	 *            the second half of the fingerprint
+	 * @return the updated count
+	 */
+	public long increment(long h1, long h2) {
+		if (size + 1 > counts.length * LOAD)
+			this.resize();
+		int s = this.find(h1, h2);
+		if (counts[s] == 0) {
+			keys[s * 2] = h1;
+			keys[s * 2 + 1] = h2;
+			size++;
+		}
+		return ++counts[s];
+	}
+
+	/**
+	 * @param h1
+	 *            the first half of the fingerprint
+	 * @param h2
+	 *            the second half of the fingerprint
+	 * @return the slot of the fingerprint or -1 if the fingerprint is not in
+	 *         the table
+	 */
+	public int slot(long h1, long h2) {
+		int s = this.find(h1, h2);
+		return (counts[s] == 0) ? -1 : s;
+	}
+
+	/**
+	 * @param slot
+	 *            the slot
+	 * @return the count stored in the slot (0 for empty slots)
+	 */
+	public long count(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * @return the number of slots. Valid slots go from 0 to
+	 *         <code>capacity() - 1</code>
+	 */
+	public int capacity() {
+		return counts.length;
+	}
+
+	/**
+	 * @return the number of fingerprints stored
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Linear probing
+	 *
+	 * @param h1
+	 *            the first half of the fingerprint
+	 * @param h2
+	 *            the second half of the fingerprint
+	 * @return the slot holding the fingerprint or the empty slot where it
+	 *         should be inserted
+	 */
+	private int find(long h1, long h2) {
+		int mask = counts.length - 1;
+		int s = (int) (h1 ^ (h1 >>> 32)) & mask;
+		while (counts[s] != 0
+				&& (keys[s * 2] != h1 || keys[s * 2 + 1] != h2))
+			s = (s + 1) & mask;
+		return s;
+	}
+
+	/**
+	 * Doubles the capacity of the table
+	 */
+	private void resize() {
+		long[] oldKeys = keys;
+		long[] oldCounts = counts;
+		this.keys = new long[oldKeys.length * 2];
+		this.counts = new long[oldCounts.length * 2];
+		for (int i = 0; i < oldCounts.length; i++) {
+			if (oldCounts[i] == 0)
+				continue;
+			int s = this.find(oldKeys[i * 2], oldKeys[i * 2 + 1]);
+			keys[s * 2] = oldKeys[i * 2];
+			keys[s * 2 + 1] = oldKeys[i * 2 + 1];
+			counts[s] = oldCounts[i];
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package bacci.giovanni.o2tab.util;
+
+/**
+ * Implementation of the 128-bit x64 variant of the MurmurHash3 function by
+ * Austin Appleby. The function is used for fingerprinting sequences, so only
+ * the 128-bit version is provided.
+ *
+ * @author <a href="http://www.unifi.it/dblage/CMpro-v-p-65.html">Giovanni
+ *         Bacci</a>
+ *
+ */
+public class MurmurHash3 {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	/**
+	 * Private constructor
+	 */
+	private MurmurHash3() {
+	}
+
+	/**
+	 * Computes the 128-bit hash of a byte range
+	 *
+	 * @param data
+	 *            the data to hash
+	 * @param offset
+	 *            the first byte to hash
+	 * @param length
+	 *            the number of bytes to hash
+	 * @param seed
+	 *            the seed
+	 * @param out
+	 *            an array of at least two elements in which the two halves of
+	 *            the hash will be stored
+	 */
+	public static void hash128(byte[] data, int offset, int length, long seed,
+			long[] out) {
+		long h1 = seed;
+		long h2 = seed;
+		int blocks = length >>> 4;
+
+		for (int i = 0; i < blocks; i++) {
+			int p = offset + (i << 4);
+			long k1 = getLong(data, p);
+			long k2 = getLong(data, p + 8);
+
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		int tail = offset + (blocks << 4);
+		long k1 = 0;
+		long k2 = 0;
+
+		switch (length & 15) {
+		case 15:
+			k2 ^= ((long) data[tail + 14] & 0xff) << 48;
+		case 14:
+			k2 ^= ((long) data[tail + 13] & 0xff) << 40;
+		case 13:
+			k2 ^= ((long) data[tail + 12] & 0xff) << 32;
+		case 12:
+			k2 ^= ((long) data[tail + 11] & 0xff) << 24;
+		case 11:
+			k2 ^= ((long) data[tail + 10] & 0xff) << 16;
+		case 10:
+			k2 ^= ((long) data[tail + 9] & 0xff) << 8;
+		case 9:
+			k2 ^= ((long) data[tail + 8] & 0xff);
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		case 8:
+			k1 ^= ((long) data[tail + 7] & 0xff) << 56;
+		case 7:
+			k1 ^= ((long) data[tail + 6] & 0xff) << 48;
+		case 6:
+			k1 ^= ((long) data[tail + 5] & 0xff) << 40;
+		case 5:
+			k1 ^= ((long) data[tail + 4] & 0xff) << 32;
+		case 4:
+			k1 ^= ((long) data[tail + 3] & 0xff) << 24;
+		case 3:
+			k1 ^= ((long) data[tail + 2] & 0xff) << 16;
+		case 2:
+			k1 ^= ((long) data[tail + 1] & 0xff) << 8;
+		case 1:
+			k1 ^= ((long) data[tail] & 0xff);
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		default:
+			break;
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+
+		h1 += h2;
+		h2 += h1;
+
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+
+		h1 += h2;
+		h2 += h1;
+
+		out[0] = h1;
+		out[1] = h2;
+	}
+
+	/**
+	 * Reads a little-endian long
+	 *
+	 * @param data
+	 *            the data
+	 * @param p
+	 *            the position of the first byte
+	 * @return the long value
+	 */
+	private static long getLong(byte[] data, int p) {
+		return ((long) data[p] & 0xff) | (((long) data[p + 1] & 0xff) << 8)
+				| (((long) data[p + 2] & 0xff) << 16)
+				| (((long) data[p + 3] & 0xff) << 24)
+				| (((long) data[p + 4] & 0xff) << 32)
+				| (((long) data[p + 5] & 0xff) << 40)
+				| (((long) data[p + 6] & 0xff) << 48)
+				| (((long) data[p + 7] & 0xff) << 56);
+	}
+
+	/**
+	 * Final avalanche mix
+	 *
+	 * @param k
+	 *            the value to mix
+	 * @return the mixed value
+	 */
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+}
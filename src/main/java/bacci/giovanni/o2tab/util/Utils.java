@@ -1,6 +1,7 @@
 package bacci.giovanni.o2tab.util;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
@@ -44,6 +45,31 @@ public class Utils {
 		return seq.replaceAll(rgx, System.lineSeparator()).toUpperCase();
 	}
 
+	/**
+	 * Writes a sequence in FASTA format without building intermediate
+	 * strings. The sequence is upper cased as in
+	 * {@link #formatFASTA(String, int)} and a new line is written after the
+	 * last base.
+	 * 
+	 * @param wr
+	 *            the writer
+	 * @param seq
+	 *            the sequence
+	 * @param basePerLine
+	 *            number of bases befor new line
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static void writeFASTA(BufferedWriter wr, byte[] seq,
+			int basePerLine) throws IOException {
+		for (int i = 0; i < seq.length; i++) {
+			if (i > 0 && i % basePerLine == 0)
+				wr.newLine();
+			wr.write(Character.toUpperCase((char) (seq[i] & 0xff)));
+		}
+		wr.newLine();
+	}
+
 	/**
 	 * @param dir
 	 *            the input directory
@@ -0,0 +1,182 @@
+package bacci.giovanni.o2tab.align;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class AlignmentTest extends TestCase {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	@Test
+	public void testEditDistance() {
+		Random r = new Random(42);
+		MyersEditDistance myers = new MyersEditDistance();
+		for (int i = 0; i < 2000; i++) {
+			byte[] a = random(r, 1 + r.nextInt(200));
+			byte[] b = mutate(r, a, r.nextInt(12));
+			int expected = naive(a, b);
+			assertEquals(expected, myers.distance(a, b));
+			assertEquals(expected, myers.distance(b, a));
+			int max = r.nextInt(12);
+			int bounded = myers.distance(a, b, max);
+			assertEquals(Math.min(expected, max + 1), bounded);
+		}
+	}
+
+	@Test
+	public void testIdentity() {
+		GlobalAligner aligner = new GlobalAligner();
+		byte[] a = "ACGTACGTACGTACGTACGT".getBytes();
+		assertEquals(1.0, aligner.identity(a, a, 0.97), 1e-9);
+		byte[] b = "ACGTACGTACCTACGTACGT".getBytes();
+		assertEquals(19.0 / 20, aligner.identity(a, b, 0.9), 1e-9);
+		// Terminal gaps are not counted
+		byte[] c = "GTACGTACGTACGTACGT".getBytes();
+		assertEquals(1.0, aligner.identity(a, c, 0.9), 1e-9);
+	}
+
+	@Test
+	public void testEarlyExit() {
+		Random r = new Random(7);
+		GlobalAligner full = new GlobalAligner();
+		GlobalAligner early = new GlobalAligner().earlyExit(true);
+		for (int i = 0; i < 2000; i++) {
+			byte[] a = random(r, 50 + r.nextInt(200));
+			byte[] b = mutate(r, a, r.nextInt(20));
+			double t = 0.9 + r.nextInt(10) / 100.0;
+			double id = full.identity(a, b, t);
+			double fast = early.identity(a, b, t);
+			if (id >= t)
+				assertEquals(id, fast, 1e-9);
+			else
+				assertTrue(fast < t);
+		}
+	}
+
+	@Test
+	public void testBatch() {
+		Random r = new Random(11);
+		GlobalAligner single = new GlobalAligner();
+		BatchAligner batch = new BatchAligner();
+		for (int i = 0; i < 200; i++) {
+			byte[] q = random(r, 1 + r.nextInt(300));
+			int count = 1 + r.nextInt(20);
+			byte[][] seqs = new byte[count][];
+			int[] targets = new int[count];
+			for (int c = 0; c < count; c++) {
+				targets[c] = c;
+				seqs[c] = (r.nextBoolean()) ? mutate(r, q, r.nextInt(15))
+						: random(r, 1 + r.nextInt(300));
+			}
+			double t = 0.8 + r.nextInt(20) / 100.0;
+			double[] out = new double[count];
+			batch.identities(q, seqs, targets, count, t, out);
+			for (int c = 0; c < count; c++)
+				assertEquals(single.identity(q, seqs[c], t), out[c], 1e-12);
+		}
+	}
+
+	@Test
+	public void testBatchEarlyExit() {
+		// Lanes ending at different rows, some before reaching the end of
+		// their target, next to lanes aligned to the end
+		Random r = new Random(13);
+		GlobalAligner single = new GlobalAligner().earlyExit(true);
+		GlobalAligner full = new GlobalAligner();
+		BatchAligner batch = new BatchAligner().earlyExit(true);
+		int exited = 0;
+		for (int i = 0; i < 300; i++) {
+			byte[] q = random(r, 1 + r.nextInt(300));
+			int count = 1 + r.nextInt(20);
+			byte[][] seqs = new byte[count][];
+			int[] targets = new int[count];
+			for (int c = 0; c < count; c++) {
+				targets[c] = c;
+				switch (r.nextInt(3)) {
+				case 0:
+					seqs[c] = mutate(r, q, r.nextInt(6));
+					break;
+				case 1:
+					seqs[c] = mutate(r, q, 10 + r.nextInt(60));
+					break;
+				default:
+					seqs[c] = random(r, 1 + r.nextInt(300));
+				}
+			}
+			double t = 0.8 + r.nextInt(20) / 100.0;
+			double[] out = new double[count];
+			batch.identities(q, seqs, targets, count, t, out);
+			for (int c = 0; c < count; c++) {
+				double id = single.identity(q, seqs[c], t);
+				assertEquals(id, out[c], 1e-12);
+				// Same decision at the threshold as the full alignment
+				assertEquals(full.identity(q, seqs[c], t) >= t, out[c] >= t);
+				if (id != full.identity(q, seqs[c], t))
+					exited++;
+			}
+		}
+		assertTrue(exited > 100);
+
+		// Pairs too long for the packed cells, next to short ones
+		byte[] q = random(r, 9000);
+		byte[][] seqs = { mutate(r, q, 50), random(r, 8000),
+				mutate(r, Arrays.copyOf(q, 300), 3) };
+		int[] targets = { 0, 1, 2 };
+		double[] out = new double[3];
+		batch.identities(q, seqs, targets, 3, 0.97, out);
+		for (int c = 0; c < 3; c++)
+			assertEquals(single.identity(q, seqs[c], 0.97), out[c], 1e-12);
+	}
+
+	private static byte[] random(Random r, int len) {
+		byte[] s = new byte[len];
+		for (int i = 0; i < len; i++)
+			s[i] = BASES[r.nextInt(4)];
+		return s;
+	}
+
+	private static byte[] mutate(Random r, byte[] s, int edits) {
+		StringBuilder sb = new StringBuilder(new String(s));
+		for (int e = 0; e < edits && sb.length() > 1; e++) {
+			int p = r.nextInt(sb.length());
+			char c = (char) BASES[r.nextInt(4)];
+			switch (r.nextInt(3)) {
+			case 0:
+				sb.setCharAt(p, c);
+				break;
+			case 1:
+				sb.deleteCharAt(p);
+				break;
+			default:
+				sb.insert(p, c);
+			}
+		}
+		return sb.toString().getBytes();
+	}
+
+	private static int naive(byte[] a, byte[] b) {
+		int[] prev = new int[b.length + 1];
+		int[] cur = new int[b.length + 1];
+		for (int j = 0; j <= b.length; j++)
+			prev[j] = j;
+		for (int i = 1; i <= a.length; i++) {
+			cur[0] = i;
+			for (int j = 1; j <= b.length; j++) {
+				int d = prev[j - 1] + ((a[i - 1] == b[j - 1]) ? 0 : 1);
+				cur[j] = Math.min(d, Math.min(prev[j], cur[j - 1]) + 1);
+			}
+			int[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+		return prev[b.length];
+	}
+
+}
@@ -0,0 +1,385 @@
+package bacci.giovanni.o2tab.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import bacci.giovanni.o2tab.align.GlobalAligner;
+import bacci.giovanni.o2tab.util.AbundanceSort;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class ClusteringTest extends TestCase {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	@Test
+	public void testMultiThreshold() throws Exception {
+		// Dense clusters, so the shortlists fill up with non centroids
+		Random r = new Random(3);
+		int n = 1500;
+		byte[][] seqs = new byte[n][];
+		long[] sizes = new long[n];
+		byte[][] parents = { random(r, 250), random(r, 250), random(r, 250) };
+		for (int i = 0; i < n; i++) {
+			seqs[i] = mutate(r, parents[r.nextInt(parents.length)],
+					r.nextInt(15));
+			sizes[i] = 1 + r.nextInt(50);
+		}
+		int[] order = AbundanceSort.order(sizes, seqs);
+		byte[][] sorted = new byte[n][];
+		long[] sortedSizes = new long[n];
+		for (int i = 0; i < n; i++) {
+			sorted[i] = seqs[order[i]];
+			sortedSizes[i] = sizes[order[i]];
+		}
+
+		double[] ids = { 0.99, 0.97, 0.95 };
+		for (int threads : new int[] { 1, 3 }) {
+			int[][] multi = new MultiThresholdClusterer(sorted, sortedSizes,
+					ids, threads).cluster();
+			for (int t = 0; t < ids.length; t++) {
+				int[] greedy = new GreedyClusterer(sorted, sortedSizes,
+						ids[t], threads).cluster();
+				assertTrue(Arrays.equals(greedy, multi[t]));
+			}
+		}
+	}
+
+	@Test
+	public void testGreedy() throws Exception {
+		// More sequences than a batch, from families close enough to be
+		// joined by more than one centroid
+		Random r = new Random(47);
+		int n = 2500;
+		byte[][] parents = new byte[12][];
+		for (int p = 0; p < parents.length; p++)
+			parents[p] = random(r, 200 + r.nextInt(60));
+		byte[][] sorted = new byte[n][];
+		long[] sizes = new long[n];
+		for (int i = 0; i < n; i++) {
+			sorted[i] = mutate(r, parents[r.nextInt(parents.length)],
+					r.nextInt(8));
+			sizes[i] = n - i;
+		}
+		double identity = 0.97;
+		int[] one = new GreedyClusterer(sorted, sizes, identity, 1).cluster();
+		int[] many = new GreedyClusterer(sorted, sizes, identity, 4)
+				.cluster();
+		assertTrue(Arrays.equals(one, many));
+
+		// Each sequence joins an earlier centroid it is close to, or no
+		// earlier centroid is close to it
+		GlobalAligner aligner = new GlobalAligner().earlyExit(true);
+		int centroids = 0;
+		for (int q = 0; q < n; q++) {
+			int c = one[q];
+			assertTrue(c <= q);
+			assertEquals(c, one[c]);
+			if (c < q) {
+				assertTrue(aligner.identity(sorted[q], sorted[c], identity)
+						>= identity);
+				continue;
+			}
+			centroids++;
+			for (int e = 0; e < q; e++)
+				if (one[e] == e)
+					assertTrue(aligner.identity(sorted[q], sorted[e], identity)
+							< identity);
+		}
+		assertTrue(centroids > parents.length && centroids < n / 3);
+	}
+
+	@Test
+	public void testSwarm() throws Exception {
+		// Chains of variants of a few parents, inside homopolymers too, with
+		// sizes tied and rising along the chains
+		Random r = new Random(53);
+		for (int d = 1; d <= 3; d++) {
+			byte[][] parents = { random(r, 80), random(r, 95),
+					"AAAAACCCCCGGGGGTTTTTAAAAACCCCC".getBytes() };
+			Set<String> unique = new LinkedHashSet<String>();
+			for (byte[] p : parents)
+				unique.add(new String(p));
+			while (unique.size() < 600) {
+				List<String> all = new ArrayList<String>(unique);
+				String s = all.get(r.nextInt(all.size()));
+				if (r.nextInt(8) == 0)
+					// Bases added after the last one
+					unique.add(s + (char) BASES[r.nextInt(4)]);
+				else
+					unique.add(new String(mutate(r, s.getBytes(),
+							1 + r.nextInt(d))));
+			}
+			int n = unique.size();
+			byte[][] seqs = new byte[n][];
+			long[] sizes = new long[n];
+			int i = 0;
+			for (String s : unique) {
+				seqs[i] = s.getBytes();
+				sizes[i] = 1 + r.nextInt(5);
+				i++;
+			}
+			int[] order = AbundanceSort.order(sizes, seqs);
+			byte[][] sorted = new byte[n][];
+			long[] sortedSizes = new long[n];
+			for (i = 0; i < n; i++) {
+				sorted[i] = seqs[order[i]];
+				sortedSizes[i] = sizes[order[i]];
+			}
+
+			int[] expected = naiveSwarm(sorted, sortedSizes, d);
+			for (int threads : new int[] { 1, 3 }) {
+				int[] found = new SwarmClusterer(sorted, sortedSizes, d,
+						threads).cluster();
+				assertTrue("d " + d, Arrays.equals(expected, found));
+			}
+		}
+	}
+
+	@Test
+	public void testUnoise() throws Exception {
+		// Abundant parents and rare variants at a few differences, more than
+		// a batch of them
+		Random r = new Random(59);
+		Set<String> unique = new LinkedHashSet<String>();
+		for (int p = 0; p < 10; p++)
+			unique.add(new String(random(r, 150 + r.nextInt(30))));
+		List<String> parents = new ArrayList<String>(unique);
+		while (unique.size() < 1500)
+			unique.add(new String(mutate(r, parents.get(r.nextInt(parents
+					.size())).getBytes(), 1 + r.nextInt(4))));
+		int n = unique.size();
+		byte[][] seqs = new byte[n][];
+		long[] sizes = new long[n];
+		int i = 0;
+		for (String s : unique) {
+			seqs[i] = s.getBytes();
+			sizes[i] = (i < parents.size()) ? 500 + r.nextInt(5000) : 1 + r
+					.nextInt(120);
+			i++;
+		}
+		int[] order = AbundanceSort.order(sizes, seqs);
+		byte[][] sorted = new byte[n][];
+		long[] sortedSizes = new long[n];
+		for (i = 0; i < n; i++) {
+			sorted[i] = seqs[order[i]];
+			sortedSizes[i] = sizes[order[i]];
+		}
+
+		double alpha = UnoiseClusterer.DEFAULT_ALPHA;
+		int[] one = new UnoiseClusterer(sorted, sortedSizes, alpha, 1)
+				.cluster();
+		int[] many = new UnoiseClusterer(sorted, sortedSizes, alpha, 4)
+				.cluster();
+		assertTrue(Arrays.equals(one, many));
+
+		// Each sequence is an error of an earlier centroid, or of no earlier
+		// centroid
+		int centroids = 0;
+		for (int q = 0; q < n; q++) {
+			int c = one[q];
+			assertTrue(c <= q);
+			assertEquals(c, one[c]);
+			if (c < q) {
+				assertTrue(naiveUnoise(sorted, sortedSizes, alpha, q, c));
+				continue;
+			}
+			centroids++;
+			for (int e = 0; e < q; e++)
+				if (one[e] == e)
+					assertFalse(naiveUnoise(sorted, sortedSizes, alpha, q, e));
+		}
+		assertTrue(centroids > parents.size() && centroids < n / 2);
+	}
+
+	@Test
+	public void testPrecluster() throws Exception {
+		// Substitutions of a few parents of different lengths, sequences with
+		// other bases and sequences shorter than the segments
+		Random r = new Random(61);
+		for (int diffs = 1; diffs <= 3; diffs++) {
+			byte[][] parents = { random(r, 100), random(r, 133),
+					random(r, 64), random(r, diffs) };
+			Set<String> unique = new LinkedHashSet<String>();
+			while (unique.size() < 800) {
+				byte[] s = parents[r.nextInt(parents.length)].clone();
+				for (int e = r.nextInt(2 * diffs + 1); e > 0; e--)
+					s[r.nextInt(s.length)] = BASES[r.nextInt(4)];
+				if (r.nextInt(50) == 0)
+					s[r.nextInt(s.length)] = 'N';
+				unique.add(new String(s));
+			}
+			int n = unique.size();
+			byte[][] seqs = new byte[n][];
+			long[] sizes = new long[n];
+			int i = 0;
+			for (String s : unique) {
+				seqs[i] = s.getBytes();
+				sizes[i] = 1 + (long) Math.pow(2, r.nextDouble() * 12);
+				i++;
+			}
+			int[] order = AbundanceSort.order(sizes, seqs);
+			byte[][] sorted = new byte[n][];
+			long[] sortedSizes = new long[n];
+			for (i = 0; i < n; i++) {
+				sorted[i] = seqs[order[i]];
+				sortedSizes[i] = sizes[order[i]];
+			}
+
+			for (double ratio : new double[] { 2, 8 }) {
+				int[] expected = naivePrecluster(sorted, sortedSizes, diffs,
+						ratio);
+				for (int threads : new int[] { 1, 3 }) {
+					int[] found = new HammingPreclusterer(sorted, sortedSizes,
+							threads).maxDiffs(diffs).minRatio(ratio).cluster();
+					assertTrue("diffs " + diffs + " ratio " + ratio,
+							Arrays.equals(expected, found));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Swarm clustering comparing all the pairs of sequences
+	 *
+	 * @return for each sequence the index of the seed of its cluster
+	 */
+	private static int[] naiveSwarm(byte[][] seqs, long[] sizes, int d) {
+		int n = seqs.length;
+		int[] assign = new int[n];
+		Arrays.fill(assign, -1);
+		for (int seed = 0; seed < n; seed++) {
+			if (assign[seed] >= 0)
+				continue;
+			assign[seed] = seed;
+			List<Integer> queue = new ArrayList<Integer>();
+			queue.add(seed);
+			while (!queue.isEmpty()) {
+				int a = queue.remove(queue.size() - 1);
+				for (int b = 0; b < n; b++) {
+					if (assign[b] < 0 && sizes[b] <= sizes[a]
+							&& distance(seqs[a], seqs[b]) <= d) {
+						assign[b] = seed;
+						queue.add(b);
+					}
+				}
+			}
+		}
+		return assign;
+	}
+
+	/**
+	 * Pre-clustering comparing all the pairs of sequences
+	 *
+	 * @return for each sequence the index of the sequence it is folded into
+	 */
+	private static int[] naivePrecluster(byte[][] seqs, long[] sizes,
+			int diffs, double ratio) {
+		int n = seqs.length;
+		int[] parent = new int[n];
+		for (int q = 0; q < n; q++) {
+			parent[q] = q;
+			int best = diffs + 1;
+			for (int t = 0; t < q && sizes[t] >= ratio * sizes[q]; t++) {
+				// Sequences not longer than the mismatches are never folded
+				int d = (seqs[q].length > diffs) ? mismatches(seqs[q],
+						seqs[t]) : Integer.MAX_VALUE;
+				if (d < best) {
+					best = d;
+					parent[q] = parent[t];
+				}
+			}
+		}
+		return parent;
+	}
+
+	/**
+	 * @return the number of mismatches between two sequences, or
+	 *         {@link Integer#MAX_VALUE} if they cannot be compared
+	 */
+	private static int mismatches(byte[] a, byte[] b) {
+		if (a.length != b.length)
+			return Integer.MAX_VALUE;
+		int d = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == 'N' || b[i] == 'N')
+				return Integer.MAX_VALUE;
+			d += (a[i] != b[i]) ? 1 : 0;
+		}
+		return d;
+	}
+
+	/**
+	 * @return <code>true</code> if a sequence is an error of a centroid
+	 *         according to the skew model
+	 */
+	private static boolean naiveUnoise(byte[][] seqs, long[] sizes,
+			double alpha, int query, int centroid) {
+		double skew = (double) sizes[query] / sizes[centroid];
+		// No distance is small enough, or the lengths are too different
+		if (skew > Math.pow(2, -(alpha + 1)))
+			return false;
+		int len = Math.abs(seqs[query].length - seqs[centroid].length);
+		if (skew > Math.pow(2, -(alpha * len + 1)))
+			return false;
+		int d = distance(seqs[query], seqs[centroid]);
+		return d > 0 && skew <= Math.pow(2, -(alpha * d + 1));
+	}
+
+	/**
+	 * @return the edit distance between two sequences
+	 */
+	static int distance(byte[] a, byte[] b) {
+		int[] prev = new int[b.length + 1];
+		int[] cur = new int[b.length + 1];
+		for (int j = 0; j <= b.length; j++)
+			prev[j] = j;
+		for (int i = 1; i <= a.length; i++) {
+			cur[0] = i;
+			for (int j = 1; j <= b.length; j++) {
+				int s = prev[j - 1] + ((a[i - 1] == b[j - 1]) ? 0 : 1);
+				cur[j] = Math.min(s, Math.min(prev[j], cur[j - 1]) + 1);
+			}
+			int[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+		return prev[b.length];
+	}
+
+	static byte[] random(Random r, int len) {
+		byte[] s = new byte[len];
+		for (int i = 0; i < len; i++)
+			s[i] = BASES[r.nextInt(4)];
+		return s;
+	}
+
+	static byte[] mutate(Random r, byte[] s, int edits) {
+		StringBuilder sb = new StringBuilder(new String(s));
+		for (int e = 0; e < edits && sb.length() > 1; e++) {
+			int p = r.nextInt(sb.length());
+			char c = (char) BASES[r.nextInt(4)];
+			switch (r.nextInt(3)) {
+			case 0:
+				sb.setCharAt(p, c);
+				break;
+			case 1:
+				sb.deleteCharAt(p);
+				break;
+			default:
+				sb.insert(p, c);
+			}
+		}
+		return sb.toString().getBytes();
+	}
+
+}
@@ -0,0 +1,330 @@
+package bacci.giovanni.o2tab.diversity;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import bacci.giovanni.o2tab.phylo.Tree;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.process.DiversityProcess;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.table.SparseVector;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class DiversityTest extends TestCase {
+
+	@Test
+	public void testUniFrac() {
+		Random r = new Random(13);
+		// More than a batch of branches, some of them of zero length
+		Tree tree = tree(r, 150);
+		List<String> otus = new ArrayList<String>();
+		for (int o = 0; o < 160; o++)
+			otus.add((o < 150) ? "OTU_" + o + ";size=" + (o + 1) : "NOTREE_"
+					+ o);
+		UniFrac uf = new UniFrac(tree);
+		int[] leaves = uf.leaves(otus);
+		for (int o = 0; o < otus.size(); o++)
+			assertEquals((o < 150) ? o : -1, leaves[o]);
+
+		// Even and odd numbers of samples, below and above a batch
+		for (int n : new int[] { 1, 2, 7, 64, 65 }) {
+			List<String> labels = new ArrayList<String>();
+			SparseVector[] samples = new SparseVector[n];
+			for (int s = 0; s < n; s++) {
+				labels.add("S" + s);
+				samples[s] = sample(r, otus.size());
+			}
+			for (int thread : new int[] { 1, 3 }) {
+				DistanceMatrix[] d = uf.thread(thread).compute(labels,
+						samples, leaves);
+				for (int a = 0; a < n; a++) {
+					for (int b = a + 1; b < n; b++) {
+						double[] e = naive(tree, leaves, samples[a],
+								samples[b]);
+						assertEquals(e[0], d[0].get(a, b), 1e-5);
+						assertEquals(e[1], d[1].get(a, b), 1e-5);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBetaDiversity() {
+		// Several tiles, the last ones partial, and empty samples
+		Random r = new Random(29);
+		int otus = 90;
+		for (int n : new int[] { 1, 5, 300 }) {
+			List<String> labels = new ArrayList<String>();
+			SparseVector[] samples = new SparseVector[n];
+			for (int s = 0; s < n; s++) {
+				labels.add("S" + s);
+				samples[s] = (s % 37 == 3) ? new SparseVector(new int[0],
+						new long[0]) : sample(r, otus);
+			}
+			for (int thread : new int[] { 1, 4 }) {
+				DistanceMatrix[] d = new BetaDiversity(BetaMetric.JACCARD,
+						BetaMetric.BRAY_CURTIS).thread(thread).compute(labels,
+						samples, otus);
+				for (int a = 0; a < n; a++) {
+					long[] x = samples[a].toDense(otus);
+					for (int b = a + 1; b < n; b++) {
+						long[] y = samples[b].toDense(otus);
+						long min = 0;
+						long sum = 0;
+						int shared = 0;
+						int union = 0;
+						for (int o = 0; o < otus; o++) {
+							min += Math.min(x[o], y[o]);
+							sum += x[o] + y[o];
+							shared += (x[o] > 0 && y[o] > 0) ? 1 : 0;
+							union += (x[o] > 0 || y[o] > 0) ? 1 : 0;
+						}
+						assertEquals((union == 0) ? 0 : 1 - (double) shared
+								/ union, d[0].get(a, b), 1e-6);
+						assertEquals((sum == 0) ? 0 : 1 - 2.0 * min / sum,
+								d[1].get(a, b), 1e-6);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRarefySeed() {
+		Random r = new Random(19);
+		int n = 30;
+		List<String> labels = new ArrayList<String>();
+		SparseVector[] samples = new SparseVector[n];
+		for (int s = 0; s < n; s++) {
+			labels.add("S" + s);
+			samples[s] = sample(r, 200);
+		}
+		AlphaMetrics[][] a = new AlphaDiversity(100, 5000, 20000).step(700)
+				.seed(42).thread(1).rarefy(labels, samples);
+
+		// Same seed, other threads and samples in reverse order
+		List<String> rl = new ArrayList<String>(labels);
+		Collections.reverse(rl);
+		SparseVector[] rs = new SparseVector[n];
+		for (int s = 0; s < n; s++)
+			rs[s] = samples[n - 1 - s];
+		AlphaMetrics[][] b = new AlphaDiversity(20000, 100, 5000).step(700)
+				.seed(42).thread(4).rarefy(rl, rs);
+		AlphaMetrics[][] c = new AlphaDiversity(100, 5000, 20000).step(700)
+				.seed(43).thread(1).rarefy(labels, samples);
+		boolean differ = false;
+		for (int s = 0; s < n; s++) {
+			assertEquals(a[s].length, b[n - 1 - s].length);
+			for (int i = 0; i < a[s].length; i++) {
+				AlphaMetrics x = a[s][i];
+				AlphaMetrics y = b[n - 1 - s][i];
+				assertEquals(x.getDepth(), y.getDepth());
+				assertEquals(x.getRichness(), y.getRichness());
+				assertEquals(x.getShannon(), y.getShannon());
+				assertEquals(x.getChao1(), y.getChao1());
+				differ |= x.getRichness() != c[s][i].getRichness();
+			}
+			long total = samples[s].getTotal();
+			AlphaMetrics last = a[s][a[s].length - 1];
+			assertTrue(last.getDepth() <= total);
+			assertTrue(last.getDepth() + 700 > total || last.getDepth() == 20000);
+		}
+		assertTrue(differ);
+	}
+
+	@Test
+	public void testRarefyRichness() {
+		// Sizes shuffled in place and sizes drawn through the swap table
+		Random r = new Random(23);
+		int otus = 60;
+		int[] indices = new int[otus];
+		long[] values = new long[otus];
+		for (int o = 0; o < otus; o++) {
+			indices[o] = o;
+			values[o] = 1 + (long) Math.pow(2, r.nextDouble() * 14);
+		}
+		SparseVector sample = new SparseVector(indices, values);
+		long total = sample.getTotal();
+		long[] depths = { 10, 200, total / 8, total / 2 };
+		int runs = 400;
+		double[] mean = new double[depths.length];
+		for (int seed = 0; seed < runs; seed++) {
+			AlphaMetrics[] m = new Rarefier(seed).rarefy("S", sample, depths);
+			assertEquals(depths.length, m.length);
+			for (int d = 0; d < depths.length; d++) {
+				assertEquals(depths[d], m[d].getDepth());
+				mean[d] += m[d].getRichness() / (double) runs;
+			}
+		}
+		for (int d = 0; d < depths.length; d++) {
+			// Hurlbert's expected richness and the variance it would have
+			// with independent OTUs
+			double expected = 0;
+			double var = 0;
+			for (long c : values) {
+				double p = 1 - Math.exp(lnChoose(total - c, depths[d])
+						- lnChoose(total, depths[d]));
+				expected += p;
+				var += p * (1 - p);
+			}
+			assertEquals("depth " + depths[d], expected, mean[d],
+					5 * Math.sqrt(var / runs) + 0.02);
+		}
+	}
+
+	@Test
+	public void testRarefyLimit() throws Exception {
+		OtuTable table = new OtuTable();
+		table.otu("OTU_1");
+		table.otu("OTU_2");
+		table.sample("Small");
+		table.sample("Big");
+		table.add(0, 0, 10);
+		table.add(0, 1, 3000000000L);
+		table.add(1, 1, 5);
+		long depth = (1 << 28) + 1;
+		try {
+			new AlphaDiversity(depth).rarefy(table.getSamples(),
+					table.getColumns());
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("Big"));
+		}
+
+		File dir = Files.createTempDirectory("div").toFile();
+		File csv = new File(dir, "otu_table.csv");
+		try {
+			table.write(csv.toString());
+			DiversityProcess p = new DiversityProcess().depths(depth);
+			p.setInputFiles(Arrays.asList(csv.toString()));
+			p.setMainOutputDir(dir.toString());
+			ProcessResult pr = p.launch();
+			assertEquals(PipelineResult.FAILED, pr.getRes());
+			assertEquals(1, pr.getFails().size());
+		} finally {
+			for (File f : dir.listFiles()) {
+				if (f.isDirectory())
+					for (File g : f.listFiles())
+						g.delete();
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * @return the logarithm of the binomial coefficient
+	 */
+	private static double lnChoose(long n, long k) {
+		if (k > n)
+			return Double.NEGATIVE_INFINITY;
+		double s = 0;
+		for (long i = 0; i < k; i++)
+			s += Math.log((double) (n - i) / (k - i));
+		return s;
+	}
+
+	/**
+	 * @return a random tree whose first nodes are the leaves
+	 *         <code>OTU_0</code>, <code>OTU_1</code>, ...
+	 */
+	private static Tree tree(Random r, int leaves) {
+		int nodes = 2 * leaves - 1;
+		int[] parent = new int[nodes];
+		double[] length = new double[nodes];
+		String[] labels = new String[nodes];
+		List<Integer> roots = new ArrayList<Integer>();
+		for (int i = 0; i < leaves; i++) {
+			labels[i] = "OTU_" + i;
+			roots.add(i);
+		}
+		for (int u = leaves; u < nodes; u++) {
+			for (int c = 0; c < 2; c++) {
+				int v = roots.remove(r.nextInt(roots.size()));
+				parent[v] = u;
+				length[v] = (r.nextInt(10) == 0) ? 0 : r.nextDouble();
+			}
+			roots.add(u);
+		}
+		parent[nodes - 1] = -1;
+		return new Tree(parent, length, labels);
+	}
+
+	/**
+	 * @return a sample with counts for a few random OTUs
+	 */
+	private static SparseVector sample(Random r, int otus) {
+		List<Integer> idx = new ArrayList<Integer>();
+		for (int o = 0; o < otus; o++)
+			if (r.nextInt(4) == 0)
+				idx.add(o);
+		if (idx.isEmpty())
+			idx.add(0);
+		int[] indices = new int[idx.size()];
+		long[] values = new long[idx.size()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = idx.get(i);
+			values[i] = 1 + r.nextInt(1000);
+		}
+		return new SparseVector(indices, values);
+	}
+
+	/**
+	 * UniFrac between two samples, summing over the branches one at a time
+	 *
+	 * @return the unweighted and the normalized weighted distances
+	 */
+	private static double[] naive(Tree tree, int[] leaves, SparseVector a,
+			SparseVector b) {
+		double[] pa = below(tree, leaves, a);
+		double[] pb = below(tree, leaves, b);
+		double un = 0;
+		double ud = 0;
+		double wn = 0;
+		double wd = 0;
+		for (int v = 0; v < tree.size(); v++) {
+			if (v == tree.getRoot())
+				continue;
+			double l = tree.getLength(v);
+			if (pa[v] > 0 != pb[v] > 0)
+				un += l;
+			if (pa[v] > 0 || pb[v] > 0)
+				ud += l;
+			wn += l * Math.abs(pa[v] - pb[v]);
+			wd += l * (pa[v] + pb[v]);
+		}
+		return new double[] { (ud > 0) ? un / ud : 0, (wd > 0) ? wn / wd : 0 };
+	}
+
+	/**
+	 * @return the proportion of a sample below each node
+	 */
+	private static double[] below(Tree tree, int[] leaves, SparseVector s) {
+		double[] p = new double[tree.size()];
+		double total = 0;
+		for (int i = 0; i < s.size(); i++)
+			if (leaves[s.getIndex(i)] >= 0)
+				total += s.getValue(i);
+		for (int i = 0; i < s.size(); i++)
+			if (leaves[s.getIndex(i)] >= 0)
+				p[leaves[s.getIndex(i)]] += s.getValue(i) / total;
+		for (int v : tree.postOrder())
+			if (tree.getParent(v) >= 0)
+				p[tree.getParent(v)] += p[v];
+		return p;
+	}
+
+}
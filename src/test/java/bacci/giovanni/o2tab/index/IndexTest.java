@@ -0,0 +1,110 @@
+package bacci.giovanni.o2tab.index;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class IndexTest extends TestCase {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	@Test
+	public void testMappedIndex() throws Exception {
+		Random r = new Random(83);
+		int k = 8;
+		// Targets without T, so that each of the few thousand words left has
+		// a posting list of about a hundred targets with gaps often above 127
+		byte[][] seqs = new byte[20000][];
+		for (int i = 0; i < seqs.length; i++)
+			seqs[i] = random(r, 50 + r.nextInt(30), 3);
+		// A word in three targets only, the last gap needing three bytes
+		int[] planted = { 0, 140, 17000 };
+		for (int t : planted)
+			Arrays.fill(seqs[t], 10, 10 + k + 2, (byte) 'T');
+
+		KmerIndex mem = new KmerIndex(k);
+		KmerIndex.Counter c = new KmerIndex.Counter(k);
+		for (int i = 0; i < seqs.length; i++)
+			mem.add(i, seqs[i], c);
+		File file = File.createTempFile("index", ".kmi");
+		try {
+			MappedKmerIndex.build(seqs, k, file.toString(), 3);
+			MappedKmerIndex mapped = new MappedKmerIndex(file.toString());
+			try {
+				assertEquals(k, mapped.getK());
+				assertEquals(seqs.length, mapped.getTargets());
+				assertEquals(MappedKmerIndex.fingerprint(seqs),
+						mapped.getFingerprint());
+
+				byte[][] queries = new byte[60][];
+				for (int q = 0; q < queries.length; q++) {
+					if (q % 3 == 0)
+						queries[q] = random(r, 60, 4);
+					else
+						queries[q] = mutate(r,
+								seqs[r.nextInt(seqs.length)]);
+				}
+				queries[0] = seqs[planted[1]].clone();
+				for (byte[] q : queries) {
+					compare(mem, mapped, q, 0, seqs.length);
+					compare(mem, mapped, q, 100, 15000);
+				}
+
+				KmerIndex.Counter m = new KmerIndex.Counter(k);
+				byte[] run = new byte[k];
+				Arrays.fill(run, (byte) 'T');
+				assertEquals(planted.length, mapped.matching(run, 0, 0,
+						seqs.length, m));
+				assertEquals(planted[2], m.getHits()[2]);
+			} finally {
+				mapped.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Checks that the two indices return the same candidates and, for every
+	 * number of missing k-mers, the same matching targets, so that the
+	 * shared k-mers counted for each target are the same
+	 */
+	private static void compare(KmerIndex mem, MappedKmerIndex mapped,
+			byte[] q, int min, int max) {
+		KmerIndex.Counter a = new KmerIndex.Counter(mem.getK());
+		KmerIndex.Counter b = new KmerIndex.Counter(mem.getK());
+		int[] outA = new int[10];
+		int[] outB = new int[10];
+		int n = mem.candidates(q, min, max, a, outA);
+		assertEquals(n, mapped.candidates(q, min, max, b, outB));
+		assertTrue(Arrays.equals(outA, outB));
+		for (int missing = 0; missing <= q.length; missing++) {
+			n = mem.matching(q, missing, min, max, a);
+			assertEquals(n, mapped.matching(q, missing, min, max, b));
+			assertTrue(Arrays.equals(Arrays.copyOf(a.getHits(), n),
+					Arrays.copyOf(b.getHits(), n)));
+		}
+	}
+
+	private static byte[] random(Random r, int len, int bases) {
+		byte[] s = new byte[len];
+		for (int i = 0; i < len; i++)
+			s[i] = BASES[r.nextInt(bases)];
+		return s;
+	}
+
+	private static byte[] mutate(Random r, byte[] seq) {
+		byte[] s = seq.clone();
+		for (int e = r.nextInt(4); e > 0; e--)
+			s[r.nextInt(s.length)] = BASES[r.nextInt(4)];
+		return s;
+	}
+
+}
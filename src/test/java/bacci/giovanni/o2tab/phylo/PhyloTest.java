@@ -0,0 +1,242 @@
+package bacci.giovanni.o2tab.phylo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import bacci.giovanni.o2tab.diversity.DistanceMatrix;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class PhyloTest extends TestCase {
+
+	@Test
+	public void testNeighborJoining() {
+		Random r = new Random(11);
+		for (int n : new int[] { 3, 4, 17, 120, 300 }) {
+			// The distances of a random tree, as they are and with noise
+			for (int round = 0; round < 2; round++) {
+				List<String> labels = new ArrayList<String>();
+				for (int i = 0; i < n; i++)
+					labels.add("L" + i);
+				double[][] d = random(r, n);
+				DistanceMatrix m = new DistanceMatrix(labels);
+				for (int i = 0; i < n; i++)
+					for (int j = i + 1; j < n; j++)
+						m.set(i, j, (float) (d[i][j] + ((round == 0) ? 0
+								: 0.005 * r.nextDouble())));
+
+				Tree tree = NeighborJoining.build(m);
+				assertEquals(2 * n - 1, tree.size());
+				double[][] expected = naive(m);
+				double[][] found = patristic(tree, n);
+				for (int i = 0; i < n; i++) {
+					assertEquals(labels.get(i), tree.getLabel(i));
+					for (int j = i + 1; j < n; j++) {
+						assertEquals("n " + n + " pair " + i + " " + j,
+								expected[i][j], found[i][j], 1e-3);
+						if (round == 0)
+							assertEquals(d[i][j], found[i][j], 1e-3);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testOtuDistances() {
+		// Enough pairs for the rows to be split by pair count
+		Random r = new Random(17);
+		byte[] bases = { 'A', 'C', 'G', 'T' };
+		int n = 130;
+		List<String> labels = new ArrayList<String>();
+		byte[][] seqs = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			labels.add("OTU_" + i);
+			seqs[i] = new byte[150 + r.nextInt(50)];
+			for (int p = 0; p < seqs[i].length; p++)
+				seqs[i][p] = bases[r.nextInt(4)];
+		}
+		DistanceMatrix one = new OtuDistances().thread(1).compute(labels,
+				seqs);
+		DistanceMatrix many = new OtuDistances().thread(4).compute(labels,
+				seqs);
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				assertTrue(one.get(i, j) > 0);
+				assertEquals(one.get(i, j), many.get(i, j));
+			}
+		}
+	}
+
+	/**
+	 * @return the distances between the leaves of a random tree, with
+	 *         branches long enough for the noise not to make them negative
+	 */
+	private static double[][] random(Random r, int n) {
+		double[][] tree = new double[n][n];
+		List<List<Integer>> below = new ArrayList<List<Integer>>();
+		List<List<Double>> depth = new ArrayList<List<Double>>();
+		for (int i = 0; i < n; i++) {
+			below.add(new ArrayList<Integer>());
+			below.get(i).add(i);
+			depth.add(new ArrayList<Double>());
+			depth.get(i).add(0.0);
+		}
+		while (below.size() > 1) {
+			int a = r.nextInt(below.size());
+			int b = r.nextInt(below.size() - 1);
+			b += (b >= a) ? 1 : 0;
+			double la = 0.05 + 0.5 * r.nextDouble();
+			double lb = 0.05 + 0.5 * r.nextDouble();
+			join(tree, below, depth, a, b, la + lb);
+			shift(depth.get(a), la);
+			shift(depth.get(b), lb);
+			below.get(a).addAll(below.get(b));
+			depth.get(a).addAll(depth.get(b));
+			below.remove(b);
+			depth.remove(b);
+		}
+		return tree;
+	}
+
+	/**
+	 * Neighbor joining computing all the Q values at each step. Ties between
+	 * Q values may be broken differently from {@link NeighborJoining}, which
+	 * only changes the tree when branch lengths are negative.
+	 *
+	 * @return the distances between the leaves along the tree
+	 */
+	private static double[][] naive(DistanceMatrix matrix) {
+		int n = matrix.size();
+		float[][] d = new float[n][n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				d[i][j] = matrix.get(i, j);
+		double[][] tree = new double[n][n];
+		// Leaves below each node and their distance from it
+		List<List<Integer>> below = new ArrayList<List<Integer>>();
+		List<List<Double>> depth = new ArrayList<List<Double>>();
+		boolean[] alive = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			alive[i] = true;
+			below.add(new ArrayList<Integer>());
+			below.get(i).add(i);
+			depth.add(new ArrayList<Double>());
+			depth.get(i).add(0.0);
+		}
+		for (int m = n; m > 2; m--) {
+			double[] r = new double[n];
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j < n; j++)
+					if (alive[i] && alive[j])
+						r[i] += d[i][j];
+			double qmin = Double.POSITIVE_INFINITY;
+			int bi = -1;
+			int bj = -1;
+			for (int i = 0; i < n; i++) {
+				for (int j = i + 1; j < n; j++) {
+					if (!alive[i] || !alive[j])
+						continue;
+					double q = (m - 2) * (double) d[i][j] - r[i] - r[j];
+					if (q < qmin) {
+						qmin = q;
+						bi = i;
+						bj = j;
+					}
+				}
+			}
+			double dij = d[bi][bj];
+			double li = 0.5 * dij + (r[bi] - r[bj]) / (2.0 * (m - 2));
+			li = Math.min(dij, Math.max(0, li));
+			double lj = Math.max(0, dij - li);
+			join(tree, below, depth, bi, bj, li + lj);
+			shift(depth.get(bi), li);
+			shift(depth.get(bj), lj);
+			below.get(bi).addAll(below.get(bj));
+			depth.get(bi).addAll(depth.get(bj));
+			alive[bj] = false;
+			for (int k = 0; k < n; k++) {
+				if (k == bi || k == bj || !alive[k])
+					continue;
+				float duk = (float) ((d[bi][k] + (double) d[bj][k] - dij) / 2);
+				d[bi][k] = duk;
+				d[k][bi] = duk;
+			}
+		}
+		int a = -1;
+		int b = -1;
+		for (int i = 0; i < n; i++) {
+			if (!alive[i])
+				continue;
+			if (a < 0)
+				a = i;
+			else
+				b = i;
+		}
+		join(tree, below, depth, a, b, Math.max(0, d[a][b]));
+		return tree;
+	}
+
+	/**
+	 * Sets the distances between the leaves below two nodes joined by a path
+	 * of a given length
+	 */
+	private static void join(double[][] tree, List<List<Integer>> below,
+			List<List<Double>> depth, int a, int b, double length) {
+		for (int x = 0; x < below.get(a).size(); x++) {
+			for (int y = 0; y < below.get(b).size(); y++) {
+				int i = below.get(a).get(x);
+				int j = below.get(b).get(y);
+				double v = depth.get(a).get(x) + length + depth.get(b).get(y);
+				tree[i][j] = v;
+				tree[j][i] = v;
+			}
+		}
+	}
+
+	private static void shift(List<Double> depth, double length) {
+		for (int i = 0; i < depth.size(); i++)
+			depth.set(i, depth.get(i) + length);
+	}
+
+	/**
+	 * @return the distances between the first nodes of a tree along its
+	 *         branches
+	 */
+	private static double[][] patristic(Tree tree, int leaves) {
+		double[] root = new double[tree.size()];
+		int[] level = new int[tree.size()];
+		int[] order = tree.postOrder();
+		for (int k = order.length - 1; k >= 0; k--) {
+			int v = order[k];
+			int p = tree.getParent(v);
+			if (p >= 0) {
+				root[v] = root[p] + tree.getLength(v);
+				level[v] = level[p] + 1;
+			}
+		}
+		double[][] d = new double[leaves][leaves];
+		for (int i = 0; i < leaves; i++) {
+			for (int j = i + 1; j < leaves; j++) {
+				int x = i;
+				int y = j;
+				while (x != y) {
+					if (level[x] >= level[y])
+						x = tree.getParent(x);
+					else
+						y = tree.getParent(y);
+				}
+				d[i][j] = root[i] + root[j] - 2 * root[x];
+				d[j][i] = d[i][j];
+			}
+		}
+		return d;
+	}
+
+}
@@ -0,0 +1,1059 @@
+package bacci.giovanni.o2tab.process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import bacci.giovanni.o2tab.align.GlobalAligner;
+import bacci.giovanni.o2tab.index.MappedKmerIndex;
+import bacci.giovanni.o2tab.pipeline.PipelineProcess;
+import bacci.giovanni.o2tab.pipeline.ProcessResult;
+import bacci.giovanni.o2tab.pipeline.ProcessResult.PipelineResult;
+import bacci.giovanni.o2tab.table.OtuTable;
+import bacci.giovanni.o2tab.table.SparseCounts;
+import bacci.giovanni.o2tab.table.UcParser;
+import bacci.giovanni.o2tab.util.FastaRecord;
+import bacci.giovanni.o2tab.util.FastaRecordReader;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class ProcessTest extends TestCase {
+
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	@Test
+	public void testPrefixFolding() throws Exception {
+		Random r = new Random(41);
+		File dir = Files.createTempDirectory("derep").toFile();
+		try {
+			for (int round = 0; round < 20; round++) {
+				// Full length reads and reads truncated at random lengths,
+				// with nested prefixes and extensions of equal abundance
+				List<String> full = new ArrayList<String>();
+				for (int i = 0; i < 1 + r.nextInt(8); i++) {
+					String s = random(r, 40 + r.nextInt(20));
+					full.add(s);
+					if (r.nextBoolean())
+						full.add(s.substring(0, 30) + random(r, 25));
+				}
+				List<String> reads = new ArrayList<String>();
+				for (int i = 0; i < 300; i++) {
+					String s = full.get(r.nextInt(full.size()));
+					reads.add((r.nextInt(3) == 0) ? s.substring(0,
+							1 + r.nextInt(s.length())) : s);
+				}
+				long min = 1 + r.nextInt(4);
+				File fasta = new File(dir, "reads.fasta");
+				BufferedWriter wr = new BufferedWriter(new FileWriter(fasta));
+				try {
+					for (int i = 0; i < reads.size(); i++) {
+						wr.write(">r" + i);
+						wr.newLine();
+						wr.write(reads.get(i));
+						wr.newLine();
+					}
+				} finally {
+					wr.close();
+				}
+
+				PipelineProcess p = new DereplicationProcess(min).prefix();
+				p.setInputFiles(Arrays.asList(fasta.toString()));
+				p.setMainOutputDir(dir.toString());
+				ProcessResult pr = p.launch();
+				assertEquals(PipelineResult.PASSED, pr.getRes());
+				List<FastaRecord> out = FastaRecordReader.readAll(p
+						.getOutputFiles().get(0));
+
+				List<String> expected = fold(reads, min);
+				assertEquals(expected.size(), out.size());
+				for (int i = 0; i < out.size(); i++) {
+					FastaRecord f = out.get(i);
+					assertEquals(expected.get(i), new String(f.getSequence())
+							+ ";" + f.getSize());
+				}
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testFingerprintDereplication() throws Exception {
+		Random r = new Random(59);
+		File dir = Files.createTempDirectory("derep").toFile();
+		try {
+			// Sequences of many abundances, some of equal abundance
+			List<String> distinct = new ArrayList<String>();
+			for (int i = 0; i < 400; i++)
+				distinct.add(random(r, 1 + r.nextInt(120)));
+			int n = 5000;
+			String[] labels = new String[n];
+			byte[][] seqs = new byte[n][];
+			for (int i = 0; i < n; i++) {
+				labels[i] = "r" + i;
+				int d = (int) (distinct.size() * Math.pow(r.nextDouble(), 3));
+				seqs[i] = distinct.get(d).getBytes();
+			}
+			File fasta = new File(dir, "reads.fasta");
+			write(fasta, labels, seqs);
+
+			for (long min : new long[] { 1, 2, 10 }) {
+				byte[][] out = new byte[3][];
+				for (int mode = 0; mode < out.length; mode++) {
+					DereplicationProcess derep = new DereplicationProcess(min);
+					if (mode > 0)
+						derep.fingerprint(mode == 2);
+					File main = new File(dir, "run" + min + "_" + mode);
+					main.mkdir();
+					derep.setInputFiles(Arrays.asList(fasta.toString()));
+					derep.setMainOutputDir(main.toString());
+					assertEquals(PipelineResult.PASSED, derep.launch()
+							.getRes());
+					out[mode] = Files.readAllBytes(Paths.get(derep
+							.getOutputFiles().get(0)));
+				}
+				assertTrue(out[0].length > 0);
+				assertTrue(Arrays.equals(out[0], out[1]));
+				assertTrue(Arrays.equals(out[0], out[2]));
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testPartitions() throws Exception {
+		Random r = new Random(61);
+		int n = 300;
+		String[] labels = new String[n];
+		byte[][] seqs = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			labels[i] = "u" + i + ";size=" + (n - i) + ";";
+			StringBuilder sb = new StringBuilder(random(r, 40 + r.nextInt(200)));
+			if (i % 10 == 0)
+				sb.setCharAt(r.nextInt(sb.length()), 'N');
+			seqs[i] = sb.toString().getBytes();
+		}
+		seqs[1] = "ACGTNACG".getBytes();
+
+		// The same partitions whatever the instance and the calls before
+		int parts = 4;
+		int[] first = new int[n];
+		long[] mins = new long[5];
+		int[] votes = new int[parts];
+		ClusteringOTU c = new ClusteringOTU().partitions(parts);
+		for (int i = 0; i < n; i++) {
+			first[i] = c.partition(seqs[i], mins, votes);
+			assertTrue(first[i] >= 0 && first[i] < parts);
+			assertTrue(Arrays.equals(new int[parts], votes));
+		}
+		ClusteringOTU other = new ClusteringOTU().partitions(parts);
+		for (int i = n - 1; i >= 0; i--)
+			assertEquals(first[i], other.partition(seqs[i], new long[5],
+					new int[parts]));
+
+		// A run with a usearch keeping a copy of each partition and every
+		// sequence as a centroid
+		File dir = Files.createTempDirectory("parts").toFile();
+		String userDir = System.getProperty("user.dir");
+		try {
+			File copies = new File(dir, "copies");
+			copies.mkdir();
+			stub(dir, "cp \"$in\" \"$out\"; : > \"$up\"\n"
+					+ "case \"$in\" in */part_*) cp \"$in\" " + copies
+					+ ";; esac\n");
+			File in = new File(dir, "uniques.fasta");
+			File reads = new File(dir, "reads.fasta");
+			write(in, labels, seqs);
+			write(reads, new String[0], new byte[0][]);
+			File main = new File(dir, "run");
+			main.mkdir();
+			System.setProperty("user.dir", dir.toString());
+			PipelineProcess p = new ClusteringOTU().partitions(parts)
+					.thread(2);
+			p.setInputFiles(Arrays.asList(in.toString(), reads.toString()));
+			p.setMainOutputDir(main.toString());
+			assertEquals(PipelineResult.PASSED, p.launch().getRes());
+
+			Map<String, Integer> seen = new HashMap<String, Integer>();
+			for (File f : copies.listFiles()) {
+				int part = Integer.parseInt(f.getName().replaceAll(
+						"part_(\\d+)\\.fasta", "$1")) - 1;
+				for (FastaRecord rec : FastaRecordReader.readAll(f.toString())) {
+					int u = Integer.parseInt(rec.getLabel().replaceAll(
+							"u(\\d+);.*", "$1"));
+					assertNull(seen.put(rec.getLabel(), part));
+					assertEquals(first[u], part);
+					assertTrue(Arrays.equals(seqs[u], rec.getSequence()));
+				}
+			}
+			assertEquals(n, seen.size());
+			List<FastaRecord> otus = FastaRecordReader.readAll(p
+					.getOutputFiles().get(0));
+			assertEquals(n, otus.size());
+			assertFalse(new File(main, "clustered/partitions").exists());
+		} finally {
+			System.setProperty("user.dir", userDir);
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testStreamingMapping() throws Exception {
+		// The stub usearch maps each read to the OTU in its label
+		Random r = new Random(67);
+		int n = 300;
+		String[] labels = new String[n];
+		byte[][] seqs = new byte[n][];
+		Map<String, Long> expected = new HashMap<String, Long>();
+		for (int i = 0; i < n; i++) {
+			String sample = "S" + r.nextInt(4);
+			String otu = (r.nextInt(6) == 0) ? "*" : "OTU_" + (1 + r.nextInt(5));
+			labels[i] = "r" + i + ";barcodelabel=" + sample + ";t=" + otu + ";";
+			seqs[i] = random(r, 50).getBytes();
+			String key = otu + "\t" + sample;
+			if (!otu.equals("*"))
+				expected.put(key, (expected.containsKey(key) ? expected
+						.get(key) : 0) + 1);
+		}
+		File dir = Files.createTempDirectory("stream").toFile();
+		String userDir = System.getProperty("user.dir");
+		try {
+			File kinds = new File(dir, "kinds");
+			stub(dir, "if [ -p \"$up\" ]; then echo pipe; else echo file; fi"
+					+ " >> " + kinds + "\n"
+					+ "grep -q '^>fail' \"$in\" && exit 1\n"
+					+ "awk '/^>/ { l = substr($0, 2); t = l;"
+					+ " sub(/.*;t=/, \"\", t); sub(/;.*/, \"\", t);"
+					+ " if (t == \"*\") printf \"N\\t0\\t50\\t*\\t.\\t*\\t*"
+					+ "\\t*\\t%s\\t*\\n\", l;"
+					+ " else printf \"H\\t0\\t50\\t100.0\\t+\\t0\\t0\\t50M"
+					+ "\\t%s\\t%s\\n\", l, t }' \"$in\" > \"$up\"\n");
+			File db = new File(dir, "otus.fasta");
+			write(db, new String[] { "OTU_1" }, new byte[][] { seqs[0] });
+			File reads = new File(dir, "reads.fasta");
+			write(reads, labels, seqs);
+			// A read failing the second of three shards
+			File failing = new File(dir, "failing.fasta");
+			labels[n / 2] = "fail;barcodelabel=S0;t=*;";
+			write(failing, labels, seqs);
+			System.setProperty("user.dir", dir.toString());
+
+			int run = 0;
+			for (boolean pipes : new boolean[] { true, false }) {
+				for (int thread : new int[] { 1, 3 }) {
+					File main = new File(dir, "run" + run++);
+					main.mkdir();
+					MappingProcess p = new MappingProcess().thread(thread)
+							.streamTable(true).pipes(pipes);
+					p.setInputFiles(Arrays.asList(db.toString(),
+							reads.toString()));
+					p.setMainOutputDir(main.toString());
+					assertEquals(PipelineResult.PASSED, p.launch().getRes());
+					assertEquals(expected, cells(OtuTable.read(p
+							.getOutputFiles().get(0))));
+					assertEquals(Collections.nCopies(thread, (pipes) ? "pipe"
+							: "file"), Files.readAllLines(kinds.toPath(),
+							StandardCharsets.UTF_8));
+					kinds.delete();
+					// Neither pipes nor temporary files are left
+					for (String f : new File(main, "mapped").list())
+						assertTrue(f, f.equals("otu_table.csv")
+								|| f.equals("mapping.log"));
+
+					main = new File(dir, "run" + run++);
+					main.mkdir();
+					p = new MappingProcess().thread(thread).streamTable(true)
+							.pipes(pipes);
+					p.setInputFiles(Arrays.asList(db.toString(),
+							failing.toString()));
+					p.setMainOutputDir(main.toString());
+					ProcessResult pr = p.launch();
+					assertEquals(PipelineResult.FAILED, pr.getRes());
+					assertEquals(1, pr.getFails().size());
+					assertTrue(p.getOutputFiles().isEmpty());
+					kinds.delete();
+				}
+			}
+
+			// Without usearch the parsers waiting on the pipes are released
+			File bin = new File(dir, "bin");
+			for (File f : bin.listFiles())
+				f.delete();
+			File main = new File(dir, "missing");
+			main.mkdir();
+			MappingProcess p = new MappingProcess().thread(3).streamTable(
+					true);
+			p.setInputFiles(Arrays.asList(db.toString(), reads.toString()));
+			p.setMainOutputDir(main.toString());
+			try {
+				p.launch();
+				fail("usearch launched");
+			} catch (IOException e) {
+				// Expected
+			}
+			long end = System.currentTimeMillis() + 10000;
+			while (blockedParsers() > 0 && System.currentTimeMillis() < end)
+				Thread.sleep(50);
+			assertEquals(0, blockedParsers());
+		} finally {
+			System.setProperty("user.dir", userDir);
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testShardedMapping() throws Exception {
+		// The stub usearch writes a record with the label, the whole sequence
+		// and the OTU file of each read, so the records of the shards are
+		// joined right only if no read is lost, split or moved
+		Random r = new Random(71);
+		File dir = Files.createTempDirectory("shards").toFile();
+		String userDir = System.getProperty("user.dir");
+		try {
+			stub(dir, "awk -v db=\"$(basename \"$db\")\" '"
+					+ "function out() { if (l != \"\") printf \"H\\t0\\t%d"
+					+ "\\t100.0\\t+\\t0\\t0\\t%s\\t%s\\t%s\\n\","
+					+ " length(s), s, l, db }"
+					+ " /^>/ { out(); l = substr($0, 2); s = \"\"; next }"
+					+ " { s = s $0 } END { out() }' \"$in\" > \"$up\"\n");
+			int n = 101;
+			File reads = new File(dir, "reads.fasta");
+			BufferedWriter wr = new BufferedWriter(new FileWriter(reads));
+			try {
+				for (int i = 0; i < n; i++) {
+					wr.write(">r" + i + ";barcodelabel=S" + r.nextInt(3) + ";");
+					wr.newLine();
+					String seq = random(r, 1 + r.nextInt(150));
+					for (int j = 0; j < seq.length(); j += 60) {
+						wr.write(seq.substring(j, Math.min(seq.length(), j + 60)));
+						wr.newLine();
+					}
+				}
+			} finally {
+				wr.close();
+			}
+			File[] dbs = { new File(dir, "otus_97.fasta"),
+					new File(dir, "otus_99.fasta") };
+			for (File db : dbs)
+				write(db, new String[] { "OTU_1" },
+						new byte[][] { "ACGT".getBytes() });
+			System.setProperty("user.dir", dir.toString());
+
+			int run = 0;
+			for (int sets = 1; sets <= dbs.length; sets++) {
+				List<String> inputs = new ArrayList<String>();
+				for (int d = 0; d < sets; d++)
+					inputs.add(dbs[d].toString());
+				inputs.add(reads.toString());
+				List<byte[]> single = null;
+				for (int thread : new int[] { 1, 2, 3, 7, n, n + 40 }) {
+					File main = new File(dir, "run" + run++);
+					main.mkdir();
+					PipelineProcess p = new MappingProcess().thread(thread);
+					p.setInputFiles(inputs);
+					p.setMainOutputDir(main.toString());
+					assertEquals(PipelineResult.PASSED, p.launch().getRes());
+					assertEquals(sets, p.getOutputFiles().size());
+					List<byte[]> outs = new ArrayList<byte[]>();
+					for (String f : p.getOutputFiles())
+						outs.add(Files.readAllBytes(Paths.get(f)));
+					assertFalse(new File(main, "mapped/shards").exists());
+					if (single == null) {
+						single = outs;
+						for (String f : p.getOutputFiles())
+							assertEquals(n, Files.readAllLines(Paths.get(f),
+									StandardCharsets.UTF_8).size());
+						continue;
+					}
+					for (int d = 0; d < sets; d++)
+						assertTrue(Arrays.equals(single.get(d), outs.get(d)));
+				}
+			}
+		} finally {
+			System.setProperty("user.dir", userDir);
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testNativeMapping() throws Exception {
+		// Variants of a few OTUs, repeated so that uniques mode has fewer
+		// searches, and unrelated reads
+		Random r = new Random(43);
+		int otus = 6;
+		byte[][] targets = new byte[otus][];
+		String[] labels = new String[otus];
+		for (int o = 0; o < otus; o++) {
+			targets[o] = random(r, 200 + r.nextInt(60)).getBytes();
+			labels[o] = "OTU_" + (o + 1);
+		}
+		List<String> variants = new ArrayList<String>();
+		List<Integer> parents = new ArrayList<Integer>();
+		for (int v = 0; v < 150; v++) {
+			int o = r.nextInt(otus);
+			StringBuilder sb = new StringBuilder(new String(targets[o]));
+			for (int e = r.nextInt(4); e > 0; e--)
+				sb.setCharAt(r.nextInt(sb.length()), BASES[r.nextInt(4)]);
+			variants.add(sb.toString());
+			parents.add(o);
+		}
+		int n = 1000;
+		String[] reads = new String[n];
+		String[] readLabels = new String[n];
+		int[] expected = new int[n];
+		Map<String, Long> cells = new HashMap<String, Long>();
+		for (int i = 0; i < n; i++) {
+			String sample = "S" + r.nextInt(5);
+			readLabels[i] = "r" + i + ";barcodelabel=" + sample + ";";
+			if (r.nextInt(5) == 0) {
+				reads[i] = random(r, 150 + r.nextInt(100));
+				expected[i] = -1;
+				continue;
+			}
+			int v = r.nextInt(variants.size());
+			reads[i] = variants.get(v);
+			expected[i] = parents.get(v);
+			String key = labels[expected[i]] + "\t" + sample;
+			cells.put(key, (cells.containsKey(key) ? cells.get(key) : 0) + 1);
+		}
+
+		File dir = Files.createTempDirectory("map").toFile();
+		Locale locale = Locale.getDefault();
+		try {
+			File db = new File(dir, "otus.fasta");
+			File fasta = new File(dir, "reads.fasta");
+			write(db, labels, targets);
+			byte[][] seqs = new byte[n][];
+			for (int i = 0; i < n; i++)
+				seqs[i] = reads[i].getBytes();
+			write(fasta, readLabels, seqs);
+			// Identities written with a dot whatever the default locale
+			Locale.setDefault(Locale.ITALY);
+
+			String[] uc = new String[3];
+			for (int run = 0; run < uc.length; run++) {
+				PipelineProcess p = new NativeMappingProcess().thread(
+						(run == 0) ? 1 : 3).uniques(run == 2);
+				p.setInputFiles(Arrays.asList(db.toString(), fasta.toString()));
+				File main = new File(dir, "run" + run);
+				main.mkdir();
+				p.setMainOutputDir(main.toString());
+				assertEquals(PipelineResult.PASSED, p.launch().getRes());
+				uc[run] = p.getOutputFiles().get(0);
+			}
+			assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(uc[0])),
+					Files.readAllBytes(Paths.get(uc[1]))));
+
+			GlobalAligner aligner = new GlobalAligner();
+			List<String> lines = Files.readAllLines(Paths.get(uc[0]),
+					StandardCharsets.UTF_8);
+			assertEquals(n, lines.size());
+			for (int i = 0; i < n; i++) {
+				String[] f = lines.get(i).split("\t", -1);
+				assertEquals(10, f.length);
+				assertEquals(String.valueOf(reads[i].length()), f[2]);
+				assertEquals(readLabels[i], f[8]);
+				if (expected[i] < 0) {
+					assertEquals("N", f[0]);
+					assertEquals("*", f[9]);
+					continue;
+				}
+				int o = expected[i];
+				assertEquals("H", f[0]);
+				assertEquals(String.valueOf(o), f[1]);
+				assertEquals(String.format(Locale.US, "%.1f", 100 * aligner
+						.identity(seqs[i], targets[o], 0.97)), f[3]);
+				assertEquals(aligner.cigar(seqs[i], targets[o], 0.97), f[7]);
+				assertEquals(labels[o], f[9]);
+			}
+
+			// Both modes give the same table
+			for (int run : new int[] { 0, 2 }) {
+				OtuTable table = new OtuTable();
+				UcParser.parse(uc[run], table);
+				assertEquals(cells, cells(table));
+			}
+		} finally {
+			Locale.setDefault(locale);
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testUniquesTable() throws Exception {
+		// Few distinct reads spread over the samples, some with sizes
+		Random r = new Random(67);
+		byte[][] targets = { random(r, 230).getBytes(),
+				random(r, 250).getBytes(), random(r, 210).getBytes() };
+		String[] labels = { "OTU_1", "OTU_2", "OTU_3" };
+		List<String> variants = new ArrayList<String>();
+		for (int v = 0; v < 40; v++) {
+			StringBuilder sb = new StringBuilder(new String(
+					targets[r.nextInt(targets.length)]));
+			for (int e = r.nextInt(3); e > 0; e--)
+				sb.setCharAt(r.nextInt(sb.length()), BASES[r.nextInt(4)]);
+			variants.add((v % 10 == 9) ? random(r, 200) : sb.toString());
+		}
+		int n = 2000;
+		String[] readLabels = new String[n];
+		byte[][] reads = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			readLabels[i] = "r" + i
+					+ ((r.nextInt(10) == 0) ? ";size=" + (2 + r.nextInt(9))
+							: "") + ";barcodelabel=S" + r.nextInt(6) + ";";
+			reads[i] = variants.get(r.nextInt(variants.size())).getBytes();
+		}
+
+		File dir = Files.createTempDirectory("uniq").toFile();
+		try {
+			File db = new File(dir, "otus.fasta");
+			File fasta = new File(dir, "reads.fasta");
+			write(db, labels, targets);
+			write(fasta, readLabels, reads);
+			List<Map<String, Long>> tables = new ArrayList<Map<String, Long>>();
+			for (boolean uniques : new boolean[] { false, true }) {
+				File main = new File(dir, "uniques_" + uniques);
+				main.mkdir();
+				PipelineProcess map = new NativeMappingProcess().thread(2)
+						.uniques(uniques);
+				map.setInputFiles(Arrays.asList(db.toString(), fasta.toString()));
+				map.setMainOutputDir(main.toString());
+				assertEquals(PipelineResult.PASSED, map.launch().getRes());
+				PipelineProcess tab = new NativeTableProcess().thread(2);
+				tab.setInputFiles(map.getOutputFiles());
+				tab.setMainOutputDir(main.toString());
+				assertEquals(PipelineResult.PASSED, tab.launch().getRes());
+				tables.add(cells(OtuTable.read(tab.getOutputFiles().get(0))));
+			}
+			assertFalse(tables.get(0).isEmpty());
+			assertEquals(tables.get(0), tables.get(1));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testChimeraSkew() throws Exception {
+		// Two parents and a chimera of their halves: the chimera is flagged
+		// only if the second parent is at least twice as abundant, or if the
+		// sizes of the OTUs are not known
+		Random r = new Random(71);
+		String a = random(r, 300);
+		String b = random(r, 300);
+		String c = a.substring(0, 150) + b.substring(150);
+		String d = random(r, 280);
+		File dir = Files.createTempDirectory("chim").toFile();
+		try {
+			File reads = new File(dir, "reads.fasta");
+			write(reads, new String[] { "r1" },
+					new byte[][] { a.getBytes() });
+			long[][] sizes = { { 1000, 800, 100, 50 }, { 1000, 150, 100, 50 },
+					{ 1000, 150, 100, 50 } };
+			boolean[] sizeout = { true, true, false };
+			boolean[] flagged = { true, false, true };
+			for (int run = 0; run < sizes.length; run++) {
+				File main = new File(dir, "run" + run);
+				main.mkdir();
+				File uniques = new File(main, "uniques.fasta");
+				String[] labels = new String[4];
+				for (int i = 0; i < labels.length; i++)
+					labels[i] = "Dereplicated_sequence_" + (i + 1) + ";size="
+							+ sizes[run][i];
+				write(uniques, labels, new byte[][] { a.getBytes(),
+						b.getBytes(), c.getBytes(), d.getBytes() });
+
+				PipelineProcess clu = new GreedyClusteringOTU()
+						.sizeout(sizeout[run]);
+				clu.setInputFiles(Arrays.asList(uniques.toString(),
+						reads.toString()));
+				clu.setMainOutputDir(main.toString());
+				assertEquals(PipelineResult.PASSED, clu.launch().getRes());
+				List<FastaRecord> otus = FastaRecordReader.readAll(clu
+						.getOutputFiles().get(0));
+				assertEquals(4, otus.size());
+				assertEquals(sizeout[run], otus.get(2).getLabel()
+						.equals("OTU_3;size=100"));
+
+				PipelineProcess chim = new ChimeraProcess();
+				chim.setInputFiles(clu.getOutputFiles());
+				chim.setMainOutputDir(main.toString());
+				ProcessResult pr = chim.launch();
+				assertEquals("run " + run,
+						(flagged[run]) ? PipelineResult.PASSED_WITH_WARNINGS
+								: PipelineResult.PASSED, pr.getRes());
+				List<String> left = new ArrayList<String>();
+				for (FastaRecord f : FastaRecordReader.readAll(chim
+						.getOutputFiles().get(0)))
+					left.add(f.getLabel());
+				assertEquals((flagged[run]) ? Arrays.asList("OTU_1", "OTU_2",
+						"OTU_4") : Arrays.asList("OTU_1", "OTU_2", "OTU_3",
+						"OTU_4"), left);
+			}
+
+			// OTUs not in order of size, as after merging partitions
+			File main = new File(dir, "unsorted");
+			main.mkdir();
+			File otus = new File(main, "otus.fasta");
+			write(otus, new String[] { "OTU_1;size=1000;", "OTU_2;size=100;",
+					"OTU_3;size=800;" }, new byte[][] { a.getBytes(),
+					c.getBytes(), b.getBytes() });
+			PipelineProcess chim = new ChimeraProcess();
+			chim.setInputFiles(Arrays.asList(otus.toString(),
+					reads.toString()));
+			chim.setMainOutputDir(main.toString());
+			assertEquals(PipelineResult.PASSED_WITH_WARNINGS, chim.launch()
+					.getRes());
+			List<String> left = new ArrayList<String>();
+			for (FastaRecord f : FastaRecordReader.readAll(chim
+					.getOutputFiles().get(0)))
+				left.add(f.getLabel());
+			assertEquals(Arrays.asList("OTU_1", "OTU_3"), left);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testStoreUpdate() throws Exception {
+		// Families of reads around a few parents, the parents being the most
+		// common reads so they are the centroids of the new OTUs
+		Random r = new Random(79);
+		byte[][] parents = new byte[5][];
+		for (int p = 0; p < parents.length; p++)
+			parents[p] = random(r, 220 + r.nextInt(40)).getBytes();
+		File dir = Files.createTempDirectory("upd").toFile();
+		try {
+			String store = new File(dir, "store").toString();
+			File otus = new File(store, "otus.fasta");
+			File csv = new File(store, "otu_table.csv");
+
+			// First run, parents 0 to 2 in two samples
+			Map<String, Long> first = new HashMap<String, Long>();
+			File reads = reads(r, dir, "reads1.fasta", parents, new int[] {
+					0, 1, 2 }, new String[] { "S1", "S2" }, first);
+			PipelineProcess p = update(store, dir, "run1", reads, false);
+			assertEquals(PipelineResult.PASSED, p.launch().getRes());
+			List<FastaRecord> stored = FastaRecordReader.readAll(otus
+					.toString());
+			assertEquals(3, stored.size());
+			assertEquals(labels(stored), labels(FastaRecordReader.readAll(p
+					.getOutputFiles().get(1))));
+			Map<String, Long> expected = named(first, stored, parents);
+			assertEquals(expected, cells(OtuTable.read(csv.toString())));
+			assertEquals(expected, cells(OtuTable.read(p.getOutputFiles()
+					.get(0))));
+
+			// Second run, parents 1 to 4 in a new sample: the OTUs of the
+			// first run keep their labels and only two OTUs are new
+			Map<String, Long> second = new HashMap<String, Long>();
+			reads = reads(r, dir, "reads2.fasta", parents, new int[] { 1, 2,
+					3, 4 }, new String[] { "S3" }, second);
+			p = update(store, dir, "run2", reads, false);
+			assertEquals(PipelineResult.PASSED, p.launch().getRes());
+			List<FastaRecord> all = FastaRecordReader.readAll(otus.toString());
+			assertEquals(5, all.size());
+			assertEquals(labels(stored), labels(all.subList(0, 3)));
+			List<FastaRecord> fresh = FastaRecordReader.readAll(p
+					.getOutputFiles().get(1));
+			assertEquals(labels(all.subList(3, 5)), labels(fresh));
+			assertEquals(Arrays.asList("OTU_4", "OTU_5"), labels(fresh));
+			expected.putAll(named(second, all, parents));
+			assertEquals(expected, cells(OtuTable.read(csv.toString())));
+
+			// The same sample again fails and leaves the store as it is
+			byte[] before = Files.readAllBytes(csv.toPath());
+			byte[] beforeOtus = Files.readAllBytes(otus.toPath());
+			p = update(store, dir, "run3", reads, false);
+			ProcessResult pr = p.launch();
+			assertEquals(PipelineResult.FAILED, pr.getRes());
+			assertTrue(pr.getFails().toString().contains("S3"));
+			assertTrue(Arrays.equals(before, Files.readAllBytes(csv.toPath())));
+			assertTrue(Arrays.equals(beforeOtus,
+					Files.readAllBytes(otus.toPath())));
+
+			// Merged, the counts of the sample are doubled
+			p = update(store, dir, "run4", reads, true);
+			assertEquals(PipelineResult.PASSED_WITH_WARNINGS, p.launch()
+					.getRes());
+			for (Map.Entry<String, Long> e : named(second, all, parents)
+					.entrySet())
+				expected.put(e.getKey(), 2 * e.getValue());
+			assertEquals(expected, cells(OtuTable.read(csv.toString())));
+			assertEquals(5, FastaRecordReader.readAll(otus.toString()).size());
+			assertTrue(FastaRecordReader.readAll(
+					p.getOutputFiles().get(1)).isEmpty());
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void testClosedReference() throws Exception {
+		Random r = new Random(89);
+		byte[][] refs = new byte[6][];
+		String[] refLabels = new String[refs.length];
+		for (int i = 0; i < refs.length; i++) {
+			refs[i] = random(r, 200).getBytes();
+			refLabels[i] = "ref" + i + " some taxonomy";
+		}
+		// Two references around a sequence, the one at 99% identity sharing
+		// fewer k-mers with it than the one at 98%
+		byte[] middle = random(r, 200).getBytes();
+		refs[1] = change(middle, 60, 2, 80);
+		refs[2] = change(middle, 100, 6, 1);
+		// Uniques at 96% or 93% identity from their references
+		byte[][] uniques = { refs[0].clone(), change(refs[0], 3, 8, 24),
+				middle, change(refs[2], 12, 1, 1), change(refs[3], 3, 14, 14),
+				change(refs[3], 7, 8, 24) };
+		long[] sizes = { 5, 3, 4, 2, 7, 6 };
+		String[] labels = new String[uniques.length];
+		for (int u = 0; u < uniques.length; u++)
+			labels[u] = "u" + u + ";size=" + sizes[u] + ";";
+
+		File dir = Files.createTempDirectory("closed").toFile();
+		try {
+			File ref = new File(dir, "refs.fasta");
+			File in = new File(dir, "uniques.fasta");
+			File reads = new File(dir, "reads.fasta");
+			File index = new File(dir, "refs.fasta.kmi");
+			write(ref, refLabels, refs);
+			write(in, labels, uniques);
+			write(reads, new String[0], new byte[0][]);
+
+			// At 95% the unique at 93% is left out
+			File main = closed(dir, "run1", ref, in, reads, 0.95, r);
+			assertEquals(Arrays.asList("ref0", "ref3", "ref1", "ref2"),
+					labels(FastaRecordReader.readAll(new File(main,
+							"clustered/otus.fasta").toString())));
+			List<FastaRecord> left = FastaRecordReader.readAll(new File(main,
+					"clustered/unassigned.fasta").toString());
+			assertEquals(1, left.size());
+			assertTrue(left.get(0).getLabel().startsWith("u4;"));
+			assertTrue(index.exists());
+
+			// At 90% it joins its reference, searched with the same index
+			Files.setLastModifiedTime(index.toPath(),
+					FileTime.fromMillis(1000000));
+			main = closed(dir, "run2", ref, in, reads, 0.9, r);
+			List<FastaRecord> otus = FastaRecordReader.readAll(new File(main,
+					"clustered/otus.fasta").toString());
+			assertEquals(Arrays.asList("ref3", "ref0", "ref1", "ref2"),
+					labels(otus));
+			assertTrue(Arrays.equals(refs[3], otus.get(0).getSequence()));
+			assertTrue(FastaRecordReader.readAll(
+					new File(main, "clustered/unassigned.fasta").toString())
+					.isEmpty());
+			assertEquals(1000000, Files.getLastModifiedTime(index.toPath())
+					.toMillis());
+
+			// A damaged index or one of other references is rebuilt
+			Files.write(index.toPath(), "not an index".getBytes());
+			closed(dir, "run3", ref, in, reads, 0.9, r);
+			checkIndex(index, refs);
+			byte[][] more = Arrays.copyOf(refs, refs.length + 1);
+			more[refs.length] = random(r, 180).getBytes();
+			String[] moreLabels = Arrays.copyOf(refLabels, more.length);
+			moreLabels[refs.length] = "ref" + refs.length;
+			write(ref, moreLabels, more);
+			closed(dir, "run4", ref, in, reads, 0.9, r);
+			checkIndex(index, more);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	/**
+	 * Folds each read into the most abundant of the longest reads it is a
+	 * prefix of, the first one in lexicographic order on ties
+	 *
+	 * @return the sequences and counts at least <code>min</code>, by
+	 *         decreasing count and sequence
+	 */
+	private static List<String> fold(List<String> reads, long min) {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (String s : reads)
+			counts.put(s, (counts.containsKey(s) ? counts.get(s) : 0) + 1);
+		Map<String, Long> folded = new HashMap<String, Long>();
+		for (String s : counts.keySet()) {
+			String best = s;
+			for (String t : counts.keySet()) {
+				if (t.length() <= s.length() || !t.startsWith(s)
+						|| !longest(t, counts))
+					continue;
+				if (best == s || counts.get(t) > counts.get(best)
+						|| (counts.get(t).equals(counts.get(best)) && t
+								.compareTo(best) < 0))
+					best = t;
+			}
+			folded.put(best, (folded.containsKey(best) ? folded.get(best)
+					: 0) + counts.get(s));
+		}
+		List<Map.Entry<String, Long>> kept = new ArrayList<Map.Entry<String, Long>>();
+		for (Map.Entry<String, Long> e : folded.entrySet())
+			if (e.getValue() >= min)
+				kept.add(e);
+		Collections.sort(kept, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> a,
+					Map.Entry<String, Long> b) {
+				if (!a.getValue().equals(b.getValue()))
+					return (a.getValue() > b.getValue()) ? -1 : 1;
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		List<String> out = new ArrayList<String>();
+		for (Map.Entry<String, Long> e : kept)
+			out.add(e.getKey() + ";" + e.getValue());
+		return out;
+	}
+
+	/**
+	 * @return <code>true</code> if the sequence is not a prefix of another
+	 *         one
+	 */
+	private static boolean longest(String s, Map<String, Long> counts) {
+		for (String t : counts.keySet())
+			if (t.length() > s.length() && t.startsWith(s))
+				return false;
+		return true;
+	}
+
+	private static File closed(File dir, String run, File ref, File in,
+			File reads, double identity, Random r) throws IOException {
+		File main = new File(dir, run);
+		main.mkdir();
+		PipelineProcess p = new ClosedReferenceOTU(ref.toString()).identity(
+				identity).thread(1 + r.nextInt(3));
+		p.setInputFiles(Arrays.asList(in.toString(), reads.toString()));
+		p.setMainOutputDir(main.toString());
+		PipelineResult res = p.launch().getRes();
+		assertTrue(res == PipelineResult.PASSED
+				|| res == PipelineResult.PASSED_WITH_WARNINGS);
+		return main;
+	}
+
+	private static void checkIndex(File index, byte[][] refs)
+			throws IOException {
+		MappedKmerIndex idx = new MappedKmerIndex(index.toString());
+		try {
+			assertEquals(refs.length, idx.getTargets());
+			assertEquals(MappedKmerIndex.fingerprint(refs),
+					idx.getFingerprint());
+		} finally {
+			idx.close();
+		}
+	}
+
+	/**
+	 * @return a copy of a sequence with <code>n</code> substitutions, the
+	 *         first at <code>from</code> and the others every
+	 *         <code>step</code> bases
+	 */
+	private static byte[] change(byte[] seq, int from, int n, int step) {
+		byte[] s = seq.clone();
+		String bases = new String(BASES);
+		for (int i = 0, p = from; i < n; i++, p += step)
+			s[p] = (byte) BASES[(bases.indexOf(s[p]) + 1) % 4];
+		return s;
+	}
+
+	private static PipelineProcess update(String store, File dir, String run,
+			File reads, boolean merge) {
+		File main = new File(dir, run);
+		main.mkdir();
+		PipelineProcess p = new StoreUpdateProcess(store).merge(merge)
+				.thread(2);
+		p.setInputFiles(Arrays.asList(reads.toString()));
+		p.setMainOutputDir(main.toString());
+		return p;
+	}
+
+	/**
+	 * Writes reads of the given parents, half of them equal to their parent
+	 * and the others with a substitution or two
+	 *
+	 * @param counts
+	 *            the number of reads of each parent and sample, keyed by
+	 *            parent index and sample
+	 * @return the read file
+	 */
+	private static File reads(Random r, File dir, String name,
+			byte[][] parents, int[] which, String[] samples,
+			Map<String, Long> counts) throws IOException {
+		int n = 400;
+		String[] labels = new String[n];
+		byte[][] seqs = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			int p = which[r.nextInt(which.length)];
+			String sample = samples[r.nextInt(samples.length)];
+			labels[i] = "r" + i + ";barcodelabel=" + sample + ";";
+			seqs[i] = parents[p].clone();
+			if (r.nextBoolean())
+				for (int e = 1 + r.nextInt(2); e > 0; e--)
+					seqs[i][r.nextInt(seqs[i].length)] = (byte) BASES[r
+							.nextInt(4)];
+			String key = p + "\t" + sample;
+			counts.put(key, (counts.containsKey(key) ? counts.get(key) : 0) + 1);
+		}
+		File file = new File(dir, name);
+		write(file, labels, seqs);
+		return file;
+	}
+
+	/**
+	 * @return the counts keyed by the label of the stored OTU equal to each
+	 *         parent
+	 */
+	private static Map<String, Long> named(Map<String, Long> counts,
+			List<FastaRecord> stored, byte[][] parents) {
+		Map<String, Long> named = new HashMap<String, Long>();
+		for (Map.Entry<String, Long> e : counts.entrySet()) {
+			String[] f = e.getKey().split("\t");
+			byte[] parent = parents[Integer.parseInt(f[0])];
+			String label = null;
+			for (FastaRecord o : stored)
+				if (Arrays.equals(parent, o.getSequence()))
+					label = o.getLabel();
+			assertNotNull(label);
+			named.put(label + "\t" + f[1], e.getValue());
+		}
+		return named;
+	}
+
+	private static List<String> labels(List<FastaRecord> records) {
+		List<String> labels = new ArrayList<String>();
+		for (FastaRecord f : records)
+			labels.add(f.getLabel());
+		return labels;
+	}
+
+	/**
+	 * @return the number of threads opening a file for a mapping process
+	 */
+	private static int blockedParsers() {
+		int blocked = 0;
+		for (StackTraceElement[] st : Thread.getAllStackTraces().values()) {
+			boolean open = false;
+			for (StackTraceElement e : st) {
+				if (e.getClassName().equals("java.io.FileInputStream")
+						&& e.getMethodName().startsWith("open"))
+					open = true;
+				if (open
+						&& e.getClassName().startsWith(
+								MappingProcess.class.getName())) {
+					blocked++;
+					break;
+				}
+			}
+		}
+		return blocked;
+	}
+
+	/**
+	 * Writes a usearch script running the given commands, with the input,
+	 * output and <code>-uparseout</code>/<code>-uc</code> files in
+	 * <code>in</code>, <code>out</code> and <code>up</code>, and config files
+	 * pointing to it. The directory must be set as <code>user.dir</code> for
+	 * the processes to find them.
+	 */
+	private static void stub(File dir, String commands) throws IOException {
+		File bin = new File(dir, "bin");
+		bin.mkdir();
+		File usearch = new File(bin, "usearch");
+		BufferedWriter wr = new BufferedWriter(new FileWriter(usearch));
+		try {
+			wr.write("#!/bin/sh\n"
+					+ "while [ $# -gt 0 ]; do case \"$1\" in\n"
+					+ "-cluster_otus|-usearch_global) in=$2; shift;;\n"
+					+ "-otus) out=$2; shift;;\n"
+					+ "-uparseout|-uc) up=$2; shift;;\n"
+					+ "-db) db=$2; shift;;\n"
+					+ "esac; shift; done\n");
+			wr.write(commands);
+		} finally {
+			wr.close();
+		}
+		usearch.setExecutable(true);
+		File config = new File(dir, "config");
+		config.mkdir();
+		for (String name : new String[] { "otucluster.config",
+				"usearchglobal.config" }) {
+			wr = new BufferedWriter(new FileWriter(new File(config, name)));
+			try {
+				wr.write("ENV " + bin);
+				wr.newLine();
+			} finally {
+				wr.close();
+			}
+		}
+	}
+
+	private static void write(File file, String[] labels, byte[][] seqs)
+			throws IOException {
+		BufferedWriter wr = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i = 0; i < labels.length; i++) {
+				wr.write(">" + labels[i]);
+				wr.newLine();
+				wr.write(new String(seqs[i]));
+				wr.newLine();
+			}
+		} finally {
+			wr.close();
+		}
+	}
+
+	/**
+	 * @return the non zero cells of a table by OTU and sample
+	 */
+	private static Map<String, Long> cells(OtuTable table) {
+		Map<String, Long> cells = new HashMap<String, Long>();
+		int[] keys = new int[table.getSamples().size()];
+		for (int o = 0; o < table.getOtus().size(); o++) {
+			SparseCounts row = table.getRow(o);
+			int n = row.keys(keys);
+			for (int i = 0; i < n; i++)
+				if (row.get(keys[i]) != 0)
+					cells.put(table.getOtus().get(o) + "\t"
+							+ table.getSamples().get(keys[i]),
+							row.get(keys[i]));
+		}
+		return cells;
+	}
+
+	static String random(Random r, int len) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < len; i++)
+			sb.append(BASES[r.nextInt(4)]);
+		return sb.toString();
+	}
+
+	static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+
+}
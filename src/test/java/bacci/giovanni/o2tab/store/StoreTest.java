@@ -0,0 +1,125 @@
+package bacci.giovanni.o2tab.store;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+import bacci.giovanni.o2tab.index.KmerIndex;
+import bacci.giovanni.o2tab.index.KmerSearch;
+import bacci.giovanni.o2tab.table.OtuTable;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class StoreTest extends TestCase {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Random r = new Random(73);
+		File dir = Files.createTempDirectory("store").toFile();
+		try {
+			File path = new File(dir, "store");
+			byte[][] seqs = new byte[5][];
+			for (int i = 0; i < seqs.length; i++)
+				seqs[i] = random(r, 200 + r.nextInt(50));
+
+			OtuStore st = new OtuStore(path.toString());
+			assertEquals(0, st.size());
+			assertEquals(0, st.readTable().getOtus().size());
+			OtuTable table = new OtuTable();
+			for (int i = 0; i < 3; i++) {
+				assertEquals("OTU_" + (i + 1), st.add(seqs[i]));
+				table.add(table.otu("OTU_" + (i + 1)), table.sample("S1"),
+						i + 1);
+			}
+			st.save(table, 2);
+			check(st, seqs, 3);
+			st.close();
+
+			// Reopened, the OTUs and the table are the saved ones and the
+			// new OTUs follow
+			st = new OtuStore(path.toString());
+			assertEquals(Arrays.asList("OTU_1", "OTU_2", "OTU_3"),
+					st.getLabels());
+			check(st, seqs, 3);
+			table = st.readTable();
+			assertEquals(Arrays.asList("S1"), table.getSamples());
+			assertEquals(3, table.getRow(2).get(0));
+			assertEquals("OTU_4", st.add(seqs[3]));
+			st.save(table, 1);
+			st.close();
+			st = new OtuStore(path.toString());
+			check(st, seqs, 4);
+			st.close();
+
+			// A store started from the OTUs of a previous run, with an index
+			// of other sequences left from before
+			BufferedWriter wr = new BufferedWriter(new FileWriter(new File(
+					path, "otus.fasta")));
+			try {
+				String[] labels = { "OTU_7;size=12;", "Chimera_2", "OTU_3" };
+				for (int i = 0; i < labels.length; i++) {
+					wr.write(">" + labels[i]);
+					wr.newLine();
+					wr.write(new String(seqs[i + 2]));
+					wr.newLine();
+				}
+			} finally {
+				wr.close();
+			}
+			st = new OtuStore(path.toString());
+			assertEquals("OTU_8", st.add(seqs[0]));
+			st.close();
+			st = new OtuStore(path.toString());
+			check(st, Arrays.copyOfRange(seqs, 2, 5), 3);
+			st.close();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	/**
+	 * Checks that the first OTUs of a store are the given sequences and that
+	 * its index finds each of them
+	 */
+	private static void check(OtuStore st, byte[][] seqs, int n)
+			throws Exception {
+		assertEquals(n, st.size());
+		byte[][] stored = st.getSequences();
+		for (int i = 0; i < n; i++)
+			assertTrue(Arrays.equals(seqs[i], stored[i]));
+		KmerSearch index = st.index(1);
+		assertEquals(n, index.getTargets());
+		KmerIndex.Counter c = new KmerIndex.Counter(index.getK());
+		int[] out = new int[4];
+		for (int i = 0; i < n; i++) {
+			assertTrue(index.candidates(seqs[i], 0, n, c, out) > 0);
+			assertEquals(i, out[0]);
+		}
+	}
+
+	private static byte[] random(Random r, int len) {
+		byte[] s = new byte[len];
+		for (int i = 0; i < len; i++)
+			s[i] = BASES[r.nextInt(4)];
+		return s;
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+
+}
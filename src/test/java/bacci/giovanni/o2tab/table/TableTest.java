@@ -0,0 +1,251 @@
+package bacci.giovanni.o2tab.table;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class TableTest extends TestCase {
+
+	@Test
+	public void testUcParallel() throws Exception {
+		Random r = new Random(5);
+		Map<String, Long> expected = new HashMap<String, Long>();
+		StringBuilder sb = new StringBuilder();
+		int records = 6000;
+		for (int i = 0; i < records; i++) {
+			String sample = "S" + r.nextInt(7);
+			String otu = "OTU_" + (1 + r.nextInt(40));
+			long size = 1;
+			String query = "r" + i;
+			if (r.nextInt(3) == 0) {
+				size = 1 + r.nextInt(500);
+				query += ";size=" + size;
+			}
+			if (i == records / 2) {
+				// Longer than the buffer of the parser
+				char[] pad = new char[100000];
+				Arrays.fill(pad, 'x');
+				query += ";pad=" + new String(pad);
+			}
+			query += ";barcodelabel=" + sample + ";";
+			if (r.nextInt(5) == 0) {
+				sb.append("N\t*\t250\t*\t*\t*\t*\t*\t" + query + "\t*");
+			} else {
+				sb.append("H\t3\t250\t99.2\t+\t0\t0\t250M\t" + query + "\t"
+						+ otu);
+				String key = otu + "\t" + sample;
+				Long c = expected.get(key);
+				expected.put(key, (c == null) ? size : c + size);
+			}
+			// Mixed line terminators and no terminator after the last record
+			if (i < records - 1)
+				sb.append((r.nextBoolean()) ? "\r\n" : "\n");
+		}
+		File uc = File.createTempFile("map", ".uc");
+		File seq = File.createTempFile("seq", ".csv");
+		File par = File.createTempFile("par", ".csv");
+		ExecutorService ex = Executors.newFixedThreadPool(4);
+		try {
+			OutputStream os = new FileOutputStream(uc);
+			try {
+				os.write(sb.toString().getBytes());
+			} finally {
+				os.close();
+			}
+
+			OtuTable sequential = new OtuTable();
+			UcParser.parse(uc.toString(), sequential);
+			assertEquals(expected, cells(sequential));
+			sequential.write(seq.toString());
+			byte[] bytes = Files.readAllBytes(seq.toPath());
+			for (int parts : new int[] { 1, 2, 3, 5, 8, 16, 61 }) {
+				OtuTable t = UcParser.parse(uc.toString(), parts, ex);
+				t.write(par.toString());
+				assertTrue("parts " + parts,
+						Arrays.equals(bytes, Files.readAllBytes(par.toPath())));
+			}
+		} finally {
+			ex.shutdown();
+			uc.delete();
+			seq.delete();
+			par.delete();
+		}
+	}
+
+	@Test
+	public void testFormats() throws Exception {
+		// An OTU and a sample without counts, and a label to be escaped
+		OtuTable table = new OtuTable();
+		int o1 = table.otu("OTU_1");
+		table.otu("OTU_2");
+		int o3 = table.otu("OTU_\"3\\");
+		int s1 = table.sample("S1");
+		table.sample("S2");
+		int s3 = table.sample("S3");
+		table.add(o1, s3, 4);
+		table.add(o1, s1, 2);
+		table.add(o3, s1, 7);
+		table.add(o3, s1, 1);
+
+		File file = File.createTempFile("table", ".txt");
+		try {
+			TableFormat.TRIPLET.write(table, file.toString());
+			assertEquals(Arrays.asList("OTUId\tSampleId\tCount",
+					"OTU_1\tS1\t2", "OTU_1\tS3\t4", "OTU_\"3\\\tS1\t8"),
+					Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+
+			TableFormat.BIOM.write(table, file.toString());
+			assertEquals(Arrays.asList(
+					header(3, 3),
+					"\"rows\": [",
+					"{\"id\": \"OTU_1\", \"metadata\": null},",
+					"{\"id\": \"OTU_2\", \"metadata\": null},",
+					"{\"id\": \"OTU_\\\"3\\\\\", \"metadata\": null}],",
+					"\"columns\": [",
+					"{\"id\": \"S1\", \"metadata\": null},",
+					"{\"id\": \"S2\", \"metadata\": null},",
+					"{\"id\": \"S3\", \"metadata\": null}],",
+					"\"data\": [",
+					"[0,0,2],",
+					"[0,2,4],",
+					"[2,0,8]]}"), biom(file));
+
+			table.write(file.toString());
+			assertEquals(Arrays.asList("OTUId\tS1\tS2\tS3",
+					"OTU_1\t2\t0\t4", "OTU_2\t0\t0\t0",
+					"OTU_\"3\\\t8\t0\t0"), Files.readAllLines(file.toPath(),
+					StandardCharsets.UTF_8));
+
+			// A table without OTUs nor samples
+			table = new OtuTable();
+			TableFormat.TRIPLET.write(table, file.toString());
+			assertEquals(Arrays.asList("OTUId\tSampleId\tCount"),
+					Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+			TableFormat.BIOM.write(table, file.toString());
+			assertEquals(Arrays.asList(header(0, 0), "\"rows\": [],",
+					"\"columns\": [],", "\"data\": []}"), biom(file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return the first line of a BIOM table, without the date
+	 */
+	private static String header(int otus, int samples) {
+		return "{\"id\": null,"
+				+ "\"format\": \"Biological Observation Matrix 1.0.0\","
+				+ "\"format_url\": \"http://biom-format.org\","
+				+ "\"type\": \"OTU table\",\"generated_by\": \"o2tab\","
+				+ "\"date\": \"\",\"matrix_type\": \"sparse\","
+				+ "\"matrix_element_type\": \"int\",\"shape\": [" + otus
+				+ ", " + samples + "],";
+	}
+
+	/**
+	 * @return the lines of a BIOM table, checking the date and removing it
+	 */
+	private static List<String> biom(File file) throws IOException {
+		List<String> lines = Files.readAllLines(file.toPath(),
+				StandardCharsets.UTF_8);
+		String date = "\"date\": \"\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\"";
+		assertTrue(lines.get(0).matches(".*" + date + ".*"));
+		lines.set(0, lines.get(0).replaceAll(date, "\"date\": \"\""));
+		return lines;
+	}
+
+	@Test
+	public void testMappedRoundTrip() throws Exception {
+		Random r = new Random(9);
+		File file = File.createTempFile("table", ".bin");
+		try {
+			// Odd and even numbers of cells, with and without padding
+			for (int round = 0; round < 6; round++) {
+				OtuTable table = new OtuTable();
+				int otus = 1 + r.nextInt(60);
+				int samples = 1 + r.nextInt(12);
+				for (int o = 0; o < otus; o++)
+					table.otu("OTU_" + o + ((o % 7 == 0) ? "\u00e8" : ""));
+				for (int s = 0; s < samples; s++)
+					table.sample("S" + s);
+				for (int i = 0; i < otus * samples / 3 + round; i++)
+					table.add(r.nextInt(otus), r.nextInt(samples),
+							1 + (long) r.nextInt(Integer.MAX_VALUE) * 8);
+				MappedOtuTable.write(table, file.toString());
+
+				long[][] dense = new long[otus][samples];
+				long cells = 0;
+				int[] keys = new int[samples];
+				for (int o = 0; o < otus; o++) {
+					int n = table.getRow(o).keys(keys);
+					for (int i = 0; i < n; i++) {
+						dense[o][keys[i]] = table.getRow(o).get(keys[i]);
+						cells += (dense[o][keys[i]] != 0) ? 1 : 0;
+					}
+				}
+
+				// Default segments and segments of a few cells
+				int[][] bits = { {}, { 2, 1 }, { 3, 4 } };
+				for (int[] b : bits) {
+					MappedOtuTable m = (b.length == 0) ? new MappedOtuTable(
+							file.toString()) : new MappedOtuTable(
+							file.toString(), b[0], b[1]);
+					try {
+						assertEquals(table.getOtus(), m.getOtus());
+						assertEquals(table.getSamples(), m.getSamples());
+						assertEquals(cells, m.getCells());
+						for (int s = 0; s < samples; s++) {
+							long[] col = m.getSample(s).toDense(otus);
+							for (int o = 0; o < otus; o++)
+								assertEquals(dense[o][s], col[o]);
+						}
+						for (int o = 0; o < otus; o++)
+							assertTrue(Arrays.equals(dense[o], m.getOtu(o)
+									.toDense(samples)));
+					} finally {
+						m.close();
+					}
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return the non zero cells of a table by OTU and sample
+	 */
+	private static Map<String, Long> cells(OtuTable table) {
+		Map<String, Long> cells = new HashMap<String, Long>();
+		int[] keys = new int[table.getSamples().size()];
+		for (int o = 0; o < table.getOtus().size(); o++) {
+			SparseCounts row = table.getRow(o);
+			int n = row.keys(keys);
+			for (int i = 0; i < n; i++) {
+				long c = row.get(keys[i]);
+				if (c != 0)
+					cells.put(table.getOtus().get(o) + "\t"
+							+ table.getSamples().get(keys[i]), c);
+			}
+		}
+		return cells;
+	}
+
+}
@@ -0,0 +1,189 @@
+package bacci.giovanni.o2tab.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+
+@RunWith(BlockJUnit4ClassRunner.class)
+public class UtilTest extends TestCase {
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	@Test
+	public void testAbundanceOrder() {
+		Random r = new Random(31);
+		for (int round = 0; round < 200; round++) {
+			int n = r.nextInt(300);
+			final long[] counts = new long[n];
+			final byte[][] seqs = new byte[n][];
+			for (int i = 0; i < n; i++) {
+				// Few distinct counts, with all the bytes of a long used, and
+				// sequences sharing long prefixes or repeated
+				switch (r.nextInt(3)) {
+				case 0:
+					counts[i] = r.nextInt(4);
+					break;
+				case 1:
+					counts[i] = r.nextInt(1000);
+					break;
+				default:
+					counts[i] = (r.nextLong() >>> 1) & ~0xffL;
+				}
+				seqs[i] = (i > 0 && r.nextInt(5) == 0) ? seqs[r.nextInt(i)]
+						: random(r, r.nextInt(30));
+			}
+			int[] order = AbundanceSort.order(counts, seqs);
+
+			Integer[] expected = new Integer[n];
+			for (int i = 0; i < n; i++)
+				expected[i] = i;
+			Arrays.sort(expected, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					if (counts[a] != counts[b])
+						return (counts[a] > counts[b]) ? -1 : 1;
+					return naive(seqs[a], seqs[b]);
+				}
+			});
+			boolean[] seen = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				assertFalse(seen[order[i]]);
+				seen[order[i]] = true;
+				assertEquals(counts[expected[i]], counts[order[i]]);
+				assertTrue(Arrays.equals(seqs[expected[i]], seqs[order[i]]));
+			}
+		}
+	}
+
+	@Test
+	public void testSequenceOrder() {
+		Random r = new Random(37);
+		for (int round = 0; round < 200; round++) {
+			int n = r.nextInt(300);
+			byte[][] seqs = new byte[n][];
+			for (int i = 0; i < n; i++) {
+				// Prefixes of the other sequences
+				seqs[i] = (i > 0 && r.nextInt(3) == 0) ? Arrays.copyOf(
+						seqs[r.nextInt(i)], r.nextInt(40)) : random(r,
+						r.nextInt(40));
+				if (seqs[i].length > 0 && r.nextInt(10) == 0)
+					seqs[i][0] = (byte) 0xe8; // compared unsigned
+			}
+			int[] order = AbundanceSort.sequenceOrder(seqs);
+			for (int i = 1; i < n; i++)
+				assertTrue(naive(seqs[order[i - 1]], seqs[order[i]]) <= 0);
+		}
+	}
+
+	@Test
+	public void testMurmurHash() {
+		// Reference values of the x64 128-bit function with seed 0
+		long[] h = new long[2];
+		hash("", 0, h);
+		assertEquals(0L, h[0]);
+		assertEquals(0L, h[1]);
+		hash("hello", 0, h);
+		assertEquals(0xcbd8a7b341bd9b02L, h[0]);
+		assertEquals(0x5b1e906a48ae1d19L, h[1]);
+		hash("The quick brown fox jumps over the lazy dog", 0, h);
+		assertEquals(0xe34bbc7bbc071b6cL, h[0]);
+		assertEquals(0x7a433ca9c49a9347L, h[1]);
+		hash("", 1, h);
+		assertFalse(h[0] == 0 && h[1] == 0);
+
+		// A range hashes as a copy of it, whatever the tail length
+		Random r = new Random(47);
+		long[] copy = new long[2];
+		for (int len = 0; len < 40; len++) {
+			byte[] data = random(r, len + 7);
+			int from = r.nextInt(8);
+			MurmurHash3.hash128(data, from, len, 3, h);
+			MurmurHash3.hash128(Arrays.copyOfRange(data, from, from + len), 0,
+					len, 3, copy);
+			assertTrue(Arrays.equals(h, copy));
+		}
+	}
+
+	@Test
+	public void testFingerprintTable() {
+		// Fingerprints sharing the first half probe the same slots, starting
+		// from the last one of the initial table
+		FingerprintTable table = new FingerprintTable(1);
+		assertEquals(16, table.capacity());
+		Map<List<Long>, Long> expected = new HashMap<List<Long>, Long>();
+		for (long h2 = 0; h2 < 6; h2++)
+			for (int c = 0; c <= h2; c++)
+				increment(table, expected, 15, h2);
+		int[] slots = new int[6];
+		for (int h2 = 0; h2 < 6; h2++) {
+			slots[h2] = table.slot(15, h2);
+			assertEquals(h2 + 1, table.count(slots[h2]));
+		}
+		assertEquals(15, slots[0]);
+		assertEquals(0, slots[1]);
+		assertEquals(-1, table.slot(15, 6));
+		assertEquals(-1, table.slot(16, 0));
+		increment(table, expected, 14, 0);
+		for (int h2 = 0; h2 < 6; h2++)
+			assertEquals(slots[h2], table.slot(15, h2));
+
+		// Growth from the smallest table, with repeated fingerprints
+		Random r = new Random(53);
+		for (int i = 0; i < 30000; i++) {
+			long h1 = (r.nextInt(4) == 0) ? 15 : r.nextInt(5000);
+			increment(table, expected, h1, r.nextInt(8));
+		}
+		assertEquals(expected.size(), table.size());
+		assertTrue(table.size() <= table.capacity() * 0.7);
+		assertEquals(0, table.capacity() & (table.capacity() - 1));
+		for (Map.Entry<List<Long>, Long> e : expected.entrySet()) {
+			int s = table.slot(e.getKey().get(0), e.getKey().get(1));
+			assertTrue(s >= 0);
+			assertEquals((long) e.getValue(), table.count(s));
+		}
+		long total = 0;
+		for (int s = 0; s < table.capacity(); s++)
+			total += table.count(s);
+		assertEquals(30000 + 21 + 1, total);
+	}
+
+	private static void increment(FingerprintTable table,
+			Map<List<Long>, Long> expected, long h1, long h2) {
+		List<Long> key = Arrays.asList(h1, h2);
+		long count = (expected.containsKey(key) ? expected.get(key) : 0) + 1;
+		expected.put(key, count);
+		assertEquals(count, table.increment(h1, h2));
+	}
+
+	private static void hash(String s, long seed, long[] out) {
+		byte[] b = s.getBytes();
+		MurmurHash3.hash128(b, 0, b.length, seed, out);
+	}
+
+	/**
+	 * Unsigned lexicographic comparison, shorter sequences first
+	 */
+	private static int naive(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++)
+			if (a[i] != b[i])
+				return (a[i] & 0xff) - (b[i] & 0xff);
+		return a.length - b.length;
+	}
+
+	static byte[] random(Random r, int len) {
+		byte[] s = new byte[len];
+		for (int i = 0; i < len; i++)
+			s[i] = BASES[r.nextInt(4)];
+		return s;
+	}
+
+}